@@ -0,0 +1,162 @@
+package org.kolobok.agent;
+
+import org.kolobok.transformer.DebugLogDefaults;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Agent argument string: {@code key=value} pairs separated by {@code ,}; list values are separated by {@code ;}.
+ * Any {@link DebugLogDefaults} property is accepted by name, e.g. {@code logLevel=INFO,logDuration=true}.
+ */
+final class AgentOptions {
+    static final String ALL_METHODS = "*";
+
+    private final DebugLogDefaults defaults = new DebugLogDefaults();
+    private boolean hasDefaults;
+    private List<String> include;
+    private Map<String, Set<String>> debugLog;
+    private boolean revert;
+    private long revertAfterSeconds;
+
+    static AgentOptions parse(String args) {
+        AgentOptions options = new AgentOptions();
+        if (args == null || args.trim().isEmpty()) {
+            return options;
+        }
+        for (String pair : args.split(",")) {
+            if (pair.trim().isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String key = (eq < 0 ? pair : pair.substring(0, eq)).trim();
+            String value = eq < 0 ? "" : pair.substring(eq + 1).trim();
+            switch (key) {
+                case "include":
+                    options.include = new ArrayList<>();
+                    for (String prefix : split(value)) {
+                        options.include.add(prefix.replace('.', '/'));
+                    }
+                    break;
+                case "debugLog":
+                    options.debugLog = parseMethods(value);
+                    break;
+                case "revert":
+                    options.revert = value.isEmpty() || Boolean.parseBoolean(value);
+                    break;
+                case "revertAfter":
+                    options.revertAfterSeconds = Long.parseLong(value);
+                    break;
+                default:
+                    options.setDefault(key, value);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * {@code com.acme.Foo#bar;com.acme.Baz#*} to internal class name to method names.
+     */
+    private static Map<String, Set<String>> parseMethods(String value) {
+        Map<String, Set<String>> methods = new LinkedHashMap<>();
+        for (String spec : split(value)) {
+            int hash = spec.indexOf('#');
+            if (hash <= 0 || hash == spec.length() - 1) {
+                throw new IllegalArgumentException("Expected <class>#<method> or <class>#* but got '" + spec + "'");
+            }
+            methods.computeIfAbsent(spec.substring(0, hash).replace('.', '/'), name -> new HashSet<>())
+                    .add(spec.substring(hash + 1));
+        }
+        return methods;
+    }
+
+    private static List<String> split(String value) {
+        List<String> parts = new ArrayList<>();
+        for (String part : value.split(";")) {
+            if (!part.trim().isEmpty()) {
+                parts.add(part.trim());
+            }
+        }
+        return parts;
+    }
+
+    private void setDefault(String key, String value) {
+        Method setter = findSetter(key);
+        if (setter == null) {
+            throw new IllegalArgumentException("Unknown kolobok agent option '" + key + "'");
+        }
+        try {
+            setter.invoke(defaults, convert(setter.getParameterTypes()[0], value));
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException(e);
+        }
+        hasDefaults = true;
+    }
+
+    private static Method findSetter(String key) {
+        if (key.isEmpty()) {
+            return null;
+        }
+        String name = "set" + Character.toUpperCase(key.charAt(0)) + key.substring(1);
+        for (Method method : DebugLogDefaults.class.getMethods()) {
+            if (method.getName().equals(name) && method.getParameterCount() == 1) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object convert(Class<?> type, String value) {
+        if (type == Boolean.class) {
+            return Boolean.parseBoolean(value);
+        }
+        if (type == Integer.class) {
+            return Integer.parseInt(value);
+        }
+        if (type == Long.class) {
+            return Long.parseLong(value);
+        }
+        if (type.isEnum()) {
+            return Enum.valueOf((Class<Enum>) type, value.toUpperCase(Locale.ROOT));
+        }
+        return value;
+    }
+
+    /**
+     * {@code DebugLog} defaults set by these options, or {@code null} when none were given.
+     */
+    DebugLogDefaults getDefaults() {
+        return hasDefaults ? defaults : null;
+    }
+
+    /**
+     * Internal name prefixes of classes to transform, or {@code null} when not given.
+     */
+    List<String> getInclude() {
+        return include;
+    }
+
+    /**
+     * Methods to instrument as if annotated with {@code @DebugLog}, or {@code null} when not given.
+     */
+    Map<String, Set<String>> getDebugLog() {
+        return debugLog == null ? null : Collections.unmodifiableMap(debugLog);
+    }
+
+    boolean isRevert() {
+        return revert;
+    }
+
+    long getRevertAfterSeconds() {
+        return revertAfterSeconds;
+    }
+}
@@ -0,0 +1,107 @@
+package org.kolobok.agent;
+
+import org.kolobok.transformer.DebugLogDefaults;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Java agent entry points. {@code -javaagent:kolobok-agent.jar[=options]} transforms classes as they load, so no
+ * build-time step is needed; attaching to a running JVM additionally retransforms the classes named by the
+ * {@code debugLog} option. See {@link AgentOptions} for the option syntax.
+ */
+public final class KolobokAgent {
+    private static Instrumentation instrumentation;
+    private static KolobokClassFileTransformer transformer;
+    private static ScheduledExecutorService scheduler;
+
+    private KolobokAgent() {
+    }
+
+    public static void premain(String args, Instrumentation inst) {
+        start(args, inst);
+    }
+
+    public static void agentmain(String args, Instrumentation inst) {
+        start(args, inst);
+    }
+
+    private static synchronized void start(String args, Instrumentation inst) {
+        AgentOptions options;
+        try {
+            options = AgentOptions.parse(args);
+        } catch (RuntimeException e) {
+            log("ignoring options '" + args + "': " + e.getMessage());
+            return;
+        }
+        if (transformer == null) {
+            instrumentation = inst;
+            transformer = new KolobokClassFileTransformer(DebugLogDefaults.fromSystemEnv());
+            inst.addTransformer(transformer, true);
+        }
+        Map<String, Set<String>> previous = transformer.configure(options);
+        Map<String, Set<String>> current = transformer.getDebugLog();
+        if (current != previous) {
+            Set<String> affected = new HashSet<>(previous.keySet());
+            affected.addAll(current.keySet());
+            retransform(affected);
+        }
+        if (options.getRevertAfterSeconds() > 0 && !current.isEmpty()) {
+            scheduleRevert(current, options.getRevertAfterSeconds());
+        }
+    }
+
+    private static void scheduleRevert(Map<String, Set<String>> debugLog, long seconds) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "kolobok-agent-revert");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        scheduler.schedule(() -> {
+            synchronized (KolobokAgent.class) {
+                if (transformer.revert(debugLog)) {
+                    retransform(debugLog.keySet());
+                }
+            }
+        }, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The JVM hands retransformation the class bytes as originally loaded, so dropping a class's {@code debugLog}
+     * methods and retransforming it restores the original code.
+     */
+    private static void retransform(Set<String> classNames) {
+        if (classNames.isEmpty()) {
+            return;
+        }
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> loaded : instrumentation.getAllLoadedClasses()) {
+            if (classNames.contains(loaded.getName().replace('.', '/')) && instrumentation.isModifiableClass(loaded)) {
+                classes.add(loaded);
+            }
+        }
+        if (classes.isEmpty()) {
+            return;
+        }
+        try {
+            instrumentation.retransformClasses(classes.toArray(new Class<?>[0]));
+            log("retransformed " + classes.size() + " loaded classes");
+        } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+            log("failed to retransform " + classes + ": " + e);
+        }
+    }
+
+    static void log(String message) {
+        System.err.println("[kolobok-agent] " + message);
+    }
+}
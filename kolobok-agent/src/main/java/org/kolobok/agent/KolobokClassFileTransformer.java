@@ -0,0 +1,128 @@
+package org.kolobok.agent;
+
+import org.kolobok.transformer.DebugLogDefaults;
+import org.kolobok.transformer.KolobokTransformer;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs {@link KolobokTransformer} on classes as they are loaded or retransformed. Methods configured through the
+ * {@code debugLog} option get an invisible {@code @DebugLog} first, so they are instrumented like annotated ones.
+ */
+final class KolobokClassFileTransformer implements ClassFileTransformer {
+    private static final String[] EXCLUDED = {"java/", "javax/", "jdk/", "sun/", "com/sun/", "org/kolobok/"};
+
+    private DebugLogDefaults defaults;
+    private volatile KolobokTransformer transformer;
+    private volatile List<String> include;
+    private volatile Map<String, Set<String>> debugLog = Collections.emptyMap();
+
+    KolobokClassFileTransformer(DebugLogDefaults defaults) {
+        this.defaults = defaults;
+        this.transformer = new KolobokTransformer(defaults);
+    }
+
+    /**
+     * Applies the options of one {@code premain}/{@code agentmain} call on top of the current configuration.
+     *
+     * @return the {@code debugLog} methods configured before this call
+     */
+    synchronized Map<String, Set<String>> configure(AgentOptions options) {
+        if (options.getDefaults() != null) {
+            defaults = defaults.merge(options.getDefaults());
+            transformer = new KolobokTransformer(defaults);
+        }
+        if (options.getInclude() != null) {
+            include = options.getInclude();
+        }
+        Map<String, Set<String>> previous = debugLog;
+        if (options.isRevert()) {
+            debugLog = Collections.emptyMap();
+        } else if (options.getDebugLog() != null) {
+            debugLog = options.getDebugLog();
+        }
+        return previous;
+    }
+
+    /**
+     * Drops the {@code debugLog} methods, unless they have been reconfigured since.
+     *
+     * @return whether {@code expected} was still configured
+     */
+    synchronized boolean revert(Map<String, Set<String>> expected) {
+        if (debugLog != expected) {
+            return false;
+        }
+        debugLog = Collections.emptyMap();
+        return true;
+    }
+
+    Map<String, Set<String>> getDebugLog() {
+        return debugLog;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        // bootstrap classes cannot see the Kolobok runtime
+        if (loader == null || className == null || !accepts(className)) {
+            return null;
+        }
+        try {
+            Set<String> methods = debugLog.get(className);
+            byte[] input = methods == null ? classfileBuffer : annotate(classfileBuffer, methods);
+            return transformer.transform(className, input, loader);
+        } catch (RuntimeException | LinkageError e) {
+            // the JVM would swallow it silently and define the class unchanged anyway
+            KolobokAgent.log("failed to transform " + className.replace('/', '.') + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean accepts(String className) {
+        for (String prefix : EXCLUDED) {
+            if (className.startsWith(prefix)) {
+                return false;
+            }
+        }
+        List<String> prefixes = include;
+        if (prefixes == null) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] annotate(byte[] classBytes, Set<String> methods) {
+        ClassReader reader = new ClassReader(classBytes);
+        // no reader here: a copied method would drop the added annotation
+        ClassWriter writer = new ClassWriter(0);
+        reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                             String[] exceptions) {
+                MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+                if (methods.contains(name) || methods.contains(AgentOptions.ALL_METHODS)) {
+                    // a visible @DebugLog on the method still wins
+                    mv.visitAnnotation(KolobokTransformer.DEBUG_LOG_DESC, false).visitEnd();
+                }
+                return mv;
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+}
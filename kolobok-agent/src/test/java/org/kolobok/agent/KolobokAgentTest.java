@@ -0,0 +1,328 @@
+package org.kolobok.agent;
+
+import com.sun.tools.attach.VirtualMachine;
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KolobokAgentTest {
+
+    @Test
+    public void premainTransformsAnnotatedClassesWithOptions() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-agent-premain");
+        Path agentJar = agentJar(tempDir);
+        Path classesDir = compileApp(tempDir);
+
+        try (Child child = new Child(classesDir, "-javaagent:" + agentJar + "=logLevel=INFO,tag=agent")) {
+            List<String> logs = logLines(child.call("traced"));
+            assertThat(logs).isNotEmpty().allMatch(line -> line.startsWith("LOG INFO "));
+            assertThat(String.join("\n", logs)).contains("traced").contains("agent");
+            assertThat(logLines(child.call("plain"))).isEmpty();
+        }
+    }
+
+    @Test
+    public void attachInstrumentsMethodsAndRevertsThem() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-agent-attach");
+        Path agentJar = agentJar(tempDir);
+        Path classesDir = compileApp(tempDir);
+
+        try (Child child = new Child(classesDir)) {
+            // without the agent nothing is instrumented, not even @DebugLog methods
+            assertThat(logLines(child.call("traced"))).isEmpty();
+            assertThat(logLines(child.call("plain"))).isEmpty();
+
+            child.attach(agentJar, "debugLog=sample.Work#plain");
+            List<String> output = child.call("plain");
+            assertThat(output).contains("RESULT 42");
+            assertThat(String.join("\n", logLines(output))).contains("plain");
+
+            child.attach(agentJar, "revert");
+            output = child.call("plain");
+            assertThat(output).contains("RESULT 42");
+            assertThat(logLines(output)).isEmpty();
+        }
+    }
+
+    @Test
+    public void readsMdcFromApplicationClassLoaderThatRuntimeCannotSee() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-agent-loader");
+        Path agentJar = agentJar(tempDir);
+        Path classesDir = compileApp(tempDir);
+        Path srcDir = tempDir.resolve("src");
+        List<Path> sources = new ArrayList<>();
+        sources.add(write(srcDir, "MdcApp",
+                "public class MdcApp {",
+                "    public static void main(String[] args) {",
+                "        org.slf4j.MDC.put(\"traceId\", \"mdc-trace-1\");",
+                "        System.out.println(\"RESULT \" + new Work().traced(21));",
+                "    }",
+                "}"));
+        sources.add(write(srcDir, "MdcProvider",
+                "import org.slf4j.ILoggerFactory;",
+                "import org.slf4j.IMarkerFactory;",
+                "import org.slf4j.helpers.BasicMDCAdapter;",
+                "import org.slf4j.helpers.BasicMarkerFactory;",
+                "import org.slf4j.helpers.NOPLoggerFactory;",
+                "import org.slf4j.spi.MDCAdapter;",
+                "import org.slf4j.spi.SLF4JServiceProvider;",
+                "",
+                "public class MdcProvider implements SLF4JServiceProvider {",
+                "    private final MDCAdapter mdc = new BasicMDCAdapter();",
+                "    public ILoggerFactory getLoggerFactory() { return new NOPLoggerFactory(); }",
+                "    public IMarkerFactory getMarkerFactory() { return new BasicMarkerFactory(); }",
+                "    public MDCAdapter getMDCAdapter() { return mdc; }",
+                "    public String getRequestedApiVersion() { return \"2.0.99\"; }",
+                "    public void initialize() { }",
+                "}"));
+        compileSources(sources, classesDir);
+        Path services = classesDir.resolve("META-INF/services/org.slf4j.spi.SLF4JServiceProvider");
+        Files.createDirectories(services.getParent());
+        Files.writeString(services, "sample.MdcProvider\n");
+        Path launcherDir = tempDir.resolve("launcher");
+        compileSources(Collections.singletonList(write(srcDir, "Launcher",
+                "import java.net.URL;",
+                "import java.net.URLClassLoader;",
+                "import java.nio.file.Paths;",
+                "",
+                "public class Launcher {",
+                "    public static void main(String[] args) throws Exception {",
+                "        URL[] urls = new URL[args.length];",
+                "        for (int i = 0; i < args.length; i++) {",
+                "            urls[i] = Paths.get(args[i]).toUri().toURL();",
+                "        }",
+                "        ClassLoader loader = new URLClassLoader(urls, Launcher.class.getClassLoader());",
+                "        Thread.currentThread().setContextClassLoader(loader);",
+                "        loader.loadClass(\"sample.MdcApp\").getMethod(\"main\", String[].class)",
+                "                .invoke(null, (Object) new String[0]);",
+                "    }",
+                "}")), launcherDir);
+
+        // like a Spring Boot launcher: SLF4J and the application only exist in a child class loader
+        List<String> systemClasspath = new ArrayList<>();
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-javaagent:" + agentJar);
+        command.add("-cp");
+        systemClasspath.add(launcherDir.toString());
+        List<String> applicationClasspath = new ArrayList<>();
+        applicationClasspath.add(classesDir.toString());
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            (entry.contains("slf4j") ? applicationClasspath : systemClasspath).add(entry);
+        }
+        command.add(String.join(File.pathSeparator, systemClasspath));
+        command.add("sample.Launcher");
+        command.addAll(applicationClasspath);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output;
+        try (InputStream in = process.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertThat(process.waitFor(60, TimeUnit.SECONDS)).isTrue();
+        assertThat(process.exitValue()).as(output).isZero();
+
+        List<String> logs = logLines(Arrays.asList(output.split("\\R")));
+        assertThat(logs).as(output).isNotEmpty().allMatch(line -> line.contains("trace=mdc-trace-1"));
+    }
+
+    private static List<String> logLines(List<String> output) {
+        return output.stream().filter(line -> line.startsWith("LOG ")).collect(Collectors.toList());
+    }
+
+    /**
+     * The shaded jar is only built in the package phase; the child JVM finds the agent classes on its classpath.
+     */
+    private Path agentJar(Path tempDir) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("Premain-Class", KolobokAgent.class.getName());
+        attributes.putValue("Agent-Class", KolobokAgent.class.getName());
+        attributes.putValue("Can-Retransform-Classes", "true");
+        Path jar = tempDir.resolve("agent.jar");
+        try (OutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+            out.flush();
+        }
+        return jar;
+    }
+
+    private Path compileApp(Path tempDir) throws IOException {
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        List<Path> sources = new ArrayList<>();
+        sources.add(write(srcDir, "App",
+                "import java.io.BufferedReader;",
+                "import java.io.InputStreamReader;",
+                "",
+                "public class App {",
+                "    public static void main(String[] args) throws Exception {",
+                "        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));",
+                "        Work work = new Work();",
+                "        System.out.println(\"READY\");",
+                "        String line;",
+                "        while ((line = in.readLine()) != null) {",
+                "            int result = \"traced\".equals(line) ? work.traced(21) : work.plain(21);",
+                "            System.out.println(\"RESULT \" + result);",
+                "            System.out.println(\"END\");",
+                "        }",
+                "    }",
+                "}"));
+        sources.add(write(srcDir, "Work",
+                "import org.kolobok.annotation.DebugLog;",
+                "import org.slf4j.Logger;",
+                "",
+                "public class Work {",
+                "    private static final Logger log = new PrintLogger();",
+                "",
+                "    @DebugLog",
+                "    public int traced(int value) {",
+                "        return value * 2;",
+                "    }",
+                "",
+                "    public int plain(int value) {",
+                "        return value * 2;",
+                "    }",
+                "}"));
+        sources.add(write(srcDir, "PrintLogger",
+                "import org.slf4j.Marker;",
+                "import org.slf4j.event.Level;",
+                "import org.slf4j.helpers.LegacyAbstractLogger;",
+                "",
+                "public class PrintLogger extends LegacyAbstractLogger {",
+                "    public boolean isTraceEnabled() { return true; }",
+                "    public boolean isDebugEnabled() { return true; }",
+                "    public boolean isInfoEnabled() { return true; }",
+                "    public boolean isWarnEnabled() { return true; }",
+                "    public boolean isErrorEnabled() { return true; }",
+                "",
+                "    protected String getFullyQualifiedCallerName() {",
+                "        return null;",
+                "    }",
+                "",
+                "    protected void handleNormalizedLoggingCall(Level level, Marker marker, String message,",
+                "                                               Object[] arguments, Throwable throwable) {",
+                "        System.out.println(\"LOG \" + level + \" \" + message.replace('\\n', ' '));",
+                "    }",
+                "}"));
+        compileSources(sources, classesDir);
+        return classesDir;
+    }
+
+    private Path write(Path srcDir, String name, String... lines) throws IOException {
+        Path file = srcDir.resolve("sample/" + name + ".java");
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, "package sample;\n\n" + String.join("\n", lines) + "\n");
+        return file;
+    }
+
+    private void compileSources(List<Path> sources, Path classesDir) throws IOException {
+        Files.createDirectories(classesDir);
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        List<File> files = sources.stream().map(Path::toFile).collect(Collectors.toList());
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(files);
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", classesDir + File.pathSeparator + System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+
+    /**
+     * A child JVM running {@code sample.App}, driven line by line over stdin/stdout.
+     */
+    private static final class Child implements AutoCloseable {
+        private final Process process;
+        private final BufferedReader out;
+        private final OutputStream in;
+
+        private Child(Path classesDir, String... jvmOptions) throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(Arrays.asList(jvmOptions));
+            command.add("-cp");
+            command.add(classesDir + File.pathSeparator + System.getProperty("java.class.path"));
+            command.add("sample.App");
+            process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            in = process.getOutputStream();
+            readUntil("READY");
+        }
+
+        private void attach(Path agentJar, String options) throws Exception {
+            VirtualMachine vm = VirtualMachine.attach(String.valueOf(process.pid()));
+            try {
+                vm.loadAgent(agentJar.toString(), options);
+            } finally {
+                vm.detach();
+            }
+        }
+
+        private List<String> call(String method) throws IOException {
+            in.write((method + "\n").getBytes(StandardCharsets.UTF_8));
+            in.flush();
+            return readUntil("END");
+        }
+
+        private List<String> readUntil(String marker) throws IOException {
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = out.readLine()) != null) {
+                if (line.equals(marker)) {
+                    return lines;
+                }
+                lines.add(line);
+            }
+            throw new IllegalStateException("Child JVM exited before '" + marker + "': " + lines);
+        }
+
+        @Override
+        public void close() throws Exception {
+            in.close();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+}
@@ -27,6 +27,12 @@ public @interface DebugLog {
     long slowThresholdMs() default 0;
     boolean logLocals() default false;
     boolean logLocalsOnException() default false;
+    boolean logAllocatedBytes() default false;
+    boolean logCpuTime() default false;
+    boolean logContention() default false;
+    boolean logArgSizes() default false;
+    TraceSink traceSink() default TraceSink.SLF4J;
+    TraceIdFormat traceIdFormat() default TraceIdFormat.UUID;
 
     enum LogLevel {
         TRACE,
@@ -38,6 +44,19 @@ public @interface DebugLog {
 
     enum LogFormat {
         HUMAN,
-        JSON
+        JSON,
+        JFR
+    }
+
+    enum TraceSink {
+        SLF4J,
+        FILE,
+        RING
+    }
+
+    enum TraceIdFormat {
+        UUID,
+        RANDOM,
+        TIME
     }
 }
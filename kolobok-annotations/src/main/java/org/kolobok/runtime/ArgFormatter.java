@@ -0,0 +1,23 @@
+package org.kolobok.runtime;
+
+import java.util.Map;
+
+/**
+ * Renders values of one type into @DebugLog arguments, results and locals. Register with
+ * {@link ArgFormatters#register(Class, ArgFormatter)} or ship a {@link Provider} via {@code ServiceLoader}.
+ *
+ * <p>Implementations should stop once more than {@code limit} characters were appended; everything past
+ * {@code limit} is cut and replaced with {@code "..."}. Use {@link ArgFormatters#append} for nested values.
+ */
+@FunctionalInterface
+public interface ArgFormatter<T> {
+
+    void format(T value, StringBuilder out, int limit);
+
+    /**
+     * {@code META-INF/services/org.kolobok.runtime.ArgFormatter$Provider} entry point.
+     */
+    interface Provider {
+        Map<Class<?>, ArgFormatter<?>> formatters();
+    }
+}
@@ -0,0 +1,268 @@
+package org.kolobok.runtime;
+
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-type {@link ArgFormatter} registry used for @DebugLog arguments, results and locals. Lookups are cached per
+ * class; the nearest registered superclass wins, then the nearest interface, then {@code toString()}.
+ * Built-ins cover {@link CharSequence}, {@link Collection}, {@link Map}, {@link Optional}, arrays and {@code byte[]}
+ * and stop rendering once the limit is exceeded, so element {@code toString()}s past the limit never run.
+ */
+public final class ArgFormatters {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final Map<Class<?>, ArgFormatter<?>> REGISTERED = new ConcurrentHashMap<>();
+    private static final ArgFormatter<Object> TO_STRING = ArgFormatters::appendToString;
+    private static final ArgFormatter<Object> ARRAY = ArgFormatters::appendArray;
+    private static volatile ClassValue<ArgFormatter<Object>> cache = newCache();
+
+    static {
+        registerBuiltIns();
+        loadProviders();
+    }
+
+    private ArgFormatters() {
+    }
+
+    public static <T> void register(Class<T> type, ArgFormatter<? super T> formatter) {
+        if (type == null || formatter == null) {
+            throw new IllegalArgumentException("type and formatter are required");
+        }
+        REGISTERED.put(type, formatter);
+        cache = newCache();
+    }
+
+    public static void unregister(Class<?> type) {
+        REGISTERED.remove(type);
+        cache = newCache();
+    }
+
+    /**
+     * Drops custom registrations and restores the built-ins.
+     */
+    public static void reset() {
+        REGISTERED.clear();
+        registerBuiltIns();
+        cache = newCache();
+    }
+
+    /**
+     * Renders {@code value} into at most {@code limit} characters, followed by {@code "..."} when cut.
+     */
+    public static String format(Object value, int limit) {
+        if (value == null) {
+            return "null";
+        }
+        int max = Math.max(0, limit);
+        if (value instanceof String) {
+            String text = (String) value;
+            return text.length() <= max ? text : text.substring(0, max) + "...";
+        }
+        StringBuilder sb = new StringBuilder(Math.min(max, 256) + 3);
+        append(sb, value, max);
+        if (sb.length() > max) {
+            sb.setLength(max);
+            sb.append("...");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends {@code value} with the formatter registered for its class; for use by nested formatters.
+     */
+    public static void append(StringBuilder out, Object value, int limit) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        formatterFor(value.getClass()).format(value, out, Math.max(0, limit));
+    }
+
+    static ArgFormatter<Object> formatterFor(Class<?> type) {
+        return cache.get(type);
+    }
+
+    private static ClassValue<ArgFormatter<Object>> newCache() {
+        return new ClassValue<ArgFormatter<Object>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            protected ArgFormatter<Object> computeValue(Class<?> type) {
+                return (ArgFormatter<Object>) resolve(type);
+            }
+        };
+    }
+
+    private static ArgFormatter<?> resolve(Class<?> type) {
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            ArgFormatter<?> formatter = REGISTERED.get(current);
+            if (formatter != null) {
+                return formatter;
+            }
+        }
+        if (type.isArray()) {
+            return ARRAY;
+        }
+        Deque<Class<?>> queue = new ArrayDeque<>();
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            for (Class<?> iface : current.getInterfaces()) {
+                queue.add(iface);
+            }
+        }
+        Set<Class<?>> seen = new HashSet<>();
+        while (!queue.isEmpty()) {
+            Class<?> iface = queue.poll();
+            if (!seen.add(iface)) {
+                continue;
+            }
+            ArgFormatter<?> formatter = REGISTERED.get(iface);
+            if (formatter != null) {
+                return formatter;
+            }
+            for (Class<?> parent : iface.getInterfaces()) {
+                queue.add(parent);
+            }
+        }
+        ArgFormatter<?> fallback = REGISTERED.get(Object.class);
+        return fallback != null ? fallback : TO_STRING;
+    }
+
+    private static void registerBuiltIns() {
+        REGISTERED.put(CharSequence.class, (ArgFormatter<CharSequence>) ArgFormatters::appendCharSequence);
+        REGISTERED.put(Collection.class, (ArgFormatter<Collection<?>>) ArgFormatters::appendCollection);
+        REGISTERED.put(Map.class, (ArgFormatter<Map<?, ?>>) ArgFormatters::appendMap);
+        REGISTERED.put(Optional.class, (ArgFormatter<Optional<?>>) ArgFormatters::appendOptional);
+        REGISTERED.put(byte[].class, (ArgFormatter<byte[]>) ArgFormatters::appendBytes);
+    }
+
+    private static void loadProviders() {
+        try {
+            for (ArgFormatter.Provider provider : ServiceLoader.load(ArgFormatter.Provider.class)) {
+                Map<Class<?>, ArgFormatter<?>> formatters = provider.formatters();
+                if (formatters != null) {
+                    formatters.forEach((type, formatter) -> {
+                        if (type != null && formatter != null) {
+                            REGISTERED.put(type, formatter);
+                        }
+                    });
+                }
+            }
+        } catch (ServiceConfigurationError | RuntimeException ignored) {
+            // a broken provider must not break instrumented code
+        }
+    }
+
+    private static void appendToString(Object value, StringBuilder out, int limit) {
+        String text = String.valueOf(value);
+        out.append(text, 0, Math.min(text.length(), limit + 1));
+    }
+
+    private static void appendCharSequence(CharSequence value, StringBuilder out, int limit) {
+        out.append(value, 0, Math.min(value.length(), limit + 1));
+    }
+
+    private static void appendCollection(Collection<?> value, StringBuilder out, int limit) {
+        int end = out.length() + limit;
+        out.append('[');
+        boolean first = true;
+        for (Object element : value) {
+            if (out.length() > end) {
+                return;
+            }
+            if (!first) {
+                out.append(", ");
+            }
+            first = false;
+            if (element == value) {
+                out.append("(this Collection)");
+            } else {
+                append(out, element, end - out.length());
+            }
+        }
+        out.append(']');
+    }
+
+    private static void appendMap(Map<?, ?> value, StringBuilder out, int limit) {
+        int end = out.length() + limit;
+        out.append('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : value.entrySet()) {
+            if (out.length() > end) {
+                return;
+            }
+            if (!first) {
+                out.append(", ");
+            }
+            first = false;
+            Object key = entry.getKey();
+            if (key == value) {
+                out.append("(this Map)");
+            } else {
+                append(out, key, end - out.length());
+            }
+            if (out.length() > end) {
+                return;
+            }
+            out.append('=');
+            Object entryValue = entry.getValue();
+            if (entryValue == value) {
+                out.append("(this Map)");
+            } else {
+                append(out, entryValue, end - out.length());
+            }
+        }
+        out.append('}');
+    }
+
+    private static void appendOptional(Optional<?> value, StringBuilder out, int limit) {
+        if (!value.isPresent()) {
+            out.append("Optional.empty");
+            return;
+        }
+        int end = out.length() + limit;
+        out.append("Optional[");
+        append(out, value.get(), end - out.length());
+        out.append(']');
+    }
+
+    private static void appendArray(Object value, StringBuilder out, int limit) {
+        int end = out.length() + limit;
+        int length = Array.getLength(value);
+        out.append('[');
+        for (int i = 0; i < length; i++) {
+            if (out.length() > end) {
+                return;
+            }
+            if (i > 0) {
+                out.append(", ");
+            }
+            Object element = Array.get(value, i);
+            if (element == value) {
+                out.append("[...]");
+            } else {
+                append(out, element, end - out.length());
+            }
+        }
+        out.append(']');
+    }
+
+    private static void appendBytes(byte[] value, StringBuilder out, int limit) {
+        int end = out.length() + limit;
+        out.append("byte[").append(value.length).append("]{");
+        for (int i = 0; i < value.length; i++) {
+            if (out.length() > end) {
+                return;
+            }
+            out.append(HEX[(value[i] >> 4) & 0xF]).append(HEX[value[i] & 0xF]);
+        }
+        out.append('}');
+    }
+}
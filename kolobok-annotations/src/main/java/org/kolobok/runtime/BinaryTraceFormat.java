@@ -0,0 +1,463 @@
+package org.kolobok.runtime;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compact binary encoding of heat map traces. A stream starts with {@code KLBT} + version and contains
+ * dictionary records (method descriptors, tags, thread names interned once) followed by trace records
+ * that reference them by varint id. Method ids are the stable hashes assigned by the transformer.
+ * <p>
+ * Decode to JSON lines with {@code java -cp kolobok.jar org.kolobok.runtime.BinaryTraceFormat <file>}.
+ */
+public final class BinaryTraceFormat {
+    static final byte[] MAGIC = {'K', 'L', 'B', 'T'};
+    // 2 adds root span ids; version 1 streams still decode
+    static final int VERSION = 2;
+
+    static final int RECORD_DICTIONARY = 1;
+    static final int RECORD_TRACE = 2;
+
+    static final int DICT_METHOD = 0;
+    static final int DICT_TAG = 1;
+    static final int DICT_THREAD = 2;
+
+    private static final int FLAG_DURATION = 1;
+    private static final int FLAG_TAG = 1 << 1;
+    private static final int FLAG_ARGS = 1 << 2;
+    private static final int FLAG_ALLOCATED_BYTES = 1 << 3;
+    private static final int FLAG_CPU_TIME = 1 << 4;
+    private static final int FLAG_CONTENTION = 1 << 5;
+    private static final int FLAG_SPAN = 1 << 6;
+    private static final int FLAG_PARENT_SPAN = 1 << 7;
+
+    private static final int ARG_NULL = 0;
+    private static final int ARG_INTEGER = 1;
+    private static final int ARG_NUMBER = 2;
+    private static final int ARG_TRUE = 3;
+    private static final int ARG_FALSE = 4;
+    private static final int ARG_STRING = 5;
+
+    private BinaryTraceFormat() {
+    }
+
+    // 32-bit FNV-1a over the UTF-8 descriptor; never 0 so 0 can mean "not assigned"
+    public static int methodId(String method) {
+        int hash = 0x811C9DC5;
+        for (byte b : method.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    public static void decode(InputStream in, PrintStream out) throws IOException {
+        InputStream input = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        if (input.readNBytes(magic, 0, magic.length) != magic.length || !java.util.Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a kolobok binary trace stream");
+        }
+        int version = (int) readVarint(input);
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported binary trace version " + version);
+        }
+        Map<Long, String>[] dictionaries = newDictionaries();
+        while (true) {
+            int type = input.read();
+            if (type < 0) {
+                return;
+            }
+            if (type == RECORD_DICTIONARY) {
+                int kind = (int) readVarint(input);
+                long id = readVarint(input);
+                dictionaries[kind].put(id, readString(input));
+            } else if (type == RECORD_TRACE) {
+                byte[] body = new byte[(int) readVarint(input)];
+                if (input.readNBytes(body, 0, body.length) != body.length) {
+                    throw new EOFException("Truncated trace record");
+                }
+                out.println(decodeTrace(body, dictionaries));
+            } else {
+                throw new IOException("Unknown record type " + type);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: BinaryTraceFormat <trace-file>");
+            System.exit(2);
+        }
+        try (InputStream in = Files.newInputStream(Paths.get(args[0]))) {
+            decode(in, System.out);
+        }
+    }
+
+    private static String decodeTrace(byte[] body, Map<Long, String>[] dictionaries) throws IOException {
+        Cursor cursor = new Cursor(body);
+        String traceId = cursor.readString();
+        String thread = dictionaries[DICT_THREAD].get(cursor.readVarint());
+        LogContextTrace.TraceNode root = decodeNode(cursor, dictionaries);
+        LogContextTrace.computeSelfTime(root);
+        LogContextTrace.markCriticalPath(root);
+        return LogContextTrace.buildJson(traceId, thread, root);
+    }
+
+    private static LogContextTrace.TraceNode decodeNode(Cursor cursor, Map<Long, String>[] dictionaries)
+            throws IOException {
+        long methodRef = cursor.readVarint();
+        int flags = (int) cursor.readVarint();
+        String tag = (flags & FLAG_TAG) != 0 ? dictionaries[DICT_TAG].get(cursor.readVarint()) : "";
+        String method = dictionaries[DICT_METHOD].get(methodRef);
+        LogContextTrace.TraceNode node = new LogContextTrace.TraceNode(method != null ? method : "#" + methodRef, tag);
+        node.methodId = (int) methodRef;
+        node.count = (int) cursor.readVarint();
+        if ((flags & FLAG_DURATION) != 0) {
+            node.durationNs = cursor.readSigned();
+        }
+        int lines = (int) cursor.readVarint();
+        node.lineCounts = new HashMap<>();
+        int line = 0;
+        for (int i = 0; i < lines; i++) {
+            line += (int) cursor.readVarint();
+            node.lineCounts.put(line, (int) cursor.readVarint());
+        }
+        if ((flags & FLAG_ARGS) != 0) {
+            Object[] arguments = new Object[(int) cursor.readVarint()];
+            for (int i = 0; i < arguments.length; i++) {
+                int kind = (int) cursor.readVarint();
+                if (kind == ARG_INTEGER) {
+                    arguments[i] = cursor.readSigned();
+                } else if (kind == ARG_NUMBER) {
+                    arguments[i] = decodeNumber(cursor.readString());
+                } else if (kind == ARG_TRUE || kind == ARG_FALSE) {
+                    arguments[i] = kind == ARG_TRUE;
+                } else if (kind == ARG_STRING) {
+                    arguments[i] = cursor.readString();
+                }
+            }
+            node.arguments = arguments;
+        }
+        if ((flags & FLAG_ALLOCATED_BYTES) != 0) {
+            node.allocatedBytes = cursor.readSigned();
+        }
+        if ((flags & FLAG_CPU_TIME) != 0) {
+            node.cpuTimeNs = cursor.readSigned();
+        }
+        if ((flags & FLAG_CONTENTION) != 0) {
+            node.contention = new long[4];
+            for (int i = 0; i < node.contention.length; i++) {
+                node.contention[i] = cursor.readSigned();
+            }
+        }
+        if ((flags & FLAG_SPAN) != 0) {
+            node.spanId = cursor.readSpanId();
+        }
+        if ((flags & FLAG_PARENT_SPAN) != 0) {
+            node.parentSpanId = cursor.readSpanId();
+        }
+        int children = (int) cursor.readVarint();
+        for (int i = 0; i < children; i++) {
+            node.children.add(decodeNode(cursor, dictionaries));
+        }
+        return node;
+    }
+
+    private static Object decodeNumber(String text) {
+        // non-finite values go back to Double so the JSON writer quotes them like the original
+        if ("NaN".equals(text) || "Infinity".equals(text) || "-Infinity".equals(text)) {
+            return Double.valueOf(text);
+        }
+        return new RawNumber(text);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Long, String>[] newDictionaries() {
+        return new Map[]{new HashMap<>(), new HashMap<>(), new HashMap<>()};
+    }
+
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static void writeSigned(OutputStream out, long value) throws IOException {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    static void writeString(OutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated varint");
+            }
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarint(in)];
+        if (in.readNBytes(bytes, 0, bytes.length) != bytes.length) {
+            throw new EOFException("Truncated string");
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes one stream; keeps the dictionary so every string is emitted once. Not thread-safe.
+     */
+    static final class Encoder {
+        private final OutputStream out;
+        private final Map<String, Long> methods = new HashMap<>();
+        private final Map<Long, String> methodIds = new HashMap<>();
+        private final Map<String, Long> tags = new HashMap<>();
+        private final Map<String, Long> threads = new HashMap<>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+
+        Encoder(OutputStream out) throws IOException {
+            this.out = out;
+            out.write(MAGIC);
+            writeVarint(out, VERSION);
+        }
+
+        void writeTrace(String traceId, String threadName, LogContextTrace.TraceNode root) throws IOException {
+            body.reset();
+            writeString(body, traceId == null ? "" : traceId);
+            writeVarint(body, intern(threads, DICT_THREAD, threadName == null ? "" : threadName));
+            writeNode(root);
+            out.write(RECORD_TRACE);
+            writeVarint(out, body.size());
+            body.writeTo(out);
+        }
+
+        private void writeNode(LogContextTrace.TraceNode node) throws IOException {
+            int flags = 0;
+            boolean hasTag = node.tag != null && !node.tag.isEmpty();
+            flags |= node.durationNs >= 0 ? FLAG_DURATION : 0;
+            flags |= hasTag ? FLAG_TAG : 0;
+            flags |= node.arguments != null ? FLAG_ARGS : 0;
+            flags |= node.allocatedBytes >= 0 ? FLAG_ALLOCATED_BYTES : 0;
+            flags |= node.cpuTimeNs >= 0 ? FLAG_CPU_TIME : 0;
+            flags |= node.contention != null ? FLAG_CONTENTION : 0;
+            flags |= node.spanId != null ? FLAG_SPAN : 0;
+            flags |= node.parentSpanId != null ? FLAG_PARENT_SPAN : 0;
+
+            writeVarint(body, methodRef(node));
+            writeVarint(body, flags);
+            if (hasTag) {
+                writeVarint(body, intern(tags, DICT_TAG, node.tag));
+            }
+            writeVarint(body, node.count);
+            if (node.durationNs >= 0) {
+                writeSigned(body, node.durationNs);
+            }
+            if (node.lineCounts == null || node.lineCounts.isEmpty()) {
+                writeVarint(body, 0);
+            } else {
+                TreeMap<Integer, Integer> sorted = new TreeMap<>(node.lineCounts);
+                writeVarint(body, sorted.size());
+                int previous = 0;
+                for (Map.Entry<Integer, Integer> entry : sorted.entrySet()) {
+                    writeVarint(body, entry.getKey() - previous);
+                    writeVarint(body, entry.getValue());
+                    previous = entry.getKey();
+                }
+            }
+            if (node.arguments != null) {
+                writeVarint(body, node.arguments.length);
+                for (Object argument : node.arguments) {
+                    writeArgument(argument);
+                }
+            }
+            if (node.allocatedBytes >= 0) {
+                writeSigned(body, node.allocatedBytes);
+            }
+            if (node.cpuTimeNs >= 0) {
+                writeSigned(body, node.cpuTimeNs);
+            }
+            if (node.contention != null) {
+                for (long value : node.contention) {
+                    writeSigned(body, value);
+                }
+            }
+            if (node.spanId != null) {
+                writeSpanId(node.spanId);
+            }
+            if (node.parentSpanId != null) {
+                writeSpanId(node.parentSpanId);
+            }
+            writeVarint(body, node.children.size());
+            for (LogContextTrace.TraceNode child : node.children) {
+                writeNode(child);
+            }
+        }
+
+        private void writeArgument(Object argument) throws IOException {
+            if (argument == null) {
+                writeVarint(body, ARG_NULL);
+            } else if (argument instanceof Integer || argument instanceof Long
+                    || argument instanceof Short || argument instanceof Byte) {
+                writeVarint(body, ARG_INTEGER);
+                writeSigned(body, ((Number) argument).longValue());
+            } else if (argument instanceof Number) {
+                writeVarint(body, ARG_NUMBER);
+                writeString(body, argument.toString());
+            } else if (argument instanceof Boolean) {
+                writeVarint(body, (Boolean) argument ? ARG_TRUE : ARG_FALSE);
+            } else {
+                writeVarint(body, ARG_STRING);
+                writeString(body, argument.toString());
+            }
+        }
+
+        private long methodRef(LogContextTrace.TraceNode node) throws IOException {
+            Long ref = methods.get(node.method);
+            if (ref != null) {
+                return ref;
+            }
+            long id = (node.methodId != 0 ? node.methodId : methodId(node.method)) & 0xFFFFFFFFL;
+            // resolve hash collisions within this stream by probing for a free id
+            while (methodIds.containsKey(id)) {
+                id = (id + 1) & 0xFFFFFFFFL;
+            }
+            methods.put(node.method, id);
+            methodIds.put(id, node.method);
+            writeDictionary(DICT_METHOD, id, node.method);
+            return id;
+        }
+
+        private long intern(Map<String, Long> dictionary, int kind, String value) throws IOException {
+            Long ref = dictionary.get(value);
+            if (ref == null) {
+                ref = (long) dictionary.size() + 1;
+                dictionary.put(value, ref);
+                writeDictionary(kind, ref, value);
+            }
+            return ref;
+        }
+
+        private void writeSpanId(String spanId) throws IOException {
+            // span ids are 16 hex chars (validated or generated), stored as 8 raw bytes
+            long value = Long.parseUnsignedLong(spanId, 16);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                body.write((int) (value >>> shift));
+            }
+        }
+
+        private void writeDictionary(int kind, long id, String value) throws IOException {
+            out.write(RECORD_DICTIONARY);
+            writeVarint(out, kind);
+            writeVarint(out, id);
+            writeString(out, value);
+        }
+    }
+
+    private static final class Cursor {
+        private final byte[] data;
+        private int pos;
+
+        private Cursor(byte[] data) {
+            this.data = data;
+        }
+
+        private long readVarint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= data.length) {
+                    throw new EOFException("Truncated varint");
+                }
+                int b = data[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        private long readSigned() throws IOException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private String readSpanId() throws IOException {
+            if (pos + 8 > data.length) {
+                throw new EOFException("Truncated span id");
+            }
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (data[pos++] & 0xFF);
+            }
+            String hex = Long.toHexString(value);
+            return "0000000000000000".substring(hex.length()) + hex;
+        }
+
+        private String readString() throws IOException {
+            int length = (int) readVarint();
+            if (pos + length > data.length) {
+                throw new EOFException("Truncated string");
+            }
+            String value = new String(data, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+        }
+    }
+
+    private static final class RawNumber extends Number {
+        private final String text;
+
+        private RawNumber(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int intValue() {
+            return (int) doubleValue();
+        }
+
+        @Override
+        public long longValue() {
+            return (long) doubleValue();
+        }
+
+        @Override
+        public float floatValue() {
+            return (float) doubleValue();
+        }
+
+        @Override
+        public double doubleValue() {
+            return Double.parseDouble(text);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
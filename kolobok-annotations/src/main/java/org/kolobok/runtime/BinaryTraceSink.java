@@ -0,0 +1,125 @@
+package org.kolobok.runtime;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Appends every completed heat map trace to a file in {@link BinaryTraceFormat}.
+ * Enabled by {@link #start(Path)} or the {@code kolobok.binary.file} system property ({@code KLB_BINARY_FILE} env).
+ */
+public final class BinaryTraceSink {
+    private static final Object LOCK = new Object();
+    private static volatile Sink sink;
+
+    static {
+        String file = System.getProperty("kolobok.binary.file");
+        if (file == null || file.isEmpty()) {
+            file = System.getenv("KLB_BINARY_FILE");
+        }
+        if (file != null && !file.isEmpty()) {
+            try {
+                start(Paths.get(file));
+            } catch (IOException | RuntimeException ignored) {
+                // misconfigured sink must not break instrumented code
+            }
+        }
+    }
+
+    private BinaryTraceSink() {
+    }
+
+    public static void start(Path file) throws IOException {
+        synchronized (LOCK) {
+            stop();
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+            Sink started = new Sink(out, new BinaryTraceFormat.Encoder(out));
+            started.shutdownHook = new Thread(() -> flushQuietly(started), "kolobok-binary-shutdown");
+            try {
+                Runtime.getRuntime().addShutdownHook(started.shutdownHook);
+            } catch (IllegalStateException ignored) {
+                started.shutdownHook = null;
+            }
+            sink = started;
+        }
+    }
+
+    public static void stop() {
+        synchronized (LOCK) {
+            Sink current = sink;
+            if (current == null) {
+                return;
+            }
+            sink = null;
+            if (current.shutdownHook != null) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(current.shutdownHook);
+                } catch (IllegalStateException ignored) {
+                    // JVM is already shutting down, the hook flushes
+                }
+            }
+            synchronized (current) {
+                try {
+                    current.out.close();
+                } catch (IOException ignored) {
+                    // nothing left to do
+                }
+            }
+        }
+    }
+
+    public static boolean isEnabled() {
+        return sink != null;
+    }
+
+    public static void flush() throws IOException {
+        Sink current = sink;
+        if (current != null) {
+            synchronized (current) {
+                current.out.flush();
+            }
+        }
+    }
+
+    static void write(String traceId, LogContextTrace.TraceNode node) {
+        Sink current = sink;
+        if (current == null) {
+            return;
+        }
+        synchronized (current) {
+            try {
+                current.encoder.writeTrace(traceId, Thread.currentThread().getName(), node);
+            } catch (IOException ignored) {
+                // tracing must not fail the instrumented call
+            }
+        }
+    }
+
+    private static void flushQuietly(Sink target) {
+        synchronized (target) {
+            try {
+                target.out.flush();
+            } catch (IOException ignored) {
+                // best effort on shutdown
+            }
+        }
+    }
+
+    private static final class Sink {
+        private final OutputStream out;
+        private final BinaryTraceFormat.Encoder encoder;
+        private Thread shutdownHook;
+
+        private Sink(OutputStream out, BinaryTraceFormat.Encoder encoder) {
+            this.out = out;
+            this.encoder = encoder;
+        }
+    }
+}
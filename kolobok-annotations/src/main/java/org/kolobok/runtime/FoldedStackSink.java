@@ -0,0 +1,225 @@
+package org.kolobok.runtime;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates finished heat map traces as collapsed stacks ({@code root;child;grandchild value})
+ * and periodically rewrites a local file with the cumulative totals, ready for flamegraph tools.
+ * Values are self time in nanoseconds; methods without {@code logDuration} have none and only add to their
+ * callers' stacks. Call counts of every method go to a separate {@code <file>.counts} file, so each file has a
+ * single unit.
+ * <p>
+ * Enabled by {@link #start(Path, long, boolean)} or by the {@code kolobok.folded.file} system property
+ * ({@code KLB_FOLDED_FILE} env), with {@code kolobok.folded.flushIntervalMs} and {@code kolobok.folded.lines}.
+ */
+public final class FoldedStackSink {
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 10_000L;
+    public static final int DEFAULT_MAX_STACKS = 100_000;
+    static final String OVERFLOW_STACK = "[kolobok-overflow]";
+
+    private static final Object LOCK = new Object();
+    private static volatile Sink sink;
+
+    static {
+        String file = readString("kolobok.folded.file", "KLB_FOLDED_FILE");
+        if (file != null && !file.isEmpty()) {
+            String interval = readString("kolobok.folded.flushIntervalMs", "KLB_FOLDED_FLUSH_INTERVAL_MS");
+            String lines = readString("kolobok.folded.lines", "KLB_FOLDED_LINES");
+            try {
+                start(Paths.get(file),
+                        interval == null || interval.isEmpty() ? DEFAULT_FLUSH_INTERVAL_MS : Long.parseLong(interval.trim()),
+                        Boolean.parseBoolean(lines));
+            } catch (RuntimeException ignored) {
+                // misconfigured sink must not break instrumented code
+            }
+        }
+    }
+
+    private FoldedStackSink() {
+    }
+
+    public static void start(Path file, long flushIntervalMs, boolean lineGranularity) {
+        synchronized (LOCK) {
+            stop();
+            Sink started = new Sink(file, lineGranularity, DEFAULT_MAX_STACKS);
+            if (flushIntervalMs > 0) {
+                started.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "kolobok-folded-flush");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                started.scheduler.scheduleWithFixedDelay(() -> flushQuietly(started), flushIntervalMs, flushIntervalMs,
+                        TimeUnit.MILLISECONDS);
+            }
+            started.shutdownHook = new Thread(() -> flushQuietly(started), "kolobok-folded-shutdown");
+            try {
+                Runtime.getRuntime().addShutdownHook(started.shutdownHook);
+            } catch (IllegalStateException ignored) {
+                started.shutdownHook = null;
+            }
+            sink = started;
+        }
+    }
+
+    public static void stop() {
+        synchronized (LOCK) {
+            Sink current = sink;
+            if (current == null) {
+                return;
+            }
+            sink = null;
+            if (current.scheduler != null) {
+                current.scheduler.shutdownNow();
+            }
+            if (current.shutdownHook != null) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(current.shutdownHook);
+                } catch (IllegalStateException ignored) {
+                    // JVM is already shutting down, the hook flushes
+                }
+            }
+            flushQuietly(current);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return sink != null;
+    }
+
+    public static void flush() throws IOException {
+        Sink current = sink;
+        if (current != null) {
+            current.flush();
+        }
+    }
+
+    public static Map<String, Long> snapshot() {
+        Sink current = sink;
+        return current == null ? new TreeMap<>() : sum(current.stacks);
+    }
+
+    static boolean lineGranularity() {
+        Sink current = sink;
+        return current != null && current.lineGranularity;
+    }
+
+    /**
+     * Call counts per stack, written to the {@code .counts} file.
+     */
+    public static Map<String, Long> countsSnapshot() {
+        Sink current = sink;
+        return current == null ? new TreeMap<>() : sum(current.counts);
+    }
+
+    static void add(String stack, long selfNs) {
+        Sink current = sink;
+        if (current != null) {
+            add(current.stacks, current.maxStacks, stack, selfNs);
+        }
+    }
+
+    static void addCount(String stack, long count) {
+        Sink current = sink;
+        if (current != null) {
+            add(current.counts, current.maxStacks, stack, count);
+        }
+    }
+
+    private static void add(ConcurrentHashMap<String, LongAdder> stacks, int maxStacks, String stack, long value) {
+        if (value <= 0) {
+            return;
+        }
+        LongAdder adder = stacks.get(stack);
+        if (adder == null) {
+            if (stacks.size() >= maxStacks) {
+                stack = OVERFLOW_STACK;
+            }
+            adder = stacks.computeIfAbsent(stack, key -> new LongAdder());
+        }
+        adder.add(value);
+    }
+
+    private static Map<String, Long> sum(Map<String, LongAdder> stacks) {
+        Map<String, Long> sorted = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : stacks.entrySet()) {
+            sorted.put(entry.getKey(), entry.getValue().sum());
+        }
+        return sorted;
+    }
+
+    static String frame(String method) {
+        return method.replace(';', ',').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static void flushQuietly(Sink target) {
+        try {
+            target.flush();
+        } catch (IOException | RuntimeException ignored) {
+            // next flush retries
+        }
+    }
+
+    private static String readString(String propKey, String envKey) {
+        String value = System.getProperty(propKey);
+        if (value == null || value.isEmpty()) {
+            value = System.getenv(envKey);
+        }
+        return value;
+    }
+
+    private static final class Sink {
+        private final Path file;
+        private final boolean lineGranularity;
+        private final int maxStacks;
+        private final ConcurrentHashMap<String, LongAdder> stacks = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, LongAdder> counts = new ConcurrentHashMap<>();
+        private ScheduledExecutorService scheduler;
+        private Thread shutdownHook;
+
+        private Sink(Path file, boolean lineGranularity, int maxStacks) {
+            this.file = file;
+            this.lineGranularity = lineGranularity;
+            this.maxStacks = maxStacks;
+        }
+
+        private synchronized void flush() throws IOException {
+            write(file, sum(stacks));
+            write(file.resolveSibling(file.getFileName() + ".counts"), sum(counts));
+        }
+
+        private static void write(Path file, Map<String, Long> sorted) throws IOException {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Long> entry : sorted.entrySet()) {
+                    writer.write(entry.getKey());
+                    writer.write(' ');
+                    writer.write(Long.toString(entry.getValue()));
+                    writer.write('\n');
+                }
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.kolobok.runtime;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Only loaded by LogContextJfr after it verified that jdk.jfr is present.
+final class JfrEvents {
+    private static final EventType TYPE = EventType.getEventType(TraceEvent.class);
+
+    private JfrEvents() {
+    }
+
+    static boolean available() {
+        return FlightRecorder.isAvailable();
+    }
+
+    static boolean isEnabled() {
+        return TYPE.isEnabled();
+    }
+
+    static Object begin(String method, String tag, String traceId) {
+        TraceEvent event = new TraceEvent();
+        event.method = method;
+        event.tag = tag;
+        event.traceId = traceId;
+        event.begin();
+        return event;
+    }
+
+    static void enter(Object token, String args) {
+        TraceEvent call = (TraceEvent) token;
+        TraceEvent event = new TraceEvent();
+        event.kind = "enter";
+        event.method = call.method;
+        event.tag = call.tag;
+        event.traceId = call.traceId;
+        event.args = args;
+        event.commit();
+    }
+
+    static void exit(Object token, long durationNs, String result) {
+        TraceEvent event = (TraceEvent) token;
+        event.kind = "exit";
+        event.durationNs = durationNs;
+        event.result = result;
+        event.commit();
+    }
+
+    static void metrics(Object token, long allocatedBytes, long cpuTimeNs, long[] contention) {
+        TraceEvent event = (TraceEvent) token;
+        event.allocatedBytes = allocatedBytes;
+        event.cpuTimeNs = cpuTimeNs;
+        if (contention != null) {
+            event.blockedCount = contention[0];
+            event.blockedMs = contention[1];
+            event.waitedCount = contention[2];
+            event.waitedMs = contention[3];
+        }
+    }
+
+    static void error(Object token, long durationNs, String error) {
+        TraceEvent event = (TraceEvent) token;
+        event.kind = "error";
+        event.durationNs = durationNs;
+        event.error = error;
+        event.commit();
+    }
+
+    static void heatMap(String heatMap) {
+        TraceEvent event = new TraceEvent();
+        event.kind = "heatmap";
+        event.heatMap = heatMap;
+        event.commit();
+    }
+
+    @Name("org.kolobok.Trace")
+    @Label("Kolobok Trace")
+    @Category("Kolobok")
+    @Description("@DebugLog method enter/exit/error and heat map")
+    @StackTrace(false)
+    static final class TraceEvent extends Event {
+        @Label("Kind")
+        String kind;
+        @Label("Method")
+        String method;
+        @Label("Tag")
+        String tag;
+        @Label("Trace Id")
+        String traceId;
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long durationNs;
+        @Label("Arguments")
+        String args;
+        @Label("Result")
+        String result;
+        @Label("Error")
+        String error;
+        @Label("Heat Map")
+        String heatMap;
+        @Label("Allocated Bytes")
+        @DataAmount(DataAmount.BYTES)
+        long allocatedBytes = -1;
+        @Label("CPU Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long cpuTimeNs = -1;
+        @Label("Blocked Count")
+        long blockedCount = -1;
+        @Label("Blocked Time")
+        @Timespan(Timespan.MILLISECONDS)
+        long blockedMs = -1;
+        @Label("Waited Count")
+        long waitedCount = -1;
+        @Label("Waited Time")
+        @Timespan(Timespan.MILLISECONDS)
+        long waitedMs = -1;
+    }
+}
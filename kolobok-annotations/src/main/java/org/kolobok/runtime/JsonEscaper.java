@@ -0,0 +1,95 @@
+package org.kolobok.runtime;
+
+/**
+ * RFC 8259 string escaping shared by the runtime and the transformer. Escapes {@code "}, {@code \} and all
+ * control characters (short forms where JSON has them, {@code \}{@code u00XX} otherwise) plus unpaired surrogates,
+ * so the output is valid JSON and valid UTF-8 once encoded. Runs without escapes are copied in bulk.
+ */
+public final class JsonEscaper {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // 0: copy as is, 'u': \\u00XX, otherwise the short escape letter
+    private static final char[] ESCAPES = new char[128];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = 'u';
+        }
+        ESCAPES['"'] = '"';
+        ESCAPES['\\'] = '\\';
+        ESCAPES['\b'] = 'b';
+        ESCAPES['\f'] = 'f';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\r'] = 'r';
+        ESCAPES['\t'] = 't';
+    }
+
+    private JsonEscaper() {
+    }
+
+    /**
+     * Returns {@code value} escaped for a JSON string body, the same instance when nothing needs escaping,
+     * or {@code "null"} for {@code null}.
+     */
+    public static String escape(String value) {
+        if (value == null) {
+            return "null";
+        }
+        int first = firstEscape(value, 0, value.length());
+        if (first < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length() + 16);
+        sb.append(value, 0, first);
+        return appendFrom(sb, value, first).toString();
+    }
+
+    public static StringBuilder append(StringBuilder sb, String value) {
+        if (value == null) {
+            return sb.append("null");
+        }
+        return appendFrom(sb, value, 0);
+    }
+
+    private static StringBuilder appendFrom(StringBuilder sb, String value, int from) {
+        int length = value.length();
+        int start = from;
+        int i = firstEscape(value, from, length);
+        while (i >= 0) {
+            sb.append(value, start, i);
+            char c = value.charAt(i);
+            if (c < ESCAPES.length) {
+                char escape = ESCAPES[c];
+                if (escape == 'u') {
+                    appendUnicode(sb, c);
+                } else {
+                    sb.append('\\').append(escape);
+                }
+                start = i + 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                sb.append(c).append(value.charAt(i + 1));
+                start = i + 2;
+            } else {
+                // unpaired surrogate: legal as an escape, but not encodable as UTF-8
+                appendUnicode(sb, c);
+                start = i + 1;
+            }
+            i = firstEscape(value, start, length);
+        }
+        return sb.append(value, start, length);
+    }
+
+    private static int firstEscape(String value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = value.charAt(i);
+            if (c < ESCAPES.length ? ESCAPES[c] != 0 : Character.isSurrogate(c)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void appendUnicode(StringBuilder sb, char c) {
+        sb.append("\\u").append(HEX[c >> 12]).append(HEX[(c >> 8) & 0xF]).append(HEX[(c >> 4) & 0xF])
+                .append(HEX[c & 0xF]);
+    }
+}
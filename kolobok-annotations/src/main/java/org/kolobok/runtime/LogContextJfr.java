@@ -0,0 +1,62 @@
+package org.kolobok.runtime;
+
+/**
+ * Entry points used by {@code @DebugLog(logFormat = JFR)} instrumentation. Every call is a no-op
+ * when the JVM has no Flight Recorder (jdk.jfr missing or unavailable) or no recording enables the event.
+ */
+public final class LogContextJfr {
+    private static final boolean AVAILABLE = detect();
+
+    private LogContextJfr() {
+    }
+
+    public static boolean isEnabled() {
+        return AVAILABLE && JfrEvents.isEnabled();
+    }
+
+    public static Object begin(String method, String tag) {
+        if (!AVAILABLE) {
+            return null;
+        }
+        return JfrEvents.begin(method, tag, LogContextTrace.currentTraceId());
+    }
+
+    public static void enter(Object event, String args) {
+        if (event != null) {
+            JfrEvents.enter(event, args);
+        }
+    }
+
+    public static void exit(Object event, long durationNs, String result) {
+        if (event != null) {
+            JfrEvents.exit(event, durationNs, result);
+        }
+    }
+
+    public static void metrics(Object event, long allocatedBytes, long cpuTimeNs, long[] contention) {
+        if (event != null) {
+            JfrEvents.metrics(event, allocatedBytes, cpuTimeNs, contention);
+        }
+    }
+
+    public static void error(Object event, long durationNs, Throwable error) {
+        if (event != null) {
+            JfrEvents.error(event, durationNs, error == null ? null
+                    : error.getClass().getSimpleName() + ":" + error.getMessage());
+        }
+    }
+
+    public static void heatMap(String heatMap) {
+        if (heatMap != null && isEnabled()) {
+            JfrEvents.heatMap(heatMap);
+        }
+    }
+
+    private static boolean detect() {
+        try {
+            return JfrEvents.available();
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+}
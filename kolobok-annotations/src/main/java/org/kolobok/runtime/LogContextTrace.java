@@ -5,10 +5,10 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Deque;
 import java.util.List;
-import java.util.UUID;
 
 public final class LogContextTrace {
     private static final ThreadLocal<TraceState> TRACE = new ThreadLocal<>();
+    private static final ThreadLocal<BufferPool> BUFFERS = ThreadLocal.withInitial(BufferPool::new);
 
     private LogContextTrace() {
     }
@@ -20,17 +20,38 @@ public final class LogContextTrace {
 
     public static Object enter(String method, String tag, boolean subHeatMap, boolean aggregateChildren, boolean logArgs,
                                String mask, int maxArgLength, Object[] args) {
+        return enter(method, 0, tag, subHeatMap, aggregateChildren, logArgs, mask, maxArgLength, args);
+    }
+
+    public static Object enter(String method, int methodId, String tag, boolean subHeatMap, boolean aggregateChildren,
+                               boolean logArgs, String mask, int maxArgLength, Object[] args) {
+        return enter(method, methodId, tag, 0, subHeatMap, aggregateChildren, logArgs, mask, maxArgLength, args);
+    }
+
+    /**
+     * @param traceIdFormat {@link org.kolobok.annotation.DebugLog.TraceIdFormat} ordinal used when this call starts
+     *                      a new trace and MDC has no {@code traceId}
+     */
+    public static Object enter(String method, int methodId, String tag, int traceIdFormat, boolean subHeatMap,
+                               boolean aggregateChildren, boolean logArgs, String mask, int maxArgLength,
+                               Object[] args) {
         TraceState state = TRACE.get();
         if (state == null) {
-            state = new TraceState(resolveTraceId(), subHeatMap, aggregateChildren);
+            state = startTrace(traceIdFormat, subHeatMap, aggregateChildren);
             TRACE.set(state);
         }
         TraceNode node = new TraceNode(method, tag);
+        if (state.stack.isEmpty()) {
+            node.spanId = state.spanId;
+            node.parentSpanId = state.parentSpanId;
+        }
+        node.methodId = methodId;
         node.arguments = sanitizeArgs(args, logArgs, mask, maxArgLength);
         if (!state.stack.isEmpty()) {
             state.stack.peek().children.add(node);
         }
         state.stack.push(node);
+        TraceRingBuffer.enter(method);
         return node;
     }
 
@@ -43,9 +64,7 @@ public final class LogContextTrace {
         if (result == null) {
             return null;
         }
-        if (result.aggregateChildren) {
-            aggregateNode(result.node);
-        }
+        completeTree(result);
         return buildJson(result.traceId, result.node);
     }
 
@@ -56,27 +75,93 @@ public final class LogContextTrace {
         if (result == null) {
             return null;
         }
-        if (result.aggregateChildren) {
-            aggregateNode(result.node);
-        }
+        completeTree(result);
         if (jsonFormat) {
             return buildJson(result.traceId, result.node);
         }
         return buildHumanHeatMap(result.traceId, result.node, logThreadId, logThreadName);
     }
 
-    private static String buildJson(String traceId, TraceNode node) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"traceId\":\"").append(escapeJson(traceId)).append("\",");
+    /**
+     * Pops the trace like {@link #exit} and feeds the sinks, without building the heat map string nobody would read.
+     */
+    public static void unwind(Object token, int[] lines, int[] counts, long durationNs, boolean logOnException,
+                              boolean isException) {
+        TraceResult result = exitInternal(token, lines, counts, durationNs, logOnException, isException);
+        if (result != null && BinaryTraceSink.isEnabled()) {
+            completeTree(result);
+        }
+    }
+
+    /**
+     * Like {@link #exitFormatted}, but the line is encoded into {@link TraceFileSink} straight from the per-thread
+     * buffer. Returns {@code null} when the sink took it, otherwise the line for the logger.
+     */
+    public static String exitToFile(Object token, int[] lines, int[] counts, long durationNs,
+                                    boolean logOnException, boolean isException, boolean jsonFormat,
+                                    boolean logThreadId, boolean logThreadName) {
+        TraceResult result = exitInternal(token, lines, counts, durationNs, logOnException, isException);
+        if (result == null) {
+            return null;
+        }
+        completeTree(result);
+        StringBuilder sb = acquireBuffer();
+        if (jsonFormat) {
+            appendJson(sb, result.traceId, null, result.node);
+        } else {
+            appendHumanNode(sb, result.node, 0, result.traceId, logThreadId, logThreadName);
+        }
+        if (TraceFileSink.offer(sb)) {
+            BUFFERS.get().release(sb);
+            return null;
+        }
+        return releaseBuffer(sb);
+    }
+
+    private static void completeTree(TraceResult result) {
+        if (result.aggregateChildren) {
+            aggregateNode(result.node);
+        }
+        computeSelfTime(result.node);
+        markCriticalPath(result.node);
+        if (BinaryTraceSink.isEnabled()) {
+            BinaryTraceSink.write(result.traceId, result.node);
+        }
+    }
+
+    static String buildJson(String traceId, TraceNode node) {
+        return buildJson(traceId, null, node);
+    }
+
+    static String buildJson(String traceId, String threadName, TraceNode node) {
+        StringBuilder sb = acquireBuffer();
+        appendJson(sb, traceId, threadName, node);
+        return releaseBuffer(sb);
+    }
+
+    private static void appendJson(StringBuilder sb, String traceId, String threadName, TraceNode node) {
+        sb.append("{\"traceId\":\"");
+        appendJsonEscaped(sb, traceId).append("\",");
+        if (threadName != null) {
+            sb.append("\"thread\":\"");
+            appendJsonEscaped(sb, threadName).append("\",");
+        }
+        if (node.spanId != null) {
+            sb.append("\"spanId\":\"").append(node.spanId).append("\",");
+        }
+        if (node.parentSpanId != null) {
+            sb.append("\"parentSpanId\":\"").append(node.parentSpanId).append("\",");
+        }
         appendNodeJson(sb, node);
         sb.append('}');
-        return sb.toString();
     }
 
     private static void appendNodeJson(StringBuilder sb, TraceNode node) {
-        sb.append("\"method\":\"").append(escapeJson(node.method)).append("\",");
+        sb.append("\"method\":\"");
+        appendJsonEscaped(sb, node.method).append("\",");
         if (node.tag != null && !node.tag.isEmpty()) {
-            sb.append("\"tag\":\"").append(escapeJson(node.tag)).append("\",");
+            sb.append("\"tag\":\"");
+            appendJsonEscaped(sb, node.tag).append("\",");
         }
         sb.append("\"count\":").append(node.count).append(',');
         if (node.arguments != null) {
@@ -85,18 +170,40 @@ public final class LogContextTrace {
                 if (i > 0) {
                     sb.append(',');
                 }
-                sb.append(toJsonValue(node.arguments[i]));
+                appendJsonValue(sb, node.arguments[i]);
             }
             sb.append("],");
         }
+        if (node.argSizes != null) {
+            sb.append("\"argSizes\":");
+            node.argSizes.appendJson(sb, node.count > 1).append(',');
+        }
         sb.append("\"lineHeatMap\":{");
         if (node.lineCounts != null && !node.lineCounts.isEmpty()) {
-            sb.append(compressLineCounts(node.lineCounts));
+            appendLineCounts(sb, node.lineCounts);
         }
         sb.append("},");
         if (node.durationNs >= 0) {
             sb.append("\"durationNs\":").append(node.durationNs).append(',');
         }
+        if (node.selfNs >= 0) {
+            sb.append("\"selfNs\":").append(node.selfNs).append(',');
+        }
+        if (node.criticalPath) {
+            sb.append("\"criticalPath\":true,");
+        }
+        if (node.allocatedBytes >= 0) {
+            sb.append("\"allocatedBytes\":").append(node.allocatedBytes).append(',');
+        }
+        if (node.cpuTimeNs >= 0) {
+            sb.append("\"cpuTimeNs\":").append(node.cpuTimeNs).append(',');
+        }
+        if (node.contention != null) {
+            sb.append("\"blockedCount\":").append(node.contention[0]).append(',');
+            sb.append("\"blockedMs\":").append(node.contention[1]).append(',');
+            sb.append("\"waitedCount\":").append(node.contention[2]).append(',');
+            sb.append("\"waitedMs\":").append(node.contention[3]).append(',');
+        }
         sb.append("\"children\":[");
         for (int i = 0; i < node.children.size(); i++) {
             if (i > 0) {
@@ -109,6 +216,106 @@ public final class LogContextTrace {
         sb.append(']');
     }
 
+    public static void recordAllocatedBytes(Object token, long allocatedBytes) {
+        if (token instanceof TraceNode) {
+            ((TraceNode) token).allocatedBytes = allocatedBytes;
+        }
+    }
+
+    public static void recordArgSizes(Object token, Object[] args, String mask) {
+        if (token instanceof TraceNode && args != null) {
+            ((TraceNode) token).argSizes = ArgSizes.of(args, parseMask(mask));
+        }
+    }
+
+    public static void recordCpuTime(Object token, long cpuTimeNs) {
+        if (token instanceof TraceNode) {
+            ((TraceNode) token).cpuTimeNs = cpuTimeNs;
+        }
+    }
+
+    public static void recordContention(Object token, long[] contention) {
+        if (token instanceof TraceNode) {
+            ((TraceNode) token).contention = contention;
+        }
+    }
+
+    public static long threadAllocatedBytes() {
+        return ThreadMetrics.allocatedBytes();
+    }
+
+    public static long allocatedBytesSince(long start) {
+        if (start < 0) {
+            return -1;
+        }
+        long current = ThreadMetrics.allocatedBytes();
+        return current < 0 ? -1 : Math.max(0, current - start);
+    }
+
+    public static long threadCpuTimeNs() {
+        return ThreadMetrics.cpuTimeNs();
+    }
+
+    public static long cpuTimeSince(long start) {
+        if (start < 0) {
+            return -1;
+        }
+        long current = ThreadMetrics.cpuTimeNs();
+        return current < 0 ? -1 : Math.max(0, current - start);
+    }
+
+    // {blockedCount, blockedMs, waitedCount, waitedMs}; null when contention monitoring is unsupported
+    public static long[] contentionSnapshot() {
+        return ThreadMetrics.contention();
+    }
+
+    public static long[] contentionSince(long[] start) {
+        if (start == null) {
+            return null;
+        }
+        long[] current = ThreadMetrics.contention();
+        if (current == null) {
+            return null;
+        }
+        long[] delta = new long[current.length];
+        for (int i = 0; i < current.length; i++) {
+            delta[i] = current[i] < 0 || start[i] < 0 ? -1 : Math.max(0, current[i] - start[i]);
+        }
+        return delta;
+    }
+
+    public static String formatContentionHuman(long[] contention) {
+        if (contention == null) {
+            return "";
+        }
+        return " blocked=" + contention[0] + "/" + contention[1] + "ms"
+                + " waited=" + contention[2] + "/" + contention[3] + "ms";
+    }
+
+    public static String formatContentionJson(long[] contention) {
+        if (contention == null) {
+            return "";
+        }
+        return ",\"blockedCount\":" + contention[0] + ",\"blockedMs\":" + contention[1]
+                + ",\"waitedCount\":" + contention[2] + ",\"waitedMs\":" + contention[3];
+    }
+
+    public static String formatAllocatedBytesHuman(long allocatedBytes) {
+        return allocatedBytes < 0 ? "" : " alloc=" + allocatedBytes + "B";
+    }
+
+    public static String formatAllocatedBytesJson(long allocatedBytes) {
+        return allocatedBytes < 0 ? "" : ",\"allocatedBytes\":" + allocatedBytes;
+    }
+
+    public static String formatCpuTimeHuman(long cpuTimeNs) {
+        return cpuTimeNs < 0 ? "" : " cpu=" + cpuTimeNs + "ns";
+    }
+
+    public static String formatCpuTimeJson(long cpuTimeNs) {
+        return cpuTimeNs < 0 ? "" : ",\"cpuTimeNs\":" + cpuTimeNs;
+    }
+
     public static String currentTraceId() {
         TraceState state = TRACE.get();
         if (state != null) {
@@ -118,19 +325,28 @@ public final class LogContextTrace {
     }
 
     public static String formatTraceIdHuman() {
+        return appendTraceIdHuman(new StringBuilder()).toString();
+    }
+
+    public static String formatTraceIdJson() {
+        return appendTraceIdJson(new StringBuilder()).toString();
+    }
+
+    public static StringBuilder appendTraceIdHuman(StringBuilder sb) {
         String traceId = currentTraceId();
-        if (traceId == null || traceId.isEmpty()) {
-            return "";
+        if (traceId != null && !traceId.isEmpty()) {
+            sb.append(" trace=").append(traceId);
         }
-        return " trace=" + traceId;
+        return sb;
     }
 
-    public static String formatTraceIdJson() {
+    public static StringBuilder appendTraceIdJson(StringBuilder sb) {
         String traceId = currentTraceId();
-        if (traceId == null || traceId.isEmpty()) {
-            return "";
+        if (traceId != null && !traceId.isEmpty()) {
+            sb.append(",\"traceId\":\"");
+            appendJsonEscaped(sb, traceId).append('"');
         }
-        return ",\"traceId\":\"" + escapeJson(traceId) + "\"";
+        return sb;
     }
 
     public static String formatHttpRequestHuman() {
@@ -183,20 +399,46 @@ public final class LogContextTrace {
         return sb.toString();
     }
 
-    private static String resolveTraceId() {
-        String traceId = resolveFromMdc();
-        return (traceId == null || traceId.isEmpty()) ? UUID.randomUUID().toString() : traceId;
+    static TraceContext currentTraceContext() {
+        TraceState state = TRACE.get();
+        if (state == null) {
+            return null;
+        }
+        return TraceContext.forTrace(state.traceId, state.spanId, state.traceFlags, state.traceState);
     }
 
-    private static String resolveFromMdc() {
-        try {
-            Class<?> mdcClass = Class.forName("org.slf4j.MDC");
-            Method get = mdcClass.getMethod("get", String.class);
-            Object value = get.invoke(null, "traceId");
-            return value == null ? null : value.toString();
-        } catch (ReflectiveOperationException ignored) {
+    private static TraceState startTrace(int traceIdFormat, boolean subHeatMap, boolean aggregateChildren) {
+        // a valid W3C traceparent wins over a plain MDC traceId
+        TraceContext incoming = resolveIncomingContext();
+        String traceId = incoming != null ? incoming.getTraceId() : resolveFromMdc();
+        if (traceId == null || traceId.isEmpty()) {
+            traceId = TraceIdGenerator.next(traceIdFormat);
+        }
+        TraceState state = new TraceState(traceId, subHeatMap, aggregateChildren);
+        state.spanId = TraceIdGenerator.spanId();
+        if (incoming != null) {
+            state.parentSpanId = incoming.getSpanId();
+            state.traceFlags = incoming.getFlags();
+            state.traceState = incoming.getTraceState();
+        }
+        return state;
+    }
+
+    private static TraceContext resolveIncomingContext() {
+        TraceContext context = TraceContext.parse(readMdc(TraceContext.TRACEPARENT), readMdc(TraceContext.TRACESTATE));
+        if (context != null) {
+            return context;
+        }
+        Object request = resolveSpringRequest();
+        if (request == null) {
             return null;
         }
+        return TraceContext.parse(invokeString(request, "getHeader", TraceContext.TRACEPARENT),
+                invokeString(request, "getHeader", TraceContext.TRACESTATE));
+    }
+
+    private static String resolveFromMdc() {
+        return readMdc("traceId");
     }
 
     private static RequestInfo resolveRequestInfo() {
@@ -212,19 +454,22 @@ public final class LogContextTrace {
     }
 
     private static RequestInfo resolveFromSpringRequest() {
+        Object request = resolveSpringRequest();
+        return request == null ? null : buildRequestInfo(request);
+    }
+
+    private static Object resolveSpringRequest() {
+        Method getRequestAttributes = Reflection.requestAttributes();
+        if (getRequestAttributes == null) {
+            return null;
+        }
         try {
-            Class<?> holder = Class.forName("org.springframework.web.context.request.RequestContextHolder");
-            Method getRequestAttributes = holder.getMethod("getRequestAttributes");
             Object attrs = getRequestAttributes.invoke(null);
             if (attrs == null) {
                 return null;
             }
-            Method getRequest = attrs.getClass().getMethod("getRequest");
-            Object request = getRequest.invoke(attrs);
-            if (request == null) {
-                return null;
-            }
-            return buildRequestInfo(request);
+            Method getRequest = Reflection.method(attrs.getClass(), "getRequest");
+            return getRequest == null ? null : getRequest.invoke(attrs);
         } catch (ReflectiveOperationException ignored) {
             return null;
         }
@@ -263,9 +508,11 @@ public final class LogContextTrace {
     }
 
     private static String readMdc(String key) {
+        Method get = Reflection.mdcGet();
+        if (get == null) {
+            return null;
+        }
         try {
-            Class<?> mdcClass = Class.forName("org.slf4j.MDC");
-            Method get = mdcClass.getMethod("get", String.class);
             Object value = get.invoke(null, key);
             return value == null ? null : value.toString();
         } catch (ReflectiveOperationException ignored) {
@@ -274,8 +521,11 @@ public final class LogContextTrace {
     }
 
     private static String invokeString(Object target, String methodName) {
+        Method method = Reflection.method(target.getClass(), methodName);
+        if (method == null) {
+            return null;
+        }
         try {
-            Method method = target.getClass().getMethod(methodName);
             Object value = method.invoke(target);
             return value == null ? null : value.toString();
         } catch (ReflectiveOperationException ignored) {
@@ -283,19 +533,138 @@ public final class LogContextTrace {
         }
     }
 
-    public static String escapeJson(String value) {
-        if (value == null) {
-            return "null";
+    private static String invokeString(Object target, String methodName, String arg) {
+        Method method = Reflection.method(target.getClass(), methodName, String.class);
+        if (method == null) {
+            return null;
+        }
+        try {
+            Object value = method.invoke(target, arg);
+            return value == null ? null : value.toString();
+        } catch (ReflectiveOperationException ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * Reflective lookups for optional SLF4J MDC and Spring request access, resolved once instead of per log call.
+     * Under the agent the runtime sits on the system class loader, which cannot see the application's SLF4J or
+     * Spring (Spring Boot launcher, servlet containers), so lookups missing there fall back to the thread's context
+     * class loader. Those lookups are held weakly so a pooled container thread does not pin an undeployed
+     * application's class loader.
+     */
+    private static final class Reflection {
+        private static final Lookups OWN = new Lookups(LogContextTrace.class.getClassLoader());
+        private static final ThreadLocal<java.lang.ref.WeakReference<Lookups>> CONTEXT = new ThreadLocal<>();
+        private static final ClassValue<java.util.Map<String, java.util.Optional<Method>>> METHODS =
+                new ClassValue<java.util.Map<String, java.util.Optional<Method>>>() {
+                    @Override
+                    protected java.util.Map<String, java.util.Optional<Method>> computeValue(Class<?> type) {
+                        return new java.util.concurrent.ConcurrentHashMap<>();
+                    }
+                };
+
+        private static Method mdcGet() {
+            Method method = OWN.mdcGet;
+            return method != null ? method : context().mdcGet;
+        }
+
+        private static Method requestAttributes() {
+            Method method = OWN.requestAttributes;
+            return method != null ? method : context().requestAttributes;
         }
-        StringBuilder sb = new StringBuilder(value.length() + 8);
-        for (int i = 0; i < value.length(); i++) {
-            char c = value.charAt(i);
-            if (c == '"' || c == '\\') {
-                sb.append('\\');
+
+        private static Lookups context() {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if (loader == null || loader == OWN.loader) {
+                return OWN;
+            }
+            java.lang.ref.WeakReference<Lookups> cached = CONTEXT.get();
+            Lookups lookups = cached == null ? null : cached.get();
+            if (lookups == null || lookups.loader != loader) {
+                lookups = new Lookups(loader);
+                CONTEXT.set(new java.lang.ref.WeakReference<>(lookups));
             }
-            sb.append(c);
+            return lookups;
         }
-        return sb.toString();
+
+        // only classes the runtime's loader can see are cached: their loader outlives ours, so the cached
+        // Method objects never keep an application class loader from being unloaded
+        private static Method method(Class<?> type, String name, Class<?>... parameterTypes) {
+            if (!visibleToRuntime(type.getClassLoader())) {
+                return lookup(type, name, parameterTypes).orElse(null);
+            }
+            StringBuilder key = new StringBuilder(name).append('(');
+            for (Class<?> parameterType : parameterTypes) {
+                key.append(parameterType.getName()).append(';');
+            }
+            return METHODS.get(type).computeIfAbsent(key.toString(), ignored -> lookup(type, name, parameterTypes))
+                    .orElse(null);
+        }
+
+        private static java.util.Optional<Method> lookup(Class<?> type, String name, Class<?>... parameterTypes) {
+            try {
+                return java.util.Optional.of(type.getMethod(name, parameterTypes));
+            } catch (NoSuchMethodException | SecurityException ex) {
+                return java.util.Optional.empty();
+            }
+        }
+
+        private static boolean visibleToRuntime(ClassLoader loader) {
+            if (loader == null) {
+                return true;
+            }
+            for (ClassLoader own = OWN.loader; own != null; own = own.getParent()) {
+                if (own == loader) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Lookups {
+        private final ClassLoader loader;
+        private final Method mdcGet;
+        private final Method requestAttributes;
+
+        private Lookups(ClassLoader loader) {
+            this.loader = loader;
+            this.mdcGet = staticMethod(loader, "org.slf4j.MDC", "get", String.class);
+            this.requestAttributes = staticMethod(loader,
+                    "org.springframework.web.context.request.RequestContextHolder", "getRequestAttributes");
+        }
+
+        private static Method staticMethod(ClassLoader loader, String className, String name,
+                                           Class<?>... parameterTypes) {
+            try {
+                return Class.forName(className, true, loader).getMethod(name, parameterTypes);
+            } catch (ReflectiveOperationException | LinkageError ignored) {
+                return null;
+            }
+        }
+    }
+
+    public static String escapeJson(String value) {
+        return JsonEscaper.escape(value);
+    }
+
+    public static StringBuilder appendJsonEscaped(StringBuilder sb, String value) {
+        return JsonEscaper.append(sb, value);
+    }
+
+    /**
+     * Takes a cleared per-thread log buffer. Hand it back with {@link #releaseBuffer(StringBuilder)};
+     * nested log calls (e.g. from an argument's {@code toString}) get their own buffer.
+     */
+    public static StringBuilder acquireBuffer() {
+        return BUFFERS.get().acquire();
+    }
+
+    public static String releaseBuffer(StringBuilder sb) {
+        String value = sb.toString();
+        BUFFERS.get().release(sb);
+        return value;
     }
 
     private static final class RequestInfo {
@@ -316,47 +685,66 @@ public final class LogContextTrace {
         }
     }
 
-    private static String toJsonValue(Object value) {
+    private static StringBuilder appendJsonValue(StringBuilder sb, Object value) {
         if (value == null) {
-            return "null";
+            return sb.append("null");
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            // NaN and infinities have no JSON number form
+            return Double.isFinite(number) ? sb.append(value) : sb.append('"').append(value).append('"');
         }
         if (value instanceof Number || value instanceof Boolean) {
-            return value.toString();
+            return sb.append(value);
         }
-        return "\"" + escapeJson(value.toString()) + "\"";
+        sb.append('"');
+        return appendJsonEscaped(sb, value.toString()).append('"');
     }
 
-    public static String formatArgs(Object[] args, String mask, int maxArgLength) {
-        Object[] sanitized = sanitizeArgs(args, true, mask, maxArgLength);
-        if (sanitized == null) {
-            return "[]";
+    private static StringBuilder appendArgValues(StringBuilder sb, Object[] values) {
+        sb.append('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(values[i]);
         }
-        return java.util.Arrays.deepToString(sanitized);
+        return sb.append(']');
+    }
+
+    public static String formatArgs(Object[] args, String mask, int maxArgLength) {
+        return appendArgs(new StringBuilder(), args, mask, maxArgLength).toString();
     }
 
     public static String formatArgsJson(Object[] args, String mask, int maxArgLength) {
+        return appendArgsJson(new StringBuilder(), args, mask, maxArgLength).toString();
+    }
+
+    public static StringBuilder appendArgs(StringBuilder sb, Object[] args, String mask, int maxArgLength) {
+        return appendArgValues(sb, sanitizeArgs(args, true, mask, maxArgLength));
+    }
+
+    public static StringBuilder appendArgsJson(StringBuilder sb, Object[] args, String mask, int maxArgLength) {
         Object[] sanitized = sanitizeArgs(args, true, mask, maxArgLength);
-        if (sanitized == null) {
-            return "[]";
-        }
-        StringBuilder sb = new StringBuilder();
         sb.append('[');
         for (int i = 0; i < sanitized.length; i++) {
             if (i > 0) {
                 sb.append(',');
             }
-            sb.append(toJsonValue(sanitized[i]));
+            appendJsonValue(sb, sanitized[i]);
         }
-        sb.append(']');
-        return sb.toString();
+        return sb.append(']');
+    }
+
+    public static StringBuilder appendJsonResult(StringBuilder sb, Object value, String mask, int maxResultLength) {
+        return appendJsonEscaped(sb, formatResult(value, mask, maxResultLength));
     }
 
     public static String maskValue(Object value, int first, int last, int maxArgLength) {
         if (value == null) {
             return "null";
         }
-        String raw = String.valueOf(value);
-        String truncated = truncate(raw, maxArgLength > 0 ? maxArgLength : 200);
+        String truncated = ArgFormatters.format(value, maxArgLength > 0 ? maxArgLength : 200);
         if (first <= 0 && last <= 0) {
             return "***";
         }
@@ -377,18 +765,21 @@ public final class LogContextTrace {
         if (range.enabled) {
             return maskValue(value, range.first, range.last, limit);
         }
-        if (value == null) {
-            return "null";
-        }
-        return truncate(String.valueOf(value), limit);
+        return ArgFormatters.format(value, limit);
     }
 
     public static String formatLocalsHuman(Object[] locals, String[] names, int[] ignoreModes,
                                            int[] maskFirst, int[] maskLast, boolean isException, int maxArgLength) {
-        StringBuilder sb = new StringBuilder();
+        return appendLocalsHuman(new StringBuilder(), locals, names, ignoreModes, maskFirst, maskLast, isException,
+                maxArgLength).toString();
+    }
+
+    public static StringBuilder appendLocalsHuman(StringBuilder sb, Object[] locals, String[] names, int[] ignoreModes,
+                                                  int[] maskFirst, int[] maskLast, boolean isException,
+                                                  int maxArgLength) {
         boolean first = true;
         if (names == null || locals == null) {
-            return "";
+            return sb;
         }
         for (int i = 0; i < names.length; i++) {
             String name = names[i];
@@ -409,7 +800,7 @@ public final class LogContextTrace {
             if (firstCount > 0 || lastCount > 0) {
                 out = maskValue(value, firstCount, lastCount, maxArgLength);
             } else {
-                out = truncate(String.valueOf(value), maxArgLength > 0 ? maxArgLength : 200);
+                out = ArgFormatters.format(value, maxArgLength > 0 ? maxArgLength : 200);
             }
             if (!first) {
                 sb.append(", ");
@@ -417,15 +808,21 @@ public final class LogContextTrace {
             first = false;
             sb.append(name).append('=').append(out);
         }
-        return sb.toString();
+        return sb;
     }
 
     public static String formatLocalsJson(Object[] locals, String[] names, int[] ignoreModes,
                                           int[] maskFirst, int[] maskLast, boolean isException, int maxArgLength) {
-        StringBuilder sb = new StringBuilder();
+        return appendLocalsJson(new StringBuilder(), locals, names, ignoreModes, maskFirst, maskLast, isException,
+                maxArgLength).toString();
+    }
+
+    public static StringBuilder appendLocalsJson(StringBuilder sb, Object[] locals, String[] names, int[] ignoreModes,
+                                                 int[] maskFirst, int[] maskLast, boolean isException,
+                                                 int maxArgLength) {
         boolean first = true;
         if (names == null || locals == null) {
-            return "{}";
+            return sb.append("{}");
         }
         sb.append('{');
         for (int i = 0; i < names.length; i++) {
@@ -447,16 +844,42 @@ public final class LogContextTrace {
             if (firstCount > 0 || lastCount > 0) {
                 out = maskValue(value, firstCount, lastCount, maxArgLength);
             } else {
-                out = truncate(String.valueOf(value), maxArgLength > 0 ? maxArgLength : 200);
+                out = ArgFormatters.format(value, maxArgLength > 0 ? maxArgLength : 200);
             }
             if (!first) {
                 sb.append(',');
             }
             first = false;
-            sb.append('"').append(escapeJson(name)).append("\":\"").append(escapeJson(out)).append('"');
+            sb.append('"');
+            appendJsonEscaped(sb, name).append("\":\"");
+            appendJsonEscaped(sb, out).append('"');
+        }
+        return sb.append('}');
+    }
+
+    private static final class BufferPool {
+        private static final int MAX_BUFFERS = 4;
+        private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+        private final StringBuilder[] free = new StringBuilder[MAX_BUFFERS];
+        private int size;
+
+        private StringBuilder acquire() {
+            if (size == 0) {
+                return new StringBuilder(256);
+            }
+            StringBuilder sb = free[--size];
+            free[size] = null;
+            sb.setLength(0);
+            return sb;
+        }
+
+        private void release(StringBuilder sb) {
+            // oversized buffers are dropped so one huge line does not pin memory per thread
+            if (size < MAX_BUFFERS && sb.capacity() <= MAX_RETAINED_CAPACITY) {
+                free[size++] = sb;
+            }
         }
-        sb.append('}');
-        return sb.toString();
     }
 
     private static final class TraceState {
@@ -464,6 +887,10 @@ public final class LogContextTrace {
         private final boolean suppressedRoot;
         private final boolean aggregateChildren;
         private final Deque<TraceNode> stack = new ArrayDeque<>();
+        private String spanId;
+        private String parentSpanId;
+        private int traceFlags = TraceContext.defaultFlags();
+        private String traceState;
 
         private TraceState(String traceId, boolean suppressedRoot, boolean aggregateChildren) {
             this.traceId = traceId;
@@ -472,21 +899,148 @@ public final class LogContextTrace {
         }
     }
 
-    private static final class TraceNode {
-        private final String method;
-        private final String tag;
-        private final List<TraceNode> children = new ArrayList<>();
-        private int count;
-        private java.util.Map<Integer, Integer> lineCounts;
-        private long durationNs = -1;
-        private Object[] arguments;
-
-        private TraceNode(String method, String tag) {
+    static final class TraceNode {
+        final String method;
+        final String tag;
+        int methodId;
+        final List<TraceNode> children = new ArrayList<>();
+        int count;
+        java.util.Map<Integer, Integer> lineCounts;
+        long durationNs = -1;
+        private long selfNs = -1;
+        private boolean criticalPath;
+        long allocatedBytes = -1;
+        long cpuTimeNs = -1;
+        long[] contention;
+        Object[] arguments;
+        ArgSizes argSizes;
+        String spanId;
+        String parentSpanId;
+
+        TraceNode(String method, String tag) {
             this.method = method;
             this.tag = tag;
         }
     }
 
+    /**
+     * Structural argument sizes (string/collection/map/array length), -1 where a value has none.
+     * Aggregated nodes keep min/max/sum over the calls that had a size.
+     */
+    static final class ArgSizes {
+        final long[] min;
+        final long[] max;
+        final long[] sum;
+        final int[] samples;
+
+        private ArgSizes(int length) {
+            min = new long[length];
+            max = new long[length];
+            sum = new long[length];
+            samples = new int[length];
+        }
+
+        static ArgSizes of(Object[] args, MaskSpec mask) {
+            ArgSizes sizes = new ArgSizes(args.length);
+            for (int i = 0; i < args.length; i++) {
+                // masked arguments do not leak their length either
+                long size = mask.maskAll || mask.indexes.contains(i) ? -1 : sizeOf(args[i]);
+                if (size >= 0) {
+                    sizes.min[i] = size;
+                    sizes.max[i] = size;
+                    sizes.sum[i] = size;
+                    sizes.samples[i] = 1;
+                }
+            }
+            return sizes;
+        }
+
+        static long sizeOf(Object value) {
+            if (value instanceof CharSequence) {
+                return ((CharSequence) value).length();
+            }
+            if (value instanceof java.util.Collection) {
+                return ((java.util.Collection<?>) value).size();
+            }
+            if (value instanceof java.util.Map) {
+                return ((java.util.Map<?, ?>) value).size();
+            }
+            if (value instanceof byte[]) {
+                return ((byte[]) value).length;
+            }
+            if (value instanceof Object[]) {
+                return ((Object[]) value).length;
+            }
+            if (value != null && value.getClass().isArray()) {
+                return java.lang.reflect.Array.getLength(value);
+            }
+            return -1;
+        }
+
+        static ArgSizes merge(ArgSizes target, ArgSizes source) {
+            if (source == null) {
+                return target;
+            }
+            if (target == null || target.samples.length != source.samples.length) {
+                return target == null ? source : target;
+            }
+            for (int i = 0; i < target.samples.length; i++) {
+                if (source.samples[i] == 0) {
+                    continue;
+                }
+                if (target.samples[i] == 0) {
+                    target.min[i] = source.min[i];
+                    target.max[i] = source.max[i];
+                } else {
+                    target.min[i] = Math.min(target.min[i], source.min[i]);
+                    target.max[i] = Math.max(target.max[i], source.max[i]);
+                }
+                target.sum[i] += source.sum[i];
+                target.samples[i] += source.samples[i];
+            }
+            return target;
+        }
+
+        long avg(int index) {
+            return samples[index] == 0 ? -1 : Math.round((double) sum[index] / samples[index]);
+        }
+
+        StringBuilder appendJson(StringBuilder sb, boolean aggregated) {
+            sb.append('[');
+            for (int i = 0; i < samples.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                if (samples[i] == 0) {
+                    sb.append("null");
+                } else if (aggregated) {
+                    sb.append("{\"min\":").append(min[i]).append(",\"max\":").append(max[i])
+                            .append(",\"avg\":").append(avg(i)).append('}');
+                } else {
+                    sb.append(max[i]);
+                }
+            }
+            return sb.append(']');
+        }
+
+        StringBuilder appendHuman(StringBuilder sb, boolean aggregated) {
+            sb.append('[');
+            for (int i = 0; i < samples.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                if (samples[i] == 0) {
+                    sb.append('-');
+                } else if (aggregated) {
+                    sb.append(min[i]).append("..").append(max[i]).append(" avg=").append(avg(i));
+                } else {
+                    sb.append(max[i]);
+                }
+            }
+            return sb.append(']');
+        }
+    }
+
     private static java.util.Map<Integer, Integer> buildLineCounts(int[] lines, int[] counts) {
         if (lines == null || counts == null || lines.length != counts.length) {
             return java.util.Collections.emptyMap();
@@ -501,10 +1055,9 @@ public final class LogContextTrace {
         return map;
     }
 
-    private static String compressLineCounts(java.util.Map<Integer, Integer> counts) {
+    private static void appendLineCounts(StringBuilder sb, java.util.Map<Integer, Integer> counts) {
         java.util.List<Integer> lines = new java.util.ArrayList<>(counts.keySet());
         java.util.Collections.sort(lines);
-        StringBuilder sb = new StringBuilder();
         int i = 0;
         while (i < lines.size()) {
             int start = lines.get(i);
@@ -519,7 +1072,7 @@ public final class LogContextTrace {
                 end = next;
                 j++;
             }
-            if (sb.length() > 0) {
+            if (i > 0) {
                 sb.append(", ");
             }
             sb.append('"').append(start);
@@ -529,13 +1082,12 @@ public final class LogContextTrace {
             sb.append("\":").append(value);
             i = j;
         }
-        return sb.toString();
     }
 
     private static String buildHumanHeatMap(String traceId, TraceNode node, boolean logThreadId, boolean logThreadName) {
-        StringBuilder sb = new StringBuilder();
+        StringBuilder sb = acquireBuffer();
         appendHumanNode(sb, node, 0, traceId, logThreadId, logThreadName);
-        return sb.toString();
+        return releaseBuffer(sb);
     }
 
     private static void appendHumanNode(StringBuilder sb, TraceNode node, int depth, String traceId,
@@ -555,6 +1107,12 @@ public final class LogContextTrace {
         if (depth == 0 && traceId != null && !traceId.isEmpty()) {
             sb.append(" trace=").append(traceId);
         }
+        if (depth == 0 && node.spanId != null) {
+            sb.append(" span=").append(node.spanId);
+        }
+        if (depth == 0 && node.parentSpanId != null) {
+            sb.append(" parent=").append(node.parentSpanId);
+        }
         if (depth == 0 && logThreadId) {
             sb.append(" t=").append(Thread.currentThread().getId());
         }
@@ -565,12 +1123,28 @@ public final class LogContextTrace {
         if (node.durationNs >= 0) {
             sb.append(" dur=").append(node.durationNs).append("ns");
         }
+        if (node.selfNs >= 0) {
+            sb.append(" self=").append(node.selfNs).append("ns");
+        }
+        if (node.criticalPath) {
+            sb.append(" critical");
+        }
+        if (node.allocatedBytes >= 0) {
+            sb.append(" alloc=").append(node.allocatedBytes).append('B');
+        }
+        if (node.cpuTimeNs >= 0) {
+            sb.append(" cpu=").append(node.cpuTimeNs).append("ns");
+        }
+        sb.append(formatContentionHuman(node.contention));
         if (node.arguments != null) {
-            sb.append(" args=").append(java.util.Arrays.deepToString(node.arguments));
+            appendArgValues(sb.append(" args="), node.arguments);
+        }
+        if (node.argSizes != null) {
+            node.argSizes.appendHuman(sb.append(" argSizes="), node.count > 1);
         }
         sb.append(" heatmap={");
         if (node.lineCounts != null && !node.lineCounts.isEmpty()) {
-            sb.append(compressLineCounts(node.lineCounts));
+            appendLineCounts(sb, node.lineCounts);
         }
         sb.append('}');
         if (!node.children.isEmpty()) {
@@ -608,19 +1182,11 @@ public final class LogContextTrace {
                 sanitized[i] = arg;
                 continue;
             }
-            String value = String.valueOf(arg);
-            sanitized[i] = truncate(value, limit);
+            sanitized[i] = ArgFormatters.format(arg, limit);
         }
         return sanitized;
     }
 
-    private static String truncate(String value, int limit) {
-        if (value == null || value.length() <= limit) {
-            return value;
-        }
-        return value.substring(0, limit) + "...";
-    }
-
     private static MaskSpec parseMask(String mask) {
         MaskSpec spec = new MaskSpec();
         if (mask == null) {
@@ -704,8 +1270,12 @@ public final class LogContextTrace {
                 aggregated.put(key, child);
             } else {
                 existing.count += child.count;
-                existing.durationNs += child.durationNs;
+                existing.durationNs = sumMetric(existing.durationNs, child.durationNs);
+                existing.allocatedBytes = sumMetric(existing.allocatedBytes, child.allocatedBytes);
+                existing.cpuTimeNs = sumMetric(existing.cpuTimeNs, child.cpuTimeNs);
+                existing.contention = sumContention(existing.contention, child.contention);
                 mergeLineCounts(existing.lineCounts, child.lineCounts);
+                existing.argSizes = ArgSizes.merge(existing.argSizes, child.argSizes);
                 existing.children.addAll(child.children);
                 if (existing.count > 1) {
                     existing.arguments = null;
@@ -721,6 +1291,55 @@ public final class LogContextTrace {
         }
     }
 
+    static void computeSelfTime(TraceNode node) {
+        long childrenNs = 0;
+        boolean known = node.durationNs >= 0;
+        for (TraceNode child : node.children) {
+            computeSelfTime(child);
+            if (child.durationNs < 0) {
+                known = false;
+            } else {
+                childrenNs += child.durationNs;
+            }
+        }
+        // children are timed separately from the parent, so clock granularity can make the difference negative
+        node.selfNs = known ? Math.max(0, node.durationNs - childrenNs) : -1;
+    }
+
+    static void markCriticalPath(TraceNode node) {
+        TraceNode current = node;
+        while (current != null && current.durationNs >= 0) {
+            current.criticalPath = true;
+            TraceNode next = null;
+            for (TraceNode child : current.children) {
+                if (child.durationNs >= 0 && (next == null || child.durationNs > next.durationNs)) {
+                    next = child;
+                }
+            }
+            current = next;
+        }
+    }
+
+    private static long sumMetric(long total, long value) {
+        if (value < 0) {
+            return total;
+        }
+        return total < 0 ? value : total + value;
+    }
+
+    private static long[] sumContention(long[] total, long[] value) {
+        if (value == null) {
+            return total;
+        }
+        if (total == null) {
+            return value.clone();
+        }
+        for (int i = 0; i < total.length; i++) {
+            total[i] = sumMetric(total[i], value[i]);
+        }
+        return total;
+    }
+
     private static void mergeLineCounts(java.util.Map<Integer, Integer> target, java.util.Map<Integer, Integer> source) {
         if (target == null || source == null) {
             return;
@@ -740,6 +1359,7 @@ public final class LogContextTrace {
         node.lineCounts = buildLineCounts(lines, counts);
         node.durationNs = durationNs;
         node.count = 1;
+        TraceRingBuffer.exit(node.method, durationNs, lines, counts, isException);
         state.stack.pop();
 
         if (!state.stack.isEmpty()) {
@@ -751,12 +1371,170 @@ public final class LogContextTrace {
         if (state.suppressedRoot) {
             return null;
         }
+        boolean folded = FoldedStackSink.isEnabled();
+        boolean pprof = PprofExporter.isEnabled();
+        if (folded || pprof) {
+            computeSelfTime(node);
+            if (folded) {
+                recordFolded(node, null, FoldedStackSink.lineGranularity());
+            }
+            if (pprof) {
+                recordProfile(node, new ArrayList<>());
+            }
+        }
         if (logOnException && !isException) {
             return null;
         }
         return new TraceResult(state.traceId, node, state.aggregateChildren);
     }
 
+    private static void recordFolded(TraceNode node, String parentStack, boolean lineGranularity) {
+        String frame = FoldedStackSink.frame(node.method);
+        String stack = parentStack == null ? frame : parentStack + ';' + frame;
+        for (TraceNode child : node.children) {
+            recordFolded(child, stack, lineGranularity);
+        }
+        FoldedStackSink.addCount(stack, node.count);
+        if (node.selfNs < 0) {
+            // no duration collected: counts only, never mixed into the nanosecond stacks
+            return;
+        }
+        long value = node.selfNs;
+        if (!lineGranularity || node.lineCounts == null || node.lineCounts.isEmpty()) {
+            FoldedStackSink.add(stack, value);
+            return;
+        }
+        java.util.TreeMap<Integer, Integer> lines = new java.util.TreeMap<>(node.lineCounts);
+        long totalHits = 0;
+        for (int hits : lines.values()) {
+            totalHits += hits;
+        }
+        long remaining = value;
+        for (java.util.Map.Entry<Integer, Integer> entry : lines.entrySet()) {
+            long share = entry.getKey().equals(lines.lastKey()) ? remaining : value * entry.getValue() / totalHits;
+            remaining -= share;
+            FoldedStackSink.add(stack + ';' + frame + ':' + entry.getKey(), share);
+        }
+    }
+
+    private static void recordProfile(TraceNode node, List<String> frames) {
+        frames.add(node.method);
+        String[] stack = frames.toArray(new String[0]);
+        PprofExporter.addCalls(stack, node.count, Math.max(0, node.selfNs));
+        if (node.lineCounts != null) {
+            for (java.util.Map.Entry<Integer, Integer> entry : node.lineCounts.entrySet()) {
+                PprofExporter.addLineHits(stack, entry.getKey(), entry.getValue());
+            }
+        }
+        for (TraceNode child : node.children) {
+            recordProfile(child, frames);
+        }
+        frames.remove(frames.size() - 1);
+    }
+
+    /**
+     * Each measurement is enabled JVM-wide by its own holder, on first use, so an option only costs anything once a
+     * method that asked for it runs.
+     */
+    private static final class ThreadMetrics {
+        private static java.lang.management.ThreadMXBean threads() {
+            try {
+                return java.lang.management.ManagementFactory.getThreadMXBean();
+            } catch (Throwable ignored) {
+                // java.management is not available
+                return null;
+            }
+        }
+
+        private static long allocatedBytes() {
+            com.sun.management.ThreadMXBean threads = Allocation.THREADS;
+            return threads == null ? -1 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        private static long cpuTimeNs() {
+            java.lang.management.ThreadMXBean threads = CpuTime.THREADS;
+            return threads == null ? -1 : threads.getCurrentThreadCpuTime();
+        }
+
+        private static long[] contention() {
+            java.lang.management.ThreadMXBean threads = Contention.THREADS;
+            if (threads == null) {
+                return null;
+            }
+            java.lang.management.ThreadInfo info = threads.getThreadInfo(Thread.currentThread().getId(), 0);
+            if (info == null) {
+                return null;
+            }
+            return new long[]{info.getBlockedCount(), info.getBlockedTime(), info.getWaitedCount(), info.getWaitedTime()};
+        }
+
+        private static final class Allocation {
+            /**
+             * {@code null} when allocation measurement is unsupported or cannot be enabled.
+             */
+            private static final com.sun.management.ThreadMXBean THREADS;
+
+            static {
+                com.sun.management.ThreadMXBean enabled = null;
+                try {
+                    java.lang.management.ThreadMXBean threads = threads();
+                    if (threads instanceof com.sun.management.ThreadMXBean) {
+                        com.sun.management.ThreadMXBean extended = (com.sun.management.ThreadMXBean) threads;
+                        if (extended.isThreadAllocatedMemorySupported()) {
+                            if (!extended.isThreadAllocatedMemoryEnabled()) {
+                                extended.setThreadAllocatedMemoryEnabled(true);
+                            }
+                            enabled = extended;
+                        }
+                    }
+                } catch (Throwable ignored) {
+                    // jdk.management is not available or the measurement cannot be enabled
+                }
+                THREADS = enabled;
+            }
+        }
+
+        private static final class CpuTime {
+            private static final java.lang.management.ThreadMXBean THREADS;
+
+            static {
+                java.lang.management.ThreadMXBean enabled = null;
+                try {
+                    java.lang.management.ThreadMXBean threads = threads();
+                    if (threads != null && threads.isCurrentThreadCpuTimeSupported()) {
+                        if (!threads.isThreadCpuTimeEnabled()) {
+                            threads.setThreadCpuTimeEnabled(true);
+                        }
+                        enabled = threads;
+                    }
+                } catch (Throwable ignored) {
+                    // the measurement cannot be enabled
+                }
+                THREADS = enabled;
+            }
+        }
+
+        private static final class Contention {
+            private static final java.lang.management.ThreadMXBean THREADS;
+
+            static {
+                java.lang.management.ThreadMXBean enabled = null;
+                try {
+                    java.lang.management.ThreadMXBean threads = threads();
+                    if (threads != null && threads.isThreadContentionMonitoringSupported()) {
+                        if (!threads.isThreadContentionMonitoringEnabled()) {
+                            threads.setThreadContentionMonitoringEnabled(true);
+                        }
+                        enabled = threads;
+                    }
+                } catch (Throwable ignored) {
+                    // the measurement cannot be enabled
+                }
+                THREADS = enabled;
+            }
+        }
+    }
+
     private static final class TraceResult {
         private final String traceId;
         private final TraceNode node;
@@ -0,0 +1,351 @@
+package org.kolobok.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Accumulates finished heat map traces and writes them as a gzipped pprof {@code Profile} protobuf
+ * (sample types: calls/count, self/nanoseconds, line_hits/count). The protobuf is encoded by hand.
+ * <p>
+ * Enabled by {@link #enable()} / {@link #start(Path, long)} or by the {@code kolobok.pprof.dir} system property
+ * ({@code KLB_PPROF_DIR} env) with {@code kolobok.pprof.intervalMs}.
+ */
+public final class PprofExporter {
+    public static final long DEFAULT_INTERVAL_MS = 60_000L;
+    public static final int DEFAULT_MAX_SAMPLES = 100_000;
+
+    private static final Object LOCK = new Object();
+    private static final ConcurrentHashMap<SampleKey, LongAdder[]> COUNTERS = new ConcurrentHashMap<>();
+    private static volatile boolean enabled;
+    private static volatile long startNanos;
+    private static volatile long startEpochNanos;
+    private static ScheduledExecutorService scheduler;
+
+    static {
+        String dir = readString("kolobok.pprof.dir", "KLB_PPROF_DIR");
+        if (dir != null && !dir.isEmpty()) {
+            String interval = readString("kolobok.pprof.intervalMs", "KLB_PPROF_INTERVAL_MS");
+            try {
+                start(Paths.get(dir),
+                        interval == null || interval.isEmpty() ? DEFAULT_INTERVAL_MS : Long.parseLong(interval.trim()));
+            } catch (RuntimeException ignored) {
+                // misconfigured exporter must not break instrumented code
+            }
+        }
+    }
+
+    private PprofExporter() {
+    }
+
+    public static void enable() {
+        synchronized (LOCK) {
+            if (!enabled) {
+                startNanos = System.nanoTime();
+                startEpochNanos = System.currentTimeMillis() * 1_000_000L;
+                enabled = true;
+            }
+        }
+    }
+
+    public static void start(Path directory, long intervalMs) {
+        synchronized (LOCK) {
+            enable();
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "kolobok-pprof-export");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    writeTo(directory);
+                } catch (IOException | RuntimeException ignored) {
+                    // next run retries
+                }
+            }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static void stop() {
+        synchronized (LOCK) {
+            enabled = false;
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+    }
+
+    public static void reset() {
+        COUNTERS.clear();
+        startNanos = System.nanoTime();
+        startEpochNanos = System.currentTimeMillis() * 1_000_000L;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static Path writeTo(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path file = directory.resolve("kolobok-" + System.currentTimeMillis() + ".pb.gz");
+        Path temp = directory.resolve(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            writeTo(out);
+        }
+        Files.move(temp, file, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        return file;
+    }
+
+    public static void writeTo(OutputStream out) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(encodeProfile());
+        gzip.finish();
+    }
+
+    static void addCalls(String[] stack, long calls, long selfNs) {
+        LongAdder[] counters = counters(new SampleKey(stack, 0));
+        if (counters != null) {
+            counters[0].add(calls);
+            counters[1].add(selfNs);
+        }
+    }
+
+    static void addLineHits(String[] stack, int line, long hits) {
+        LongAdder[] counters = counters(new SampleKey(stack, line));
+        if (counters != null) {
+            counters[2].add(hits);
+        }
+    }
+
+    private static LongAdder[] counters(SampleKey key) {
+        LongAdder[] counters = COUNTERS.get(key);
+        if (counters == null) {
+            if (COUNTERS.size() >= DEFAULT_MAX_SAMPLES) {
+                return null;
+            }
+            counters = COUNTERS.computeIfAbsent(key,
+                    ignored -> new LongAdder[]{new LongAdder(), new LongAdder(), new LongAdder()});
+        }
+        return counters;
+    }
+
+    static byte[] encodeProfile() {
+        StringTable strings = new StringTable();
+        Map<String, Long> functionIds = new HashMap<>();
+        Map<String, Long> locationIds = new HashMap<>();
+        ProtoWriter functions = new ProtoWriter();
+        ProtoWriter locations = new ProtoWriter();
+        ProtoWriter samples = new ProtoWriter();
+
+        ProtoWriter sampleTypes = new ProtoWriter();
+        sampleTypes.writeBytes(1, valueType(strings, "calls", "count"));
+        sampleTypes.writeBytes(1, valueType(strings, "self", "nanoseconds"));
+        sampleTypes.writeBytes(1, valueType(strings, "line_hits", "count"));
+
+        List<Map.Entry<SampleKey, LongAdder[]>> entries = new ArrayList<>(COUNTERS.entrySet());
+        entries.sort((a, b) -> a.getKey().compareTo(b.getKey()));
+        for (Map.Entry<SampleKey, LongAdder[]> entry : entries) {
+            SampleKey key = entry.getKey();
+            long[] values = {entry.getValue()[0].sum(), entry.getValue()[1].sum(), entry.getValue()[2].sum()};
+            long[] stackIds = new long[key.stack.length];
+            // pprof lists the leaf location first
+            for (int i = 0; i < key.stack.length; i++) {
+                int line = i == key.stack.length - 1 ? key.line : 0;
+                stackIds[key.stack.length - 1 - i] = location(key.stack[i], line, strings, functionIds, locationIds,
+                        functions, locations);
+            }
+            ProtoWriter sample = new ProtoWriter();
+            sample.writePacked(1, stackIds);
+            sample.writePacked(2, values);
+            samples.writeBytes(2, sample.toByteArray());
+        }
+
+        ProtoWriter profile = new ProtoWriter();
+        profile.writeRaw(sampleTypes.toByteArray());
+        profile.writeRaw(samples.toByteArray());
+        profile.writeRaw(locations.toByteArray());
+        profile.writeRaw(functions.toByteArray());
+        int defaultType = strings.index("self");
+        for (String value : strings.values) {
+            profile.writeString(6, value);
+        }
+        profile.writeVarintField(9, startEpochNanos);
+        profile.writeVarintField(10, Math.max(0, System.nanoTime() - startNanos));
+        profile.writeVarintField(14, defaultType);
+        return profile.toByteArray();
+    }
+
+    private static long location(String method, int line, StringTable strings, Map<String, Long> functionIds,
+                                 Map<String, Long> locationIds, ProtoWriter functions, ProtoWriter locations) {
+        Long functionId = functionIds.get(method);
+        if (functionId == null) {
+            functionId = (long) functionIds.size() + 1;
+            functionIds.put(method, functionId);
+            int separator = method.indexOf('#');
+            ProtoWriter function = new ProtoWriter();
+            function.writeVarintField(1, functionId);
+            function.writeVarintField(2, strings.index(method));
+            function.writeVarintField(3, strings.index(method));
+            function.writeVarintField(4, strings.index(separator > 0 ? method.substring(0, separator) : ""));
+            functions.writeBytes(5, function.toByteArray());
+        }
+        String locationKey = method + '\u0000' + line;
+        Long locationId = locationIds.get(locationKey);
+        if (locationId == null) {
+            locationId = (long) locationIds.size() + 1;
+            locationIds.put(locationKey, locationId);
+            ProtoWriter lineMessage = new ProtoWriter();
+            lineMessage.writeVarintField(1, functionId);
+            lineMessage.writeVarintField(2, line);
+            ProtoWriter location = new ProtoWriter();
+            location.writeVarintField(1, locationId);
+            location.writeBytes(4, lineMessage.toByteArray());
+            locations.writeBytes(4, location.toByteArray());
+        }
+        return locationId;
+    }
+
+    private static byte[] valueType(StringTable strings, String type, String unit) {
+        ProtoWriter writer = new ProtoWriter();
+        writer.writeVarintField(1, strings.index(type));
+        writer.writeVarintField(2, strings.index(unit));
+        return writer.toByteArray();
+    }
+
+    private static String readString(String propKey, String envKey) {
+        String value = System.getProperty(propKey);
+        if (value == null || value.isEmpty()) {
+            value = System.getenv(envKey);
+        }
+        return value;
+    }
+
+    private static final class SampleKey implements Comparable<SampleKey> {
+        private final String[] stack;
+        private final int line;
+        private final int hash;
+
+        private SampleKey(String[] stack, int line) {
+            this.stack = stack;
+            this.line = line;
+            this.hash = 31 * Arrays.hashCode(stack) + line;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SampleKey)) {
+                return false;
+            }
+            SampleKey other = (SampleKey) o;
+            return line == other.line && Arrays.equals(stack, other.stack);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public int compareTo(SampleKey other) {
+            int length = Math.min(stack.length, other.stack.length);
+            for (int i = 0; i < length; i++) {
+                int result = stack[i].compareTo(other.stack[i]);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            if (stack.length != other.stack.length) {
+                return Integer.compare(stack.length, other.stack.length);
+            }
+            return Integer.compare(line, other.line);
+        }
+    }
+
+    private static final class StringTable {
+        private final List<String> values = new ArrayList<>();
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        private StringTable() {
+            index("");
+        }
+
+        private int index(String value) {
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = values.size();
+                values.add(value);
+                indexes.put(value, index);
+            }
+            return index;
+        }
+    }
+
+    private static final class ProtoWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        private void writeTag(int field, int wireType) {
+            writeVarint(((long) field << 3) | wireType);
+        }
+
+        private void writeVarintField(int field, long value) {
+            if (value == 0) {
+                return;
+            }
+            writeTag(field, 0);
+            writeVarint(value);
+        }
+
+        private void writeBytes(int field, byte[] bytes) {
+            writeTag(field, 2);
+            writeVarint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        private void writeString(int field, String value) {
+            writeBytes(field, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void writePacked(int field, long[] values) {
+            ProtoWriter packed = new ProtoWriter();
+            for (long value : values) {
+                packed.writeVarint(value);
+            }
+            writeBytes(field, packed.toByteArray());
+        }
+
+        private void writeRaw(byte[] bytes) {
+            out.write(bytes, 0, bytes.length);
+        }
+
+        private byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.kolobok.runtime;
+
+import java.net.HttpURLConnection;
+import java.net.http.HttpRequest;
+import java.util.Locale;
+import java.util.function.BiConsumer;
+
+/**
+ * W3C Trace Context ({@code traceparent}/{@code tracestate}) parsing and propagation for @DebugLog traces.
+ * A new trace adopts a valid incoming {@code traceparent} from MDC or the current servlet request header and records
+ * its parent span id on the root node; {@link #inject} adds the current trace to outgoing requests.
+ */
+public final class TraceContext {
+    public static final String TRACEPARENT = "traceparent";
+    public static final String TRACESTATE = "tracestate";
+    private static final int FLAG_SAMPLED = 0x01;
+
+    private final String traceId;
+    private final String spanId;
+    private final int flags;
+    private final String traceState;
+
+    TraceContext(String traceId, String spanId, int flags, String traceState) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.flags = flags;
+        this.traceState = traceState;
+    }
+
+    /**
+     * Parses a {@code traceparent} header, or returns {@code null} when it is missing or invalid.
+     * For incoming headers {@link #getSpanId()} is the caller's span (the W3C {@code parent-id}).
+     */
+    public static TraceContext parse(String traceparent, String tracestate) {
+        if (traceparent == null) {
+            return null;
+        }
+        String value = traceparent.trim();
+        // version(2) - trace-id(32) - parent-id(16) - flags(2); later versions may append "-..." fields
+        if (value.length() < 55 || value.charAt(2) != '-' || value.charAt(35) != '-' || value.charAt(52) != '-') {
+            return null;
+        }
+        String version = value.substring(0, 2);
+        if (!isHex(version) || "ff".equals(version)) {
+            return null;
+        }
+        if (value.length() > 55 && ("00".equals(version) || value.charAt(55) != '-')) {
+            return null;
+        }
+        String traceId = value.substring(3, 35);
+        String spanId = value.substring(36, 52);
+        String flags = value.substring(53, 55);
+        if (!isHex(traceId) || isZero(traceId) || !isHex(spanId) || isZero(spanId) || !isHex(flags)) {
+            return null;
+        }
+        String state = tracestate == null ? null : tracestate.trim();
+        return new TraceContext(traceId, spanId, Integer.parseInt(flags, 16),
+                state == null || state.isEmpty() ? null : state);
+    }
+
+    /**
+     * {@code traceparent} of the current @DebugLog trace, or {@code null} outside a trace or when its id is not
+     * W3C compatible (e.g. a custom MDC {@code traceId}).
+     */
+    public static String currentTraceparent() {
+        TraceContext context = LogContextTrace.currentTraceContext();
+        return context == null ? null : context.toTraceparent();
+    }
+
+    public static String currentTracestate() {
+        TraceContext context = LogContextTrace.currentTraceContext();
+        return context == null ? null : context.traceState;
+    }
+
+    /**
+     * Passes {@code traceparent} (and {@code tracestate} when known) of the current trace to {@code header}.
+     *
+     * @return {@code false} when there is nothing to propagate
+     */
+    public static boolean inject(BiConsumer<String, String> header) {
+        TraceContext context = LogContextTrace.currentTraceContext();
+        if (context == null) {
+            return false;
+        }
+        header.accept(TRACEPARENT, context.toTraceparent());
+        if (context.traceState != null) {
+            header.accept(TRACESTATE, context.traceState);
+        }
+        return true;
+    }
+
+    public static HttpURLConnection inject(HttpURLConnection connection) {
+        inject(connection::setRequestProperty);
+        return connection;
+    }
+
+    public static HttpRequest.Builder inject(HttpRequest.Builder builder) {
+        inject(builder::setHeader);
+        return builder;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isSampled() {
+        return (flags & FLAG_SAMPLED) != 0;
+    }
+
+    public String getTraceState() {
+        return traceState;
+    }
+
+    public String toTraceparent() {
+        StringBuilder sb = new StringBuilder(55);
+        sb.append("00-").append(traceId).append('-').append(spanId).append('-');
+        return sb.append(Character.forDigit(flags >> 4 & 0xF, 16)).append(Character.forDigit(flags & 0xF, 16))
+                .toString();
+    }
+
+    static TraceContext forTrace(String traceId, String spanId, int flags, String traceState) {
+        String w3cTraceId = toW3cTraceId(traceId);
+        if (w3cTraceId == null || spanId == null) {
+            return null;
+        }
+        return new TraceContext(w3cTraceId, spanId, flags, traceState);
+    }
+
+    static int defaultFlags() {
+        return FLAG_SAMPLED;
+    }
+
+    /**
+     * 32 lowercase hex characters for W3C-compatible ids (including dashed UUIDs), otherwise {@code null}.
+     */
+    static String toW3cTraceId(String traceId) {
+        if (traceId == null) {
+            return null;
+        }
+        String candidate = traceId;
+        if (candidate.length() == 36 && candidate.charAt(8) == '-' && candidate.charAt(13) == '-'
+                && candidate.charAt(18) == '-' && candidate.charAt(23) == '-') {
+            candidate = candidate.replace("-", "");
+        }
+        if (candidate.length() != 32) {
+            return null;
+        }
+        candidate = candidate.toLowerCase(Locale.ROOT);
+        return isHex(candidate) && !isZero(candidate) ? candidate : null;
+    }
+
+    private static boolean isHex(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isZero(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) != '0') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,464 @@
+package org.kolobok.runtime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes heat map log lines for {@code @DebugLog(traceSink = FILE)} straight to a file, bypassing SLF4J.
+ * Each thread UTF-8 encodes lines into its own pooled direct buffer without locking; full buffers are handed to a
+ * background flusher, which also collects partly filled ones and writes them with gathering {@link FileChannel}
+ * writes. Files rotate by size and/or age; rotated files can be gzipped.
+ * <p>
+ * Enabled by {@link #start(Path, long, long, boolean)} or the {@code kolobok.tracefile.path} system property
+ * ({@code KLB_TRACEFILE_PATH} env). While the sink is stopped, or all buffers are waiting for the flusher,
+ * lines fall back to the SLF4J logger.
+ */
+public final class TraceFileSink {
+    public static final long DEFAULT_MAX_FILE_BYTES = 100L * 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 200L;
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_BUFFER_COUNT = 32;
+
+    private static final DateTimeFormatter ROTATED_SUFFIX =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS").withZone(ZoneOffset.UTC);
+    private static final Object LOCK = new Object();
+    private static final ThreadLocal<Slot> SLOT = new ThreadLocal<>();
+    private static volatile Sink sink;
+
+    static {
+        String file = readString("kolobok.tracefile.path", "KLB_TRACEFILE_PATH");
+        if (file != null && !file.isEmpty()) {
+            try {
+                start(Paths.get(file),
+                        readLong("kolobok.tracefile.maxBytes", "KLB_TRACEFILE_MAX_BYTES", DEFAULT_MAX_FILE_BYTES),
+                        readLong("kolobok.tracefile.rotateIntervalMs", "KLB_TRACEFILE_ROTATE_INTERVAL_MS", 0L),
+                        Boolean.parseBoolean(readString("kolobok.tracefile.gzip", "KLB_TRACEFILE_GZIP")),
+                        readLong("kolobok.tracefile.flushIntervalMs", "KLB_TRACEFILE_FLUSH_INTERVAL_MS",
+                                DEFAULT_FLUSH_INTERVAL_MS),
+                        (int) readLong("kolobok.tracefile.bufferSize", "KLB_TRACEFILE_BUFFER_SIZE", DEFAULT_BUFFER_SIZE),
+                        (int) readLong("kolobok.tracefile.buffers", "KLB_TRACEFILE_BUFFERS", DEFAULT_BUFFER_COUNT));
+            } catch (IOException | RuntimeException ignored) {
+                // misconfigured sink must not break instrumented code
+            }
+        }
+    }
+
+    private TraceFileSink() {
+    }
+
+    public static void start(Path file, long maxFileBytes, long rotateIntervalMs, boolean gzipRotated)
+            throws IOException {
+        start(file, maxFileBytes, rotateIntervalMs, gzipRotated, DEFAULT_FLUSH_INTERVAL_MS, DEFAULT_BUFFER_SIZE,
+                DEFAULT_BUFFER_COUNT);
+    }
+
+    public static void start(Path file, long maxFileBytes, long rotateIntervalMs, boolean gzipRotated,
+                             long flushIntervalMs, int bufferSize, int bufferCount) throws IOException {
+        if (bufferSize < 1024 || bufferCount < 2) {
+            throw new IllegalArgumentException("bufferSize must be >= 1024 and bufferCount >= 2");
+        }
+        synchronized (LOCK) {
+            stop();
+            Sink started = new Sink(file, maxFileBytes, rotateIntervalMs, gzipRotated, bufferSize, bufferCount);
+            started.open();
+            started.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "kolobok-tracefile-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = flushIntervalMs > 0 ? flushIntervalMs : DEFAULT_FLUSH_INTERVAL_MS;
+            started.flusher.scheduleWithFixedDelay(() -> drainQuietly(started), interval, interval,
+                    TimeUnit.MILLISECONDS);
+            started.shutdownHook = new Thread(() -> drainQuietly(started), "kolobok-tracefile-shutdown");
+            try {
+                Runtime.getRuntime().addShutdownHook(started.shutdownHook);
+            } catch (IllegalStateException ignored) {
+                started.shutdownHook = null;
+            }
+            sink = started;
+        }
+    }
+
+    public static void stop() {
+        synchronized (LOCK) {
+            Sink current = sink;
+            if (current == null) {
+                return;
+            }
+            sink = null;
+            // no shutdownNow(): interrupting a write in progress would close the FileChannel
+            current.flusher.shutdown();
+            try {
+                current.flusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (current.shutdownHook != null) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(current.shutdownHook);
+                } catch (IllegalStateException ignored) {
+                    // JVM is already shutting down, the hook flushes
+                }
+            }
+            drainQuietly(current);
+            current.close();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return sink != null;
+    }
+
+    /**
+     * Writes all buffered lines on the calling thread.
+     */
+    public static void flush() throws IOException {
+        Sink current = sink;
+        if (current != null) {
+            current.drain();
+        }
+    }
+
+    /**
+     * Encodes {@code line} straight from the caller's builder; {@code false} when the caller should log it elsewhere.
+     */
+    static boolean offer(CharSequence line) {
+        Sink current = sink;
+        return line != null && current != null && current.append(line);
+    }
+
+    // UTF-8 without a CharsetEncoder, so a StringBuilder is read in place; lone surrogates become '?'
+    static void encode(CharSequence line, ByteBuffer out) {
+        int length = line.length();
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(line.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, line.charAt(++i));
+                out.put((byte) (0xF0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static void drainQuietly(Sink target) {
+        try {
+            target.drain();
+        } catch (IOException | RuntimeException ignored) {
+            // next drain retries
+        }
+    }
+
+    private static long readLong(String propKey, String envKey, long defaultValue) {
+        String value = readString(propKey, envKey);
+        return value == null || value.isEmpty() ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    private static String readString(String propKey, String envKey) {
+        String value = System.getProperty(propKey);
+        if (value == null || value.isEmpty()) {
+            value = System.getenv(envKey);
+        }
+        return value;
+    }
+
+    /**
+     * A thread's current buffer. The owner takes it out while encoding; the flusher takes it out to collect
+     * partly filled buffers, so neither needs a lock.
+     */
+    private static final class Slot {
+        private final Sink sink;
+        private final Thread owner;
+        private final AtomicReference<ByteBuffer> buffer = new AtomicReference<>();
+
+        private Slot(Sink sink, Thread owner) {
+            this.sink = sink;
+            this.owner = owner;
+        }
+    }
+
+    private static final class Sink {
+        private final Path file;
+        private final long maxFileBytes;
+        private final long rotateIntervalMs;
+        private final boolean gzipRotated;
+        private final int bufferSize;
+        private final ConcurrentLinkedQueue<Slot> slots = new ConcurrentLinkedQueue<>();
+        // guarded by this
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        private List<ByteBuffer> filled = new ArrayList<>();
+        // guarded by io
+        private final Object io = new Object();
+        private FileChannel channel;
+        private long fileBytes;
+        private long openedAtMs;
+        private int rotations;
+        private ExecutorService compressor;
+        private final AtomicBoolean drainRequested = new AtomicBoolean();
+        private ScheduledExecutorService flusher;
+        private Thread shutdownHook;
+
+        private Sink(Path file, long maxFileBytes, long rotateIntervalMs, boolean gzipRotated, int bufferSize,
+                     int bufferCount) {
+            this.file = file;
+            this.maxFileBytes = maxFileBytes;
+            this.rotateIntervalMs = rotateIntervalMs;
+            this.gzipRotated = gzipRotated;
+            this.bufferSize = bufferSize;
+            for (int i = 0; i < bufferCount; i++) {
+                free.add(ByteBuffer.allocateDirect(bufferSize));
+            }
+        }
+
+        private boolean append(CharSequence line) {
+            Slot slot = slot();
+            // UTF-8 needs at most 3 bytes per char, plus the newline
+            long worstCase = (long) line.length() * 3 + 1;
+            if (worstCase > bufferSize) {
+                // oversized lines get a one-off heap buffer that is not returned to the pool
+                ByteBuffer bytes = ByteBuffer.allocate((int) worstCase);
+                encode(line, bytes);
+                bytes.put((byte) '\n');
+                handOff(slot.buffer.getAndSet(null), bytes);
+                return true;
+            }
+            ByteBuffer buffer = slot.buffer.getAndSet(null);
+            if (buffer != null && worstCase > buffer.remaining()) {
+                handOff(buffer, null);
+                buffer = null;
+            }
+            if (buffer == null) {
+                buffer = takeFree();
+                if (buffer == null) {
+                    requestDrain();
+                    return false;
+                }
+            }
+            encode(line, buffer);
+            buffer.put((byte) '\n');
+            slot.buffer.lazySet(buffer);
+            return true;
+        }
+
+        private Slot slot() {
+            Slot slot = SLOT.get();
+            if (slot == null || slot.sink != this) {
+                slot = new Slot(this, Thread.currentThread());
+                slots.add(slot);
+                SLOT.set(slot);
+            }
+            return slot;
+        }
+
+        private synchronized ByteBuffer takeFree() {
+            return free.poll();
+        }
+
+        // keeps the thread's line order: its current buffer goes before an oversized line
+        private synchronized void handOff(ByteBuffer buffer, ByteBuffer oversized) {
+            if (buffer != null) {
+                if (buffer.position() > 0) {
+                    buffer.flip();
+                    filled.add(buffer);
+                } else {
+                    free.add(buffer);
+                }
+            }
+            if (oversized != null) {
+                oversized.flip();
+                filled.add(oversized);
+            }
+            if (free.size() < 2 && !filled.isEmpty()) {
+                requestDrain();
+            }
+        }
+
+        private void requestDrain() {
+            if (drainRequested.compareAndSet(false, true)) {
+                try {
+                    flusher.execute(() -> drainQuietly(this));
+                } catch (RejectedExecutionException ignored) {
+                    drainRequested.set(false);
+                }
+            }
+        }
+
+        // takes partly filled buffers from threads that are not encoding right now; slots of dead threads go away
+        private void collectSlots() {
+            for (Iterator<Slot> it = slots.iterator(); it.hasNext(); ) {
+                Slot slot = it.next();
+                collect(slot);
+                if (!slot.owner.isAlive()) {
+                    it.remove();
+                    // the owner may have put its buffer back just before it died
+                    collect(slot);
+                }
+            }
+        }
+
+        // taken and queued under the lock: an owner that finds its slot empty starts a new buffer, and its
+        // handOff of that buffer must queue behind this one to keep the thread's lines in order
+        private synchronized void collect(Slot slot) {
+            ByteBuffer buffer = slot.buffer.getAndSet(null);
+            if (buffer != null) {
+                handOff(buffer, null);
+            }
+        }
+
+        private synchronized List<ByteBuffer> takeFilled() {
+            List<ByteBuffer> batch = filled;
+            filled = new ArrayList<>();
+            return batch;
+        }
+
+        private synchronized void recycle(List<ByteBuffer> batch) {
+            for (ByteBuffer buffer : batch) {
+                if (buffer.isDirect()) {
+                    buffer.clear();
+                    free.add(buffer);
+                }
+            }
+        }
+
+        private void drain() throws IOException {
+            synchronized (io) {
+                if (channel == null) {
+                    return;
+                }
+                drainRequested.set(false);
+                collectSlots();
+                List<ByteBuffer> batch = takeFilled();
+                if (!batch.isEmpty()) {
+                    try {
+                        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+                        long total = 0;
+                        for (ByteBuffer buffer : buffers) {
+                            total += buffer.remaining();
+                        }
+                        while (total > 0) {
+                            total -= channel.write(buffers);
+                        }
+                        fileBytes = channel.size();
+                    } finally {
+                        recycle(batch);
+                    }
+                }
+                if (shouldRotate()) {
+                    rotate();
+                }
+            }
+        }
+
+        private boolean shouldRotate() {
+            if (fileBytes == 0) {
+                return false;
+            }
+            if (maxFileBytes > 0 && fileBytes >= maxFileBytes) {
+                return true;
+            }
+            return rotateIntervalMs > 0 && System.currentTimeMillis() - openedAtMs >= rotateIntervalMs;
+        }
+
+        private void open() throws IOException {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            fileBytes = channel.size();
+            openedAtMs = System.currentTimeMillis();
+        }
+
+        private void rotate() throws IOException {
+            channel.close();
+            channel = null;
+            String suffix = ROTATED_SUFFIX.format(Instant.now()) + "-" + rotations++;
+            Path rotated = file.resolveSibling(file.getFileName() + "." + suffix);
+            Files.move(file, rotated);
+            open();
+            if (gzipRotated) {
+                if (compressor == null) {
+                    compressor = Executors.newSingleThreadExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "kolobok-tracefile-gzip");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                compressor.execute(() -> gzip(rotated));
+            }
+        }
+
+        private void close() {
+            synchronized (io) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // nothing left to do
+                    }
+                    channel = null;
+                }
+                if (compressor != null) {
+                    compressor.shutdown();
+                    try {
+                        compressor.awaitTermination(30, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        private static void gzip(Path rotated) {
+            Path target = rotated.resolveSibling(rotated.getFileName() + ".gz");
+            try (InputStream in = Files.newInputStream(rotated);
+                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(target), 64 * 1024)) {
+                in.transferTo(out);
+            } catch (IOException e) {
+                return;
+            }
+            try {
+                Files.delete(rotated);
+            } catch (IOException ignored) {
+                // keep the uncompressed copy
+            }
+        }
+    }
+}
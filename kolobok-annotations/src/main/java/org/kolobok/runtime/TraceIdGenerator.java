@@ -0,0 +1,108 @@
+package org.kolobok.runtime;
+
+import org.kolobok.annotation.DebugLog;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Trace ids for new @DebugLog traces, drawn from {@link ThreadLocalRandom} instead of the shared
+ * {@code SecureRandom} behind {@link UUID#randomUUID()}. {@code RANDOM} and {@code TIME} ids are 32 lowercase hex
+ * characters and never all zero, so they can be used as W3C {@code traceparent} trace ids.
+ */
+public final class TraceIdGenerator {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final short[] HEX_PAIRS = new short[256];
+    private static final DebugLog.TraceIdFormat[] FORMATS = DebugLog.TraceIdFormat.values();
+    // 16 random bits per JVM keep TIME ids from different processes apart within the same millisecond
+    private static final long NODE = ThreadLocalRandom.current().nextLong() & 0xFFFFL;
+    private static final ThreadLocal<long[]> SEQUENCE =
+            ThreadLocal.withInitial(() -> new long[]{ThreadLocalRandom.current().nextLong()});
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            HEX_PAIRS[i] = (short) ((HEX[i >> 4] << 8) | HEX[i & 0xF]);
+        }
+    }
+
+    private TraceIdGenerator() {
+    }
+
+    public static String next(DebugLog.TraceIdFormat format) {
+        if (format == null) {
+            return uuid();
+        }
+        switch (format) {
+            case RANDOM:
+                return random();
+            case TIME:
+                return time();
+            default:
+                return uuid();
+        }
+    }
+
+    static String next(int format) {
+        return next(format >= 0 && format < FORMATS.length ? FORMATS[format] : null);
+    }
+
+    /**
+     * Random (version 4) UUID string, same format as {@link UUID#randomUUID()}.
+     */
+    public static String uuid() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long msb = (random.nextLong() & ~0xF000L) | 0x4000L;
+        long lsb = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+        return new UUID(msb, lsb).toString();
+    }
+
+    /**
+     * 128 random bits as 32 hex characters.
+     */
+    public static String random() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long high = random.nextLong();
+        long low = random.nextLong();
+        if (high == 0 && low == 0) {
+            low = 1;
+        }
+        return hex(high, low);
+    }
+
+    /**
+     * Millisecond timestamp, JVM node bits and a per-thread sequence as 32 hex characters; ids sort by creation time.
+     */
+    public static String time() {
+        long[] sequence = SEQUENCE.get();
+        long high = (System.currentTimeMillis() << 16) | NODE;
+        return hex(high, ++sequence[0]);
+    }
+
+    /**
+     * 64 random bits as 16 hex characters (W3C {@code parent-id}), never all zero.
+     */
+    public static String spanId() {
+        long id = ThreadLocalRandom.current().nextLong();
+        byte[] out = new byte[16];
+        writeHex(out, 0, id == 0 ? 1 : id);
+        return new String(out, StandardCharsets.ISO_8859_1);
+    }
+
+    static String hex(long high, long low) {
+        byte[] out = new byte[32];
+        writeHex(out, 0, high);
+        writeHex(out, 16, low);
+        // Latin-1 bytes are copied straight into a compact string
+        return new String(out, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void writeHex(byte[] out, int offset, long value) {
+        for (int i = offset + 14; i >= offset; i -= 2) {
+            short pair = HEX_PAIRS[(int) (value & 0xFF)];
+            out[i] = (byte) (pair >> 8);
+            out[i + 1] = (byte) pair;
+            value >>>= 8;
+        }
+    }
+}
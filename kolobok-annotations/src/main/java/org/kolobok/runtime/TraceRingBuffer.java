@@ -0,0 +1,603 @@
+package org.kolobok.runtime;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Always-on flight recorder for heat map traces: compact binary enter/exit records are written into
+ * per-thread regions of a memory-mapped ring file, overwriting the oldest entries. A region belongs to one live
+ * thread at a time and is handed to another thread once its owner has died; threads that find no free region
+ * have their records dropped ({@link #droppedRecords()}). Recent history can be
+ * decoded back into heat map JSON in-process ({@link #dump(long)}), automatically on exceptions, or offline
+ * after a crash ({@code java -cp kolobok.jar org.kolobok.runtime.TraceRingBuffer <file> [seconds]}).
+ * <p>
+ * Enabled by {@link #start(Path, int, int)} or the {@code kolobok.ring.file} system property
+ * ({@code KLB_RING_FILE} env) with {@code kolobok.ring.threads}, {@code kolobok.ring.recordsPerThread},
+ * {@code kolobok.ring.dumpOnException} and {@code kolobok.ring.dumpSeconds}.
+ */
+public final class TraceRingBuffer {
+    public static final int DEFAULT_THREAD_SLOTS = 64;
+    public static final int DEFAULT_RECORDS_PER_THREAD = 4096;
+    public static final long DEFAULT_DUMP_SECONDS = 10;
+
+    // file header: magic, version, slots, recordsPerSlot, recordSize, baseEpochMillis
+    static final long MAGIC = 0x4B4C4252494E4731L;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 64;
+    // region header: threadId, next sequence, first sequence of the owning thread, name length, name bytes
+    static final int REGION_HEADER_SIZE = 64;
+    // record: type, depth, pairCount, methodId, timestamp, durationNs, (line, count) pairs
+    static final int RECORD_SIZE = 64;
+    static final byte ENTER = 1;
+    static final byte EXIT = 2;
+    static final byte ERROR = 3;
+    static final byte LINES = 4;
+    private static final int RECORD_PAIRS = 5;
+    private static final int LINES_PAIRS = 7;
+    private static final int THREAD_NAME_BYTES = REGION_HEADER_SIZE - 28;
+    private static final long DUMP_INTERVAL_MS = 1000;
+    private static final long CLAIM_RETRY_NS = 1_000_000_000L;
+
+    private static final Object LOCK = new Object();
+    private static final ThreadLocal<Writer> WRITER = ThreadLocal.withInitial(Writer::new);
+    private static volatile Ring ring;
+
+    static {
+        String file = readString("kolobok.ring.file", "KLB_RING_FILE");
+        if (file != null && !file.isEmpty()) {
+            try {
+                start(Paths.get(file),
+                        readInt("kolobok.ring.threads", "KLB_RING_THREADS", DEFAULT_THREAD_SLOTS),
+                        readInt("kolobok.ring.recordsPerThread", "KLB_RING_RECORDS_PER_THREAD", DEFAULT_RECORDS_PER_THREAD));
+                dumpOnException(Boolean.parseBoolean(
+                                readString("kolobok.ring.dumpOnException", "KLB_RING_DUMP_ON_EXCEPTION")),
+                        readInt("kolobok.ring.dumpSeconds", "KLB_RING_DUMP_SECONDS", (int) DEFAULT_DUMP_SECONDS));
+            } catch (IOException | RuntimeException ignored) {
+                // misconfigured ring must not break instrumented code
+            }
+        }
+    }
+
+    private TraceRingBuffer() {
+    }
+
+    public static void start(Path file, int threadSlots, int recordsPerThread) throws IOException {
+        if (threadSlots <= 0 || recordsPerThread <= 0) {
+            throw new IllegalArgumentException("threadSlots and recordsPerThread must be positive");
+        }
+        long regionSize = REGION_HEADER_SIZE + (long) recordsPerThread * RECORD_SIZE;
+        long size = HEADER_SIZE + regionSize * threadSlots;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Ring file would exceed 2GB: " + size + " bytes");
+        }
+        synchronized (LOCK) {
+            stop();
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Ring started = new Ring(file, threadSlots, recordsPerThread, (int) regionSize);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                started.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            started.buffer.putLong(0, MAGIC);
+            started.buffer.putInt(8, VERSION);
+            started.buffer.putInt(12, threadSlots);
+            started.buffer.putInt(16, recordsPerThread);
+            started.buffer.putInt(20, RECORD_SIZE);
+            started.buffer.putLong(24, started.baseEpochMillis);
+            started.dictionary = Files.newBufferedWriter(dictionaryFile(file), StandardCharsets.UTF_8);
+            ring = started;
+        }
+    }
+
+    public static void stop() {
+        synchronized (LOCK) {
+            Ring current = ring;
+            if (current == null) {
+                return;
+            }
+            ring = null;
+            current.dumper.shutdown();
+            current.buffer.force();
+            synchronized (current.methodIds) {
+                try {
+                    current.dictionary.close();
+                } catch (IOException ignored) {
+                    // dictionary is flushed on every new method
+                }
+            }
+        }
+    }
+
+    // writes <file>.<epochMs>.json with the last `seconds` of history when a root trace ends with an exception
+    public static void dumpOnException(boolean enabled, long seconds) {
+        Ring current = ring;
+        if (current != null) {
+            current.dumpSeconds = seconds;
+            current.dumpOnException = enabled;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return ring != null;
+    }
+
+    // records lost because more live threads were tracing than the ring has regions
+    public static long droppedRecords() {
+        Ring current = ring;
+        return current == null ? 0 : current.dropped.sum();
+    }
+
+    public static String dump(long seconds) {
+        Ring current = ring;
+        return current == null ? "[]" : dump(current, seconds);
+    }
+
+    private static String dump(Ring current, long seconds) {
+        Map<Integer, String> methods = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : current.methodIds.entrySet()) {
+            methods.put(entry.getValue(), entry.getKey());
+        }
+        return decode(current.buffer.duplicate(), methods, seconds);
+    }
+
+    public static String decode(Path file, long seconds) throws IOException {
+        Map<Integer, String> methods = new HashMap<>();
+        Path dictionary = dictionaryFile(file);
+        if (Files.exists(dictionary)) {
+            for (String line : Files.readAllLines(dictionary, StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    methods.put(Integer.parseInt(line.substring(0, tab)), line.substring(tab + 1));
+                }
+            }
+        }
+        return decode(ByteBuffer.wrap(Files.readAllBytes(file)), methods, seconds);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceRingBuffer <ring-file> [seconds]");
+            System.exit(2);
+        }
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_DUMP_SECONDS;
+        System.out.println(decode(Paths.get(args[0]), seconds));
+    }
+
+    // called by instrumented code; the nesting depth is tracked per thread
+    public static void enter(String method) {
+        Ring current = ring;
+        if (current == null) {
+            return;
+        }
+        Writer writer = writer(current);
+        Region region = writer.region(current);
+        int depth = writer.depth++;
+        if (region == null) {
+            current.dropped.increment();
+            return;
+        }
+        ByteBuffer buffer = current.buffer;
+        int pos = region.claim();
+        buffer.put(pos, ENTER);
+        buffer.put(pos + 1, (byte) Math.min(depth, Byte.MAX_VALUE));
+        buffer.putShort(pos + 2, (short) 0);
+        buffer.putInt(pos + 4, current.methodId(method));
+        buffer.putLong(pos + 8, System.nanoTime() - current.baseNanos);
+        buffer.putLong(pos + 16, -1);
+        region.publish(buffer);
+    }
+
+    // a negative duration is taken from the enter/exit timestamps when decoding
+    public static void exit(String method, long durationNs, int[] lines, int[] counts, boolean exception) {
+        Ring current = ring;
+        if (current == null) {
+            return;
+        }
+        Writer writer = writer(current);
+        if (writer.depth == 0) {
+            // entered before the ring was started
+            return;
+        }
+        int depth = --writer.depth;
+        Region region = writer.region;
+        if (region == null) {
+            current.dropped.increment();
+        } else {
+            writeExit(current, region, method, depth, durationNs, lines, counts, exception);
+        }
+        if (depth == 0 && exception) {
+            onRootException(current);
+        }
+    }
+
+    private static void writeExit(Ring current, Region region, String method, int depth, long durationNs,
+                                  int[] lines, int[] counts, boolean exception) {
+        int methodId = current.methodId(method);
+        ByteBuffer buffer = current.buffer;
+        int pairs = 0;
+        if (lines != null && counts != null && lines.length == counts.length) {
+            for (int count : counts) {
+                if (count != 0) {
+                    pairs++;
+                }
+            }
+        }
+        int pos = region.claim();
+        int inRecord = Math.min(pairs, RECORD_PAIRS);
+        buffer.put(pos, exception ? ERROR : EXIT);
+        buffer.put(pos + 1, (byte) Math.min(depth, Byte.MAX_VALUE));
+        buffer.putShort(pos + 2, (short) inRecord);
+        buffer.putInt(pos + 4, methodId);
+        buffer.putLong(pos + 8, System.nanoTime() - current.baseNanos);
+        buffer.putLong(pos + 16, durationNs);
+        int written = 0;
+        int lineIndex = 0;
+        int pairPos = pos + 24;
+        int limit = inRecord;
+        while (written < pairs) {
+            if (written == limit) {
+                region.publish(buffer);
+                pos = region.claim();
+                int chunk = Math.min(pairs - written, LINES_PAIRS);
+                buffer.put(pos, LINES);
+                buffer.put(pos + 1, (byte) 0);
+                buffer.putShort(pos + 2, (short) chunk);
+                buffer.putInt(pos + 4, methodId);
+                pairPos = pos + 8;
+                limit = written + chunk;
+            }
+            while (counts[lineIndex] == 0) {
+                lineIndex++;
+            }
+            buffer.putInt(pairPos, lines[lineIndex]);
+            buffer.putInt(pairPos + 4, counts[lineIndex]);
+            pairPos += 8;
+            lineIndex++;
+            written++;
+        }
+        region.publish(buffer);
+    }
+
+    private static void onRootException(Ring current) {
+        if (!current.dumpOnException) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long last = current.lastDumpMillis.get();
+        if (now - last < DUMP_INTERVAL_MS || !current.lastDumpMillis.compareAndSet(last, now)) {
+            return;
+        }
+        try {
+            current.dumper.execute(() -> {
+                try {
+                    Files.writeString(current.file.resolveSibling(current.file.getFileName() + "." + now + ".json"),
+                            dump(current, current.dumpSeconds), StandardCharsets.UTF_8);
+                } catch (IOException | RuntimeException ignored) {
+                    // dumping is best effort
+                }
+            });
+        } catch (RuntimeException ignored) {
+            // ring stopped concurrently
+        }
+    }
+
+    static String decode(ByteBuffer buffer, Map<Integer, String> methods, long seconds) {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getLong(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a kolobok trace ring buffer");
+        }
+        if (buffer.getInt(8) != VERSION) {
+            throw new IllegalArgumentException("Unsupported trace ring buffer version " + buffer.getInt(8));
+        }
+        int slots = buffer.getInt(12);
+        int recordsPerSlot = buffer.getInt(16);
+        long baseEpochMillis = buffer.getLong(24);
+        int regionSize = REGION_HEADER_SIZE + recordsPerSlot * RECORD_SIZE;
+
+        List<DecodedRoot> roots = new ArrayList<>();
+        long newest = Long.MIN_VALUE;
+        for (int slot = 0; slot < slots; slot++) {
+            int regionOffset = HEADER_SIZE + slot * regionSize;
+            long next = buffer.getLong(regionOffset + 8);
+            // pairs with the release fence in Region.publish, so the records before next are complete
+            VarHandle.acquireFence();
+            if (next <= 0) {
+                continue;
+            }
+            long threadId = buffer.getLong(regionOffset);
+            int nameLength = Math.min(buffer.getInt(regionOffset + 24), THREAD_NAME_BYTES);
+            byte[] nameBytes = new byte[Math.max(0, nameLength)];
+            for (int i = 0; i < nameBytes.length; i++) {
+                nameBytes[i] = buffer.get(regionOffset + 28 + i);
+            }
+            String threadName = new String(nameBytes, StandardCharsets.UTF_8);
+            // records of a previous, dead owner are not part of this thread's history
+            long first = Math.max(buffer.getLong(regionOffset + 16), next - recordsPerSlot);
+            Deque<DecodedNode> stack = new ArrayDeque<>();
+            long seq = first;
+            while (seq < next) {
+                int pos = regionOffset + REGION_HEADER_SIZE + (int) (seq % recordsPerSlot) * RECORD_SIZE;
+                seq++;
+                byte type = buffer.get(pos);
+                int depth = buffer.get(pos + 1);
+                int pairCount = buffer.getShort(pos + 2);
+                int methodId = buffer.getInt(pos + 4);
+                long timestamp = buffer.getLong(pos + 8);
+                if (type == ENTER) {
+                    while (stack.size() > depth) {
+                        stack.pop();
+                    }
+                    LogContextTrace.TraceNode node = new LogContextTrace.TraceNode(methodName(methods, methodId), "");
+                    if (!stack.isEmpty() && stack.size() == depth) {
+                        stack.peek().node.children.add(node);
+                    }
+                    stack.push(new DecodedNode(node, depth, methodId, timestamp));
+                } else if (type == EXIT || type == ERROR) {
+                    Map<Integer, Integer> lineCounts = new HashMap<>();
+                    readPairs(buffer, pos + 24, pairCount, lineCounts);
+                    while (seq < next) {
+                        int continuation = regionOffset + REGION_HEADER_SIZE + (int) (seq % recordsPerSlot) * RECORD_SIZE;
+                        if (buffer.get(continuation) != LINES) {
+                            break;
+                        }
+                        readPairs(buffer, continuation + 8, buffer.getShort(continuation + 2), lineCounts);
+                        seq++;
+                    }
+                    DecodedNode top = stack.peek();
+                    if (top == null || top.depth != depth || top.methodId != methodId) {
+                        continue;
+                    }
+                    stack.pop();
+                    long durationNs = buffer.getLong(pos + 16);
+                    top.node.durationNs = durationNs >= 0 ? durationNs : timestamp - top.enterTimestamp;
+                    top.node.count = 1;
+                    top.node.lineCounts = lineCounts;
+                    if (depth == 0) {
+                        roots.add(new DecodedRoot(threadId, threadName, timestamp, type == ERROR, top.node));
+                        newest = Math.max(newest, timestamp);
+                    }
+                }
+            }
+        }
+
+        long cutoff = newest - seconds * 1_000_000_000L;
+        roots.sort((a, b) -> Long.compare(a.endTimestamp, b.endTimestamp));
+        StringBuilder sb = new StringBuilder("[");
+        boolean firstRoot = true;
+        for (DecodedRoot root : roots) {
+            if (root.endTimestamp < cutoff) {
+                continue;
+            }
+            LogContextTrace.computeSelfTime(root.node);
+            LogContextTrace.markCriticalPath(root.node);
+            if (!firstRoot) {
+                sb.append(',');
+            }
+            firstRoot = false;
+            sb.append("{\"threadId\":").append(root.threadId)
+                    .append(",\"thread\":\"").append(LogContextTrace.escapeJson(root.threadName)).append('"')
+                    .append(",\"endEpochMs\":").append(baseEpochMillis + root.endTimestamp / 1_000_000L)
+                    .append(",\"exception\":").append(root.exception)
+                    .append(",\"heatMap\":").append(LogContextTrace.buildJson("", root.node))
+                    .append('}');
+        }
+        return sb.append(']').toString();
+    }
+
+    private static void readPairs(ByteBuffer buffer, int pos, int pairCount, Map<Integer, Integer> lineCounts) {
+        for (int i = 0; i < pairCount; i++) {
+            lineCounts.merge(buffer.getInt(pos + i * 8), buffer.getInt(pos + i * 8 + 4), Integer::sum);
+        }
+    }
+
+    private static String methodName(Map<Integer, String> methods, int methodId) {
+        String method = methods.get(methodId);
+        return method != null ? method : "#" + methodId;
+    }
+
+    private static Writer writer(Ring current) {
+        Writer writer = WRITER.get();
+        if (writer.ring != current) {
+            writer.ring = current;
+            writer.region = null;
+            writer.depth = 0;
+            writer.retryAtNanos = 0;
+        }
+        return writer;
+    }
+
+    private static Path dictionaryFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".methods");
+    }
+
+    private static String readString(String propKey, String envKey) {
+        String value = System.getProperty(propKey);
+        if (value == null || value.isEmpty()) {
+            value = System.getenv(envKey);
+        }
+        return value;
+    }
+
+    private static int readInt(String propKey, String envKey, int defaultValue) {
+        String value = readString(propKey, envKey);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static final class Ring {
+        private final Path file;
+        private final long baseNanos = System.nanoTime();
+        private final long baseEpochMillis = System.currentTimeMillis();
+        private final Region[] regions;
+        private final ConcurrentHashMap<String, Integer> methodIds = new ConcurrentHashMap<>();
+        private final LongAdder dropped = new LongAdder();
+        private final AtomicLong lastDumpMillis = new AtomicLong();
+        // one daemon thread that exits when idle; dumps already rate limited, extra ones are discarded
+        private final ThreadPoolExecutor dumper = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(1), runnable -> {
+                    Thread thread = new Thread(runnable, "kolobok-ring-dump");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        private MappedByteBuffer buffer;
+        private BufferedWriter dictionary;
+        private volatile boolean dumpOnException;
+        private volatile long dumpSeconds = DEFAULT_DUMP_SECONDS;
+
+        private Ring(Path file, int slots, int recordsPerSlot, int regionSize) {
+            this.file = file;
+            this.regions = new Region[slots];
+            for (int i = 0; i < slots; i++) {
+                regions[i] = new Region(HEADER_SIZE + i * regionSize, recordsPerSlot);
+            }
+        }
+
+        private Region claim(Thread thread) {
+            for (Region region : regions) {
+                if (region.claimThread(buffer, thread)) {
+                    return region;
+                }
+            }
+            return null;
+        }
+
+        private int methodId(String method) {
+            Integer id = methodIds.get(method);
+            if (id != null) {
+                return id;
+            }
+            synchronized (methodIds) {
+                id = methodIds.get(method);
+                if (id == null) {
+                    id = methodIds.size() + 1;
+                    try {
+                        dictionary.write(id + "\t" + method.replace('\n', ' ') + "\n");
+                        dictionary.flush();
+                    } catch (IOException ignored) {
+                        // in-process dumps still resolve names
+                    }
+                    methodIds.put(method, id);
+                }
+                return id;
+            }
+        }
+    }
+
+    private static final class Writer {
+        private Ring ring;
+        private Region region;
+        private int depth;
+        private long retryAtNanos;
+
+        // a region is only taken at the start of a root call, so a thread never records half a tree
+        private Region region(Ring current) {
+            if (region == null && depth == 0) {
+                long now = System.nanoTime();
+                if (now - retryAtNanos >= 0) {
+                    region = current.claim(Thread.currentThread());
+                    retryAtNanos = now + CLAIM_RETRY_NS;
+                }
+            }
+            return region;
+        }
+    }
+
+    // written only by its owner thread; other threads read it through the fences in publish and decode
+    private static final class Region {
+        private final AtomicReference<WeakReference<Thread>> owner = new AtomicReference<>();
+        private final int offset;
+        private final int capacity;
+        private long next;
+
+        private Region(int offset, int capacity) {
+            this.offset = offset;
+            this.capacity = capacity;
+        }
+
+        private boolean claimThread(ByteBuffer buffer, Thread thread) {
+            WeakReference<Thread> previous = owner.get();
+            Thread previousThread = previous == null ? null : previous.get();
+            if (previousThread != null && previousThread.isAlive()) {
+                return false;
+            }
+            if (!owner.compareAndSet(previous, new WeakReference<>(thread))) {
+                return false;
+            }
+            byte[] name = thread.getName().getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(name.length, THREAD_NAME_BYTES);
+            buffer.putLong(offset, thread.getId());
+            buffer.putLong(offset + 16, next);
+            buffer.putInt(offset + 24, length);
+            for (int i = 0; i < length; i++) {
+                buffer.put(offset + 28 + i, name[i]);
+            }
+            VarHandle.releaseFence();
+            return true;
+        }
+
+        private int claim() {
+            return offset + REGION_HEADER_SIZE + (int) (next % capacity) * RECORD_SIZE;
+        }
+
+        private void publish(ByteBuffer buffer) {
+            next++;
+            VarHandle.releaseFence();
+            buffer.putLong(offset + 8, next);
+        }
+    }
+
+    private static final class DecodedNode {
+        private final LogContextTrace.TraceNode node;
+        private final int depth;
+        private final int methodId;
+        private final long enterTimestamp;
+
+        private DecodedNode(LogContextTrace.TraceNode node, int depth, int methodId, long enterTimestamp) {
+            this.node = node;
+            this.depth = depth;
+            this.methodId = methodId;
+            this.enterTimestamp = enterTimestamp;
+        }
+    }
+
+    private static final class DecodedRoot {
+        private final long threadId;
+        private final String threadName;
+        private final long endTimestamp;
+        private final boolean exception;
+        private final LogContextTrace.TraceNode node;
+
+        private DecodedRoot(long threadId, String threadName, long endTimestamp, boolean exception,
+                            LogContextTrace.TraceNode node) {
+            this.threadId = threadId;
+            this.threadName = threadName;
+            this.endTimestamp = endTimestamp;
+            this.exception = exception;
+            this.node = node;
+        }
+    }
+}
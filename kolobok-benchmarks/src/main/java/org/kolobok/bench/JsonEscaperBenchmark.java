@@ -0,0 +1,78 @@
+package org.kolobok.bench;
+
+import org.kolobok.runtime.JsonEscaper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code mvn -Pbench package && java -jar kolobok-benchmarks/target/benchmarks.jar JsonEscaper}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonEscaperBenchmark {
+
+    @Param({"plain", "quotes", "controls", "unicode"})
+    public String shape;
+
+    private String value;
+    private final StringBuilder sb = new StringBuilder(1024);
+
+    @Setup
+    public void setUp() {
+        String base = "sample.OrderService#placeOrder(Ljava/lang/String;I)V customer=42 items=[a, b, c] ";
+        switch (shape) {
+            case "quotes":
+                value = base + "{\"id\":\"x\\y\"}";
+                break;
+            case "controls":
+                value = base + "line1\nline2\tcol\r\n\u0001";
+                break;
+            case "unicode":
+                value = base + "Привет, мир 😀 café";
+                break;
+            default:
+                value = base + base;
+                break;
+        }
+    }
+
+    @Benchmark
+    public String escape() {
+        return JsonEscaper.escape(value);
+    }
+
+    @Benchmark
+    public StringBuilder appendIntoBuffer() {
+        sb.setLength(0);
+        return JsonEscaper.append(sb, value);
+    }
+
+    @Benchmark
+    public String perCharBaseline() {
+        // the pre-table escaper: one append per char, only quote and backslash handled
+        StringBuilder out = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,47 @@
+package org.kolobok.bench;
+
+import org.kolobok.runtime.TraceIdGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trace id generation under contention (64 threads).
+ * {@code java -jar kolobok-benchmarks/target/benchmarks.jar TraceId}
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(64)
+@Fork(1)
+public class TraceIdBenchmark {
+
+    @Benchmark
+    public String jdkRandomUuid() {
+        return UUID.randomUUID().toString();
+    }
+
+    @Benchmark
+    public String uuid() {
+        return TraceIdGenerator.uuid();
+    }
+
+    @Benchmark
+    public String random() {
+        return TraceIdGenerator.random();
+    }
+
+    @Benchmark
+    public String time() {
+        return TraceIdGenerator.time();
+    }
+}
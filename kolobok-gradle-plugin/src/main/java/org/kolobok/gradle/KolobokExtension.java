@@ -3,15 +3,53 @@ package org.kolobok.gradle;
 import org.kolobok.annotation.DebugLog;
 import org.kolobok.transformer.DebugLogDefaults;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 public class KolobokExtension {
     private final DebugLogDefaultsConfig debugLogDefaults = new DebugLogDefaultsConfig();
+    private int parallelism = 1;
+    private boolean incremental = true;
+    private List<String> libraries = new ArrayList<>();
 
     public DebugLogDefaultsConfig getDebugLogDefaults() {
         return debugLogDefaults;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Class files transformed concurrently; 0 uses all available processors.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Transform only the class files that changed since the last run, as reported by Gradle.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public List<String> getLibraries() {
+        return libraries;
+    }
+
+    /**
+     * File name patterns of nested jars that {@code kolobokBootJar} instruments as well, e.g. {@code acme-*.jar}.
+     */
+    public void setLibraries(List<String> libraries) {
+        this.libraries = libraries;
+    }
+
     public static class DebugLogDefaultsConfig {
         private Boolean lineHeatMap;
         private Boolean lineHeatMapOnException;
@@ -32,6 +70,12 @@ public class KolobokExtension {
         private Long slowThresholdMs;
         private Boolean logLocals;
         private Boolean logLocalsOnException;
+        private Boolean logAllocatedBytes;
+        private Boolean logCpuTime;
+        private Boolean logContention;
+        private Boolean logArgSizes;
+        private String traceSink;
+        private String traceIdFormat;
 
         public DebugLogDefaults toDefaults() {
             DebugLogDefaults defaults = new DebugLogDefaults();
@@ -58,6 +102,16 @@ public class KolobokExtension {
             defaults.setSlowThresholdMs(slowThresholdMs);
             defaults.setLogLocals(logLocals);
             defaults.setLogLocalsOnException(logLocalsOnException);
+            defaults.setLogAllocatedBytes(logAllocatedBytes);
+            defaults.setLogCpuTime(logCpuTime);
+            defaults.setLogContention(logContention);
+            defaults.setLogArgSizes(logArgSizes);
+            if (traceSink != null) {
+                defaults.setTraceSink(parseEnum(DebugLog.TraceSink.class, traceSink));
+            }
+            if (traceIdFormat != null) {
+                defaults.setTraceIdFormat(parseEnum(DebugLog.TraceIdFormat.class, traceIdFormat));
+            }
             return defaults;
         }
 
@@ -216,5 +270,53 @@ public class KolobokExtension {
         public void setLogLocalsOnException(Boolean logLocalsOnException) {
             this.logLocalsOnException = logLocalsOnException;
         }
+
+        public Boolean getLogAllocatedBytes() {
+            return logAllocatedBytes;
+        }
+
+        public void setLogAllocatedBytes(Boolean logAllocatedBytes) {
+            this.logAllocatedBytes = logAllocatedBytes;
+        }
+
+        public Boolean getLogCpuTime() {
+            return logCpuTime;
+        }
+
+        public void setLogCpuTime(Boolean logCpuTime) {
+            this.logCpuTime = logCpuTime;
+        }
+
+        public Boolean getLogContention() {
+            return logContention;
+        }
+
+        public void setLogContention(Boolean logContention) {
+            this.logContention = logContention;
+        }
+
+        public Boolean getLogArgSizes() {
+            return logArgSizes;
+        }
+
+        public void setLogArgSizes(Boolean logArgSizes) {
+            this.logArgSizes = logArgSizes;
+        }
+
+        public String getTraceSink() {
+            return traceSink;
+        }
+
+        public void setTraceSink(String traceSink) {
+            this.traceSink = traceSink;
+        }
+
+        public String getTraceIdFormat() {
+            return traceIdFormat;
+        }
+
+        public void setTraceIdFormat(String traceIdFormat) {
+            this.traceIdFormat = traceIdFormat;
+        }
     }
 }
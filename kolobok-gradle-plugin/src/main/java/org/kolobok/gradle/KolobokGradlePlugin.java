@@ -2,27 +2,111 @@ package org.kolobok.gradle;
 
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
+import org.gradle.api.file.Directory;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.FileTreeElement;
 import org.gradle.api.plugins.JavaPlugin;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.specs.Spec;
 import org.gradle.api.tasks.TaskProvider;
 import org.gradle.api.tasks.SourceSet;
 import org.gradle.api.tasks.SourceSetContainer;
+import org.gradle.api.tasks.bundling.AbstractArchiveTask;
+import org.gradle.api.tasks.bundling.Jar;
+import org.kolobok.transformer.DebugLogDefaults;
+
+import java.io.File;
+import java.util.Set;
 
 public class KolobokGradlePlugin implements Plugin<Project> {
 
     @Override
     public void apply(Project project) {
-        project.getExtensions().create("kolobok", KolobokExtension.class);
+        KolobokExtension extension = project.getExtensions().create("kolobok", KolobokExtension.class);
+        Provider<DebugLogDefaults> debugLogDefaults = project.provider(
+                () -> DebugLogDefaults.fromSystemEnv().merge(extension.getDebugLogDefaults().toDefaults()));
+        Provider<Boolean> skip = project.getProviders().gradleProperty("kolobok.skip").map(Boolean::parseBoolean);
         project.getPlugins().withType(JavaPlugin.class, plugin -> {
             SourceSetContainer sourceSets = project.getExtensions().getByType(SourceSetContainer.class);
             SourceSet main = sourceSets.getByName(SourceSet.MAIN_SOURCE_SET_NAME);
+            FileCollection classesDirs = main.getOutput().getClassesDirs();
 
             TaskProvider<KolobokTransformTask> transformTask = project.getTasks().register(
                     "kolobokTransform",
                     KolobokTransformTask.class,
-                    task -> task.getClassesDirs().from(main.getOutput().getClassesDirs())
+                    task -> {
+                        task.getClassesDirs().from(classesDirs);
+                        task.getClasspath().from(main.getCompileClasspath());
+                        task.getOutputDirectory().set(
+                                project.getLayout().getBuildDirectory().dir("kolobok/classes/" + main.getName()));
+                        task.getDebugLogDefaults().set(debugLogDefaults);
+                        task.getSkip().set(skip.orElse(false));
+                        task.getParallelism().set(project.getProviders().gradleProperty("kolobok.parallelism")
+                                .map(value -> Integer.parseInt(value.trim()))
+                                .orElse(project.provider(extension::getParallelism)));
+                        task.getIncremental().set(project.provider(extension::isIncremental));
+                    }
             );
+            Provider<Directory> transformedClasses = transformTask.flatMap(KolobokTransformTask::getOutputDirectory);
+
+            // transformed classes stand in for the compiled ones at runtime; compilation still sees the originals
+            for (String name : new String[]{SourceSet.MAIN_SOURCE_SET_NAME, SourceSet.TEST_SOURCE_SET_NAME}) {
+                SourceSet sourceSet = sourceSets.findByName(name);
+                if (sourceSet != null) {
+                    FileCollection runtimeClasspath = sourceSet.getRuntimeClasspath();
+                    sourceSet.setRuntimeClasspath(project.files(transformedClasses)
+                            .plus(runtimeClasspath.minus(classesDirs)));
+                }
+            }
+            project.getTasks().named(JavaPlugin.JAR_TASK_NAME, Jar.class).configure(jar -> {
+                jar.exclude(new WithinDirectories(classesDirs));
+                jar.from(transformedClasses);
+            });
+            project.getTasks().named(JavaPlugin.CLASSES_TASK_NAME).configure(task -> task.dependsOn(transformTask));
 
-            project.getTasks().named("classes").configure(task -> task.finalizedBy(transformTask));
+            project.getPlugins().withId("org.springframework.boot", boot -> {
+                TaskProvider<AbstractArchiveTask> bootJar =
+                        project.getTasks().named("bootJar", AbstractArchiveTask.class);
+                TaskProvider<KolobokJarTransformTask> jarTask = project.getTasks().register(
+                        "kolobokBootJar",
+                        KolobokJarTransformTask.class,
+                        task -> {
+                            task.getJarFile().set(bootJar.flatMap(AbstractArchiveTask::getArchiveFile));
+                            task.getOutputFile().set(project.getLayout().getBuildDirectory().dir("kolobok/libs")
+                                    .flatMap(dir -> dir.file(bootJar.flatMap(AbstractArchiveTask::getArchiveFileName))));
+                            task.getClasspath().from(main.getRuntimeClasspath());
+                            task.getLibraries().set(project.provider(extension::getLibraries));
+                            task.getDebugLogDefaults().set(debugLogDefaults);
+                            task.getSkip().set(skip.orElse(false));
+                        }
+                );
+                bootJar.configure(task -> task.finalizedBy(jarTask));
+            });
         });
     }
+
+    /**
+     * Matches files copied from the original classes directories, so the jar takes the transformed ones instead.
+     */
+    private static final class WithinDirectories implements Spec<FileTreeElement> {
+        private final FileCollection directories;
+        private transient Set<File> resolved;
+
+        private WithinDirectories(FileCollection directories) {
+            this.directories = directories;
+        }
+
+        @Override
+        public boolean isSatisfiedBy(FileTreeElement element) {
+            if (resolved == null) {
+                resolved = directories.getFiles();
+            }
+            for (File parent = element.getFile().getParentFile(); parent != null; parent = parent.getParentFile()) {
+                if (resolved.contains(parent)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
 }
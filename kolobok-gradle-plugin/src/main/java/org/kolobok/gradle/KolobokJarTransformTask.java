@@ -0,0 +1,103 @@
+package org.kolobok.gradle;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.work.DisableCachingByDefault;
+import org.kolobok.transformer.DebugLogDefaults;
+import org.kolobok.transformer.JarTransformer;
+import org.kolobok.transformer.KolobokTransformer;
+import org.kolobok.transformer.TransformStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams a packaged jar, such as the Spring Boot {@code bootJar}, through the transformer into {@link #getOutputFile()}.
+ */
+@DisableCachingByDefault(because = "Rewriting a jar is cheaper than storing and fetching it")
+public abstract class KolobokJarTransformTask extends DefaultTask {
+
+    private final RegularFileProperty jarFile = getProject().getObjects().fileProperty();
+    private final RegularFileProperty outputFile = getProject().getObjects().fileProperty();
+    private final ConfigurableFileCollection classpath = getProject().files();
+    private final ListProperty<String> libraries = getProject().getObjects().listProperty(String.class);
+    private final Property<DebugLogDefaults> debugLogDefaults =
+            getProject().getObjects().property(DebugLogDefaults.class);
+    private final Property<Boolean> skip = getProject().getObjects().property(Boolean.class).convention(false);
+
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    public RegularFileProperty getJarFile() {
+        return jarFile;
+    }
+
+    @OutputFile
+    public RegularFileProperty getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Runtime classpath used to resolve class hierarchies for stack map frames without loading classes.
+     */
+    @Classpath
+    public ConfigurableFileCollection getClasspath() {
+        return classpath;
+    }
+
+    /**
+     * File name patterns of nested jars to instrument as well, e.g. {@code acme-*.jar}.
+     */
+    @Input
+    public ListProperty<String> getLibraries() {
+        return libraries;
+    }
+
+    @Input
+    public Property<DebugLogDefaults> getDebugLogDefaults() {
+        return debugLogDefaults;
+    }
+
+    /**
+     * Copies the jar untransformed.
+     */
+    @Input
+    public Property<Boolean> getSkip() {
+        return skip;
+    }
+
+    @TaskAction
+    public void transform() throws IOException {
+        Path input = jarFile.get().getAsFile().toPath();
+        Path output = outputFile.get().getAsFile().toPath();
+        if (skip.get()) {
+            getLogger().lifecycle("Kolobok jar transform skipped");
+            Files.copy(input, output, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        KolobokTransformer transformer = new KolobokTransformer(debugLogDefaults.get());
+        List<Path> classpathEntries = new ArrayList<>();
+        for (File entry : classpath) {
+            classpathEntries.add(entry.toPath());
+        }
+        transformer.setClasspath(classpathEntries);
+        JarTransformer jarTransformer = new JarTransformer(transformer);
+        jarTransformer.setLibraries(libraries.get());
+        TransformStats stats = jarTransformer.transform(input, output);
+        getLogger().info("Kolobok {}: {}", output.getFileName(), stats);
+    }
+}
@@ -2,38 +2,192 @@ package org.kolobok.gradle;
 
 import org.gradle.api.DefaultTask;
 import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileType;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.CompileClasspath;
+import org.gradle.api.tasks.IgnoreEmptyDirectories;
+import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
+import org.gradle.work.ChangeType;
+import org.gradle.work.FileChange;
+import org.gradle.work.Incremental;
+import org.gradle.work.InputChanges;
+import org.kolobok.transformer.ClassEntry;
 import org.kolobok.transformer.DebugLogDefaults;
 import org.kolobok.transformer.KolobokTransformer;
+import org.kolobok.transformer.TransformStats;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
 
+/**
+ * Reads the compiled classes and writes transformed copies to {@link #getOutputDirectory()}, which replaces the
+ * classes directories on the runtime classpath. Only class files that changed since the last run are transformed
+ * again, unless an input other than the classes changed.
+ */
+@CacheableTask
 public abstract class KolobokTransformTask extends DefaultTask {
 
     private final ConfigurableFileCollection classesDirs = getProject().files();
+    private final ConfigurableFileCollection classpath = getProject().files();
+    private final DirectoryProperty outputDirectory = getProject().getObjects().directoryProperty();
+    private final Property<DebugLogDefaults> debugLogDefaults =
+            getProject().getObjects().property(DebugLogDefaults.class);
+    private final Property<Boolean> skip = getProject().getObjects().property(Boolean.class).convention(false);
+    private final Property<Integer> parallelism = getProject().getObjects().property(Integer.class).convention(1);
+    private final Property<Boolean> incremental = getProject().getObjects().property(Boolean.class).convention(true);
 
+    @Incremental
     @InputFiles
+    @IgnoreEmptyDirectories
+    @PathSensitive(PathSensitivity.RELATIVE)
     public ConfigurableFileCollection getClassesDirs() {
         return classesDirs;
     }
 
+    /**
+     * Compile classpath used to resolve class hierarchies for stack map frames without loading project classes.
+     */
+    @CompileClasspath
+    public ConfigurableFileCollection getClasspath() {
+        return classpath;
+    }
+
+    @OutputDirectory
+    public DirectoryProperty getOutputDirectory() {
+        return outputDirectory;
+    }
+
+    /**
+     * Effective defaults, including {@code kolobok.debuglog.*} system properties and {@code KLB_DEBUGLOG_*}
+     * environment variables.
+     */
+    @Input
+    public Property<DebugLogDefaults> getDebugLogDefaults() {
+        return debugLogDefaults;
+    }
+
+    /**
+     * Copies the classes untransformed.
+     */
+    @Input
+    public Property<Boolean> getSkip() {
+        return skip;
+    }
+
+    /**
+     * Output does not depend on the thread count, so it is not an input.
+     */
+    @Internal
+    public Property<Integer> getParallelism() {
+        return parallelism;
+    }
+
+    @Internal
+    public Property<Boolean> getIncremental() {
+        return incremental;
+    }
+
     @TaskAction
-    public void transform() throws IOException {
-        Object skipProp = getProject().findProperty("kolobok.skip");
-        if (skipProp != null && Boolean.parseBoolean(skipProp.toString())) {
+    public void transform(InputChanges inputChanges) throws IOException {
+        Path output = outputDirectory.get().getAsFile().toPath();
+        if (skip.get()) {
             getLogger().lifecycle("Kolobok transform skipped");
+            copyAll(output);
             return;
         }
-        DebugLogDefaults defaults = DebugLogDefaults.fromSystemEnv();
-        KolobokExtension extension = getProject().getExtensions().findByType(KolobokExtension.class);
-        if (extension != null) {
-            defaults = defaults.merge(extension.getDebugLogDefaults().toDefaults());
+        KolobokTransformer transformer = new KolobokTransformer(debugLogDefaults.get());
+        transformer.setParallelism(parallelism.get());
+        // sibling output directories (e.g. Java and Kotlin) may reference each other
+        List<Path> classpathEntries = new ArrayList<>();
+        for (File dir : classesDirs) {
+            classpathEntries.add(dir.toPath());
+        }
+        for (File entry : classpath) {
+            classpathEntries.add(entry.toPath());
+        }
+        transformer.setClasspath(classpathEntries);
+
+        TransformStats stats;
+        if (incremental.get() && inputChanges.isIncremental()) {
+            stats = transformChanges(transformer, inputChanges, output);
+        } else {
+            copyAll(output);
+            stats = transformer.transformDirectory(output);
         }
-        KolobokTransformer transformer = new KolobokTransformer(defaults);
+        getLogger().info("Kolobok {}: {}", output, stats);
+    }
+
+    private TransformStats transformChanges(KolobokTransformer transformer, InputChanges inputChanges, Path output)
+            throws IOException {
+        List<ClassEntry> classes = new ArrayList<>();
+        for (FileChange change : inputChanges.getFileChanges(classesDirs)) {
+            Path target = output.resolve(change.getNormalizedPath());
+            if (change.getChangeType() == ChangeType.REMOVED) {
+                deleteRecursively(target);
+            } else if (change.getFileType() == FileType.FILE) {
+                if (change.getNormalizedPath().endsWith(".class")) {
+                    classes.add(new ClassEntry(change.getNormalizedPath(), Files.readAllBytes(change.getFile().toPath())));
+                } else {
+                    Files.createDirectories(target.getParent());
+                    Files.copy(change.getFile().toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        return transformer.transformClasses(classes.iterator(), entry -> {
+            try {
+                Path target = output.resolve(entry.getName());
+                Files.createDirectories(target.getParent());
+                Files.write(target, entry.getBytes());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private void copyAll(Path output) throws IOException {
+        deleteRecursively(output);
+        Files.createDirectories(output);
         for (File dir : classesDirs) {
-            transformer.transformDirectory(dir.toPath());
+            Path source = dir.toPath();
+            if (!Files.isDirectory(source)) {
+                continue;
+            }
+            try (Stream<Path> files = Files.walk(source)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    if (Files.isRegularFile(file)) {
+                        Path target = output.resolve(source.relativize(file).toString());
+                        Files.createDirectories(target.getParent());
+                        Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
         }
     }
 }
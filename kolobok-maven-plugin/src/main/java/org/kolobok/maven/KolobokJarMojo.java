@@ -0,0 +1,84 @@
+package org.kolobok.maven;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.kolobok.transformer.DebugLogDefaults;
+import org.kolobok.transformer.JarTransformer;
+import org.kolobok.transformer.KolobokTransformer;
+import org.kolobok.transformer.TransformStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Transforms a packaged jar, e.g. the output of {@code spring-boot:repackage}; declare it after the Spring Boot plugin
+ * so it runs later in the {@code package} phase.
+ */
+@Mojo(name = "transform-jar", defaultPhase = LifecyclePhase.PACKAGE, threadSafe = true,
+        requiresDependencyResolution = ResolutionScope.RUNTIME)
+public class KolobokJarMojo extends AbstractMojo {
+
+    @Parameter(property = "kolobok.jarFile",
+            defaultValue = "${project.build.directory}/${project.build.finalName}.jar", required = true)
+    private File jarFile;
+
+    /**
+     * Where to write the transformed jar; defaults to replacing {@link #jarFile}.
+     */
+    @Parameter(property = "kolobok.outputFile")
+    private File outputFile;
+
+    /**
+     * File name patterns of nested jars to instrument as well, e.g. {@code acme-*.jar}.
+     */
+    @Parameter
+    private List<String> libraries;
+
+    @Parameter(property = "kolobok.skip", defaultValue = "false")
+    private boolean skip;
+
+    /**
+     * Used to resolve class hierarchies for stack map frames without loading classes.
+     */
+    @Parameter(defaultValue = "${project.runtimeClasspathElements}", readonly = true)
+    private List<String> classpathElements;
+
+    @Parameter
+    private KolobokMavenMojo.DebugLogDefaultsConfig debugLogDefaults;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("Kolobok jar transform skipped");
+            return;
+        }
+        if (!jarFile.isFile()) {
+            getLog().info("Kolobok jar " + jarFile + " not found, skipping");
+            return;
+        }
+        try {
+            DebugLogDefaults defaults = DebugLogDefaults.fromSystemEnv();
+            if (debugLogDefaults != null) {
+                defaults = defaults.merge(debugLogDefaults.toDefaults());
+            }
+            KolobokTransformer transformer = new KolobokTransformer(defaults);
+            if (classpathElements != null) {
+                transformer.setClasspath(classpathElements.stream().map(Path::of).collect(Collectors.toList()));
+            }
+            JarTransformer jarTransformer = new JarTransformer(transformer);
+            jarTransformer.setLibraries(libraries);
+            File target = outputFile != null ? outputFile : jarFile;
+            TransformStats stats = jarTransformer.transform(jarFile.toPath(), target.toPath());
+            getLog().info("Kolobok " + target.getName() + ": " + stats);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to transform " + jarFile, e);
+        }
+    }
+}
@@ -5,14 +5,19 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
 import org.kolobok.annotation.DebugLog;
 import org.kolobok.transformer.DebugLogDefaults;
 import org.kolobok.transformer.KolobokTransformer;
+import org.kolobok.transformer.TransformStats;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
 
-@Mojo(name = "transform", defaultPhase = LifecyclePhase.PROCESS_CLASSES, threadSafe = true)
+@Mojo(name = "transform", defaultPhase = LifecyclePhase.PROCESS_CLASSES, threadSafe = true,
+        requiresDependencyResolution = ResolutionScope.COMPILE)
 public class KolobokMavenMojo extends AbstractMojo {
 
     @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
@@ -21,6 +26,27 @@ public class KolobokMavenMojo extends AbstractMojo {
     @Parameter(property = "kolobok.skip", defaultValue = "false")
     private boolean skip;
 
+    /**
+     * Class files transformed concurrently; 0 uses all available processors.
+     */
+    @Parameter(property = "kolobok.parallelism", defaultValue = "1")
+    private int parallelism;
+
+    /**
+     * Skip class files that are unchanged since the last run, using a manifest in {@link #manifestDirectory}.
+     */
+    @Parameter(property = "kolobok.incremental", defaultValue = "true")
+    private boolean incremental;
+
+    @Parameter(defaultValue = "${project.build.directory}/kolobok")
+    private String manifestDirectory;
+
+    /**
+     * Used to resolve class hierarchies for stack map frames without loading project classes.
+     */
+    @Parameter(defaultValue = "${project.compileClasspathElements}", readonly = true)
+    private List<String> classpathElements;
+
     @Parameter
     private DebugLogDefaultsConfig debugLogDefaults;
 
@@ -40,7 +66,15 @@ public class KolobokMavenMojo extends AbstractMojo {
                 defaults = defaults.merge(debugLogDefaults.toDefaults());
             }
             KolobokTransformer transformer = new KolobokTransformer(defaults);
-            transformer.transformDirectory(Path.of(classesDirectory));
+            transformer.setParallelism(parallelism);
+            if (incremental) {
+                transformer.setManifestDirectory(Path.of(manifestDirectory));
+            }
+            if (classpathElements != null) {
+                transformer.setClasspath(classpathElements.stream().map(Path::of).collect(Collectors.toList()));
+            }
+            TransformStats stats = transformer.transformDirectory(Path.of(classesDirectory));
+            getLog().info("Kolobok: " + stats);
         } catch (IOException e) {
             throw new MojoExecutionException("Failed to transform classes in " + classesDirectory, e);
         }
@@ -85,8 +119,20 @@ public class KolobokMavenMojo extends AbstractMojo {
         private Boolean logLocals;
         @Parameter
         private Boolean logLocalsOnException;
+        @Parameter
+        private Boolean logAllocatedBytes;
+        @Parameter
+        private Boolean logCpuTime;
+        @Parameter
+        private Boolean logContention;
+        @Parameter
+        private Boolean logArgSizes;
+        @Parameter
+        private String traceSink;
+        @Parameter
+        private String traceIdFormat;
 
-        private DebugLogDefaults toDefaults() {
+        DebugLogDefaults toDefaults() {
             DebugLogDefaults defaults = new DebugLogDefaults();
             defaults.setLineHeatMap(lineHeatMap);
             defaults.setLineHeatMapOnException(lineHeatMapOnException);
@@ -111,6 +157,16 @@ public class KolobokMavenMojo extends AbstractMojo {
             defaults.setSlowThresholdMs(slowThresholdMs);
             defaults.setLogLocals(logLocals);
             defaults.setLogLocalsOnException(logLocalsOnException);
+            defaults.setLogAllocatedBytes(logAllocatedBytes);
+            defaults.setLogCpuTime(logCpuTime);
+            defaults.setLogContention(logContention);
+            defaults.setLogArgSizes(logArgSizes);
+            if (traceSink != null) {
+                defaults.setTraceSink(parseEnum(DebugLog.TraceSink.class, traceSink));
+            }
+            if (traceIdFormat != null) {
+                defaults.setTraceIdFormat(parseEnum(DebugLog.TraceIdFormat.class, traceIdFormat));
+            }
             return defaults;
         }
 
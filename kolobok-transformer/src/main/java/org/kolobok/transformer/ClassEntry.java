@@ -0,0 +1,27 @@
+package org.kolobok.transformer;
+
+/**
+ * A class file held in memory, as passed through {@link KolobokTransformer#transformClasses}.
+ */
+public final class ClassEntry {
+    private final String name;
+    private final byte[] bytes;
+
+    /**
+     * @param name  any identifier the caller needs to route the result, e.g. a jar entry name or an internal class
+     *              name; the transformer only uses it in error messages
+     * @param bytes the class file; not copied
+     */
+    public ClassEntry(String name, byte[] bytes) {
+        this.name = name;
+        this.bytes = bytes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,324 @@
+package org.kolobok.transformer;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Answers {@code getCommonSuperClass} for frame computation from class file headers on a classpath (directories and
+ * jars) and the JDK, without loading any class. Headers read from the JDK and from the most recently used jars are
+ * cached for the lifetime of the JVM, so a Maven or Gradle daemon parses each dependency class about once across
+ * builds; a jar is re-read when its size or modification time changes.
+ */
+public final class ClassHierarchy implements Closeable {
+    private static final String OBJECT = "java/lang/Object";
+    // a long-lived daemon sees every jar of every build it runs, so only the least recently used are dropped
+    private static final int MAX_CACHED_JARS = 1024;
+    private static final Map<Path, JarHeaders> JAR_CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<Path, JarHeaders>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Path, JarHeaders> eldest) {
+                    return size() > MAX_CACHED_JARS;
+                }
+            });
+    private static final Map<String, Optional<ClassInfo>> JDK_CACHE = new ConcurrentHashMap<>();
+
+    private final List<Source> sources = new ArrayList<>();
+    private final Map<String, Optional<ClassInfo>> resolved = new ConcurrentHashMap<>();
+
+    public ClassHierarchy(List<Path> classpath) throws IOException {
+        for (Path entry : classpath) {
+            if (Files.isDirectory(entry)) {
+                sources.add(new DirectorySource(entry));
+            } else if (Files.isRegularFile(entry)) {
+                sources.add(new JarSource(entry));
+            }
+        }
+    }
+
+    /**
+     * Looks types up in {@code first} before the classpath.
+     */
+    ClassHierarchy(Source first, List<Path> classpath) throws IOException {
+        sources.add(first);
+        sources.addAll(new ClassHierarchy(classpath).sources);
+    }
+
+    /**
+     * Resolves types from class file resources of {@code loader} and its parents, as a Java agent must for a class
+     * that {@code loader} is about to define. A {@code null} loader resolves JDK types only.
+     */
+    public ClassHierarchy(ClassLoader loader) {
+        if (loader != null) {
+            sources.add(new LoaderSource(loader));
+        }
+    }
+
+    /**
+     * Same contract as {@link org.objectweb.asm.ClassWriter#getCommonSuperClass}.
+     *
+     * @throws TypeNotPresentException when a type is neither on the classpath nor in the JDK
+     */
+    public String getCommonSuperClass(String type1, String type2) {
+        if (type1.equals(type2)) {
+            return type1;
+        }
+        ClassInfo info1 = require(type1);
+        ClassInfo info2 = require(type2);
+        if (isAssignableFrom(type1, type2)) {
+            return type1;
+        }
+        if (isAssignableFrom(type2, type1)) {
+            return type2;
+        }
+        if (info1.isInterface() || info2.isInterface()) {
+            return OBJECT;
+        }
+        String current = info1.superName;
+        while (current != null && !isAssignableFrom(current, type2)) {
+            current = require(current).superName;
+        }
+        return current == null ? OBJECT : current;
+    }
+
+    /**
+     * Header of {@code internalName}, or {@code null} when it cannot be found.
+     */
+    public ClassInfo find(String internalName) {
+        return resolved.computeIfAbsent(internalName, this::lookup).orElse(null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Source source : sources) {
+            source.close();
+        }
+    }
+
+    private boolean isAssignableFrom(String target, String type) {
+        if (OBJECT.equals(target)) {
+            return true;
+        }
+        Deque<String> pending = new ArrayDeque<>();
+        Set<String> seen = new HashSet<>();
+        pending.add(type);
+        while (!pending.isEmpty()) {
+            String current = pending.poll();
+            if (current.equals(target)) {
+                return true;
+            }
+            if (!seen.add(current)) {
+                continue;
+            }
+            ClassInfo info = require(current);
+            if (info.superName != null) {
+                pending.add(info.superName);
+            }
+            Collections.addAll(pending, info.interfaces);
+        }
+        return false;
+    }
+
+    private ClassInfo require(String internalName) {
+        ClassInfo info = find(internalName);
+        if (info == null) {
+            throw new TypeNotPresentException(internalName.replace('/', '.'), null);
+        }
+        return info;
+    }
+
+    private Optional<ClassInfo> lookup(String internalName) {
+        String resource = internalName + ".class";
+        for (Source source : sources) {
+            try {
+                ClassInfo info = source.find(internalName, resource);
+                if (info != null) {
+                    return Optional.of(info);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read " + resource + " from " + source, e);
+            }
+        }
+        return JDK_CACHE.computeIfAbsent(internalName, name -> {
+            try (InputStream in = ClassLoader.getPlatformClassLoader().getResourceAsStream(resource)) {
+                return in == null ? Optional.empty() : Optional.of(ClassInfo.read(in.readAllBytes()));
+            } catch (IOException e) {
+                return Optional.empty();
+            }
+        });
+    }
+
+    /**
+     * Superclass, interfaces and access flags of a class.
+     */
+    public static final class ClassInfo {
+        private final String superName;
+        private final String[] interfaces;
+        private final int access;
+
+        private ClassInfo(String superName, String[] interfaces, int access) {
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.access = access;
+        }
+
+        static ClassInfo read(byte[] classBytes) {
+            // the constructor only indexes the constant pool; the header follows it
+            ClassReader reader = new ClassReader(classBytes);
+            return new ClassInfo(reader.getSuperName(), reader.getInterfaces(), reader.getAccess());
+        }
+
+        public String getSuperName() {
+            return superName;
+        }
+
+        public String[] getInterfaces() {
+            return interfaces.clone();
+        }
+
+        public boolean isInterface() {
+            return (access & Opcodes.ACC_INTERFACE) != 0;
+        }
+    }
+
+    interface Source extends Closeable {
+        /**
+         * @return the header of {@code resource}, or {@code null} when this source does not contain it
+         */
+        ClassInfo find(String internalName, String resource) throws IOException;
+    }
+
+    private static final class DirectorySource implements Source {
+        private final Path directory;
+
+        private DirectorySource(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public ClassInfo find(String internalName, String resource) throws IOException {
+            try {
+                return ClassInfo.read(Files.readAllBytes(directory.resolve(resource)));
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return directory.toString();
+        }
+    }
+
+    private static final class LoaderSource implements Source {
+        private final ClassLoader loader;
+
+        private LoaderSource(ClassLoader loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public ClassInfo find(String internalName, String resource) throws IOException {
+            try (InputStream in = loader.getResourceAsStream(resource)) {
+                return in == null ? null : ClassInfo.read(in.readAllBytes());
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return loader.toString();
+        }
+    }
+
+    private static final class JarSource implements Source {
+        private final Path jar;
+        private final JarHeaders headers;
+        private ZipFile zip;
+
+        private JarSource(Path jar) throws IOException {
+            this.jar = jar.toAbsolutePath().normalize();
+            BasicFileAttributes attributes = Files.readAttributes(this.jar, BasicFileAttributes.class);
+            this.headers = JAR_CACHE.compute(this.jar, (path, cached) ->
+                    cached != null && cached.matches(attributes) ? cached : new JarHeaders(attributes));
+        }
+
+        @Override
+        public ClassInfo find(String internalName, String resource) throws IOException {
+            Optional<ClassInfo> cached = headers.infos.get(internalName);
+            if (cached == null) {
+                cached = Optional.ofNullable(read(resource));
+                headers.infos.put(internalName, cached);
+            }
+            return cached.orElse(null);
+        }
+
+        private synchronized ClassInfo read(String resource) throws IOException {
+            if (zip == null) {
+                zip = new ZipFile(jar.toFile());
+            }
+            ZipEntry entry = zip.getEntry(resource);
+            if (entry == null) {
+                return null;
+            }
+            try (InputStream in = zip.getInputStream(entry)) {
+                return ClassInfo.read(in.readAllBytes());
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (zip != null) {
+                zip.close();
+                zip = null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return jar.toString();
+        }
+    }
+
+    private static final class JarHeaders {
+        private final long size;
+        private final long modified;
+        private final Map<String, Optional<ClassInfo>> infos = new ConcurrentHashMap<>();
+
+        private JarHeaders(BasicFileAttributes attributes) {
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+        }
+
+        private boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && modified == attributes.lastModifiedTime().toMillis();
+        }
+    }
+}
@@ -2,9 +2,19 @@ package org.kolobok.transformer;
 
 import org.kolobok.annotation.DebugLog;
 
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Locale;
 
-public final class DebugLogDefaults {
+/**
+ * Serializable so build tools can track the effective defaults as a task input.
+ */
+public final class DebugLogDefaults implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     public static final boolean DEFAULT_LINE_HEAT_MAP = false;
     public static final boolean DEFAULT_LINE_HEAT_MAP_ON_EXCEPTION = false;
     public static final boolean DEFAULT_SUB_HEAT_MAP = false;
@@ -24,6 +34,12 @@ public final class DebugLogDefaults {
     public static final long DEFAULT_SLOW_THRESHOLD_MS = 0L;
     public static final boolean DEFAULT_LOG_LOCALS = false;
     public static final boolean DEFAULT_LOG_LOCALS_ON_EXCEPTION = false;
+    public static final boolean DEFAULT_LOG_ALLOCATED_BYTES = false;
+    public static final boolean DEFAULT_LOG_CPU_TIME = false;
+    public static final boolean DEFAULT_LOG_CONTENTION = false;
+    public static final boolean DEFAULT_LOG_ARG_SIZES = false;
+    public static final DebugLog.TraceSink DEFAULT_TRACE_SINK = DebugLog.TraceSink.SLF4J;
+    public static final DebugLog.TraceIdFormat DEFAULT_TRACE_ID_FORMAT = DebugLog.TraceIdFormat.UUID;
 
     private Boolean lineHeatMap;
     private Boolean lineHeatMapOnException;
@@ -44,6 +60,12 @@ public final class DebugLogDefaults {
     private Long slowThresholdMs;
     private Boolean logLocals;
     private Boolean logLocalsOnException;
+    private Boolean logAllocatedBytes;
+    private Boolean logCpuTime;
+    private Boolean logContention;
+    private Boolean logArgSizes;
+    private DebugLog.TraceSink traceSink;
+    private DebugLog.TraceIdFormat traceIdFormat;
 
     public static DebugLogDefaults fromSystemEnv() {
         DebugLogDefaults defaults = new DebugLogDefaults();
@@ -68,6 +90,12 @@ public final class DebugLogDefaults {
         defaults.logLocals = readBoolean("kolobok.debuglog.logLocals", "KLB_DEBUGLOG_LOG_LOCALS");
         defaults.logLocalsOnException = readBoolean("kolobok.debuglog.logLocalsOnException",
                 "KLB_DEBUGLOG_LOG_LOCALS_ON_EXCEPTION");
+        defaults.logAllocatedBytes = readBoolean("kolobok.debuglog.logAllocatedBytes", "KLB_DEBUGLOG_LOG_ALLOCATED_BYTES");
+        defaults.logCpuTime = readBoolean("kolobok.debuglog.logCpuTime", "KLB_DEBUGLOG_LOG_CPU_TIME");
+        defaults.logContention = readBoolean("kolobok.debuglog.logContention", "KLB_DEBUGLOG_LOG_CONTENTION");
+        defaults.logArgSizes = readBoolean("kolobok.debuglog.logArgSizes", "KLB_DEBUGLOG_LOG_ARG_SIZES");
+        defaults.traceSink = readEnum(DebugLog.TraceSink.class, "kolobok.debuglog.traceSink", "KLB_DEBUGLOG_TRACE_SINK");
+        defaults.traceIdFormat = readEnum(DebugLog.TraceIdFormat.class, "kolobok.debuglog.traceIdFormat", "KLB_DEBUGLOG_TRACE_ID_FORMAT");
         return defaults;
     }
 
@@ -95,9 +123,35 @@ public final class DebugLogDefaults {
         merged.slowThresholdMs = overrides.slowThresholdMs != null ? overrides.slowThresholdMs : slowThresholdMs;
         merged.logLocals = overrides.logLocals != null ? overrides.logLocals : logLocals;
         merged.logLocalsOnException = overrides.logLocalsOnException != null ? overrides.logLocalsOnException : logLocalsOnException;
+        merged.logAllocatedBytes = overrides.logAllocatedBytes != null ? overrides.logAllocatedBytes : logAllocatedBytes;
+        merged.logCpuTime = overrides.logCpuTime != null ? overrides.logCpuTime : logCpuTime;
+        merged.logContention = overrides.logContention != null ? overrides.logContention : logContention;
+        merged.logArgSizes = overrides.logArgSizes != null ? overrides.logArgSizes : logArgSizes;
+        merged.traceSink = overrides.traceSink != null ? overrides.traceSink : traceSink;
+        merged.traceIdFormat = overrides.traceIdFormat != null ? overrides.traceIdFormat : traceIdFormat;
         return merged;
     }
 
+    /**
+     * Stable description of every configured value, used to detect configuration changes between builds.
+     */
+    String fingerprint() {
+        StringBuilder sb = new StringBuilder();
+        Field[] fields = DebugLogDefaults.class.getDeclaredFields();
+        Arrays.sort(fields, Comparator.comparing(Field::getName));
+        for (Field field : fields) {
+            if (Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+            try {
+                sb.append(field.getName()).append('=').append(field.get(this)).append(';');
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return sb.toString();
+    }
+
     public Boolean getLineHeatMap() {
         return lineHeatMap;
     }
@@ -250,6 +304,54 @@ public final class DebugLogDefaults {
         this.logLocalsOnException = logLocalsOnException;
     }
 
+    public Boolean getLogAllocatedBytes() {
+        return logAllocatedBytes;
+    }
+
+    public void setLogAllocatedBytes(Boolean logAllocatedBytes) {
+        this.logAllocatedBytes = logAllocatedBytes;
+    }
+
+    public Boolean getLogCpuTime() {
+        return logCpuTime;
+    }
+
+    public void setLogCpuTime(Boolean logCpuTime) {
+        this.logCpuTime = logCpuTime;
+    }
+
+    public Boolean getLogContention() {
+        return logContention;
+    }
+
+    public void setLogContention(Boolean logContention) {
+        this.logContention = logContention;
+    }
+
+    public Boolean getLogArgSizes() {
+        return logArgSizes;
+    }
+
+    public void setLogArgSizes(Boolean logArgSizes) {
+        this.logArgSizes = logArgSizes;
+    }
+
+    public DebugLog.TraceSink getTraceSink() {
+        return traceSink;
+    }
+
+    public void setTraceSink(DebugLog.TraceSink traceSink) {
+        this.traceSink = traceSink;
+    }
+
+    public DebugLog.TraceIdFormat getTraceIdFormat() {
+        return traceIdFormat;
+    }
+
+    public void setTraceIdFormat(DebugLog.TraceIdFormat traceIdFormat) {
+        this.traceIdFormat = traceIdFormat;
+    }
+
     private static Boolean readBoolean(String propKey, String envKey) {
         String value = readString(propKey, envKey);
         if (value == null) {
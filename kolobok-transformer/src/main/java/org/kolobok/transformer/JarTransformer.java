@@ -0,0 +1,239 @@
+package org.kolobok.transformer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Transforms the classes of a jar, including Spring Boot jars with {@code BOOT-INF/classes} and
+ * {@code BOOT-INF/lib/*.jar}, by streaming it entry by entry. Entries that need no changes are copied as raw bytes,
+ * without recompression; nested jars stay STORED. Memory use is bounded by the central directory and the largest
+ * transformed class, not by the size of the jar.
+ */
+public class JarTransformer {
+    private static final String[] CLASS_ROOTS = {"BOOT-INF/classes/", "WEB-INF/classes/"};
+    private static final String[] LIBRARY_ROOTS = {"BOOT-INF/lib/", "WEB-INF/lib/"};
+
+    private final KolobokTransformer transformer;
+    private List<String> libraries = Collections.emptyList();
+    private List<Pattern> libraryPatterns = Collections.emptyList();
+
+    public JarTransformer(KolobokTransformer transformer) {
+        this.transformer = transformer;
+    }
+
+    public List<String> getLibraries() {
+        return libraries;
+    }
+
+    /**
+     * File name patterns ({@code *} and {@code ?} wildcards) of nested jars to instrument as well, e.g.
+     * {@code acme-*.jar}. Other nested jars are copied untouched.
+     */
+    public void setLibraries(List<String> libraries) {
+        this.libraries = libraries == null ? Collections.emptyList() : libraries;
+        List<Pattern> patterns = new ArrayList<>();
+        for (String library : this.libraries) {
+            patterns.add(glob(library));
+        }
+        this.libraryPatterns = patterns;
+    }
+
+    /**
+     * Writes the transformed {@code input} to {@code output}, which may be the same file. Classes are resolved for
+     * stack map frames from the jar itself, its STORED nested jars under {@code BOOT-INF/lib} or
+     * {@code WEB-INF/lib}, and the transformer's {@linkplain KolobokTransformer#setClasspath classpath}.
+     */
+    public TransformStats transform(Path input, Path output) throws IOException {
+        TransformStats stats = new TransformStats();
+        Path target = output.toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                transform(ZipArchive.open(in, 0, in.size()), null, out, stats);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return stats;
+    }
+
+    private void transform(ZipArchive archive, ArchiveClasses parent, FileChannel out, TransformStats stats)
+            throws IOException {
+        ArchiveClasses classes = new ArchiveClasses(archive, parent);
+        List<Path> classpath = transformer.getClasspath() == null ? Collections.emptyList()
+                : transformer.getClasspath();
+        ZipArchiveWriter writer = new ZipArchiveWriter(out, archive.offsetShift());
+        try (ClassHierarchy hierarchy = new ClassHierarchy(classes, classpath)) {
+            writer.copyPreamble(archive);
+            for (ZipArchive.Entry entry : archive.entries()) {
+                if (entry.isDirectory()) {
+                    writer.copy(archive, entry);
+                } else if (entry.name().endsWith(".class")) {
+                    byte[] transformed = transformer.transform(entry.name(), archive.readContent(entry), hierarchy,
+                            stats);
+                    if (transformed == null) {
+                        writer.copy(archive, entry);
+                    } else {
+                        writer.write(entry, transformed);
+                    }
+                } else if (isSelectedLibrary(entry)) {
+                    transformLibrary(archive, entry, classes, writer, stats);
+                } else {
+                    writer.copy(archive, entry);
+                }
+            }
+        }
+        writer.finish(archive.comment());
+    }
+
+    private void transformLibrary(ZipArchive archive, ZipArchive.Entry entry, ArchiveClasses classes,
+                                  ZipArchiveWriter writer, TransformStats stats) throws IOException {
+        if (entry.method() != ZipArchive.STORED) {
+            throw new IOException("Nested jar " + entry.name() + " must be STORED to be instrumented");
+        }
+        ZipArchive library = ZipArchive.open(archive.channel(), archive.dataPosition(entry), entry.size());
+        Path temp = Files.createTempFile("kolobok-", ".jar");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            TransformStats libraryStats = new TransformStats();
+            transform(library, classes, out, libraryStats);
+            stats.add(libraryStats);
+            if (libraryStats.getTransformedCount() == 0) {
+                writer.copy(archive, entry);
+            } else {
+                writer.writeStored(entry, out);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private boolean isSelectedLibrary(ZipArchive.Entry entry) {
+        if (!entry.name().endsWith(".jar")) {
+            return false;
+        }
+        String fileName = entry.name().substring(entry.name().lastIndexOf('/') + 1);
+        for (Pattern pattern : libraryPatterns) {
+            if (pattern.matcher(fileName).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Pattern glob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (String literal : glob.split("((?<=[*?])|(?=[*?]))")) {
+            if (literal.equals("*")) {
+                regex.append(".*");
+            } else if (literal.equals("?")) {
+                regex.append('.');
+            } else if (!literal.isEmpty()) {
+                regex.append(Pattern.quote(literal));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Class headers of one archive level, of its enclosing archive and, for the outermost archive, of its nested
+     * library jars, for frame computation. Libraries are indexed on the first class not found otherwise.
+     */
+    private static final class ArchiveClasses implements ClassHierarchy.Source {
+        private final ZipArchive archive;
+        private final ArchiveClasses parent;
+        private final Map<String, ZipArchive.Entry> entries = new HashMap<>();
+        private Map<String, ArchiveClasses> libraryClasses;
+
+        private ArchiveClasses(ZipArchive archive, ArchiveClasses parent) {
+            this.archive = archive;
+            this.parent = parent;
+            for (ZipArchive.Entry entry : archive.entries()) {
+                String name = entry.name();
+                if (!name.endsWith(".class") || name.startsWith("META-INF/")) {
+                    continue;
+                }
+                for (String root : CLASS_ROOTS) {
+                    if (name.startsWith(root)) {
+                        name = name.substring(root.length());
+                        break;
+                    }
+                }
+                entries.putIfAbsent(name, entry);
+            }
+        }
+
+        @Override
+        public ClassHierarchy.ClassInfo find(String internalName, String resource) throws IOException {
+            ZipArchive.Entry entry = entries.get(resource);
+            if (entry != null) {
+                return ClassHierarchy.ClassInfo.read(archive.readContent(entry));
+            }
+            if (parent != null) {
+                return parent.find(internalName, resource);
+            }
+            ArchiveClasses library = libraryClasses().get(resource);
+            return library == null ? null : library.find(internalName, resource);
+        }
+
+        // first jar wins, as on the launcher's classpath; compressed nested jars cannot be read in place
+        private synchronized Map<String, ArchiveClasses> libraryClasses() {
+            if (libraryClasses == null) {
+                Map<String, ArchiveClasses> classes = new HashMap<>();
+                for (ZipArchive.Entry entry : archive.entries()) {
+                    if (!isLibrary(entry.name()) || entry.method() != ZipArchive.STORED) {
+                        continue;
+                    }
+                    ArchiveClasses library;
+                    try {
+                        library = new ArchiveClasses(
+                                ZipArchive.open(archive.channel(), archive.dataPosition(entry), entry.size()), null);
+                    } catch (IOException e) {
+                        // not a readable jar; its classes must come from the classpath
+                        continue;
+                    }
+                    library.libraryClasses = Collections.emptyMap();
+                    for (String name : library.entries.keySet()) {
+                        classes.putIfAbsent(name, library);
+                    }
+                }
+                libraryClasses = classes;
+            }
+            return libraryClasses;
+        }
+
+        private static boolean isLibrary(String name) {
+            if (!name.endsWith(".jar")) {
+                return false;
+            }
+            for (String root : LIBRARY_ROOTS) {
+                if (name.startsWith(root) && name.indexOf('/', root.length()) < 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return "jar entries";
+        }
+    }
+}
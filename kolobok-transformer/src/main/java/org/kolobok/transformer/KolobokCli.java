@@ -0,0 +1,69 @@
+package org.kolobok.transformer;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line entry point for {@link JarTransformer}:
+ * <pre>
+ * java -Dkolobok.debuglog.logLevel=INFO -jar kolobok-agent.jar app.jar [out.jar] [--libraries=acme-*.jar;other.jar]
+ *      [--classpath=lib/a.jar:lib/b.jar]
+ * </pre>
+ * {@code DebugLog} defaults come from {@code kolobok.debuglog.*} system properties and {@code KLB_DEBUGLOG_*}
+ * environment variables, as for the build plugins.
+ */
+public final class KolobokCli {
+    private static final String USAGE = "Usage: <input.jar> [<output.jar>] [--libraries=<pattern>;...] "
+            + "[--classpath=<entries>]";
+
+    private KolobokCli() {
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    static int run(String[] args) {
+        List<String> files = new ArrayList<>();
+        List<String> libraries = new ArrayList<>();
+        List<Path> classpath = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--libraries=")) {
+                libraries.addAll(Arrays.asList(arg.substring("--libraries=".length()).split(";")));
+            } else if (arg.startsWith("--classpath=")) {
+                for (String entry : arg.substring("--classpath=".length()).split(File.pathSeparator)) {
+                    if (!entry.isEmpty()) {
+                        classpath.add(Paths.get(entry));
+                    }
+                }
+            } else if (arg.startsWith("--") || files.size() == 2) {
+                System.err.println(USAGE);
+                return 2;
+            } else {
+                files.add(arg);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println(USAGE);
+            return 2;
+        }
+        Path input = Paths.get(files.get(0));
+        Path output = files.size() > 1 ? Paths.get(files.get(1)) : input;
+        try {
+            KolobokTransformer transformer = new KolobokTransformer(DebugLogDefaults.fromSystemEnv());
+            transformer.setClasspath(classpath);
+            JarTransformer jarTransformer = new JarTransformer(transformer);
+            jarTransformer.setLibraries(libraries);
+            TransformStats stats = jarTransformer.transform(input, output);
+            System.out.println("Kolobok " + output + ": " + stats);
+            return 0;
+        } catch (Exception e) {
+            System.err.println("Kolobok failed to transform " + input + ": " + e);
+            return 1;
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package org.kolobok.transformer;
 
+import org.kolobok.annotation.DebugLog;
+import org.kolobok.runtime.BinaryTraceFormat;
+import org.kolobok.runtime.JsonEscaper;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.GeneratorAdapter;
@@ -34,16 +39,27 @@ import org.objectweb.asm.tree.analysis.Frame;
 import org.objectweb.asm.tree.analysis.SourceInterpreter;
 import org.objectweb.asm.tree.analysis.SourceValue;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -55,6 +71,13 @@ public class KolobokTransformer {
     public static final String SAFE_CALL_DESC = "Lorg/kolobok/annotation/SafeCall;";
     private static final String SLF4J_LOGGER_DESC = "Lorg/slf4j/Logger;";
     private static final String[] LOGGER_FIELD_NAMES = {"log", "logger", "LOG", "LOGGER"};
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int DEBUG_LOG_ANNOTATION = 1;
+    private static final byte[][] ANNOTATION_DESCRIPTORS = {
+            DEBUG_LOG_DESC.getBytes(StandardCharsets.US_ASCII),
+            SAFE_CALL_DESC.getBytes(StandardCharsets.US_ASCII),
+            OPTIONAL_PARAMS_DESC.getBytes(StandardCharsets.US_ASCII)
+    };
     private final DebugLogDefaults defaults;
 
     public KolobokTransformer() {
@@ -65,45 +88,447 @@ public class KolobokTransformer {
         this.defaults = defaults == null ? new DebugLogDefaults() : defaults;
     }
 
+    // stateless, shared by all transform tasks
     private final RepoMethodUtil repoMethodUtil = new RepoMethodUtil();
+    private int parallelism = 1;
+    private Path manifestDirectory;
+    private List<Path> classpath;
 
-    public void transformDirectory(Path classesDirectory) throws IOException {
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Number of class files {@link #transformDirectory} transforms concurrently; {@code 0} or less uses all
+     * available processors. Default is {@code 1} (sequential).
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public Path getManifestDirectory() {
+        return manifestDirectory;
+    }
+
+    /**
+     * Enables incremental runs: {@link #transformDirectory} keeps a manifest of input/output hashes in this directory
+     * (one directory per classes directory, outside of it) and skips class files that are unchanged since the last run
+     * and were transformed with the same configuration.
+     */
+    public void setManifestDirectory(Path manifestDirectory) {
+        this.manifestDirectory = manifestDirectory;
+    }
+
+    public List<Path> getClasspath() {
+        return classpath;
+    }
+
+    /**
+     * Compile classpath (directories and jars) used to resolve class hierarchies when stack map frames are computed.
+     * When set, types are looked up in class file headers there (and in the classes directory being transformed)
+     * instead of being loaded with {@code Class.forName}.
+     */
+    public void setClasspath(List<Path> classpath) {
+        this.classpath = classpath;
+    }
+
+    public TransformStats transformDirectory(Path classesDirectory) throws IOException {
+        TransformStats stats = new TransformStats();
         if (classesDirectory == null || !Files.isDirectory(classesDirectory)) {
-            return;
+            return stats;
         }
+        List<Path> classFiles;
         try (Stream<Path> paths = Files.walk(classesDirectory)) {
-            List<Path> classFiles = paths
+            classFiles = paths
                     .filter(path -> path.toString().endsWith(".class"))
+                    .sorted()
                     .collect(Collectors.toList());
-            for (Path classFile : classFiles) {
-                transformClassFile(classFile);
+        }
+        TransformManifest manifest = manifestDirectory == null ? null
+                : TransformManifest.load(manifestDirectory, transformerFingerprint(), defaultsFingerprint());
+        Exception[] failures = new Exception[classFiles.size()];
+        try (ClassHierarchy hierarchy = createHierarchy(classesDirectory)) {
+            TransformRun run = new TransformRun(classesDirectory, manifest, hierarchy, stats);
+            int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+            if (threads == 1 || classFiles.size() < 2) {
+                for (int i = 0; i < classFiles.size(); i++) {
+                    failures[i] = transformQuietly(classFiles.get(i), run);
+                }
+            } else {
+                ForkJoinPool pool = new ForkJoinPool(Math.min(threads, classFiles.size()));
+                try {
+                    pool.invoke(new TransformRange(classFiles, failures, run, 0, classFiles.size()));
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        }
+        if (manifest != null) {
+            // failed classes are left out and retried on the next run
+            manifest.save();
+        }
+        throwFailures(classFiles, failures);
+        return stats;
+    }
+
+    private ClassHierarchy createHierarchy(Path classesDirectory) throws IOException {
+        if (classpath == null) {
+            return null;
+        }
+        List<Path> entries = new ArrayList<>();
+        if (classesDirectory != null) {
+            entries.add(classesDirectory);
+        }
+        entries.addAll(classpath);
+        return new ClassHierarchy(entries);
+    }
+
+    private Exception transformQuietly(Path classFile, TransformRun run) {
+        try {
+            if (run.manifest == null) {
+                transformClassFile(classFile, run);
+            } else {
+                transformIncrementally(classFile, run);
             }
+            return null;
+        } catch (IOException | RuntimeException e) {
+            run.stats.failed();
+            return e;
+        }
+    }
+
+    /**
+     * Rethrows a single failure as is; several failures are reported together, in path order.
+     */
+    private static void throwFailures(List<Path> classFiles, Exception[] failures) throws IOException {
+        List<Integer> failed = new ArrayList<>();
+        for (int i = 0; i < failures.length; i++) {
+            if (failures[i] != null) {
+                failed.add(i);
+            }
+        }
+        if (failed.isEmpty()) {
+            return;
+        }
+        if (failed.size() == 1) {
+            Exception failure = failures[failed.get(0)];
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            throw (RuntimeException) failure;
+        }
+        StringBuilder message = new StringBuilder("Failed to transform ").append(failed.size()).append(" class files:");
+        for (int index : failed) {
+            message.append("\n  ").append(classFiles.get(index)).append(": ").append(failures[index].getMessage());
+        }
+        IllegalStateException aggregate = new IllegalStateException(message.toString());
+        for (int index : failed) {
+            aggregate.addSuppressed(failures[index]);
+        }
+        throw aggregate;
+    }
+
+    /**
+     * State shared by all class files of one {@link #transformDirectory} call.
+     */
+    private static final class TransformRun {
+        private final Path classesDirectory;
+        private final TransformManifest manifest;
+        private final ClassHierarchy hierarchy;
+        private final TransformStats stats;
+
+        private TransformRun(Path classesDirectory, TransformManifest manifest, ClassHierarchy hierarchy,
+                             TransformStats stats) {
+            this.classesDirectory = classesDirectory;
+            this.manifest = manifest;
+            this.hierarchy = hierarchy;
+            this.stats = stats;
+        }
+    }
+
+    private final class TransformRange extends RecursiveAction {
+        private static final int BATCH = 16;
+        private final List<Path> classFiles;
+        private final Exception[] failures;
+        private final TransformRun run;
+        private final int from;
+        private final int to;
+
+        private TransformRange(List<Path> classFiles, Exception[] failures, TransformRun run, int from, int to) {
+            this.classFiles = classFiles;
+            this.failures = failures;
+            this.run = run;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH) {
+                for (int i = from; i < to; i++) {
+                    failures[i] = transformQuietly(classFiles.get(i), run);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new TransformRange(classFiles, failures, run, from, middle),
+                    new TransformRange(classFiles, failures, run, middle, to));
         }
     }
 
     public void transformClassFile(Path classFile) throws IOException {
-        byte[] original = Files.readAllBytes(classFile);
-        ClassReader reader = new ClassReader(original);
+        try (ClassHierarchy hierarchy = createHierarchy(null)) {
+            transformClassFile(classFile, new TransformRun(null, null, hierarchy, new TransformStats()));
+        }
+    }
+
+    private void transformClassFile(Path classFile, TransformRun run) throws IOException {
+        byte[] transformed = transform(Files.readAllBytes(classFile), run);
+        if (transformed != null) {
+            Files.write(classFile, transformed);
+        }
+    }
+
+    /**
+     * Transforms a class held in memory, without touching the file system other than reading the
+     * {@linkplain #setClasspath classpath}. Safe to call from several threads at once.
+     *
+     * @param className  used in error messages only; may be {@code null}
+     * @param classBytes the class file; not modified
+     * @return the transformed class, or {@code null} when it needs no changes
+     * @throws IllegalStateException when the class cannot be transformed
+     */
+    public byte[] transform(String className, byte[] classBytes) {
+        try (ClassHierarchy hierarchy = createHierarchy(null)) {
+            return transformEntry(className, classBytes, new TransformRun(null, null, hierarchy, new TransformStats()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Like {@link #transform(String, byte[])}, but resolves class hierarchies from class file resources of
+     * {@code loader} rather than the classpath, without loading any class. Meant for {@code ClassFileTransformer}s,
+     * which see a class before {@code loader} defines it.
+     */
+    public byte[] transform(String className, byte[] classBytes, ClassLoader loader) {
+        try (ClassHierarchy hierarchy = new ClassHierarchy(loader)) {
+            return transformEntry(className, classBytes, new TransformRun(null, null, hierarchy, new TransformStats()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Streams classes through {@link #transform(String, byte[])}, sharing one classpath lookup for the whole batch.
+     * Every entry is handed to {@code output} in input order: the same instance when the class needs no changes,
+     * otherwise a new entry with the same name and the transformed bytes. Entries are transformed on the calling
+     * thread; the first failure stops the batch.
+     */
+    public TransformStats transformClasses(Iterator<ClassEntry> entries, Consumer<ClassEntry> output)
+            throws IOException {
+        TransformStats stats = new TransformStats();
+        try (ClassHierarchy hierarchy = createHierarchy(null)) {
+            TransformRun run = new TransformRun(null, null, hierarchy, stats);
+            while (entries.hasNext()) {
+                ClassEntry entry = entries.next();
+                byte[] transformed = transformEntry(entry.getName(), entry.getBytes(), run);
+                output.accept(transformed == null ? entry : new ClassEntry(entry.getName(), transformed));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * For callers that manage the class hierarchy and the statistics themselves, such as {@link JarTransformer}.
+     */
+    byte[] transform(String className, byte[] classBytes, ClassHierarchy hierarchy, TransformStats stats) {
+        return transformEntry(className, classBytes, new TransformRun(null, null, hierarchy, stats));
+    }
+
+    private byte[] transformEntry(String className, byte[] classBytes, TransformRun run) {
+        try {
+            return transform(classBytes, run);
+        } catch (RuntimeException e) {
+            run.stats.failed();
+            throw new IllegalStateException("Failed to transform " + className + ": " + e.getMessage(), e);
+        }
+    }
+
+    private byte[] transform(byte[] classBytes, TransformRun run) {
+        ClassReader reader = new ClassReader(classBytes);
+        return transform(reader, annotationMask(reader, classBytes), run);
+    }
+
+    /**
+     * Like {@link #transformClassFile(Path, TransformRun)}, but consults and updates the manifest. A class whose
+     * file still matches the recorded output is skipped, unless its configuration changed; then the saved pristine
+     * input is transformed again instead of the already instrumented file.
+     */
+    private void transformIncrementally(Path classFile, TransformRun run) throws IOException {
+        TransformManifest manifest = run.manifest;
+        TransformStats stats = run.stats;
+        String path = run.classesDirectory.relativize(classFile).toString().replace(File.separatorChar, '/');
+        TransformManifest.Entry entry = manifest.previous(path);
+        if (manifest.isUpToDate(entry, Files.readAttributes(classFile, BasicFileAttributes.class))) {
+            manifest.keep(path, entry);
+            stats.upToDate();
+            return;
+        }
+        byte[] input = Files.readAllBytes(classFile);
+        String inputHash = TransformManifest.hash(input);
+        boolean fromOriginal = false;
+        if (entry != null && inputHash.equals(entry.outputHash())) {
+            if (!manifest.isStale(entry)) {
+                // touched, not recompiled
+                manifest.record(path, classFile, entry.inputHash(), entry.outputHash(), entry.annotations());
+                stats.upToDate();
+                return;
+            }
+            byte[] original = manifest.readOriginal(path);
+            if (original != null && TransformManifest.hash(original).equals(entry.inputHash())) {
+                input = original;
+                inputHash = entry.inputHash();
+                fromOriginal = true;
+            }
+        }
+        ClassReader reader = new ClassReader(input);
+        int annotations = annotationMask(reader, input);
+        byte[] transformed = transform(reader, annotations, run);
+        String outputHash = inputHash;
+        if (transformed != null) {
+            Files.write(classFile, transformed);
+            manifest.writeOriginal(path, input);
+            outputHash = TransformManifest.hash(transformed);
+        } else {
+            if (fromOriginal) {
+                Files.write(classFile, input);
+            }
+            if (entry != null) {
+                manifest.deleteOriginal(path);
+            }
+        }
+        char flag = (annotations & DEBUG_LOG_ANNOTATION) != 0 ? TransformManifest.DEBUG_LOG
+                : annotations != 0 ? TransformManifest.OTHER : TransformManifest.NONE;
+        manifest.record(path, classFile, inputHash, outputHash, flag);
+    }
+
+    /**
+     * @return the transformed class, or {@code null} when it needs no changes
+     */
+    private byte[] transform(ClassReader reader, int annotations, TransformRun run) {
+        if (annotations == 0) {
+            run.stats.skipped();
+            return null;
+        }
         ClassNode classNode = new ClassNode();
         reader.accept(classNode, ClassReader.EXPAND_FRAMES);
+        List<MethodNode> originalMethods = new ArrayList<>(classNode.methods);
 
-        boolean modified;
+        Set<MethodNode> changed = new HashSet<>();
         if ((classNode.access & Opcodes.ACC_INTERFACE) != 0) {
-            modified = transformInterface(classNode);
+            transformInterface(classNode, changed);
         } else {
-            modified = transformLogContext(classNode);
-            modified = transformSafeCall(classNode) || modified;
+            transformLogContext(classNode, changed);
+            transformSafeCall(classNode, changed);
         }
-        if (!modified) {
-            return;
+        if (changed.isEmpty()) {
+            run.stats.unchanged();
+            return null;
         }
 
-        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
-        classNode.accept(writer);
-        Files.write(classFile, writer.toByteArray());
+        run.stats.transformed();
+        return write(reader, classNode, originalMethods, changed, run.hierarchy);
+    }
+
+    /**
+     * Replays the original class into a writer that shares its constant pool, so methods we did not touch are
+     * copied byte for byte, stack map frames included. Only changed and generated methods are emitted from the tree
+     * and get their frames computed. Transforms never change anything outside of methods.
+     */
+    private static byte[] write(ClassReader reader, ClassNode classNode, List<MethodNode> originalMethods,
+                                Set<MethodNode> changed, ClassHierarchy hierarchy) {
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return hierarchy == null ? super.getCommonSuperClass(type1, type2)
+                        : hierarchy.getCommonSuperClass(type1, type2);
+            }
+        };
+        reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            private int index;
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                             String[] exceptions) {
+                // the reader visits methods in the order ClassNode collected them
+                MethodNode method = originalMethods.get(index++);
+                if (changed.contains(method)) {
+                    method.accept(cv);
+                    return null;
+                }
+                // a bare MethodWriter lets the reader copy the method without visiting its code
+                return super.visitMethod(access, name, descriptor, signature, exceptions);
+            }
+
+            @Override
+            public void visitEnd() {
+                Set<MethodNode> existing = new HashSet<>(originalMethods);
+                for (MethodNode method : classNode.methods) {
+                    if (!existing.contains(method)) {
+                        method.accept(cv);
+                    }
+                }
+                super.visitEnd();
+            }
+        }, 0);
+        return writer.toByteArray();
     }
 
-    private boolean transformInterface(ClassNode classNode) {
+    private String transformerFingerprint() throws IOException {
+        // any change to the transformer itself, released or not, invalidates previous output
+        try (InputStream in = KolobokTransformer.class.getResourceAsStream("KolobokTransformer.class")) {
+            String version = String.valueOf(KolobokTransformer.class.getPackage().getImplementationVersion());
+            return in == null ? version : TransformManifest.hash(in.readAllBytes());
+        }
+    }
+
+    private String defaultsFingerprint() {
+        return TransformManifest.hash(defaults.fingerprint().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Annotation type descriptors are CONSTANT_Utf8 entries, so a class without any of ours in its constant pool
+     * cannot need a transform. {@link ClassReader} has already indexed the pool; entries are compared as raw bytes.
+     */
+    static boolean referencesKolobokAnnotation(ClassReader reader, byte[] classBytes) {
+        return annotationMask(reader, classBytes) != 0;
+    }
+
+    /**
+     * Bit {@code i} is set when {@code ANNOTATION_DESCRIPTORS[i]} occurs in the constant pool.
+     */
+    private static int annotationMask(ClassReader reader, byte[] classBytes) {
+        int mask = 0;
+        for (int i = 1; i < reader.getItemCount(); i++) {
+            int offset = reader.getItem(i);
+            // offset points past the tag; 0 marks the unused slot after long/double entries
+            if (offset == 0 || classBytes[offset - 1] != CONSTANT_UTF8) {
+                continue;
+            }
+            int length = reader.readUnsignedShort(offset);
+            for (int d = 0; d < ANNOTATION_DESCRIPTORS.length; d++) {
+                byte[] descriptor = ANNOTATION_DESCRIPTORS[d];
+                if (length == descriptor.length && Arrays.equals(classBytes, offset + 2, offset + 2 + length,
+                        descriptor, 0, length)) {
+                    mask |= 1 << d;
+                }
+            }
+        }
+        return mask;
+    }
+
+    private void transformInterface(ClassNode classNode, Set<MethodNode> changed) {
         List<MethodNode> annotatedMethods = new ArrayList<>();
         for (MethodNode method : classNode.methods) {
             if (hasAnnotation(method, OPTIONAL_PARAMS_DESC)) {
@@ -112,7 +537,7 @@ public class KolobokTransformer {
         }
 
         if (annotatedMethods.isEmpty()) {
-            return false;
+            return;
         }
 
         Set<String> existingSignatures = new HashSet<>();
@@ -136,18 +561,18 @@ public class KolobokTransformer {
 
             buildDefaultMethod(classNode, method, repoMethod, params);
             addGeneratedMethods(classNode, method, repoMethod, params, existingSignatures);
+            changed.add(method);
         }
-
-        return true;
     }
 
-    private boolean transformLogContext(ClassNode classNode) {
+    private void transformLogContext(ClassNode classNode, Set<MethodNode> changed) {
         AnnotationNode classAnnotation = findAnnotation(classNode.visibleAnnotations, DEBUG_LOG_DESC);
         if (classAnnotation == null) {
             classAnnotation = findAnnotation(classNode.invisibleAnnotations, DEBUG_LOG_DESC);
         }
 
-        Map<MethodNode, LogContextConfig> methodsToInstrument = new HashMap<>();
+        // instrument in declaration order, so the output does not depend on identity hash codes
+        Map<MethodNode, LogContextConfig> methodsToInstrument = new LinkedHashMap<>();
         for (MethodNode method : classNode.methods) {
             LogContextConfig config = resolveLogContextConfig(method, classAnnotation);
             if (config != null && shouldInstrumentMethod(method)) {
@@ -156,23 +581,30 @@ public class KolobokTransformer {
         }
 
         if (methodsToInstrument.isEmpty()) {
-            return false;
+            return;
         }
 
+        boolean needsLogger = false;
+        for (LogContextConfig config : methodsToInstrument.values()) {
+            needsLogger |= !config.logFormat.jfr && !config.traceRingSink;
+        }
         FieldNode loggerField = findLoggerField(classNode);
-        if (loggerField == null) {
+        if (loggerField == null && needsLogger) {
             throw new IllegalStateException("Class '" + classNode.name
                     + "' uses @DebugLog but no static logger field named log/logger/LOG/LOGGER with type org.slf4j.Logger was found");
         }
 
         for (Map.Entry<MethodNode, LogContextConfig> entry : methodsToInstrument.entrySet()) {
-            instrumentLogContextMethod(classNode, entry.getKey(), loggerField, entry.getValue());
+            if (entry.getValue().traceRingSink) {
+                instrumentRingMethod(classNode, entry.getKey(), entry.getValue());
+            } else {
+                instrumentLogContextMethod(classNode, entry.getKey(), loggerField, entry.getValue());
+            }
+            changed.add(entry.getKey());
         }
-
-        return true;
     }
 
-    private boolean transformSafeCall(ClassNode classNode) {
+    private void transformSafeCall(ClassNode classNode, Set<MethodNode> changed) {
         Set<String> safeFields = new HashSet<>();
         for (FieldNode field : classNode.fields) {
             if (hasAnnotation(field, SAFE_CALL_DESC)) {
@@ -180,7 +612,6 @@ public class KolobokTransformer {
             }
         }
 
-        boolean modified = false;
         for (MethodNode method : classNode.methods) {
             if (method.instructions == null || method.instructions.size() == 0) {
                 continue;
@@ -191,9 +622,10 @@ public class KolobokTransformer {
             if (!hasSafeCallUsage(method) && safeFields.isEmpty()) {
                 continue;
             }
-            modified |= instrumentSafeCalls(classNode, method, safeFields);
+            if (instrumentSafeCalls(classNode, method, safeFields)) {
+                changed.add(method);
+            }
         }
-        return modified;
     }
 
     private boolean hasSafeCallUsage(MethodNode method) {
@@ -712,12 +1144,22 @@ public class KolobokTransformer {
                 continue;
             }
             MethodInsnNode call = (MethodInsnNode) insn;
+            if ("org/kolobok/runtime/LogContextJfr".equals(call.owner) && "begin".equals(call.name)) {
+                return true;
+            }
+            // SLF4J enter/exit lines are formatted into a pooled buffer, with or without a heat map
+            if ("org/kolobok/runtime/LogContextTrace".equals(call.owner) && "acquireBuffer".equals(call.name)) {
+                return true;
+            }
+            if ("org/kolobok/runtime/TraceRingBuffer".equals(call.owner) && "enter".equals(call.name)) {
+                return true;
+            }
             if (!"org/kolobok/runtime/LogContextTrace".equals(call.owner)) {
                 continue;
             }
             if ("enter".equals(call.name)) {
                 hasEnter = true;
-            } else if ("exitFormatted".equals(call.name)) {
+            } else if ("exitFormatted".equals(call.name) || "exitToFile".equals(call.name)) {
                 hasExitFormatted = true;
             }
             if (hasEnter && hasExitFormatted) {
@@ -776,13 +1218,30 @@ public class KolobokTransformer {
                 DebugLogDefaults.DEFAULT_LOG_LOCALS, defaults.getLogLocals());
         boolean logLocalsOnException = resolveBoolean(methodAnnotation, "logLocalsOnException",
                 DebugLogDefaults.DEFAULT_LOG_LOCALS_ON_EXCEPTION, defaults.getLogLocalsOnException());
+        boolean logAllocatedBytes = resolveBoolean(methodAnnotation, "logAllocatedBytes",
+                DebugLogDefaults.DEFAULT_LOG_ALLOCATED_BYTES, defaults.getLogAllocatedBytes());
+        boolean logCpuTime = resolveBoolean(methodAnnotation, "logCpuTime",
+                DebugLogDefaults.DEFAULT_LOG_CPU_TIME, defaults.getLogCpuTime());
+        boolean logContention = resolveBoolean(methodAnnotation, "logContention",
+                DebugLogDefaults.DEFAULT_LOG_CONTENTION, defaults.getLogContention());
+        boolean logArgSizes = resolveBoolean(methodAnnotation, "logArgSizes",
+                DebugLogDefaults.DEFAULT_LOG_ARG_SIZES, defaults.getLogArgSizes());
+        String traceSinkName = resolveEnum(methodAnnotation, "traceSink",
+                DebugLogDefaults.DEFAULT_TRACE_SINK.name(), defaults.getTraceSink());
+        String traceIdFormatName = resolveEnum(methodAnnotation, "traceIdFormat",
+                DebugLogDefaults.DEFAULT_TRACE_ID_FORMAT.name(), defaults.getTraceIdFormat());
         if (lineHeatMapOnException) {
             lineHeatMap = true;
         }
         return new LogContextConfig(lineHeatMap, lineHeatMapOnException, subHeatMap, logDuration, aggregateChildren,
                 logArgs, mask, maxArgLength, resultMask, maxResultLength, tag, slowThresholdMs,
                 LogLevelConfig.fromName(logLevelName), LogFormatConfig.fromName(logFormatName), logThreadId,
-                logThreadName, logHttpRequest, logLocals, logLocalsOnException);
+                logThreadName, logHttpRequest, logLocals, logLocalsOnException, logAllocatedBytes, logCpuTime,
+                logContention,
+                "FILE".equals(traceSinkName),
+                "RING".equals(traceSinkName),
+                logArgSizes,
+                traceIdFormatName);
     }
 
     private boolean resolveBoolean(AnnotationNode annotation, String name, boolean builtinDefault, Boolean override) {
@@ -868,6 +1327,22 @@ public class KolobokTransformer {
         int startTimeVar = nextLocal;
         nextLocal += 2;
 
+        ThreadMetricVars metricVars = new ThreadMetricVars();
+        if (config.logAllocatedBytes) {
+            metricVars.allocatedBytesVar = nextLocal;
+            metricVars.allocatedBytesDeltaVar = nextLocal + 2;
+            nextLocal += 4;
+        }
+        if (config.logCpuTime) {
+            metricVars.cpuTimeVar = nextLocal;
+            metricVars.cpuTimeDeltaVar = nextLocal + 2;
+            nextLocal += 4;
+        }
+        if (config.logContention) {
+            metricVars.contentionVar = nextLocal++;
+            metricVars.contentionDeltaVar = nextLocal++;
+        }
+
         int returnVar = -1;
         if (returnType.getSort() != Type.VOID) {
             returnVar = nextLocal;
@@ -887,7 +1362,14 @@ public class KolobokTransformer {
             localsMaskLastVar = nextLocal++;
         }
 
-        int durationVar = startTimeVar;
+        // kept apart from startTimeVar, so the handler measures from the entry time after a throwing exit path
+        int durationVar = nextLocal;
+        nextLocal += 2;
+
+        int jfrEventVar = -1;
+        if (config.logFormat.jfr) {
+            jfrEventVar = nextLocal++;
+        }
 
         int exceptionVar = nextLocal;
         nextLocal += 1;
@@ -903,16 +1385,24 @@ public class KolobokTransformer {
             append(entry, buildLineArrayInit(lineNumbers, linesVar, countsVar));
             insertLineCounters(method, lineNumbers, countsVar);
             append(entry, buildTraceEnter(classNode, method, traceVar, config.subHeatMap, config.aggregateChildren,
-                    config.logArgs, config.mask, config.maxArgLength, config.tag, config.logFormat, argTypes, argIndexes,
-                    paramConfigs));
+                    config.logArgs, config.mask, config.maxArgLength, config.tag, config.traceIdFormat, config.logFormat,
+                    argTypes, argIndexes, paramConfigs));
+            if (config.logArgSizes) {
+                append(entry, buildArgSizesRecord(traceVar, config.mask, argTypes, argIndexes, paramConfigs));
+            }
         }
         entry.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false));
         entry.add(new VarInsnNode(Opcodes.LSTORE, startTimeVar));
+        append(entry, buildThreadMetricsStart(metricVars));
         if (enableLocalLogs) {
             append(entry, buildLocalLogInit(localLogConfig, originalMaxLocals, localsSnapshotVar, localsNamesVar,
                     localsIgnoreVar, localsMaskFirstVar, localsMaskLastVar, argTypes, argIndexes));
         }
-        append(entry, buildEntryLog(classNode, method, loggerField, config, argTypes, argIndexes, paramConfigs));
+        if (config.logFormat.jfr) {
+            append(entry, buildJfrEnter(classNode, method, config, jfrEventVar, argTypes, argIndexes, paramConfigs));
+        } else {
+            append(entry, buildEntryLog(classNode, method, loggerField, config, argTypes, argIndexes, paramConfigs));
+        }
         entry.add(startLabel);
         method.instructions.insert(entry);
 
@@ -932,18 +1422,31 @@ public class KolobokTransformer {
             InsnList exit = new InsnList();
             int opcode = ret.getOpcode();
             if (returnType.getSort() == Type.VOID) {
-                append(exit, buildExitLog(classNode, method, loggerField, config, startTimeVar, durationVar, null, null,
-                        localsSnapshotVar, localsNamesVar, localsIgnoreVar, localsMaskFirstVar, localsMaskLastVar, enableLocalLogs));
+                if (config.logFormat.jfr) {
+                    append(exit, buildJfrExit(config, startTimeVar, durationVar, metricVars, jfrEventVar, null, null));
+                } else {
+                    append(exit, buildExitLog(classNode, method, loggerField, config, startTimeVar, durationVar, metricVars,
+                            null, null, localsSnapshotVar, localsNamesVar, localsIgnoreVar, localsMaskFirstVar,
+                            localsMaskLastVar, enableLocalLogs));
+                }
                 if (hasHeatMap) {
-                    append(exit, buildHeatMapLog(classNode, method, loggerField, linesVar, countsVar, traceVar, config, durationVar, false));
+                    append(exit, buildHeatMapLog(classNode, method, loggerField, linesVar, countsVar, traceVar, config, durationVar,
+                            metricVars, jfrEventVar, false));
                 }
                 exit.add(new InsnNode(Opcodes.RETURN));
             } else {
                 exit.add(new VarInsnNode(returnType.getOpcode(Opcodes.ISTORE), returnVar));
-                append(exit, buildExitLog(classNode, method, loggerField, config, startTimeVar, durationVar, returnType, returnVar,
-                        localsSnapshotVar, localsNamesVar, localsIgnoreVar, localsMaskFirstVar, localsMaskLastVar, enableLocalLogs));
+                if (config.logFormat.jfr) {
+                    append(exit, buildJfrExit(config, startTimeVar, durationVar, metricVars, jfrEventVar, returnType,
+                            returnVar));
+                } else {
+                    append(exit, buildExitLog(classNode, method, loggerField, config, startTimeVar, durationVar, metricVars,
+                            returnType, returnVar, localsSnapshotVar, localsNamesVar, localsIgnoreVar, localsMaskFirstVar,
+                            localsMaskLastVar, enableLocalLogs));
+                }
                 if (hasHeatMap) {
-                    append(exit, buildHeatMapLog(classNode, method, loggerField, linesVar, countsVar, traceVar, config, durationVar, false));
+                    append(exit, buildHeatMapLog(classNode, method, loggerField, linesVar, countsVar, traceVar, config, durationVar,
+                            metricVars, jfrEventVar, false));
                 }
                 exit.add(new VarInsnNode(returnType.getOpcode(Opcodes.ILOAD), returnVar));
                 exit.add(new InsnNode(opcode));
@@ -956,12 +1459,74 @@ public class KolobokTransformer {
         handler.add(endLabel);
         handler.add(handlerLabel);
         handler.add(new VarInsnNode(Opcodes.ASTORE, exceptionVar));
-        append(handler, buildErrorLog(classNode, method, loggerField, config, startTimeVar, durationVar, exceptionVar,
-                argTypes, argIndexes, paramConfigs, localsSnapshotVar, localsNamesVar, localsIgnoreVar,
-                localsMaskFirstVar, localsMaskLastVar, enableLocalLogs));
+        if (config.logFormat.jfr) {
+            append(handler, buildJfrError(startTimeVar, durationVar, metricVars, jfrEventVar, exceptionVar));
+        } else {
+            append(handler, buildErrorLog(classNode, method, loggerField, config, startTimeVar, durationVar, metricVars,
+                    exceptionVar, argTypes, argIndexes, paramConfigs, localsSnapshotVar, localsNamesVar, localsIgnoreVar,
+                    localsMaskFirstVar, localsMaskLastVar, enableLocalLogs));
+        }
+        if (hasHeatMap) {
+            append(handler, buildHeatMapLog(classNode, method, loggerField, linesVar, countsVar, traceVar, config, durationVar,
+                    metricVars, jfrEventVar, true));
+        }
+        handler.add(new VarInsnNode(Opcodes.ALOAD, exceptionVar));
+        handler.add(new InsnNode(Opcodes.ATHROW));
+        method.instructions.add(handler);
+
+        method.tryCatchBlocks.add(new TryCatchBlockNode(startLabel, endLabel, handlerLabel, "java/lang/Throwable"));
+    }
+
+    /**
+     * Ring-only tracing: enter/exit records and line counts go to {@code TraceRingBuffer}, without a trace tree,
+     * formatting or the logger. Options other than the line heat map do not apply.
+     */
+    private void instrumentRingMethod(ClassNode classNode, MethodNode method, LogContextConfig config) {
+        List<Integer> lineNumbers = config.lineHeatMap ? collectLineNumbers(method.instructions) : Collections.emptyList();
+        boolean hasHeatMap = !lineNumbers.isEmpty();
+        int nextLocal = method.maxLocals;
+        int linesVar = -1;
+        int countsVar = -1;
         if (hasHeatMap) {
-            append(handler, buildHeatMapLog(classNode, method, loggerField, linesVar, countsVar, traceVar, config, durationVar, true));
+            linesVar = nextLocal++;
+            countsVar = nextLocal++;
         }
+        int exceptionVar = nextLocal++;
+        method.maxLocals = nextLocal;
+        String methodDisplay = buildMethodDisplayName(classNode, method, config.logFormat);
+
+        LabelNode startLabel = new LabelNode();
+        LabelNode endLabel = new LabelNode();
+        LabelNode handlerLabel = new LabelNode();
+
+        InsnList entry = new InsnList();
+        if (hasHeatMap) {
+            append(entry, buildLineArrayInit(lineNumbers, linesVar, countsVar));
+            insertLineCounters(method, lineNumbers, countsVar);
+        }
+        entry.add(new LdcInsnNode(methodDisplay));
+        entry.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/TraceRingBuffer", "enter",
+                "(Ljava/lang/String;)V", false));
+        entry.add(startLabel);
+        method.instructions.insert(entry);
+
+        List<AbstractInsnNode> returns = new ArrayList<>();
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            int opcode = insn.getOpcode();
+            if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+                returns.add(insn);
+            }
+        }
+        // the return value stays on the operand stack below the exit call
+        for (AbstractInsnNode ret : returns) {
+            method.instructions.insertBefore(ret, buildRingExit(methodDisplay, linesVar, countsVar, false));
+        }
+
+        InsnList handler = new InsnList();
+        handler.add(endLabel);
+        handler.add(handlerLabel);
+        handler.add(new VarInsnNode(Opcodes.ASTORE, exceptionVar));
+        append(handler, buildRingExit(methodDisplay, linesVar, countsVar, true));
         handler.add(new VarInsnNode(Opcodes.ALOAD, exceptionVar));
         handler.add(new InsnNode(Opcodes.ATHROW));
         method.instructions.add(handler);
@@ -969,6 +1534,24 @@ public class KolobokTransformer {
         method.tryCatchBlocks.add(new TryCatchBlockNode(startLabel, endLabel, handlerLabel, "java/lang/Throwable"));
     }
 
+    private InsnList buildRingExit(String methodDisplay, int linesVar, int countsVar, boolean isException) {
+        InsnList insns = new InsnList();
+        insns.add(new LdcInsnNode(methodDisplay));
+        // the decoder takes the duration from the enter/exit timestamps
+        insns.add(new LdcInsnNode(-1L));
+        if (linesVar >= 0) {
+            insns.add(new VarInsnNode(Opcodes.ALOAD, linesVar));
+            insns.add(new VarInsnNode(Opcodes.ALOAD, countsVar));
+        } else {
+            insns.add(new InsnNode(Opcodes.ACONST_NULL));
+            insns.add(new InsnNode(Opcodes.ACONST_NULL));
+        }
+        insns.add(new LdcInsnNode(isException));
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/TraceRingBuffer", "exit",
+                "(Ljava/lang/String;J[I[IZ)V", false));
+        return insns;
+    }
+
     private InsnList buildEntryLog(ClassNode classNode, MethodNode method, FieldNode loggerField,
                                    LogContextConfig config, Type[] argTypes, int[] argIndexes, ParamLogConfig[] paramConfigs) {
         InsnList insns = new InsnList();
@@ -983,15 +1566,15 @@ public class KolobokTransformer {
         insns.add(new JumpInsnNode(Opcodes.IFEQ, skipLabel));
 
         String methodDisplay = buildMethodDisplayName(classNode, method, config.logFormat);
-        insns.add(new TypeInsnNode(Opcodes.NEW, "java/lang/StringBuilder"));
-        insns.add(new InsnNode(Opcodes.DUP));
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "acquireBuffer",
+                "()Ljava/lang/StringBuilder;", false));
         if (config.logFormat.jsonFormat) {
             insns.add(new LdcInsnNode("{\"type\":\"enter\",\"method\":\"" + escapeJson(methodDisplay) + "\""));
         } else {
             insns.add(new LdcInsnNode("[KLB] ENTER " + methodDisplay));
         }
-        insns.add(new MethodInsnNode(Opcodes.INVOKESPECIAL, "java/lang/StringBuilder", "<init>",
-                "(Ljava/lang/String;)V", false));
+        insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
 
         if (config.logFormat.jsonFormat) {
             append(insns, buildTraceIdAppendJson());
@@ -1014,10 +1597,8 @@ public class KolobokTransformer {
                 append(insns, buildAnnotatedArgsArray(argTypes, argIndexes, paramConfigs, false, config.maxArgLength));
                 insns.add(new LdcInsnNode(config.mask));
                 insns.add(new LdcInsnNode(config.maxArgLength));
-                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "formatArgsJson",
-                        "([Ljava/lang/Object;Ljava/lang/String;I)Ljava/lang/String;", false));
-                insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                        "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "appendArgsJson",
+                        "(Ljava/lang/StringBuilder;[Ljava/lang/Object;Ljava/lang/String;I)Ljava/lang/StringBuilder;", false));
             }
             insns.add(new LdcInsnNode("}"));
             insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
@@ -1043,15 +1624,13 @@ public class KolobokTransformer {
                 append(insns, buildAnnotatedArgsArray(argTypes, argIndexes, paramConfigs, false, config.maxArgLength));
                 insns.add(new LdcInsnNode(config.mask));
                 insns.add(new LdcInsnNode(config.maxArgLength));
-                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "formatArgs",
-                        "([Ljava/lang/Object;Ljava/lang/String;I)Ljava/lang/String;", false));
-                insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                        "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "appendArgs",
+                        "(Ljava/lang/StringBuilder;[Ljava/lang/Object;Ljava/lang/String;I)Ljava/lang/StringBuilder;", false));
             }
         }
 
-        insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString",
-                "()Ljava/lang/String;", false));
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "releaseBuffer",
+                "(Ljava/lang/StringBuilder;)Ljava/lang/String;", false));
 
         insns.add(new FieldInsnNode(Opcodes.GETSTATIC, classNode.name, loggerField.name, loggerField.desc));
         insns.add(new InsnNode(Opcodes.SWAP));
@@ -1063,7 +1642,7 @@ public class KolobokTransformer {
     }
 
     private InsnList buildExitLog(ClassNode classNode, MethodNode method, FieldNode loggerField,
-                                  LogContextConfig config, int startTimeVar, int durationVar,
+                                  LogContextConfig config, int startTimeVar, int durationVar, ThreadMetricVars metricVars,
                                   Type returnType, Integer returnVar, int localsSnapshotVar, int localsNamesVar,
                                   int localsIgnoreVar, int localsMaskFirstVar, int localsMaskLastVar,
                                   boolean hasLocalAnnotations) {
@@ -1074,6 +1653,7 @@ public class KolobokTransformer {
         insns.add(new VarInsnNode(Opcodes.LLOAD, startTimeVar));
         insns.add(new InsnNode(Opcodes.LSUB));
         insns.add(new VarInsnNode(Opcodes.LSTORE, durationVar));
+        append(insns, buildThreadMetricsEnd(metricVars));
         if (config.slowThresholdMs > 0) {
             insns.add(new VarInsnNode(Opcodes.LLOAD, durationVar));
             insns.add(new LdcInsnNode(config.slowThresholdMs * 1_000_000L));
@@ -1086,15 +1666,15 @@ public class KolobokTransformer {
         insns.add(new JumpInsnNode(Opcodes.IFEQ, skipLabel));
 
         String methodDisplay = buildMethodDisplayName(classNode, method, config.logFormat);
-        insns.add(new TypeInsnNode(Opcodes.NEW, "java/lang/StringBuilder"));
-        insns.add(new InsnNode(Opcodes.DUP));
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "acquireBuffer",
+                "()Ljava/lang/StringBuilder;", false));
         if (config.logFormat.jsonFormat) {
             insns.add(new LdcInsnNode("{\"type\":\"exit\",\"method\":\"" + escapeJson(methodDisplay) + "\""));
         } else {
             insns.add(new LdcInsnNode("[KLB] EXIT " + methodDisplay));
         }
-        insns.add(new MethodInsnNode(Opcodes.INVOKESPECIAL, "java/lang/StringBuilder", "<init>",
-                "(Ljava/lang/String;)V", false));
+        insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
 
         if (config.logFormat.jsonFormat) {
             append(insns, buildTraceIdAppendJson());
@@ -1116,6 +1696,7 @@ public class KolobokTransformer {
             insns.add(new VarInsnNode(Opcodes.LLOAD, durationVar));
             insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
                     "(J)Ljava/lang/StringBuilder;", false));
+            append(insns, buildThreadMetricsAppend(metricVars, true));
             if (config.logLocals && hasLocalAnnotations) {
                 insns.add(new LdcInsnNode(",\"locals\":"));
                 insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
@@ -1127,32 +1708,26 @@ public class KolobokTransformer {
                 insns.add(new VarInsnNode(Opcodes.ALOAD, localsMaskLastVar));
                 insns.add(new InsnNode(Opcodes.ICONST_0));
                 insns.add(new LdcInsnNode(config.maxArgLength));
-                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "formatLocalsJson",
-                        "([Ljava/lang/Object;[Ljava/lang/String;[I[I[IZI)Ljava/lang/String;", false));
-                insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                        "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "appendLocalsJson",
+                        "(Ljava/lang/StringBuilder;[Ljava/lang/Object;[Ljava/lang/String;[I[I[IZI)Ljava/lang/StringBuilder;",
+                        false));
             }
             insns.add(new LdcInsnNode(",\"result\":\""));
             insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
                     "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
             if (returnType == null) {
                 insns.add(new LdcInsnNode("void"));
+                insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                        "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
             } else {
                 insns.add(new VarInsnNode(returnType.getOpcode(Opcodes.ILOAD), returnVar));
                 boxValue(insns, returnType);
                 insns.add(new LdcInsnNode(config.resultMask));
                 pushInt(insns, config.maxResultLength);
-                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "formatResult",
-                        "(Ljava/lang/Object;Ljava/lang/String;I)Ljava/lang/String;", false));
-            }
-            if (returnType == null) {
-                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/String", "valueOf",
-                        "(Ljava/lang/Object;)Ljava/lang/String;", false));
+                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace",
+                        "appendJsonResult",
+                        "(Ljava/lang/StringBuilder;Ljava/lang/Object;Ljava/lang/String;I)Ljava/lang/StringBuilder;", false));
             }
-            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "escapeJson",
-                    "(Ljava/lang/String;)Ljava/lang/String;", false));
-            insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                    "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
             insns.add(new LdcInsnNode("\"}"));
             insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
                     "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
@@ -1176,7 +1751,11 @@ public class KolobokTransformer {
             insns.add(new VarInsnNode(Opcodes.LLOAD, durationVar));
             insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
                     "(J)Ljava/lang/StringBuilder;", false));
-            insns.add(new LdcInsnNode("ns result="));
+            insns.add(new LdcInsnNode("ns"));
+            insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                    "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+            append(insns, buildThreadMetricsAppend(metricVars, false));
+            insns.add(new LdcInsnNode(" result="));
             insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
                     "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
             if (returnType == null) {
@@ -1206,18 +1785,17 @@ public class KolobokTransformer {
                 insns.add(new VarInsnNode(Opcodes.ALOAD, localsMaskLastVar));
                 insns.add(new InsnNode(Opcodes.ICONST_0));
                 insns.add(new LdcInsnNode(config.maxArgLength));
-                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "formatLocalsHuman",
-                        "([Ljava/lang/Object;[Ljava/lang/String;[I[I[IZI)Ljava/lang/String;", false));
-                insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                        "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "appendLocalsHuman",
+                        "(Ljava/lang/StringBuilder;[Ljava/lang/Object;[Ljava/lang/String;[I[I[IZI)Ljava/lang/StringBuilder;",
+                        false));
                 insns.add(new LdcInsnNode("}"));
                 insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
                         "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
             }
         }
 
-        insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString",
-                "()Ljava/lang/String;", false));
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "releaseBuffer",
+                "(Ljava/lang/StringBuilder;)Ljava/lang/String;", false));
         insns.add(new FieldInsnNode(Opcodes.GETSTATIC, classNode.name, loggerField.name, loggerField.desc));
         insns.add(new InsnNode(Opcodes.SWAP));
         insns.add(new MethodInsnNode(Opcodes.INVOKEINTERFACE, "org/slf4j/Logger", config.logLevel.logMethod,
@@ -1228,7 +1806,8 @@ public class KolobokTransformer {
     }
 
     private InsnList buildErrorLog(ClassNode classNode, MethodNode method, FieldNode loggerField,
-                                   LogContextConfig config, int startTimeVar, int durationVar, int exceptionVar,
+                                   LogContextConfig config, int startTimeVar, int durationVar, ThreadMetricVars metricVars,
+                                   int exceptionVar,
                                    Type[] argTypes, int[] argIndexes, ParamLogConfig[] paramConfigs,
                                    int localsSnapshotVar, int localsNamesVar, int localsIgnoreVar,
                                    int localsMaskFirstVar, int localsMaskLastVar, boolean hasLocalAnnotations) {
@@ -1237,17 +1816,18 @@ public class KolobokTransformer {
         insns.add(new VarInsnNode(Opcodes.LLOAD, startTimeVar));
         insns.add(new InsnNode(Opcodes.LSUB));
         insns.add(new VarInsnNode(Opcodes.LSTORE, durationVar));
+        append(insns, buildThreadMetricsEnd(metricVars));
 
         String methodDisplay = buildMethodDisplayName(classNode, method, config.logFormat);
-        insns.add(new TypeInsnNode(Opcodes.NEW, "java/lang/StringBuilder"));
-        insns.add(new InsnNode(Opcodes.DUP));
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "acquireBuffer",
+                "()Ljava/lang/StringBuilder;", false));
         if (config.logFormat.jsonFormat) {
             insns.add(new LdcInsnNode("{\"type\":\"error\",\"method\":\"" + escapeJson(methodDisplay) + "\""));
         } else {
             insns.add(new LdcInsnNode("[KLB] ERROR " + methodDisplay));
         }
-        insns.add(new MethodInsnNode(Opcodes.INVOKESPECIAL, "java/lang/StringBuilder", "<init>",
-                "(Ljava/lang/String;)V", false));
+        insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
 
         if (config.logFormat.jsonFormat) {
             append(insns, buildTraceIdAppendJson());
@@ -1269,6 +1849,7 @@ public class KolobokTransformer {
             insns.add(new VarInsnNode(Opcodes.LLOAD, durationVar));
             insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
                     "(J)Ljava/lang/StringBuilder;", false));
+            append(insns, buildThreadMetricsAppend(metricVars, true));
             if (config.logArgs) {
                 insns.add(new LdcInsnNode(",\"args\":"));
                 insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
@@ -1276,10 +1857,8 @@ public class KolobokTransformer {
                 append(insns, buildAnnotatedArgsArray(argTypes, argIndexes, paramConfigs, true, config.maxArgLength));
                 insns.add(new LdcInsnNode(config.mask));
                 insns.add(new LdcInsnNode(config.maxArgLength));
-                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "formatArgsJson",
-                        "([Ljava/lang/Object;Ljava/lang/String;I)Ljava/lang/String;", false));
-                insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                        "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "appendArgsJson",
+                        "(Ljava/lang/StringBuilder;[Ljava/lang/Object;Ljava/lang/String;I)Ljava/lang/StringBuilder;", false));
             }
             if (hasLocalAnnotations && (config.logLocalsOnException || config.logLocals)) {
                 insns.add(new LdcInsnNode(",\"locals\":"));
@@ -1292,10 +1871,9 @@ public class KolobokTransformer {
                 insns.add(new VarInsnNode(Opcodes.ALOAD, localsMaskLastVar));
                 insns.add(new InsnNode(Opcodes.ICONST_1));
                 insns.add(new LdcInsnNode(config.maxArgLength));
-                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "formatLocalsJson",
-                        "([Ljava/lang/Object;[Ljava/lang/String;[I[I[IZI)Ljava/lang/String;", false));
-                insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                        "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "appendLocalsJson",
+                        "(Ljava/lang/StringBuilder;[Ljava/lang/Object;[Ljava/lang/String;[I[I[IZI)Ljava/lang/StringBuilder;",
+                        false));
             }
             insns.add(new LdcInsnNode(",\"error\":\""));
             insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
@@ -1303,10 +1881,8 @@ public class KolobokTransformer {
             insns.add(new VarInsnNode(Opcodes.ALOAD, exceptionVar));
             insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/String", "valueOf",
                     "(Ljava/lang/Object;)Ljava/lang/String;", false));
-            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "escapeJson",
-                    "(Ljava/lang/String;)Ljava/lang/String;", false));
-            insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                    "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "appendJsonEscaped",
+                    "(Ljava/lang/StringBuilder;Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
             insns.add(new LdcInsnNode("\"}"));
             insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
                     "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
@@ -1333,6 +1909,7 @@ public class KolobokTransformer {
             insns.add(new LdcInsnNode("ns"));
             insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
                     "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+            append(insns, buildThreadMetricsAppend(metricVars, false));
             if (config.logArgs) {
                 insns.add(new LdcInsnNode(" args="));
                 insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
@@ -1340,10 +1917,8 @@ public class KolobokTransformer {
                 append(insns, buildAnnotatedArgsArray(argTypes, argIndexes, paramConfigs, true, config.maxArgLength));
                 insns.add(new LdcInsnNode(config.mask));
                 insns.add(new LdcInsnNode(config.maxArgLength));
-                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "formatArgs",
-                        "([Ljava/lang/Object;Ljava/lang/String;I)Ljava/lang/String;", false));
-                insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                        "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "appendArgs",
+                        "(Ljava/lang/StringBuilder;[Ljava/lang/Object;Ljava/lang/String;I)Ljava/lang/StringBuilder;", false));
             }
             if (hasLocalAnnotations && (config.logLocalsOnException || config.logLocals)) {
                 insns.add(new LdcInsnNode(" locals={"));
@@ -1356,10 +1931,9 @@ public class KolobokTransformer {
                 insns.add(new VarInsnNode(Opcodes.ALOAD, localsMaskLastVar));
                 insns.add(new InsnNode(Opcodes.ICONST_1));
                 insns.add(new LdcInsnNode(config.maxArgLength));
-                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "formatLocalsHuman",
-                        "([Ljava/lang/Object;[Ljava/lang/String;[I[I[IZI)Ljava/lang/String;", false));
-                insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                        "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "appendLocalsHuman",
+                        "(Ljava/lang/StringBuilder;[Ljava/lang/Object;[Ljava/lang/String;[I[I[IZI)Ljava/lang/StringBuilder;",
+                        false));
                 insns.add(new LdcInsnNode("}"));
                 insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
                         "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
@@ -1374,8 +1948,8 @@ public class KolobokTransformer {
                     "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
         }
 
-        insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString",
-                "()Ljava/lang/String;", false));
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "releaseBuffer",
+                "(Ljava/lang/StringBuilder;)Ljava/lang/String;", false));
 
         insns.add(new FieldInsnNode(Opcodes.GETSTATIC, classNode.name, loggerField.name, loggerField.desc));
         insns.add(new InsnNode(Opcodes.SWAP));
@@ -1387,7 +1961,8 @@ public class KolobokTransformer {
 
     private InsnList buildHeatMapLog(ClassNode classNode, MethodNode method, FieldNode loggerField,
                                      int linesVar, int countsVar, int traceVar, LogContextConfig config,
-                                     int durationVar, boolean isException) {
+                                     int durationVar, ThreadMetricVars metricVars, int jfrEventVar,
+                                     boolean isException) {
         InsnList insns = new InsnList();
         LabelNode slowSkip = new LabelNode();
         if (config.slowThresholdMs > 0) {
@@ -1396,23 +1971,33 @@ public class KolobokTransformer {
             insns.add(new InsnNode(Opcodes.LCMP));
             insns.add(new JumpInsnNode(Opcodes.IFLT, slowSkip));
         }
-        insns.add(new VarInsnNode(Opcodes.ALOAD, traceVar));
-        insns.add(new VarInsnNode(Opcodes.ALOAD, linesVar));
-        insns.add(new VarInsnNode(Opcodes.ALOAD, countsVar));
-
-        if (config.logDuration) {
-            insns.add(new VarInsnNode(Opcodes.LLOAD, durationVar));
-        } else {
-            insns.add(new LdcInsnNode(-1L));
-        }
-        insns.add(new LdcInsnNode(config.lineHeatMapOnException));
-        insns.add(new LdcInsnNode(isException));
+        if (config.logFormat.jfr) {
+            LabelNode format = new LabelNode();
+            // no recording enabled the event at entry: pop the trace without formatting the heat map
+            insns.add(new VarInsnNode(Opcodes.ALOAD, jfrEventVar));
+            insns.add(new JumpInsnNode(Opcodes.IFNONNULL, format));
+            append(insns, buildTraceExitArgs(linesVar, countsVar, traceVar, config, durationVar, isException));
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "unwind",
+                    "(Ljava/lang/Object;[I[IJZZ)V", false));
+            insns.add(new JumpInsnNode(Opcodes.GOTO, slowSkip));
+            insns.add(format);
+        }
+        append(insns, buildThreadMetricsRecord(metricVars, traceVar));
+        append(insns, buildTraceExitArgs(linesVar, countsVar, traceVar, config, durationVar, isException));
         insns.add(new LdcInsnNode(config.logFormat.jsonFormat));
         insns.add(new LdcInsnNode(config.logThreadId));
         insns.add(new LdcInsnNode(config.logThreadName));
-        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "exitFormatted",
-                "(Ljava/lang/Object;[I[IJZZZZZ)Ljava/lang/String;", false));
-
+        // the file sink encodes from the per-thread builder and returns null, or the line when it is not running
+        boolean toFile = config.traceFileSink && !config.logFormat.jfr;
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace",
+                toFile ? "exitToFile" : "exitFormatted", "(Ljava/lang/Object;[I[IJZZZZZ)Ljava/lang/String;", false));
+
+        if (config.logFormat.jfr) {
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextJfr", "heatMap",
+                    "(Ljava/lang/String;)V", false));
+            insns.add(slowSkip);
+            return insns;
+        }
         LabelNode skipNull = new LabelNode();
         LabelNode skipLog = new LabelNode();
         LabelNode done = new LabelNode();
@@ -1439,6 +2024,224 @@ public class KolobokTransformer {
         return insns;
     }
 
+    private InsnList buildTraceExitArgs(int linesVar, int countsVar, int traceVar, LogContextConfig config,
+                                        int durationVar, boolean isException) {
+        InsnList insns = new InsnList();
+        insns.add(new VarInsnNode(Opcodes.ALOAD, traceVar));
+        insns.add(new VarInsnNode(Opcodes.ALOAD, linesVar));
+        insns.add(new VarInsnNode(Opcodes.ALOAD, countsVar));
+        if (config.logDuration) {
+            insns.add(new VarInsnNode(Opcodes.LLOAD, durationVar));
+        } else {
+            insns.add(new LdcInsnNode(-1L));
+        }
+        insns.add(new LdcInsnNode(config.lineHeatMapOnException));
+        insns.add(new LdcInsnNode(isException));
+        return insns;
+    }
+
+    private InsnList buildJfrEnter(ClassNode classNode, MethodNode method, LogContextConfig config, int jfrEventVar,
+                                   Type[] argTypes, int[] argIndexes, ParamLogConfig[] paramConfigs) {
+        InsnList insns = new InsnList();
+        LabelNode skipLabel = new LabelNode();
+        insns.add(new InsnNode(Opcodes.ACONST_NULL));
+        insns.add(new VarInsnNode(Opcodes.ASTORE, jfrEventVar));
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextJfr", "isEnabled", "()Z", false));
+        insns.add(new JumpInsnNode(Opcodes.IFEQ, skipLabel));
+        insns.add(new LdcInsnNode(buildMethodDisplayName(classNode, method, config.logFormat)));
+        insns.add(new LdcInsnNode(config.tag == null ? "" : config.tag));
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextJfr", "begin",
+                "(Ljava/lang/String;Ljava/lang/String;)Ljava/lang/Object;", false));
+        insns.add(new VarInsnNode(Opcodes.ASTORE, jfrEventVar));
+        if (config.slowThresholdMs <= 0) {
+            insns.add(new VarInsnNode(Opcodes.ALOAD, jfrEventVar));
+            if (config.logArgs) {
+                append(insns, buildAnnotatedArgsArray(argTypes, argIndexes, paramConfigs, false, config.maxArgLength));
+                insns.add(new LdcInsnNode(config.mask));
+                insns.add(new LdcInsnNode(config.maxArgLength));
+                insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "formatArgsJson",
+                        "([Ljava/lang/Object;Ljava/lang/String;I)Ljava/lang/String;", false));
+            } else {
+                insns.add(new InsnNode(Opcodes.ACONST_NULL));
+            }
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextJfr", "enter",
+                    "(Ljava/lang/Object;Ljava/lang/String;)V", false));
+        }
+        insns.add(skipLabel);
+        return insns;
+    }
+
+    private InsnList buildJfrExit(LogContextConfig config, int startTimeVar, int durationVar, ThreadMetricVars metricVars,
+                                  int jfrEventVar, Type returnType, Integer returnVar) {
+        InsnList insns = new InsnList();
+        LabelNode skipLabel = new LabelNode();
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false));
+        insns.add(new VarInsnNode(Opcodes.LLOAD, startTimeVar));
+        insns.add(new InsnNode(Opcodes.LSUB));
+        insns.add(new VarInsnNode(Opcodes.LSTORE, durationVar));
+        append(insns, buildThreadMetricsEnd(metricVars));
+        if (config.slowThresholdMs > 0) {
+            insns.add(new VarInsnNode(Opcodes.LLOAD, durationVar));
+            insns.add(new LdcInsnNode(config.slowThresholdMs * 1_000_000L));
+            insns.add(new InsnNode(Opcodes.LCMP));
+            insns.add(new JumpInsnNode(Opcodes.IFLT, skipLabel));
+        }
+        insns.add(new VarInsnNode(Opcodes.ALOAD, jfrEventVar));
+        insns.add(new JumpInsnNode(Opcodes.IFNULL, skipLabel));
+        append(insns, buildJfrMetrics(metricVars, jfrEventVar));
+        insns.add(new VarInsnNode(Opcodes.ALOAD, jfrEventVar));
+        insns.add(new VarInsnNode(Opcodes.LLOAD, durationVar));
+        if (returnType == null) {
+            insns.add(new LdcInsnNode("void"));
+        } else {
+            insns.add(new VarInsnNode(returnType.getOpcode(Opcodes.ILOAD), returnVar));
+            boxValue(insns, returnType);
+            insns.add(new LdcInsnNode(config.resultMask));
+            pushInt(insns, config.maxResultLength);
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "formatResult",
+                    "(Ljava/lang/Object;Ljava/lang/String;I)Ljava/lang/String;", false));
+        }
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextJfr", "exit",
+                "(Ljava/lang/Object;JLjava/lang/String;)V", false));
+        insns.add(skipLabel);
+        return insns;
+    }
+
+    private InsnList buildJfrError(int startTimeVar, int durationVar, ThreadMetricVars metricVars, int jfrEventVar,
+                                   int exceptionVar) {
+        InsnList insns = new InsnList();
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false));
+        insns.add(new VarInsnNode(Opcodes.LLOAD, startTimeVar));
+        insns.add(new InsnNode(Opcodes.LSUB));
+        insns.add(new VarInsnNode(Opcodes.LSTORE, durationVar));
+        append(insns, buildThreadMetricsEnd(metricVars));
+        append(insns, buildJfrMetrics(metricVars, jfrEventVar));
+        insns.add(new VarInsnNode(Opcodes.ALOAD, jfrEventVar));
+        insns.add(new VarInsnNode(Opcodes.LLOAD, durationVar));
+        insns.add(new VarInsnNode(Opcodes.ALOAD, exceptionVar));
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextJfr", "error",
+                "(Ljava/lang/Object;JLjava/lang/Throwable;)V", false));
+        return insns;
+    }
+
+    private InsnList buildJfrMetrics(ThreadMetricVars metricVars, int jfrEventVar) {
+        InsnList insns = new InsnList();
+        if (metricVars.allocatedBytesVar < 0 && metricVars.cpuTimeVar < 0 && metricVars.contentionVar < 0) {
+            return insns;
+        }
+        insns.add(new VarInsnNode(Opcodes.ALOAD, jfrEventVar));
+        if (metricVars.allocatedBytesVar >= 0) {
+            insns.add(new VarInsnNode(Opcodes.LLOAD, metricVars.allocatedBytesDeltaVar));
+        } else {
+            insns.add(new LdcInsnNode(-1L));
+        }
+        if (metricVars.cpuTimeVar >= 0) {
+            insns.add(new VarInsnNode(Opcodes.LLOAD, metricVars.cpuTimeDeltaVar));
+        } else {
+            insns.add(new LdcInsnNode(-1L));
+        }
+        if (metricVars.contentionVar >= 0) {
+            insns.add(new VarInsnNode(Opcodes.ALOAD, metricVars.contentionDeltaVar));
+        } else {
+            insns.add(new InsnNode(Opcodes.ACONST_NULL));
+        }
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextJfr", "metrics",
+                "(Ljava/lang/Object;JJ[J)V", false));
+        return insns;
+    }
+
+    private InsnList buildThreadMetricsStart(ThreadMetricVars metricVars) {
+        InsnList insns = new InsnList();
+        if (metricVars.allocatedBytesVar >= 0) {
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "threadAllocatedBytes",
+                    "()J", false));
+            insns.add(new VarInsnNode(Opcodes.LSTORE, metricVars.allocatedBytesVar));
+        }
+        if (metricVars.cpuTimeVar >= 0) {
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "threadCpuTimeNs",
+                    "()J", false));
+            insns.add(new VarInsnNode(Opcodes.LSTORE, metricVars.cpuTimeVar));
+        }
+        if (metricVars.contentionVar >= 0) {
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "contentionSnapshot",
+                    "()[J", false));
+            insns.add(new VarInsnNode(Opcodes.ASTORE, metricVars.contentionVar));
+        }
+        return insns;
+    }
+
+    private InsnList buildThreadMetricsEnd(ThreadMetricVars metricVars) {
+        InsnList insns = new InsnList();
+        if (metricVars.allocatedBytesVar >= 0) {
+            insns.add(new VarInsnNode(Opcodes.LLOAD, metricVars.allocatedBytesVar));
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "allocatedBytesSince",
+                    "(J)J", false));
+            insns.add(new VarInsnNode(Opcodes.LSTORE, metricVars.allocatedBytesDeltaVar));
+        }
+        if (metricVars.cpuTimeVar >= 0) {
+            insns.add(new VarInsnNode(Opcodes.LLOAD, metricVars.cpuTimeVar));
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "cpuTimeSince",
+                    "(J)J", false));
+            insns.add(new VarInsnNode(Opcodes.LSTORE, metricVars.cpuTimeDeltaVar));
+        }
+        if (metricVars.contentionVar >= 0) {
+            insns.add(new VarInsnNode(Opcodes.ALOAD, metricVars.contentionVar));
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "contentionSince",
+                    "([J)[J", false));
+            insns.add(new VarInsnNode(Opcodes.ASTORE, metricVars.contentionDeltaVar));
+        }
+        return insns;
+    }
+
+    private InsnList buildThreadMetricsAppend(ThreadMetricVars metricVars, boolean jsonFormat) {
+        InsnList insns = new InsnList();
+        if (metricVars.allocatedBytesVar >= 0) {
+            insns.add(new VarInsnNode(Opcodes.LLOAD, metricVars.allocatedBytesDeltaVar));
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace",
+                    jsonFormat ? "formatAllocatedBytesJson" : "formatAllocatedBytesHuman", "(J)Ljava/lang/String;", false));
+            insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                    "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+        }
+        if (metricVars.cpuTimeVar >= 0) {
+            insns.add(new VarInsnNode(Opcodes.LLOAD, metricVars.cpuTimeDeltaVar));
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace",
+                    jsonFormat ? "formatCpuTimeJson" : "formatCpuTimeHuman", "(J)Ljava/lang/String;", false));
+            insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                    "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+        }
+        if (metricVars.contentionVar >= 0) {
+            insns.add(new VarInsnNode(Opcodes.ALOAD, metricVars.contentionDeltaVar));
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace",
+                    jsonFormat ? "formatContentionJson" : "formatContentionHuman", "([J)Ljava/lang/String;", false));
+            insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                    "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+        }
+        return insns;
+    }
+
+    private InsnList buildThreadMetricsRecord(ThreadMetricVars metricVars, int traceVar) {
+        InsnList insns = new InsnList();
+        if (metricVars.allocatedBytesVar >= 0) {
+            insns.add(new VarInsnNode(Opcodes.ALOAD, traceVar));
+            insns.add(new VarInsnNode(Opcodes.LLOAD, metricVars.allocatedBytesDeltaVar));
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "recordAllocatedBytes",
+                    "(Ljava/lang/Object;J)V", false));
+        }
+        if (metricVars.cpuTimeVar >= 0) {
+            insns.add(new VarInsnNode(Opcodes.ALOAD, traceVar));
+            insns.add(new VarInsnNode(Opcodes.LLOAD, metricVars.cpuTimeDeltaVar));
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "recordCpuTime",
+                    "(Ljava/lang/Object;J)V", false));
+        }
+        if (metricVars.contentionVar >= 0) {
+            insns.add(new VarInsnNode(Opcodes.ALOAD, traceVar));
+            insns.add(new VarInsnNode(Opcodes.ALOAD, metricVars.contentionDeltaVar));
+            insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "recordContention",
+                    "(Ljava/lang/Object;[J)V", false));
+        }
+        return insns;
+    }
+
     private InsnList buildLineArrayInit(List<Integer> lineNumbers, int linesVar, int countsVar) {
         InsnList insns = new InsnList();
         pushInt(insns, lineNumbers.size());
@@ -1486,14 +2289,16 @@ public class KolobokTransformer {
 
     private InsnList buildTraceEnter(ClassNode classNode, MethodNode method, int traceVar, boolean subHeatMap,
                                      boolean aggregateChildren, boolean logArgs, String mask, int maxArgLength,
-                                     String tag, LogFormatConfig logFormat, Type[] argTypes, int[] argIndexes,
-                                     ParamLogConfig[] paramConfigs) {
+                                     String tag, String traceIdFormat, LogFormatConfig logFormat, Type[] argTypes,
+                                     int[] argIndexes, ParamLogConfig[] paramConfigs) {
         InsnList insns = new InsnList();
         String methodDescriptor = logFormat.jsonFormat
                 ? buildMethodDescriptor(classNode, method)
                 : buildShortMethodDescriptor(classNode, method);
         insns.add(new LdcInsnNode(methodDescriptor));
+        insns.add(new LdcInsnNode(BinaryTraceFormat.methodId(methodDescriptor)));
         insns.add(new LdcInsnNode(tag));
+        pushInt(insns, DebugLog.TraceIdFormat.valueOf(traceIdFormat).ordinal());
         insns.add(new LdcInsnNode(subHeatMap));
         insns.add(new LdcInsnNode(aggregateChildren));
         insns.add(new LdcInsnNode(logArgs));
@@ -1505,11 +2310,39 @@ public class KolobokTransformer {
             insns.add(new InsnNode(Opcodes.ACONST_NULL));
         }
         insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "enter",
-                "(Ljava/lang/String;Ljava/lang/String;ZZZLjava/lang/String;I[Ljava/lang/Object;)Ljava/lang/Object;", false));
+                "(Ljava/lang/String;ILjava/lang/String;IZZZLjava/lang/String;I[Ljava/lang/Object;)Ljava/lang/Object;",
+                false));
         insns.add(new VarInsnNode(Opcodes.ASTORE, traceVar));
         return insns;
     }
 
+    private InsnList buildArgSizesRecord(int traceVar, String mask, Type[] argTypes, int[] argIndexes,
+                                         ParamLogConfig[] paramConfigs) {
+        InsnList insns = new InsnList();
+        insns.add(new VarInsnNode(Opcodes.ALOAD, traceVar));
+        pushInt(insns, argTypes.length);
+        insns.add(new TypeInsnNode(Opcodes.ANEWARRAY, "java/lang/Object"));
+        for (int i = 0; i < argTypes.length; i++) {
+            Type type = argTypes[i];
+            ParamLogConfig paramConfig = paramConfigs != null && i < paramConfigs.length ? paramConfigs[i] : null;
+            // primitives have no structural size; ignored and masked parameters do not leak their length
+            if (type.getSort() != Type.OBJECT && type.getSort() != Type.ARRAY) {
+                continue;
+            }
+            if (paramConfig != null && (paramConfig.shouldIgnore(false) || paramConfig.hasMask())) {
+                continue;
+            }
+            insns.add(new InsnNode(Opcodes.DUP));
+            pushInt(insns, i);
+            insns.add(new VarInsnNode(Opcodes.ALOAD, argIndexes[i]));
+            insns.add(new InsnNode(Opcodes.AASTORE));
+        }
+        insns.add(new LdcInsnNode(mask));
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "recordArgSizes",
+                "(Ljava/lang/Object;[Ljava/lang/Object;Ljava/lang/String;)V", false));
+        return insns;
+    }
+
     private List<Integer> collectLineNumbers(InsnList instructions) {
         List<Integer> lines = new ArrayList<>();
         for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
@@ -1998,35 +2831,20 @@ public class KolobokTransformer {
     }
 
     private String escapeJson(String value) {
-        if (value == null) {
-            return "null";
-        }
-        StringBuilder sb = new StringBuilder(value.length() + 8);
-        for (int i = 0; i < value.length(); i++) {
-            char c = value.charAt(i);
-            if (c == '"' || c == '\\') {
-                sb.append('\\');
-            }
-            sb.append(c);
-        }
-        return sb.toString();
+        return JsonEscaper.escape(value);
     }
 
     private InsnList buildTraceIdAppendHuman() {
         InsnList insns = new InsnList();
-        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "formatTraceIdHuman",
-                "()Ljava/lang/String;", false));
-        insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "appendTraceIdHuman",
+                "(Ljava/lang/StringBuilder;)Ljava/lang/StringBuilder;", false));
         return insns;
     }
 
     private InsnList buildTraceIdAppendJson() {
         InsnList insns = new InsnList();
-        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "formatTraceIdJson",
-                "()Ljava/lang/String;", false));
-        insns.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-                "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false));
+        insns.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "org/kolobok/runtime/LogContextTrace", "appendTraceIdJson",
+                "(Ljava/lang/StringBuilder;)Ljava/lang/StringBuilder;", false));
         return insns;
     }
 
@@ -2571,6 +3389,19 @@ public class KolobokTransformer {
         }
     }
 
+    /**
+     * Start snapshots and the deltas computed from them live in separate locals, so an exit path that throws and
+     * reaches the handler still measures from the original snapshot.
+     */
+    private static final class ThreadMetricVars {
+        private int allocatedBytesVar = -1;
+        private int allocatedBytesDeltaVar = -1;
+        private int cpuTimeVar = -1;
+        private int cpuTimeDeltaVar = -1;
+        private int contentionVar = -1;
+        private int contentionDeltaVar = -1;
+    }
+
     private static class LogContextConfig {
         private final boolean lineHeatMap;
         private final boolean lineHeatMapOnException;
@@ -2591,13 +3422,25 @@ public class KolobokTransformer {
         private final boolean logHttpRequest;
         private final boolean logLocals;
         private final boolean logLocalsOnException;
+        private final boolean logAllocatedBytes;
+        private final boolean logCpuTime;
+        private final boolean logContention;
+        private final boolean traceFileSink;
+        private final boolean traceRingSink;
+        private final boolean logArgSizes;
+        private final String traceIdFormat;
 
         private LogContextConfig(boolean lineHeatMap, boolean lineHeatMapOnException, boolean subHeatMap, boolean logDuration,
                                  boolean aggregateChildren, boolean logArgs, String mask, int maxArgLength,
                                  String resultMask, int maxResultLength, String tag, long slowThresholdMs, LogLevelConfig logLevel,
                                  LogFormatConfig logFormat,
                                  boolean logThreadId, boolean logThreadName, boolean logHttpRequest, boolean logLocals,
-                                 boolean logLocalsOnException) {
+                                 boolean logLocalsOnException, boolean logAllocatedBytes, boolean logCpuTime,
+                                 boolean logContention,
+                                 boolean traceFileSink,
+                                 boolean traceRingSink,
+                                 boolean logArgSizes,
+                                 String traceIdFormat) {
             this.lineHeatMap = lineHeatMap;
             this.lineHeatMapOnException = lineHeatMapOnException;
             this.subHeatMap = subHeatMap;
@@ -2617,6 +3460,13 @@ public class KolobokTransformer {
             this.logHttpRequest = logHttpRequest;
             this.logLocals = logLocals;
             this.logLocalsOnException = logLocalsOnException;
+            this.logAllocatedBytes = logAllocatedBytes;
+            this.logCpuTime = logCpuTime;
+            this.logContention = logContention;
+            this.traceFileSink = traceFileSink;
+            this.traceRingSink = traceRingSink;
+            this.logArgSizes = logArgSizes;
+            this.traceIdFormat = traceIdFormat;
         }
     }
 
@@ -2650,13 +3500,17 @@ public class KolobokTransformer {
 
     private static final class LogFormatConfig {
         private final boolean jsonFormat;
+        private final boolean jfr;
 
-        private LogFormatConfig(boolean jsonFormat) {
+        private LogFormatConfig(boolean jsonFormat, boolean jfr) {
             this.jsonFormat = jsonFormat;
+            this.jfr = jfr;
         }
 
         private static LogFormatConfig fromName(String name) {
-            return new LogFormatConfig("JSON".equalsIgnoreCase(name));
+            // JFR events carry JSON payloads (args, heat map)
+            boolean jfr = "JFR".equalsIgnoreCase(name);
+            return new LogFormatConfig(jfr || "JSON".equalsIgnoreCase(name), jfr);
         }
     }
 }
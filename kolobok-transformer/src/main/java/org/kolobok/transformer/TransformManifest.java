@@ -0,0 +1,204 @@
+package org.kolobok.transformer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per classes directory record of what the previous incremental run produced: for every class file its size and
+ * modification time after the run, the SHA-256 of the compiler output (input) and of the file on disk (output), and
+ * which Kolobok annotations it references. Pristine inputs of transformed classes are kept under {@code originals/}
+ * so that a configuration change can re-transform them without a recompile: a new transformer redoes every annotated
+ * class, changed {@link DebugLogDefaults} only {@code @DebugLog} classes.
+ * <p>
+ * Text format: a {@code kolobok-manifest <version> <transformer> <defaults>} header with both fingerprints, then one
+ * tab-separated line per class. Anything unreadable is treated as a missing manifest, i.e. a full run.
+ */
+final class TransformManifest {
+    static final String FILE_NAME = "manifest.txt";
+    private static final String HEADER = "kolobok-manifest";
+    private static final int VERSION = 1;
+    // per class: no Kolobok annotation, @DebugLog, or only @SafeCall / @FindWithOptionalParams
+    static final char NONE = '-';
+    static final char DEBUG_LOG = 'D';
+    static final char OTHER = 'A';
+    private static final String ANNOTATION_FLAGS = "" + NONE + DEBUG_LOG + OTHER;
+
+    private final Path directory;
+    private final String transformerFingerprint;
+    private final String defaultsFingerprint;
+    private final Map<String, Entry> previous;
+    private final boolean transformerChanged;
+    private final boolean defaultsChanged;
+    private final Map<String, Entry> current = new ConcurrentHashMap<>();
+
+    private TransformManifest(Path directory, String transformerFingerprint, String defaultsFingerprint,
+                              Map<String, Entry> previous, boolean transformerChanged, boolean defaultsChanged) {
+        this.directory = directory;
+        this.transformerFingerprint = transformerFingerprint;
+        this.defaultsFingerprint = defaultsFingerprint;
+        this.previous = previous;
+        this.transformerChanged = transformerChanged;
+        this.defaultsChanged = defaultsChanged;
+    }
+
+    static TransformManifest load(Path directory, String transformerFingerprint, String defaultsFingerprint) {
+        TransformManifest empty = new TransformManifest(directory, transformerFingerprint, defaultsFingerprint,
+                Collections.emptyMap(), false, false);
+        Map<String, Entry> entries = new HashMap<>();
+        try {
+            List<String> lines = Files.readAllLines(directory.resolve(FILE_NAME), StandardCharsets.UTF_8);
+            String[] header = lines.isEmpty() ? new String[0] : lines.get(0).split(" ");
+            if (header.length != 4 || !HEADER.equals(header[0]) || !String.valueOf(VERSION).equals(header[1])) {
+                return empty;
+            }
+            for (int i = 1; i < lines.size(); i++) {
+                String[] parts = lines.get(i).split("\t");
+                if (parts.length != 6 || parts[5].length() != 1 || ANNOTATION_FLAGS.indexOf(parts[5].charAt(0)) < 0) {
+                    return empty;
+                }
+                entries.put(parts[0], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3],
+                        parts[4], parts[5].charAt(0)));
+            }
+            return new TransformManifest(directory, transformerFingerprint, defaultsFingerprint, entries,
+                    !transformerFingerprint.equals(header[2]), !defaultsFingerprint.equals(header[3]));
+        } catch (IOException | RuntimeException e) {
+            // missing or corrupted: transform everything and write a fresh manifest
+            return empty;
+        }
+    }
+
+    Entry previous(String path) {
+        return previous.get(path);
+    }
+
+    /**
+     * {@code true} when the configuration used for {@code entry} differs from this run's.
+     */
+    boolean isStale(Entry entry) {
+        return transformerChanged && entry.annotations != NONE || defaultsChanged && entry.annotations == DEBUG_LOG;
+    }
+
+    boolean isUpToDate(Entry entry, BasicFileAttributes attributes) {
+        return entry != null && !isStale(entry)
+                && entry.size == attributes.size() && entry.modified == modified(attributes);
+    }
+
+    void record(String path, Path classFile, String inputHash, String outputHash, char annotations)
+            throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(classFile, BasicFileAttributes.class);
+        current.put(path, new Entry(attributes.size(), modified(attributes), inputHash, outputHash, annotations));
+    }
+
+    void keep(String path, Entry entry) {
+        current.put(path, entry);
+    }
+
+    byte[] readOriginal(String path) throws IOException {
+        try {
+            return Files.readAllBytes(original(path));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    void writeOriginal(String path, byte[] bytes) throws IOException {
+        Path file = original(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, bytes);
+    }
+
+    void deleteOriginal(String path) throws IOException {
+        Files.deleteIfExists(original(path));
+    }
+
+    /**
+     * Writes the entries recorded in this run (sorted, so unchanged builds produce an identical file) and drops
+     * originals of classes that no longer exist.
+     */
+    void save() throws IOException {
+        for (String path : previous.keySet()) {
+            if (!current.containsKey(path)) {
+                deleteOriginal(path);
+            }
+        }
+        List<String> paths = new ArrayList<>(current.keySet());
+        Collections.sort(paths);
+        Files.createDirectories(directory);
+        Path temp = directory.resolve(FILE_NAME + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(HEADER + " " + VERSION + " " + transformerFingerprint + " " + defaultsFingerprint);
+            writer.write('\n');
+            for (String path : paths) {
+                Entry entry = current.get(path);
+                writer.write(path + "\t" + entry.size + "\t" + entry.modified + "\t" + entry.inputHash + "\t"
+                        + entry.outputHash + "\t" + entry.annotations);
+                writer.write('\n');
+            }
+        }
+        Files.move(temp, directory.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Path original(String path) {
+        return directory.resolve("originals").resolve(path);
+    }
+
+    private static long modified(BasicFileAttributes attributes) {
+        return attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    static final class Entry {
+        private final long size;
+        private final long modified;
+        private final String inputHash;
+        private final String outputHash;
+        private final char annotations;
+
+        private Entry(long size, long modified, String inputHash, String outputHash, char annotations) {
+            this.size = size;
+            this.modified = modified;
+            this.inputHash = inputHash;
+            this.outputHash = outputHash;
+            this.annotations = annotations;
+        }
+
+        String inputHash() {
+            return inputHash;
+        }
+
+        String outputHash() {
+            return outputHash;
+        }
+
+        char annotations() {
+            return annotations;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.kolobok.transformer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outcome counts of a {@link KolobokTransformer#transformDirectory} run. Safe to update from parallel transforms.
+ */
+public class TransformStats {
+    private final AtomicInteger upToDate = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+    private final AtomicInteger transformed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    void upToDate() {
+        upToDate.incrementAndGet();
+    }
+
+    void skipped() {
+        skipped.incrementAndGet();
+    }
+
+    void unchanged() {
+        unchanged.incrementAndGet();
+    }
+
+    void transformed() {
+        transformed.incrementAndGet();
+    }
+
+    void failed() {
+        failed.incrementAndGet();
+    }
+
+    void add(TransformStats other) {
+        upToDate.addAndGet(other.upToDate.get());
+        skipped.addAndGet(other.skipped.get());
+        unchanged.addAndGet(other.unchanged.get());
+        transformed.addAndGet(other.transformed.get());
+        failed.addAndGet(other.failed.get());
+    }
+
+    public int getClassCount() {
+        return upToDate.get() + skipped.get() + unchanged.get() + transformed.get() + failed.get();
+    }
+
+    /**
+     * Classes left alone because the manifest shows them unchanged since the last incremental run.
+     */
+    public int getUpToDateCount() {
+        return upToDate.get();
+    }
+
+    /**
+     * Classes rejected by the constant pool scan without building a class tree.
+     */
+    public int getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * Classes that reference a Kolobok annotation but needed no changes.
+     */
+    public int getUnchangedCount() {
+        return unchanged.get();
+    }
+
+    public int getTransformedCount() {
+        return transformed.get();
+    }
+
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    @Override
+    public String toString() {
+        int total = getClassCount();
+        int skippedCount = skipped.get();
+        StringBuilder sb = new StringBuilder();
+        sb.append(total).append(" classes: ").append(transformed.get()).append(" transformed, ")
+                .append(skippedCount).append(" skipped by constant pool scan");
+        if (total > 0) {
+            sb.append(" (").append(skippedCount * 100 / total).append("%)");
+        }
+        sb.append(", ").append(unchanged.get()).append(" unchanged");
+        if (upToDate.get() > 0) {
+            sb.append(", ").append(upToDate.get()).append(" up to date");
+        }
+        if (failed.get() > 0) {
+            sb.append(", ").append(failed.get()).append(" failed");
+        }
+        return sb.toString();
+    }
+}
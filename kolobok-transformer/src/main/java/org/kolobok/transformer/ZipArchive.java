@@ -0,0 +1,266 @@
+package org.kolobok.transformer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read side of a zip archive that lives in a region of a file: the whole file, or a STORED entry of an enclosing
+ * archive such as a jar under {@code BOOT-INF/lib}. Only the central directory is held in memory; entry data is read
+ * on demand so that untouched entries can be copied as raw bytes.
+ */
+final class ZipArchive {
+    static final int LOCAL_HEADER = 0x04034b50;
+    static final int CENTRAL_HEADER = 0x02014b50;
+    static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    static final int DATA_DESCRIPTOR = 0x08074b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_SIZE = 22;
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+    static final int FLAG_DATA_DESCRIPTOR = 0x08;
+
+    private final FileChannel channel;
+    private final long start;
+    private final long offsetShift;
+    private final long centralDirectory;
+    private final List<Entry> entries;
+    private final byte[] comment;
+
+    private ZipArchive(FileChannel channel, long start, long offsetShift, long centralDirectory, List<Entry> entries,
+                       byte[] comment) {
+        this.channel = channel;
+        this.start = start;
+        this.offsetShift = offsetShift;
+        this.centralDirectory = centralDirectory;
+        this.entries = entries;
+        this.comment = comment;
+    }
+
+    static ZipArchive open(FileChannel channel, long start, long length) throws IOException {
+        int tailLength = (int) Math.min(length, END_SIZE + 0xFFFF);
+        ByteBuffer tail = read(channel, start + length - tailLength, tailLength);
+        int end = -1;
+        for (int i = tailLength - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY && i + END_SIZE + u16(tail, i + 20) == tailLength) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new IOException("Not a zip archive: end of central directory not found");
+        }
+        int count = u16(tail, end + 10);
+        long size = u32(tail, end + 12);
+        long recordedOffset = u32(tail, end + 16);
+        if (count == 0xFFFF || size == 0xFFFFFFFFL || recordedOffset == 0xFFFFFFFFL) {
+            throw new IOException("ZIP64 archives are not supported");
+        }
+        byte[] comment = new byte[u16(tail, end + 20)];
+        copy(tail, end + END_SIZE, comment);
+        // offsets are recorded relative to the first entry when something (e.g. a launch script) precedes it
+        long centralDirectory = length - tailLength + end - size;
+        long offsetShift = centralDirectory - recordedOffset;
+        if (offsetShift < 0) {
+            throw new IOException("Corrupt zip archive: central directory offset out of range");
+        }
+
+        ByteBuffer directory = read(channel, start + centralDirectory, (int) size);
+        List<Entry> entries = new ArrayList<>(count);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_SIZE > size || directory.getInt(position) != CENTRAL_HEADER) {
+                throw new IOException("Corrupt zip archive: bad central directory entry " + i);
+            }
+            int recordLength = CENTRAL_HEADER_SIZE + u16(directory, position + 28) + u16(directory, position + 30)
+                    + u16(directory, position + 32);
+            byte[] header = new byte[recordLength];
+            copy(directory, position, header);
+            entries.add(new Entry(header));
+            position += recordLength;
+        }
+        return new ZipArchive(channel, start, offsetShift, centralDirectory, Collections.unmodifiableList(entries),
+                comment);
+    }
+
+    List<Entry> entries() {
+        return entries;
+    }
+
+    byte[] comment() {
+        return comment;
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Bytes before the first entry, relative to the archive start (e.g. a launch script).
+     */
+    long preambleLength() {
+        long first = centralDirectory;
+        for (Entry entry : entries) {
+            first = Math.min(first, offsetShift + entry.localHeaderOffset());
+        }
+        return first;
+    }
+
+    long start() {
+        return start;
+    }
+
+    long offsetShift() {
+        return offsetShift;
+    }
+
+    /**
+     * Absolute file position of the entry's local header.
+     */
+    long localHeaderPosition(Entry entry) {
+        return start + offsetShift + entry.localHeaderOffset();
+    }
+
+    /**
+     * Absolute file position of the entry's (possibly compressed) data.
+     */
+    long dataPosition(Entry entry) throws IOException {
+        long position = localHeaderPosition(entry);
+        ByteBuffer header = read(channel, position, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER) {
+            throw new IOException("Corrupt zip archive: bad local header for " + entry.name());
+        }
+        return position + LOCAL_HEADER_SIZE + u16(header, 26) + u16(header, 28);
+    }
+
+    /**
+     * Length of the local header, data and data descriptor of an entry, as copied verbatim.
+     */
+    long rawLength(Entry entry) throws IOException {
+        long dataEnd = dataPosition(entry) + entry.compressedSize();
+        long length = dataEnd - localHeaderPosition(entry);
+        if ((entry.flags() & FLAG_DATA_DESCRIPTOR) != 0) {
+            // the signature is optional
+            length += read(channel, dataEnd, 4).getInt(0) == DATA_DESCRIPTOR ? 16 : 12;
+        }
+        return length;
+    }
+
+    byte[] readContent(Entry entry) throws IOException {
+        if (entry.size() > Integer.MAX_VALUE - 8 || entry.compressedSize() > Integer.MAX_VALUE - 8) {
+            throw new IOException("Entry too large to transform in memory: " + entry.name());
+        }
+        ByteBuffer data = read(channel, dataPosition(entry), (int) entry.compressedSize());
+        if (entry.method() == STORED) {
+            return data.array();
+        }
+        if (entry.method() != DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.method() + " for " + entry.name());
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data.array());
+            byte[] content = new byte[(int) entry.size()];
+            int length = 0;
+            while (length < content.length && !inflater.finished()) {
+                int inflated = inflater.inflate(content, length, content.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != content.length) {
+                throw new IOException("Corrupt zip archive: " + entry.name() + " inflated to " + length
+                        + " bytes instead of " + content.length);
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt zip archive: cannot inflate " + entry.name(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of zip archive");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static void copy(ByteBuffer buffer, int index, byte[] target) {
+        ByteBuffer source = buffer.duplicate();
+        source.position(index);
+        source.get(target);
+    }
+
+    static int u16(ByteBuffer buffer, int index) {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+
+    static long u32(ByteBuffer buffer, int index) {
+        return buffer.getInt(index) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * A central directory record; the raw bytes are kept so they can be written back unchanged apart from patched
+     * fields.
+     */
+    static final class Entry {
+        private final byte[] header;
+        private final String name;
+
+        private Entry(byte[] header) {
+            this.header = header;
+            this.name = new String(header, CENTRAL_HEADER_SIZE, u16(buffer(), 28), StandardCharsets.UTF_8);
+        }
+
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        byte[] header() {
+            return header.clone();
+        }
+
+        String name() {
+            return name;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        int flags() {
+            return u16(buffer(), 8);
+        }
+
+        int method() {
+            return u16(buffer(), 10);
+        }
+
+        long compressedSize() {
+            return u32(buffer(), 20);
+        }
+
+        long size() {
+            return u32(buffer(), 24);
+        }
+
+        long localHeaderOffset() {
+            return u32(buffer(), 42);
+        }
+    }
+}
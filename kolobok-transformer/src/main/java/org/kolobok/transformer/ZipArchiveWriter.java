@@ -0,0 +1,163 @@
+package org.kolobok.transformer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Write side of {@link ZipArchive}. Entries are either copied verbatim from a source archive or written anew; the
+ * central directory keeps each entry's original record apart from the fields that changed.
+ */
+final class ZipArchiveWriter {
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    private final FileChannel out;
+    private final long offsetShift;
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    private int count;
+
+    /**
+     * @param offsetShift subtracted from file positions when recording offsets, to keep the source's convention for
+     *                    archives with a preamble
+     */
+    ZipArchiveWriter(FileChannel out, long offsetShift) {
+        this.out = out;
+        this.offsetShift = offsetShift;
+    }
+
+    void copyPreamble(ZipArchive archive) throws IOException {
+        transfer(archive.channel(), archive.start(), archive.preambleLength());
+    }
+
+    void copy(ZipArchive archive, ZipArchive.Entry entry) throws IOException {
+        long offset = out.position();
+        transfer(archive.channel(), archive.localHeaderPosition(entry), archive.rawLength(entry));
+        ByteBuffer header = ByteBuffer.wrap(entry.header()).order(ByteOrder.LITTLE_ENDIAN);
+        addCentralRecord(header, offset);
+    }
+
+    /**
+     * Writes {@code content} DEFLATED in place of {@code entry}.
+     */
+    void write(ZipArchive.Entry entry, byte[] content) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2 + 64);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+        long offset = out.position();
+        writeLocalHeader(entry, ZipArchive.DEFLATED, crc.getValue(), compressed.size(), content.length);
+        writeFully(ByteBuffer.wrap(compressed.toByteArray()));
+        addCentralRecord(patch(entry, ZipArchive.DEFLATED, crc.getValue(), compressed.size(), content.length), offset);
+    }
+
+    /**
+     * Writes the archive in {@code source} STORED in place of {@code entry}, as Spring Boot requires for nested jars.
+     */
+    void writeStored(ZipArchive.Entry entry, FileChannel source) throws IOException {
+        long size = source.size();
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER);
+        for (long position = 0; position < size; ) {
+            buffer.clear();
+            int read = source.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + entry.name());
+            }
+            buffer.flip();
+            crc.update(buffer);
+            position += read;
+        }
+        long offset = out.position();
+        writeLocalHeader(entry, ZipArchive.STORED, crc.getValue(), size, size);
+        transfer(source, 0, size);
+        addCentralRecord(patch(entry, ZipArchive.STORED, crc.getValue(), size, size), offset);
+    }
+
+    void finish(byte[] comment) throws IOException {
+        long offset = out.position();
+        byte[] directory = centralDirectory.toByteArray();
+        writeFully(ByteBuffer.wrap(directory));
+        ByteBuffer end = ByteBuffer.allocate(ZipArchive.END_SIZE + comment.length).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(ZipArchive.END_OF_CENTRAL_DIRECTORY)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) count)
+                .putShort((short) count)
+                .putInt(directory.length)
+                .putInt((int) (offset - offsetShift))
+                .putShort((short) comment.length)
+                .put(comment);
+        writeFully(end.flip());
+    }
+
+    private void writeLocalHeader(ZipArchive.Entry entry, int method, long crc, long compressedSize, long size)
+            throws IOException {
+        ByteBuffer central = entry.buffer();
+        int nameLength = ZipArchive.u16(central, 28);
+        ByteBuffer header = ByteBuffer.allocate(ZipArchive.LOCAL_HEADER_SIZE + nameLength)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(ZipArchive.LOCAL_HEADER)
+                .putShort(central.getShort(6))
+                .putShort((short) (entry.flags() & ~ZipArchive.FLAG_DATA_DESCRIPTOR))
+                .putShort((short) method)
+                .putShort(central.getShort(12))
+                .putShort(central.getShort(14))
+                .putInt((int) crc)
+                .putInt((int) compressedSize)
+                .putInt((int) size)
+                .putShort((short) nameLength)
+                .putShort((short) 0)
+                .put(entry.header(), ZipArchive.CENTRAL_HEADER_SIZE, nameLength);
+        writeFully(header.flip());
+    }
+
+    private static ByteBuffer patch(ZipArchive.Entry entry, int method, long crc, long compressedSize, long size) {
+        ByteBuffer header = ByteBuffer.wrap(entry.header()).order(ByteOrder.LITTLE_ENDIAN);
+        header.putShort(8, (short) (entry.flags() & ~ZipArchive.FLAG_DATA_DESCRIPTOR))
+                .putShort(10, (short) method)
+                .putInt(16, (int) crc)
+                .putInt(20, (int) compressedSize)
+                .putInt(24, (int) size);
+        return header;
+    }
+
+    private void addCentralRecord(ByteBuffer header, long offset) throws IOException {
+        if (offset - offsetShift > 0xFFFFFFFFL || count == 0xFFFE) {
+            throw new IOException("Transformed archive would need ZIP64, which is not supported");
+        }
+        header.putInt(42, (int) (offset - offsetShift));
+        centralDirectory.write(header.array(), 0, header.capacity());
+        count++;
+    }
+
+    private void transfer(FileChannel source, long position, long length) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            long transferred = source.transferTo(position, end - position, out);
+            if (transferred <= 0) {
+                throw new IOException("Unexpected end of zip archive");
+            }
+            position += transferred;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
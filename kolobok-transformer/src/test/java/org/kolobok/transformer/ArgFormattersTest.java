@@ -0,0 +1,113 @@
+package org.kolobok.transformer;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kolobok.runtime.ArgFormatters;
+import org.kolobok.runtime.LogContextTrace;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ArgFormattersTest {
+
+    @After
+    public void resetRegistry() {
+        ArgFormatters.reset();
+    }
+
+    @Test
+    public void stopsRenderingLargeCollectionsAtTheLimit() {
+        AtomicInteger touched = new AtomicInteger();
+        List<Object> huge = new AbstractList<Object>() {
+            @Override
+            public Object get(int index) {
+                touched.incrementAndGet();
+                return index < 10 ? index : new LazyEntity();
+            }
+
+            @Override
+            public int size() {
+                return 50_000;
+            }
+        };
+
+        String formatted = LogContextTrace.formatArgs(new Object[]{huge}, "", 20);
+
+        assertThat(formatted).isEqualTo("[[0, 1, 2, 3, 4, 5, 6...]");
+        assertThat(touched.get()).isLessThan(10);
+    }
+
+    @Test
+    public void matchesToStringTruncationForBuiltIns() {
+        List<Integer> list = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            list.add(i);
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("name", "kolobok");
+        map.put("items", Arrays.asList(1, 2, 3));
+        map.put("maybe", Optional.of("x"));
+
+        for (int limit : new int[]{0, 1, 5, 17, 200}) {
+            assertThat(ArgFormatters.format(list, limit)).isEqualTo(truncate(list.toString(), limit));
+            assertThat(ArgFormatters.format(map, limit)).isEqualTo(truncate(map.toString(), limit));
+        }
+        assertThat(ArgFormatters.format(Optional.empty(), 200)).isEqualTo("Optional.empty");
+        assertThat(ArgFormatters.format(new StringBuilder("abcdef"), 3)).isEqualTo("abc...");
+        assertThat(ArgFormatters.format(Collections.singletonMap("k", null), 200)).isEqualTo("{k=null}");
+    }
+
+    @Test
+    public void rendersArraysAndBytes() {
+        assertThat(ArgFormatters.format(new int[]{1, 2, 3}, 200)).isEqualTo("[1, 2, 3]");
+        assertThat(ArgFormatters.format(new Object[]{"a", new long[]{4L}, null}, 200)).isEqualTo("[a, [4], null]");
+        assertThat(ArgFormatters.format(new byte[]{0x0a, (byte) 0xff}, 200)).isEqualTo("byte[2]{0aff}");
+        assertThat(ArgFormatters.format(new byte[4096], 12)).isEqualTo("byte[4096]{0...");
+    }
+
+    @Test
+    public void usesRegisteredFormattersForArgsResultsAndLocals() {
+        ArgFormatters.register(LazyEntity.class, (value, out, limit) -> out.append("LazyEntity#").append(value.id));
+
+        assertThat(LogContextTrace.formatArgs(new Object[]{new LazyEntity()}, "", 200)).isEqualTo("[LazyEntity#42]");
+        assertThat(LogContextTrace.formatResult(Collections.singletonList(new LazyEntity()), "", 200))
+                .isEqualTo("[LazyEntity#42]");
+        assertThat(LogContextTrace.formatLocalsHuman(new Object[]{new LazyEntity()}, new String[]{"entity"},
+                null, null, null, false, 200)).isEqualTo("entity=LazyEntity#42");
+        assertThat(LogContextTrace.formatResult(new LazyEntity(), "3,0", 200)).isEqualTo("Laz***");
+    }
+
+    @Test
+    public void prefersNearestRegistrationAndRefreshesCache() {
+        assertThat(ArgFormatters.format(Arrays.asList(1, 2), 200)).isEqualTo("[1, 2]");
+
+        ArgFormatters.register(List.class, (value, out, limit) -> out.append("list of ").append(value.size()));
+        assertThat(ArgFormatters.format(Arrays.asList(1, 2), 200)).isEqualTo("list of 2");
+        assertThat(ArgFormatters.format(Collections.singleton(1), 200)).isEqualTo("[1]");
+
+        ArgFormatters.unregister(List.class);
+        assertThat(ArgFormatters.format(Arrays.asList(1, 2), 200)).isEqualTo("[1, 2]");
+    }
+
+    private static String truncate(String value, int limit) {
+        return value.length() <= limit ? value : value.substring(0, limit) + "...";
+    }
+
+    static class LazyEntity {
+        final int id = 42;
+
+        @Override
+        public String toString() {
+            throw new IllegalStateException("lazy initialization outside of a session");
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.kolobok.transformer;
+
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ClassHierarchyTest {
+
+    @Test
+    public void computesFramesFromClasspathHeadersWithoutLoadingClasses() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-hierarchy");
+        Path depJar = buildDependencyJar(tempDir);
+        Path classesDir = tempDir.resolve("classes");
+        Path source = write(tempDir.resolve("src"), "sample/Picker.java",
+                "package sample;",
+                "",
+                "import dep.Left;",
+                "import dep.Right;",
+                "import org.kolobok.annotation.DebugLog;",
+                "import org.slf4j.Logger;",
+                "import org.slf4j.LoggerFactory;",
+                "",
+                "public class Picker {",
+                "    private static final Logger log = LoggerFactory.getLogger(Picker.class);",
+                "",
+                "    @DebugLog",
+                "    public String pick(boolean left) {",
+                "        return (left ? new Left() : new Right()).name();",
+                "    }",
+                "}");
+        compileSources(Collections.singletonList(source), classesDir,
+                System.getProperty("java.class.path") + File.pathSeparator + depJar);
+        Path classFile = classesDir.resolve("sample/Picker.class");
+        byte[] original = Files.readAllBytes(classFile);
+
+        // dep.* is not visible to the transformer's class loader
+        assertThatThrownBy(() -> new KolobokTransformer().transformDirectory(classesDir))
+                .isInstanceOf(TypeNotPresentException.class);
+        Files.write(classFile, original);
+
+        KolobokTransformer transformer = new KolobokTransformer();
+        transformer.setClasspath(Collections.singletonList(depJar));
+        assertThat(transformer.transformDirectory(classesDir).getTransformedCount()).isEqualTo(1);
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classesDir.toUri().toURL(), depJar.toUri().toURL()},
+                Thread.currentThread().getContextClassLoader())) {
+            Class<?> clazz = loader.loadClass("sample.Picker");
+            Object instance = clazz.getDeclaredConstructor().newInstance();
+            Method pick = clazz.getMethod("pick", boolean.class);
+            assertThat(pick.invoke(instance, true)).isEqualTo("left");
+            assertThat(pick.invoke(instance, false)).isEqualTo("right");
+        }
+    }
+
+    @Test
+    public void resolvesCommonSuperClassesAcrossJarsDirectoriesAndJdk() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-hierarchy-api");
+        Path depJar = buildDependencyJar(tempDir);
+        Path appDir = tempDir.resolve("app");
+        compileSources(Collections.singletonList(write(tempDir.resolve("app-src"), "app/Special.java",
+                "package app;",
+                "",
+                "public class Special extends dep.Left {",
+                "}")), appDir, depJar.toString());
+
+        try (ClassHierarchy hierarchy = new ClassHierarchy(Arrays.asList(appDir, depJar))) {
+            assertThat(hierarchy.getCommonSuperClass("dep/Left", "dep/Right")).isEqualTo("dep/Base");
+            assertThat(hierarchy.getCommonSuperClass("app/Special", "dep/Right")).isEqualTo("dep/Base");
+            assertThat(hierarchy.getCommonSuperClass("app/Special", "dep/Left")).isEqualTo("dep/Left");
+            assertThat(hierarchy.getCommonSuperClass("app/Special", "dep/Marker")).isEqualTo("dep/Marker");
+            assertThat(hierarchy.getCommonSuperClass("dep/Left", "java/lang/String")).isEqualTo("java/lang/Object");
+            assertThat(hierarchy.getCommonSuperClass("java/lang/Integer", "java/lang/Long"))
+                    .isEqualTo("java/lang/Number");
+            assertThat(hierarchy.find("dep/Marker").isInterface()).isTrue();
+            assertThat(hierarchy.find("dep/Missing")).isNull();
+            assertThatThrownBy(() -> hierarchy.getCommonSuperClass("dep/Left", "dep/Missing"))
+                    .isInstanceOf(TypeNotPresentException.class)
+                    .hasMessageContaining("dep.Missing");
+        }
+    }
+
+    private Path buildDependencyJar(Path tempDir) throws IOException {
+        Path srcDir = tempDir.resolve("dep-src");
+        List<Path> sources = Arrays.asList(
+                write(srcDir, "dep/Marker.java", "package dep;", "", "public interface Marker {", "}"),
+                write(srcDir, "dep/Base.java",
+                        "package dep;",
+                        "",
+                        "public abstract class Base {",
+                        "    public abstract String name();",
+                        "}"),
+                write(srcDir, "dep/Left.java",
+                        "package dep;",
+                        "",
+                        "public class Left extends Base implements Marker {",
+                        "    public String name() {",
+                        "        return \"left\";",
+                        "    }",
+                        "}"),
+                write(srcDir, "dep/Right.java",
+                        "package dep;",
+                        "",
+                        "public class Right extends Base implements Marker {",
+                        "    public String name() {",
+                        "        return \"right\";",
+                        "    }",
+                        "}"));
+        Path depClasses = tempDir.resolve("dep-classes");
+        compileSources(sources, depClasses, "");
+        Path jar = tempDir.resolve("dep.jar");
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar));
+             Stream<Path> files = Files.walk(depClasses)) {
+            for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                out.putNextEntry(new JarEntry(depClasses.relativize(file).toString().replace(File.separatorChar, '/')));
+                out.write(Files.readAllBytes(file));
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    private Path write(Path srcDir, String path, String... lines) throws IOException {
+        Path file = srcDir.resolve(path);
+        Files.createDirectories(file.getParent());
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write((String.join("\n", lines) + "\n").getBytes());
+        }
+        return file;
+    }
+
+    private void compileSources(List<Path> sources, Path classesDir, String classpath) throws IOException {
+        Files.createDirectories(classesDir);
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        List<File> files = sources.stream().map(Path::toFile).collect(Collectors.toList());
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(files);
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", classpath
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.kolobok.transformer;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CopyThroughTransformTest {
+
+    @Test
+    public void copiesUntouchedMethodsWithoutRecomputingFrames() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-copy-through");
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Files.createDirectories(srcDir.resolve("sample"));
+        Files.createDirectories(classesDir);
+
+        writeSources(srcDir);
+        compileSources(srcDir, classesDir);
+
+        Path classFile = classesDir.resolve("sample/Mixed.class");
+        ClassNode before = readClassNode(Files.readAllBytes(classFile));
+        // computing frames for pick() would need Left/Right, which the transformer cannot load
+        new KolobokTransformer().transformClassFile(classFile);
+        ClassNode after = readClassNode(Files.readAllBytes(classFile));
+
+        // method order is kept
+        assertThat(after.methods).extracting(m -> m.name)
+                .containsExactlyElementsOf(before.methods.stream().map(m -> m.name).collect(Collectors.toList()));
+        assertThat(findMethod(after, "pick").instructions.size())
+                .isEqualTo(findMethod(before, "pick").instructions.size());
+        assertThat(findMethod(after, "traced").instructions.size())
+                .isGreaterThan(findMethod(before, "traced").instructions.size());
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classesDir.toUri().toURL()},
+                Thread.currentThread().getContextClassLoader())) {
+            Class<?> clazz = loader.loadClass("sample.Mixed");
+            Object instance = clazz.getDeclaredConstructor().newInstance();
+            Method traced = clazz.getMethod("traced", int.class);
+            assertThat(traced.invoke(instance, 41)).isEqualTo(42);
+            Method pick = clazz.getMethod("pick", boolean.class);
+            assertThat(pick.invoke(instance, true).getClass().getSimpleName()).isEqualTo("Left");
+            assertThat(pick.invoke(instance, false).getClass().getSimpleName()).isEqualTo("Right");
+        }
+    }
+
+    private void writeSources(Path srcDir) throws IOException {
+        String mixed = String.join("\n",
+                "package sample;",
+                "",
+                "import org.kolobok.annotation.DebugLog;",
+                "import org.slf4j.Logger;",
+                "import org.slf4j.LoggerFactory;",
+                "",
+                "public class Mixed {",
+                "    private static final Logger log = LoggerFactory.getLogger(Mixed.class);",
+                "",
+                "    @DebugLog",
+                "    public int traced(int value) {",
+                "        return value + 1;",
+                "    }",
+                "",
+                "    public Object pick(boolean left) {",
+                "        Object picked;",
+                "        if (left) {",
+                "            picked = new Left();",
+                "        } else {",
+                "            picked = new Right();",
+                "        }",
+                "        return picked;",
+                "    }",
+                "}",
+                "",
+                "class Left {",
+                "}",
+                "",
+                "class Right {",
+                "}",
+                ""
+        );
+        Files.writeString(srcDir.resolve("sample/Mixed.java"), mixed);
+    }
+
+    private void compileSources(Path srcDir, Path classesDir) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(
+                Arrays.asList(srcDir.resolve("sample/Mixed.java").toFile())
+        );
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+
+    private MethodNode findMethod(ClassNode classNode, String name) {
+        return classNode.methods.stream().filter(m -> m.name.equals(name)).findFirst().orElseThrow();
+    }
+
+    private ClassNode readClassNode(byte[] bytes) {
+        ClassReader reader = new ClassReader(bytes);
+        ClassNode node = new ClassNode();
+        reader.accept(node, 0);
+        return node;
+    }
+}
@@ -0,0 +1,204 @@
+package org.kolobok.transformer;
+
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeterministicOutputTest {
+    private static final int METHODS = 24;
+
+    @Test
+    public void separateJvmsProduceIdenticalBytes() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-deterministic");
+        Path classesDir = tempDir.resolve("classes");
+        compileSources(writeCorpus(tempDir.resolve("src")), classesDir);
+        Path input = tempDir.resolve("corpus.jar");
+        jar(classesDir, input);
+
+        Path first = tempDir.resolve("first.jar");
+        Path second = tempDir.resolve("second.jar");
+        transformInChildJvm(input, first);
+        // a different identity hash code scheme, so hash-ordered collections would iterate differently
+        transformInChildJvm(input, second, "-XX:+IgnoreUnrecognizedVMOptions", "-XX:+UnlockExperimentalVMOptions",
+                "-XX:hashCode=3");
+
+        Map<String, String> hashes = classHashes(first);
+        assertThat(hashes).hasSize(3);
+        assertThat(classHashes(second)).isEqualTo(hashes);
+        assertThat(Files.readAllBytes(second)).isEqualTo(Files.readAllBytes(first));
+
+        // the directory transform in this JVM writes the same classes
+        new KolobokTransformer().transformDirectory(classesDir);
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            byte[] transformed = Files.readAllBytes(classesDir.resolve(entry.getKey()));
+            assertThat(TransformManifest.hash(transformed)).as(entry.getKey()).isEqualTo(entry.getValue());
+        }
+    }
+
+    private static void transformInChildJvm(Path input, Path output, String... jvmOptions) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(Arrays.asList(jvmOptions));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(KolobokCli.class.getName());
+        command.add(input.toString());
+        command.add(output.toString());
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String log;
+        try (InputStream in = process.getInputStream()) {
+            log = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertThat(process.waitFor(60, TimeUnit.SECONDS)).isTrue();
+        assertThat(process.exitValue()).as(log).isZero();
+    }
+
+    private static Map<String, String> classHashes(Path jar) throws IOException {
+        Map<String, String> hashes = new TreeMap<>();
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            for (ZipEntry entry : zip.stream().collect(Collectors.toList())) {
+                try (InputStream in = zip.getInputStream(entry)) {
+                    hashes.put(entry.getName(), TransformManifest.hash(in.readAllBytes()));
+                }
+            }
+        }
+        return hashes;
+    }
+
+    private static void jar(Path classesDir, Path jar) throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(classesDir)) {
+            files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar))) {
+            for (Path file : files) {
+                out.putNextEntry(new ZipEntry(classesDir.relativize(file).toString().replace(File.separatorChar, '/')));
+                out.write(Files.readAllBytes(file));
+                out.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Many {@code @DebugLog} methods with varying options, plus {@code @SafeCall} and
+     * {@code @FindWithOptionalParams} types.
+     */
+    private static List<Path> writeCorpus(Path srcDir) throws IOException {
+        Files.createDirectories(srcDir.resolve("sample"));
+        StringBuilder service = new StringBuilder(String.join("\n",
+                "package sample;",
+                "",
+                "import org.kolobok.annotation.DebugLog;",
+                "",
+                "public class Service {",
+                "    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Service.class);",
+                ""));
+        for (int i = 0; i < METHODS; i++) {
+            String options;
+            switch (i % 4) {
+                case 0:
+                    options = "";
+                    break;
+                case 1:
+                    options = "(logLocals = true)";
+                    break;
+                case 2:
+                    options = "(lineHeatMap = true)";
+                    break;
+                default:
+                    options = "(logFormat = DebugLog.LogFormat.JSON, logDuration = true)";
+                    break;
+            }
+            service.append(String.join("\n",
+                    "    @DebugLog" + options,
+                    "    public String method" + i + "(String name, int count) {",
+                    "        String result = name + count;",
+                    "        if (count > " + i + ") {",
+                    "            return result.trim();",
+                    "        }",
+                    "        return result;",
+                    "    }",
+                    ""));
+        }
+        service.append("}\n");
+        String safeCall = String.join("\n",
+                "package sample;",
+                "",
+                "import org.kolobok.annotation.SafeCall;",
+                "",
+                "public class SafeService {",
+                "    public int length(@SafeCall String name) {",
+                "        return name.trim().length();",
+                "    }",
+                "}",
+                "");
+        String repository = String.join("\n",
+                "package sample;",
+                "",
+                "import org.kolobok.annotation.FindWithOptionalParams;",
+                "",
+                "public interface Repository {",
+                "    @FindWithOptionalParams",
+                "    Iterable<String> findByIdAndNameAndAge(Long id, String name, Integer age);",
+                "}",
+                "");
+        List<Path> sources = new ArrayList<>();
+        sources.add(Files.writeString(srcDir.resolve("sample/Service.java"), service.toString()));
+        sources.add(Files.writeString(srcDir.resolve("sample/SafeService.java"), safeCall));
+        sources.add(Files.writeString(srcDir.resolve("sample/Repository.java"), repository));
+        return sources;
+    }
+
+    private static void compileSources(List<Path> sources, Path classesDir) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+        Files.createDirectories(classesDir);
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        List<File> files = sources.stream().map(Path::toFile).collect(Collectors.toList());
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(files);
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.kolobok.transformer;
+
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class InMemoryTransformTest {
+
+    @Test
+    public void transformsBytesWithoutTouchingFiles() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-in-memory");
+        Path classesDir = compile(tempDir);
+        Path traced = classesDir.resolve("sample/Traced.class");
+        byte[] tracedBytes = Files.readAllBytes(traced);
+
+        KolobokTransformer transformer = new KolobokTransformer();
+        byte[] transformed = transformer.transform("sample/Traced", tracedBytes);
+
+        assertThat(transformer.transform("sample/Plain", Files.readAllBytes(classesDir.resolve("sample/Plain.class"))))
+                .isNull();
+        assertThat(Files.readAllBytes(traced)).isEqualTo(tracedBytes);
+        transformer.transformClassFile(traced);
+        assertThat(transformed).isEqualTo(Files.readAllBytes(traced));
+    }
+
+    @Test
+    public void transformsConcurrentlyWithIdenticalResults() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-in-memory-threads");
+        byte[] tracedBytes = Files.readAllBytes(compile(tempDir).resolve("sample/Traced.class"));
+        KolobokTransformer transformer = new KolobokTransformer();
+        byte[] expected = transformer.transform("sample/Traced", tracedBytes);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Callable<byte[]>> calls = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                calls.add(() -> transformer.transform("sample/Traced", tracedBytes));
+            }
+            for (Future<byte[]> result : executor.invokeAll(calls)) {
+                assertThat(result.get()).isEqualTo(expected);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void batchPassesEveryEntryThroughInOrder() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-in-memory-batch");
+        Path classesDir = compile(tempDir);
+        List<ClassEntry> input = new ArrayList<>();
+        for (String name : Arrays.asList("sample/Plain.class", "sample/Traced.class", "sample/SafeLocal.class")) {
+            input.add(new ClassEntry(name, Files.readAllBytes(classesDir.resolve(name))));
+        }
+
+        List<ClassEntry> output = new ArrayList<>();
+        TransformStats stats = new KolobokTransformer().transformClasses(input.iterator(), output::add);
+
+        assertThat(stats.getTransformedCount()).isEqualTo(2);
+        assertThat(stats.getSkippedCount()).isEqualTo(1);
+        assertThat(output).extracting(ClassEntry::getName)
+                .containsExactly("sample/Plain.class", "sample/Traced.class", "sample/SafeLocal.class");
+        assertThat(output.get(0)).isSameAs(input.get(0));
+        assertThat(output.get(1).getBytes()).isNotEqualTo(input.get(1).getBytes());
+        assertThat(output.get(2).getBytes()).isNotEqualTo(input.get(2).getBytes());
+    }
+
+    @Test
+    public void failureNamesTheClass() {
+        byte[] broken = {(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, 0};
+        assertThatThrownBy(() -> new KolobokTransformer().transform("sample/Broken", broken))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageStartingWith("Failed to transform sample/Broken");
+    }
+
+    private Path compile(Path tempDir) throws IOException {
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Files.createDirectories(srcDir.resolve("sample"));
+        List<Path> sources = new ArrayList<>();
+        sources.add(write(srcDir, "Plain",
+                "public class Plain {",
+                "    public int twice(int value) {",
+                "        return value * 2;",
+                "    }",
+                "}"));
+        sources.add(write(srcDir, "Traced",
+                "import org.kolobok.annotation.DebugLog;",
+                "import org.slf4j.Logger;",
+                "import org.slf4j.LoggerFactory;",
+                "",
+                "public class Traced {",
+                "    private static final Logger log = LoggerFactory.getLogger(Traced.class);",
+                "    @DebugLog",
+                "    public int work(int value) {",
+                "        return value + 1;",
+                "    }",
+                "}"));
+        sources.add(write(srcDir, "SafeLocal",
+                "import java.util.List;",
+                "import org.kolobok.annotation.SafeCall;",
+                "",
+                "public class SafeLocal {",
+                "    public int safeLocal() {",
+                "        @SafeCall List<String> names = null;",
+                "        @SafeCall int count = names.size();",
+                "        return count;",
+                "    }",
+                "}"));
+        compileSources(sources, classesDir);
+        return classesDir;
+    }
+
+    private Path write(Path srcDir, String name, String... lines) throws IOException {
+        Path file = srcDir.resolve("sample/" + name + ".java");
+        Files.writeString(file, "package sample;\n\n" + String.join("\n", lines) + "\n");
+        return file;
+    }
+
+    private void compileSources(List<Path> sources, Path classesDir) throws IOException {
+        Files.createDirectories(classesDir);
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        List<File> files = sources.stream().map(Path::toFile).collect(Collectors.toList());
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(files);
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.kolobok.transformer;
+
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IncrementalTransformTest {
+
+    @Test
+    public void skipsUnchangedClassesAndRedoesDebugLogClassesOnDefaultsChange() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-incremental");
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Path manifestDir = tempDir.resolve("kolobok");
+        Files.createDirectories(srcDir.resolve("sample"));
+        List<Path> sources = writeSources(srcDir);
+        compileSources(sources, classesDir);
+        Path traced = classesDir.resolve("sample/Traced.class");
+        Path safe = classesDir.resolve("sample/SafeLocal.class");
+
+        TransformStats first = incremental(new DebugLogDefaults(), manifestDir).transformDirectory(classesDir);
+        assertThat(first.getTransformedCount()).isEqualTo(2);
+        assertThat(first.getSkippedCount()).isEqualTo(1);
+        assertThat(manifestDir.resolve("originals/sample/Traced.class")).exists();
+        assertThat(manifestDir.resolve("originals/sample/Plain.class")).doesNotExist();
+        byte[] tracedBytes = Files.readAllBytes(traced);
+        byte[] safeBytes = Files.readAllBytes(safe);
+
+        TransformStats second = incremental(new DebugLogDefaults(), manifestDir).transformDirectory(classesDir);
+        assertThat(second.getUpToDateCount()).isEqualTo(3);
+        assertThat(second.getClassCount()).isEqualTo(3);
+        assertThat(Files.readAllBytes(traced)).isEqualTo(tracedBytes);
+
+        // touched but identical content is still up to date
+        Files.setLastModifiedTime(traced, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+        assertThat(incremental(new DebugLogDefaults(), manifestDir).transformDirectory(classesDir)
+                .getUpToDateCount()).isEqualTo(3);
+
+        DebugLogDefaults changed = new DebugLogDefaults();
+        changed.setLineHeatMap(true);
+        TransformStats third = incremental(changed, manifestDir).transformDirectory(classesDir);
+        assertThat(third.getTransformedCount()).isEqualTo(1);
+        assertThat(third.getUpToDateCount()).isEqualTo(2);
+        assertThat(Files.readAllBytes(safe)).isEqualTo(safeBytes);
+
+        // same bytes as transforming freshly compiled classes with the new defaults
+        Path freshDir = tempDir.resolve("fresh");
+        compileSources(sources, freshDir);
+        new KolobokTransformer(changed).transformDirectory(freshDir);
+        assertThat(Files.readAllBytes(traced)).isNotEqualTo(tracedBytes)
+                .isEqualTo(Files.readAllBytes(freshDir.resolve("sample/Traced.class")));
+
+        Files.delete(traced);
+        incremental(changed, manifestDir).transformDirectory(classesDir);
+        assertThat(manifestDir.resolve("originals/sample/Traced.class")).doesNotExist();
+        assertThat(Files.readString(manifestDir.resolve(TransformManifest.FILE_NAME)))
+                .contains("sample/Plain.class", "sample/SafeLocal.class")
+                .doesNotContain("sample/Traced.class");
+    }
+
+    @Test
+    public void corruptedManifestFallsBackToFullRun() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-incremental-corrupt");
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Path manifestDir = tempDir.resolve("kolobok");
+        Files.createDirectories(srcDir.resolve("sample"));
+        compileSources(writeSources(srcDir), classesDir);
+        Files.createDirectories(manifestDir);
+        Files.writeString(manifestDir.resolve(TransformManifest.FILE_NAME), "kolobok-manifest 1 x y\nsample/Plain.class\t12\n");
+
+        TransformStats stats = incremental(new DebugLogDefaults(), manifestDir).transformDirectory(classesDir);
+
+        assertThat(stats.getUpToDateCount()).isZero();
+        assertThat(stats.getTransformedCount()).isEqualTo(2);
+        assertThat(Files.readAllLines(manifestDir.resolve(TransformManifest.FILE_NAME)))
+                .hasSize(4)
+                .first().asString().startsWith("kolobok-manifest 1 ");
+        assertThat(incremental(new DebugLogDefaults(), manifestDir).transformDirectory(classesDir)
+                .getUpToDateCount()).isEqualTo(3);
+    }
+
+    private KolobokTransformer incremental(DebugLogDefaults defaults, Path manifestDir) {
+        KolobokTransformer transformer = new KolobokTransformer(defaults);
+        transformer.setManifestDirectory(manifestDir);
+        return transformer;
+    }
+
+    private List<Path> writeSources(Path srcDir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        files.add(write(srcDir, "Plain",
+                "public class Plain {",
+                "    public int twice(int value) {",
+                "        return value * 2;",
+                "    }",
+                "}"));
+        files.add(write(srcDir, "Traced",
+                "import org.kolobok.annotation.DebugLog;",
+                "import org.slf4j.Logger;",
+                "import org.slf4j.LoggerFactory;",
+                "",
+                "public class Traced {",
+                "    private static final Logger log = LoggerFactory.getLogger(Traced.class);",
+                "    @DebugLog",
+                "    public int work(int value) {",
+                "        int total = value;",
+                "        total += 1;",
+                "        return total;",
+                "    }",
+                "}"));
+        files.add(write(srcDir, "SafeLocal",
+                "import java.util.List;",
+                "import org.kolobok.annotation.SafeCall;",
+                "",
+                "public class SafeLocal {",
+                "    public int safeLocal() {",
+                "        @SafeCall List<String> names = null;",
+                "        @SafeCall int count = names.size();",
+                "        return count;",
+                "    }",
+                "}"));
+        return files;
+    }
+
+    private Path write(Path srcDir, String name, String... lines) throws IOException {
+        Path file = srcDir.resolve("sample/" + name + ".java");
+        Files.writeString(file, "package sample;\n\n" + String.join("\n", lines) + "\n");
+        return file;
+    }
+
+    private void compileSources(List<Path> sources, Path classesDir) throws IOException {
+        Files.createDirectories(classesDir);
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        List<File> files = sources.stream().map(Path::toFile).collect(Collectors.toList());
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(files);
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package org.kolobok.transformer;
+
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JarTransformTest {
+    private static final String LAUNCH_SCRIPT = "#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n";
+
+    @Test
+    public void streamsSpringBootJarCopyingUntouchedEntriesRaw() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-jar");
+        Map<String, byte[]> app = compile(tempDir.resolve("app"), "sample", "Traced", "Plain");
+        byte[] acmeLib = jar(compile(tempDir.resolve("acme"), "acme", "LibTraced"));
+        byte[] otherLib = jar(compile(tempDir.resolve("other"), "other", "OtherTraced"));
+
+        Path input = tempDir.resolve("app.jar");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(input))) {
+            out.putNextEntry(new ZipEntry("BOOT-INF/"));
+            out.putNextEntry(new ZipEntry("BOOT-INF/classes/"));
+            for (Map.Entry<String, byte[]> entry : app.entrySet()) {
+                putDeflated(out, "BOOT-INF/classes/" + entry.getKey(), entry.getValue());
+            }
+            putDeflated(out, "BOOT-INF/classes/application.properties", "a=b\n".getBytes(StandardCharsets.UTF_8));
+            putStored(out, "BOOT-INF/lib/acme-core-1.0.jar", acmeLib);
+            putStored(out, "BOOT-INF/lib/other-1.0.jar", otherLib);
+        }
+        Path output = tempDir.resolve("out.jar");
+
+        JarTransformer jarTransformer = new JarTransformer(new KolobokTransformer());
+        jarTransformer.setLibraries(Collections.singletonList("acme-*.jar"));
+        TransformStats stats = jarTransformer.transform(input, output);
+
+        assertThat(stats.getTransformedCount()).isEqualTo(2);
+        assertThat(stats.getSkippedCount()).isEqualTo(1);
+        try (ZipFile before = new ZipFile(input.toFile()); ZipFile after = new ZipFile(output.toFile())) {
+            assertThat(after.stream().map(ZipEntry::getName).collect(Collectors.toList()))
+                    .isEqualTo(before.stream().map(ZipEntry::getName).collect(Collectors.toList()));
+            for (String untouched : Arrays.asList("BOOT-INF/classes/sample/Plain.class",
+                    "BOOT-INF/classes/application.properties", "BOOT-INF/lib/other-1.0.jar")) {
+                ZipEntry original = before.getEntry(untouched);
+                ZipEntry copied = after.getEntry(untouched);
+                assertThat(copied.getMethod()).isEqualTo(original.getMethod());
+                assertThat(copied.getCompressedSize()).isEqualTo(original.getCompressedSize());
+                assertThat(copied.getCrc()).isEqualTo(original.getCrc());
+            }
+            assertThat(read(after, "BOOT-INF/lib/other-1.0.jar")).isEqualTo(otherLib);
+
+            byte[] traced = app.get("sample/Traced.class");
+            assertThat(read(after, "BOOT-INF/classes/sample/Traced.class"))
+                    .isEqualTo(new KolobokTransformer().transform("sample/Traced", traced));
+
+            ZipEntry nested = after.getEntry("BOOT-INF/lib/acme-core-1.0.jar");
+            assertThat(nested.getMethod()).isEqualTo(ZipEntry.STORED);
+            Map<String, byte[]> nestedClasses = unjar(read(after, nested.getName()));
+            assertThat(nestedClasses.get("acme/LibTraced.class")).isNotEqualTo(unjar(acmeLib).get("acme/LibTraced.class"));
+        }
+    }
+
+    @Test
+    public void cliTransformsInPlaceKeepingLaunchScript() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-jar-cli");
+        Path jar = tempDir.resolve("app.jar");
+        try (OutputStream out = Files.newOutputStream(jar)) {
+            out.write(LAUNCH_SCRIPT.getBytes(StandardCharsets.UTF_8));
+            out.write(jar(compile(tempDir.resolve("app"), "sample", "Traced", "Plain")));
+        }
+
+        assertThat(KolobokCli.run(new String[]{jar.toString()})).isZero();
+
+        assertThat(new String(Files.readAllBytes(jar), 0, LAUNCH_SCRIPT.length(), StandardCharsets.UTF_8))
+                .isEqualTo(LAUNCH_SCRIPT);
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            assertThat(zip.size()).isEqualTo(2);
+            read(zip, "sample/Traced.class");
+        }
+        // already instrumented classes are left alone
+        assertThat(KolobokCli.run(new String[]{jar.toString(), tempDir.resolve("again.jar").toString()})).isZero();
+        assertThat(Files.readAllBytes(tempDir.resolve("again.jar"))).isEqualTo(Files.readAllBytes(jar));
+        assertThat(KolobokCli.run(new String[0])).isEqualTo(2);
+    }
+
+    @Test
+    public void resolvesLibraryTypesFromNestedJarsWithoutClasspath() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-jar-libs");
+        Path srcDir = tempDir.resolve("src");
+        Path libClasses = tempDir.resolve("lib-classes");
+        Path appClasses = tempDir.resolve("app-classes");
+        Files.createDirectories(srcDir.resolve("shapes"));
+        Files.createDirectories(srcDir.resolve("sample"));
+        Files.createDirectories(libClasses);
+        Files.createDirectories(appClasses);
+        Map<String, String> library = new LinkedHashMap<>();
+        library.put("Shape", "public class Shape { public String name() { return getClass().getSimpleName(); } }");
+        library.put("Circle", "public class Circle extends Shape { }");
+        library.put("Square", "public class Square extends Shape { }");
+        for (Map.Entry<String, String> entry : library.entrySet()) {
+            Files.writeString(srcDir.resolve("shapes/" + entry.getKey() + ".java"),
+                    "package shapes;\n\n" + entry.getValue() + "\n");
+        }
+        compileSources(library.keySet().stream().map(name -> srcDir.resolve("shapes/" + name + ".java"))
+                .collect(Collectors.toList()), libClasses, "");
+        // merging Circle and Square needs their common superclass, which only the nested jar has
+        Path picker = Files.writeString(srcDir.resolve("sample/Picker.java"), String.join("\n",
+                "package sample;",
+                "",
+                "public class Picker {",
+                "    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Picker.class);",
+                "",
+                "    @org.kolobok.annotation.DebugLog",
+                "    public String pick(boolean round) {",
+                "        shapes.Shape shape;",
+                "        if (round) {",
+                "            shape = new shapes.Circle();",
+                "        } else {",
+                "            shape = new shapes.Square();",
+                "        }",
+                "        return shape.name();",
+                "    }",
+                "}",
+                ""));
+        compileSources(Collections.singletonList(picker), appClasses, libClasses.toString());
+
+        Map<String, byte[]> libJar = new LinkedHashMap<>();
+        for (String name : library.keySet()) {
+            libJar.put("shapes/" + name + ".class", Files.readAllBytes(libClasses.resolve("shapes/" + name + ".class")));
+        }
+        Path input = tempDir.resolve("app.jar");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(input))) {
+            putDeflated(out, "BOOT-INF/classes/sample/Picker.class",
+                    Files.readAllBytes(appClasses.resolve("sample/Picker.class")));
+            putStored(out, "BOOT-INF/lib/shapes-1.0.jar", jar(libJar));
+        }
+        Path output = tempDir.resolve("out.jar");
+
+        assertThat(KolobokCli.run(new String[]{input.toString(), output.toString()})).isZero();
+
+        Path transformed = tempDir.resolve("transformed");
+        Files.createDirectories(transformed.resolve("sample"));
+        try (ZipFile zip = new ZipFile(output.toFile())) {
+            byte[] original = Files.readAllBytes(appClasses.resolve("sample/Picker.class"));
+            byte[] bytes = read(zip, "BOOT-INF/classes/sample/Picker.class");
+            assertThat(bytes).isNotEqualTo(original);
+            Files.write(transformed.resolve("sample/Picker.class"), bytes);
+        }
+        try (URLClassLoader loader = new URLClassLoader(
+                new URL[]{transformed.toUri().toURL(), libClasses.toUri().toURL()},
+                Thread.currentThread().getContextClassLoader())) {
+            Class<?> clazz = loader.loadClass("sample.Picker");
+            Object instance = clazz.getDeclaredConstructor().newInstance();
+            Method pick = clazz.getMethod("pick", boolean.class);
+            assertThat(pick.invoke(instance, true)).isEqualTo("Circle");
+            assertThat(pick.invoke(instance, false)).isEqualTo("Square");
+        }
+    }
+
+    private static void putDeflated(ZipOutputStream out, String name, byte[] content) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(content);
+        out.closeEntry();
+    }
+
+    private static void putStored(ZipOutputStream out, String name, byte[] content) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+    }
+
+    private static byte[] read(ZipFile zip, String name) throws IOException {
+        try (InputStream in = zip.getInputStream(zip.getEntry(name))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] jar(Map<String, byte[]> classes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                putDeflated(out, entry.getKey(), entry.getValue());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, byte[]> unjar(byte[] jar) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(jar))) {
+            for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                entries.put(entry.getName(), in.readAllBytes());
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Compiles one class per name; names ending in "Traced" get a {@code @DebugLog} method.
+     */
+    private Map<String, byte[]> compile(Path dir, String packageName, String... names) throws IOException {
+        Path srcDir = dir.resolve("src");
+        Path classesDir = dir.resolve("classes");
+        Files.createDirectories(srcDir.resolve(packageName));
+        Files.createDirectories(classesDir);
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        for (String name : names) {
+            boolean traced = name.endsWith("Traced");
+            String source = String.join("\n",
+                    "package " + packageName + ";",
+                    "",
+                    "public class " + name + " {",
+                    traced ? "    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger("
+                            + name + ".class);" : "",
+                    traced ? "    @org.kolobok.annotation.DebugLog" : "",
+                    "    public int twice(int value) {",
+                    "        return value * 2;",
+                    "    }",
+                    "}",
+                    "");
+            Files.writeString(srcDir.resolve(packageName + "/" + name + ".java"), source);
+        }
+        compileSources(Arrays.stream(names).map(name -> srcDir.resolve(packageName + "/" + name + ".java"))
+                .collect(Collectors.toList()), classesDir, "");
+        for (String name : names) {
+            String path = packageName + "/" + name + ".class";
+            classes.put(path, Files.readAllBytes(classesDir.resolve(path)));
+        }
+        return classes;
+    }
+
+    private void compileSources(List<Path> sources, Path classesDir, String extraClasspath) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        List<File> files = sources.stream().map(Path::toFile).collect(Collectors.toList());
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(files);
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", extraClasspath.isEmpty() ? System.getProperty("java.class.path")
+                        : extraClasspath + File.pathSeparator + System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.kolobok.transformer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.junit.Test;
+import org.kolobok.runtime.JsonEscaper;
+import org.kolobok.runtime.LogContextTrace;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JsonEscaperFuzzTest {
+    private static final JsonFactory JSON = new JsonFactory();
+
+    @Test
+    public void escapesControlCharactersWithShortForms() {
+        assertThat(JsonEscaper.escape("a\"b\\c\nd\re\tf\bg\fh\u0000i\u001fj\u007fk"))
+                .isEqualTo("a\\\"b\\\\c\\nd\\re\\tf\\bg\\fh\\u0000i\\u001fj\u007fk");
+        assertThat(JsonEscaper.escape("emoji 😀 ok")).isEqualTo("emoji 😀 ok");
+        assertThat(JsonEscaper.escape("lone \uD83D and \uDE00")).isEqualTo("lone \\ud83d and \\ude00");
+        String plain = "sample.Service#work(Ljava/lang/String;)V";
+        assertThat(JsonEscaper.escape(plain)).isSameAs(plain);
+        assertThat(JsonEscaper.escape(null)).isEqualTo("null");
+    }
+
+    @Test
+    public void randomStringsRoundTripThroughReferenceParser() throws IOException {
+        Random random = new Random(0x5EED);
+        for (int iteration = 0; iteration < 20_000; iteration++) {
+            String value = randomString(random, random.nextInt(40));
+            String json = '"' + JsonEscaper.escape(value) + '"';
+            byte[] utf8 = json.getBytes(StandardCharsets.UTF_8);
+            // escaped output never needs replacement characters when encoded
+            assertThat(new String(utf8, StandardCharsets.UTF_8)).isEqualTo(json);
+            try (JsonParser parser = JSON.createParser(utf8)) {
+                assertThat(parser.nextToken()).isEqualTo(JsonToken.VALUE_STRING);
+                assertThat(parser.getText()).as("iteration %d", iteration).isEqualTo(value);
+                assertThat(parser.nextToken()).isNull();
+            }
+        }
+    }
+
+    @Test
+    public void logPayloadsWithHostileArgumentsStayValidJson() throws IOException {
+        Random random = new Random(42);
+        for (int iteration = 0; iteration < 2_000; iteration++) {
+            Object[] args = {randomString(random, 20), random.nextInt(), Double.NaN,
+                    Float.POSITIVE_INFINITY, null, random.nextBoolean()};
+            assertValidJson(LogContextTrace.formatArgsJson(args, "", 200));
+
+            Object root = LogContextTrace.enter(randomString(random, 10), randomString(random, 5), false, true, true,
+                    "", 200, args);
+            assertValidJson(LogContextTrace.exitFormatted(root, new int[]{1}, new int[]{1}, 10L, false, false,
+                    true, false, false));
+        }
+    }
+
+    private static void assertValidJson(String json) throws IOException {
+        try (JsonParser parser = JSON.createParser(json.getBytes(StandardCharsets.UTF_8))) {
+            while (parser.nextToken() != null) {
+                parser.getText();
+            }
+        } catch (IOException e) {
+            throw new AssertionError("Invalid JSON: " + json, e);
+        }
+    }
+
+    private static String randomString(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(6)) {
+                case 0:
+                    sb.append((char) random.nextInt(0x20));
+                    break;
+                case 1:
+                    sb.append("\"\\/".charAt(random.nextInt(3)));
+                    break;
+                case 2:
+                    sb.append((char) (0xD800 + random.nextInt(0x800)));
+                    break;
+                case 3:
+                    sb.appendCodePoint(0x10000 + random.nextInt(0x100000));
+                    break;
+                case 4:
+                    sb.append((char) (0x80 + random.nextInt(0xD800 - 0x80)));
+                    break;
+                default:
+                    sb.append((char) (0x20 + random.nextInt(0x60)));
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+}
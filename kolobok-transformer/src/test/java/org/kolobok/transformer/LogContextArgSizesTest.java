@@ -0,0 +1,174 @@
+package org.kolobok.transformer;
+
+import org.junit.Test;
+import org.kolobok.runtime.LogContextTrace;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogContextArgSizesTest {
+
+    @Test
+    public void recordsSizesWithoutRenderingArguments() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-arg-sizes");
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Files.createDirectories(srcDir.resolve("sample"));
+        Files.createDirectories(classesDir);
+
+        writeSources(srcDir);
+        compileSources(srcDir, classesDir);
+
+        Path classFile = classesDir.resolve("sample/SampleService.class");
+        new KolobokTransformer().transformClassFile(classFile);
+
+        ClassNode classNode = readClassNode(classFile);
+        MethodNode work = findMethod(classNode, "work", "(Ljava/util/List;[BILjava/lang/String;)I");
+        assertThat(work).isNotNull();
+        assertThat(Arrays.stream(work.instructions.toArray())
+                .filter(node -> node instanceof MethodInsnNode)
+                .map(node -> ((MethodInsnNode) node).name))
+                .contains("recordArgSizes");
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classesDir.toUri().toURL()},
+                Thread.currentThread().getContextClassLoader())) {
+            Class<?> clazz = loader.loadClass("sample.SampleService");
+            Object instance = clazz.getDeclaredConstructor().newInstance();
+            Method method = clazz.getMethod("work", List.class, byte[].class, int.class, String.class);
+            assertThat(method.invoke(instance, new UnprintableList(3), new byte[16], 7, "secret")).isEqualTo(19);
+        }
+    }
+
+    @Test
+    public void heatMapIncludesSizesAndAggregatesMinMaxAvg() {
+        Object root = LogContextTrace.enter("sample.SampleService#work()V", "", false, true, false, "", 200, null);
+        LogContextTrace.recordArgSizes(root, new Object[]{"abcd", null, new int[5]}, "");
+        for (int size : new int[]{1, 4, 10}) {
+            Object child = LogContextTrace.enter("sample.SampleService#load(Ljava/util/List;)V", "", false, true,
+                    false, "", 200, null);
+            LogContextTrace.recordArgSizes(child, new Object[]{new UnprintableList(size),
+                    Collections.singletonMap("k", "v")}, "1");
+            LogContextTrace.exitFormatted(child, new int[]{20}, new int[]{1}, 1000L, false, false, true, false, false);
+        }
+        String json = LogContextTrace.exitFormatted(root, new int[]{10}, new int[]{1}, 3000L, false, false,
+                true, false, false);
+        assertThat(json).contains("\"argSizes\":[4,null,5]",
+                "\"argSizes\":[{\"min\":1,\"max\":10,\"avg\":5},null]");
+
+        root = LogContextTrace.enter("sample.SampleService#work()V", "", false, false, false, "", 200, null);
+        LogContextTrace.recordArgSizes(root, new Object[]{new byte[3], 1}, "");
+        String human = LogContextTrace.exitFormatted(root, new int[]{10}, new int[]{1}, 3000L, false, false,
+                false, false, false);
+        assertThat(human).contains("argSizes=[3, -]");
+    }
+
+    private void writeSources(Path srcDir) throws IOException {
+        String service = String.join("\n",
+                "package sample;",
+                "",
+                "import java.util.List;",
+                "import org.kolobok.annotation.DebugLog;",
+                "import org.kolobok.annotation.DebugLogMask;",
+                "import org.slf4j.Logger;",
+                "import org.slf4j.LoggerFactory;",
+                "",
+                "public class SampleService {",
+                "    private static final Logger log = LoggerFactory.getLogger(SampleService.class);",
+                "",
+                "    @DebugLog(lineHeatMap = true, logArgs = false, logArgSizes = true)",
+                "    public int work(List<String> items, byte[] payload, int n, @DebugLogMask(first = 1) String secret) {",
+                "        return items.size() + payload.length;",
+                "    }",
+                "}",
+                ""
+        );
+        Files.writeString(srcDir.resolve("sample/SampleService.java"), service);
+    }
+
+    private void compileSources(Path srcDir, Path classesDir) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(
+                Arrays.asList(srcDir.resolve("sample/SampleService.java").toFile())
+        );
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+
+    private ClassNode readClassNode(Path classFile) throws IOException {
+        byte[] bytes = Files.readAllBytes(classFile);
+        ClassReader reader = new ClassReader(bytes);
+        ClassNode node = new ClassNode();
+        reader.accept(node, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return node;
+    }
+
+    private MethodNode findMethod(ClassNode classNode, String name, String desc) {
+        Optional<MethodNode> method = classNode.methods.stream()
+                .filter(m -> m.name.equals(name) && m.desc.equals(desc))
+                .findFirst();
+        return method.orElse(null);
+    }
+
+    static final class UnprintableList extends AbstractList<String> {
+        private final int size;
+
+        UnprintableList(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public String get(int index) {
+            throw new AssertionError("arguments must not be rendered");
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            throw new AssertionError("arguments must not be rendered");
+        }
+    }
+}
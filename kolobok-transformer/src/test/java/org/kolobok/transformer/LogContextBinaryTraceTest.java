@@ -0,0 +1,190 @@
+package org.kolobok.transformer;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kolobok.runtime.BinaryTraceFormat;
+import org.kolobok.runtime.BinaryTraceSink;
+import org.kolobok.runtime.LogContextTrace;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogContextBinaryTraceTest {
+
+    @After
+    public void stopSink() {
+        BinaryTraceSink.stop();
+    }
+
+    @Test
+    public void decodesToSameJsonAsHeatMapLog() throws Exception {
+        Path file = Files.createTempDirectory("kolobok-binary").resolve("traces.klbt");
+        BinaryTraceSink.start(file);
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Object root = LogContextTrace.enter("Service#handle(ILjava/lang/String;)V",
+                    BinaryTraceFormat.methodId("Service#handle(ILjava/lang/String;)V"), "api", false, false, true,
+                    "", 200, new Object[]{-42 - i, "q\"uote", 1.5d, true, null});
+            Object child = LogContextTrace.enter("Repo#load()V", "", false, false, false, "", 200, null);
+            LogContextTrace.exitFormatted(child, new int[]{20, 21, 30}, new int[]{1, 1, 7}, 300L, false, false,
+                    true, false, false);
+            String json = LogContextTrace.exitFormatted(root, new int[]{10}, new int[]{1}, 1000L, false, false,
+                    true, false, false);
+            expected.add(json.replaceFirst("\",", "\",\"thread\":\"" + Thread.currentThread().getName() + "\","));
+        }
+        BinaryTraceSink.flush();
+
+        assertThat(decode(file)).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    public void internsMethodsSoRepeatedTracesStaySmall() throws Exception {
+        Path file = Files.createTempDirectory("kolobok-binary").resolve("traces.klbt");
+        BinaryTraceSink.start(file);
+
+        long jsonBytes = 0;
+        for (int i = 0; i < 1000; i++) {
+            Object root = LogContextTrace.enter("com.example.OrderService#placeOrder(Ljava/lang/String;)V", "", false,
+                    false, false, "", 200, null);
+            Object child = LogContextTrace.enter("com.example.OrderRepository#save(Lcom/example/Order;)V", "", false,
+                    false, false, "", 200, null);
+            LogContextTrace.exitFormatted(child, new int[]{40, 41}, new int[]{1, 1}, 1200L + i, false, false,
+                    true, false, false);
+            jsonBytes += LogContextTrace.exitFormatted(root, new int[]{10, 12}, new int[]{1, 1}, 5000L + i, false,
+                    false, true, false, false).length();
+        }
+        BinaryTraceSink.stop();
+
+        // ~5.5x: 422 JSON bytes vs ~77 per trace, ~45 of which are the unique UUID trace id and span id
+        assertThat(Files.size(file)).isLessThan(jsonBytes / 5);
+        assertThat(decode(file)).hasSize(1000);
+    }
+
+    @Test
+    public void transformerEmbedsStableMethodId() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-binary-transform");
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Files.createDirectories(srcDir.resolve("sample"));
+        Files.createDirectories(classesDir);
+
+        writeSources(srcDir);
+        compileSources(srcDir, classesDir);
+
+        Path classFile = classesDir.resolve("sample/SampleService.class");
+        KolobokTransformer transformer = new KolobokTransformer();
+        transformer.transformClassFile(classFile);
+
+        ClassNode classNode = new ClassNode();
+        new ClassReader(Files.readAllBytes(classFile)).accept(classNode, 0);
+        MethodNode work = classNode.methods.stream().filter(m -> m.name.equals("work")).findFirst().orElseThrow();
+        List<Object> constants = new ArrayList<>();
+        for (AbstractInsnNode insn : work.instructions) {
+            if (insn instanceof LdcInsnNode) {
+                constants.add(((LdcInsnNode) insn).cst);
+            }
+        }
+        assertThat(constants).contains(BinaryTraceFormat.methodId("sample.SampleService#work(I)I"));
+
+        Path file = tempDir.resolve("traces.klbt");
+        BinaryTraceSink.start(file);
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classesDir.toUri().toURL()},
+                Thread.currentThread().getContextClassLoader())) {
+            Class<?> clazz = loader.loadClass("sample.SampleService");
+            Object instance = clazz.getDeclaredConstructor().newInstance();
+            Method method = clazz.getMethod("work", int.class);
+            assertThat(method.invoke(instance, 3)).isEqualTo(6);
+        }
+        BinaryTraceSink.flush();
+
+        assertThat(decode(file)).singleElement().satisfies(json -> assertThat(json)
+                .contains("\"method\":\"sample.SampleService#work(I)I\"", "\"lineHeatMap\":{"));
+    }
+
+    private List<String> decode(Path file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(file)) {
+            BinaryTraceFormat.decode(in, new PrintStream(out, true, StandardCharsets.UTF_8));
+        }
+        String text = out.toString(StandardCharsets.UTF_8);
+        return text.isEmpty() ? List.of() : Arrays.asList(text.split("\\R"));
+    }
+
+    private void writeSources(Path srcDir) throws IOException {
+        String service = String.join("\n",
+                "package sample;",
+                "",
+                "import org.kolobok.annotation.DebugLog;",
+                "import org.slf4j.Logger;",
+                "import org.slf4j.LoggerFactory;",
+                "",
+                "public class SampleService {",
+                "    private static final Logger log = LoggerFactory.getLogger(SampleService.class);",
+                "",
+                "    @DebugLog(logFormat = DebugLog.LogFormat.JSON, lineHeatMap = true)",
+                "    public int work(int value) {",
+                "        int result = 0;",
+                "        for (int i = 0; i < value; i++) {",
+                "            result += 2;",
+                "        }",
+                "        return result;",
+                "    }",
+                "}",
+                ""
+        );
+        Files.writeString(srcDir.resolve("sample/SampleService.java"), service);
+    }
+
+    private void compileSources(Path srcDir, Path classesDir) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(
+                Arrays.asList(srcDir.resolve("sample/SampleService.java").toFile())
+        );
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+}
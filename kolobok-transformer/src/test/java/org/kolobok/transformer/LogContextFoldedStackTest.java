@@ -0,0 +1,75 @@
+package org.kolobok.transformer;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kolobok.runtime.FoldedStackSink;
+import org.kolobok.runtime.LogContextTrace;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class LogContextFoldedStackTest {
+
+    @After
+    public void stopSink() {
+        FoldedStackSink.stop();
+    }
+
+    @Test
+    public void accumulatesSelfTimeAsFoldedStacks() throws Exception {
+        Path file = Files.createTempDirectory("kolobok-folded").resolve("traces.folded");
+        FoldedStackSink.start(file, 0, false);
+
+        for (int i = 0; i < 2; i++) {
+            Object root = LogContextTrace.enter("Service#handle()V", "", false, false, false, "", 200, null);
+            Object child = LogContextTrace.enter("Repo#load(Ljava/lang/String;)V", "", false, false, false, "", 200, null);
+            LogContextTrace.exitFormatted(child, new int[]{20}, new int[]{1}, 300L, false, false, false, false, false);
+            LogContextTrace.exitFormatted(root, new int[]{10}, new int[]{1}, 1000L, false, false, false, false, false);
+        }
+        FoldedStackSink.flush();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertThat(lines).containsExactly(
+                "Service#handle()V 1400",
+                "Service#handle()V;Repo#load(Ljava/lang/String,)V 600");
+        assertThat(Files.readAllLines(file.resolveSibling("traces.folded.counts"), StandardCharsets.UTF_8))
+                .containsExactly(
+                        "Service#handle()V 2",
+                        "Service#handle()V;Repo#load(Ljava/lang/String,)V 2");
+    }
+
+    @Test
+    public void splitsSelfTimeByLineHits() throws Exception {
+        Path file = Files.createTempDirectory("kolobok-folded").resolve("traces.folded");
+        FoldedStackSink.start(file, 0, true);
+
+        Object root = LogContextTrace.enter("Service#handle()V", "", false, false, false, "", 200, null);
+        LogContextTrace.exitFormatted(root, new int[]{10, 11, 12}, new int[]{1, 3, 0}, 1000L, false, false,
+                false, false, false);
+
+        assertThat(FoldedStackSink.snapshot())
+                .containsEntry("Service#handle()V;Service#handle()V:10", 250L)
+                .containsEntry("Service#handle()V;Service#handle()V:11", 750L)
+                .hasSize(2);
+    }
+
+    @Test
+    public void keepsCallsWithoutDurationOutOfTimeStacks() throws Exception {
+        Path file = Files.createTempDirectory("kolobok-folded").resolve("traces.folded");
+        FoldedStackSink.start(file, 0, false);
+
+        Object root = LogContextTrace.enter("Service#handle()V", "", false, false, false, "", 200, null);
+        Object child = LogContextTrace.enter("Repo#load()V", "", false, false, false, "", 200, null);
+        LogContextTrace.exitFormatted(child, new int[0], new int[0], 300L, false, false, false, false, false);
+        LogContextTrace.exitFormatted(root, new int[0], new int[0], -1L, false, false, false, false, false);
+
+        assertThat(FoldedStackSink.snapshot()).containsOnly(entry("Service#handle()V;Repo#load()V", 300L));
+        assertThat(FoldedStackSink.countsSnapshot())
+                .containsOnly(entry("Service#handle()V", 1L), entry("Service#handle()V;Repo#load()V", 1L));
+    }
+}
@@ -1,6 +1,7 @@
 package org.kolobok.transformer;
 
 import org.junit.Test;
+import org.kolobok.runtime.LogContextTrace;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.MethodInsnNode;
@@ -54,6 +55,38 @@ public class LogContextHeatMapIntegrationTest {
         assertThat(hasExit).isTrue();
     }
 
+    @Test
+    public void computesSelfTimeAndCriticalPath() {
+        Object root = LogContextTrace.enter("sample.SampleService#work()V", "", false, true, false, "", 200, null);
+        Object fast = LogContextTrace.enter("sample.SampleService#fast()V", "", false, true, false, "", 200, null);
+        LogContextTrace.exitFormatted(fast, new int[0], new int[0], 100L, false, false, true, false, false);
+        Object slow = LogContextTrace.enter("sample.SampleService#slow()V", "", false, true, false, "", 200, null);
+        Object leaf = LogContextTrace.enter("sample.SampleService#leaf()V", "", false, true, false, "", 200, null);
+        LogContextTrace.exitFormatted(leaf, new int[0], new int[0], 150L, false, false, true, false, false);
+        LogContextTrace.exitFormatted(slow, new int[0], new int[0], 400L, false, false, true, false, false);
+        fast = LogContextTrace.enter("sample.SampleService#fast()V", "", false, true, false, "", 200, null);
+        LogContextTrace.exitFormatted(fast, new int[0], new int[0], 200L, false, false, true, false, false);
+        String json = LogContextTrace.exitFormatted(root, new int[0], new int[0], 1000L, false, false,
+                true, false, false);
+
+        assertThat(json).contains("\"method\":\"sample.SampleService#work()V\",\"count\":1,\"lineHeatMap\":{},"
+                + "\"durationNs\":1000,\"selfNs\":300,\"criticalPath\":true");
+        assertThat(json).contains("\"method\":\"sample.SampleService#fast()V\",\"count\":2,\"lineHeatMap\":{},"
+                + "\"durationNs\":300,\"selfNs\":300,\"children\"");
+        assertThat(json).contains("\"method\":\"sample.SampleService#slow()V\",\"count\":1,\"lineHeatMap\":{},"
+                + "\"durationNs\":400,\"selfNs\":250,\"criticalPath\":true");
+        assertThat(json).contains("\"method\":\"sample.SampleService#leaf()V\",\"count\":1,\"lineHeatMap\":{},"
+                + "\"durationNs\":150,\"selfNs\":150,\"criticalPath\":true");
+
+        root = LogContextTrace.enter("sample.SampleService#work()V", "", false, false, false, "", 200, null);
+        leaf = LogContextTrace.enter("sample.SampleService#leaf()V", "", false, false, false, "", 200, null);
+        LogContextTrace.exitFormatted(leaf, new int[0], new int[0], 150L, false, false, false, false, false);
+        String human = LogContextTrace.exitFormatted(root, new int[0], new int[0], 1000L, false, false,
+                false, false, false);
+        assertThat(human).contains("count=1 dur=1000ns self=850ns critical",
+                "leaf()V count=1 dur=150ns self=150ns critical");
+    }
+
     private void writeSources(Path srcDir) throws IOException {
         String service = String.join("\n",
                 "package sample;",
@@ -0,0 +1,225 @@
+package org.kolobok.transformer;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class LogContextJfrIntegrationTest {
+
+    @Test
+    public void emitsFlightRecorderEventsWithoutLoggerField() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-log-jfr");
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Files.createDirectories(srcDir.resolve("sample"));
+        Files.createDirectories(classesDir);
+
+        writeSources(srcDir);
+        compileSources(srcDir, classesDir);
+
+        Path classFile = classesDir.resolve("sample/SampleService.class");
+        KolobokTransformer transformer = new KolobokTransformer();
+        transformer.transformClassFile(classFile);
+
+        Path recordingFile = tempDir.resolve("trace.jfr");
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classesDir.toUri().toURL()},
+                Thread.currentThread().getContextClassLoader());
+             Recording recording = new Recording()) {
+            Class<?> clazz = loader.loadClass("sample.SampleService");
+            Object instance = clazz.getDeclaredConstructor().newInstance();
+            Method work = clazz.getMethod("work", int.class);
+            Method fail = clazz.getMethod("fail");
+
+            // no recording yet: instrumented code runs without emitting anything
+            assertThat(work.invoke(instance, 1)).isEqualTo(2);
+
+            recording.enable("org.kolobok.Trace");
+            recording.start();
+            assertThat(work.invoke(instance, 20)).isEqualTo(40);
+            assertThatThrownBy(() -> fail.invoke(instance))
+                    .isInstanceOf(InvocationTargetException.class)
+                    .hasCauseInstanceOf(IllegalStateException.class);
+            recording.stop();
+            recording.dump(recordingFile);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile).stream()
+                .filter(event -> "org.kolobok.Trace".equals(event.getEventType().getName()))
+                .collect(Collectors.toList());
+        List<String> kinds = events.stream().map(event -> event.getString("kind")).collect(Collectors.toList());
+        assertThat(kinds).containsExactlyInAnyOrder("enter", "exit", "heatmap", "enter", "error", "heatmap");
+
+        RecordedEvent enter = events.stream().filter(e -> "enter".equals(e.getString("kind"))
+                && e.getString("method").contains("work")).findFirst().orElseThrow();
+        assertThat(enter.getString("args")).isEqualTo("[20]");
+        assertThat(enter.getString("tag")).isEqualTo("jfr");
+
+        RecordedEvent exit = events.stream().filter(e -> "exit".equals(e.getString("kind"))).findFirst().orElseThrow();
+        assertThat(exit.getString("method")).isEqualTo("sample.SampleService#work(I)I");
+        assertThat(exit.getString("result")).isEqualTo("40");
+        assertThat(exit.getLong("durationNs")).isGreaterThan(0L);
+
+        RecordedEvent error = events.stream().filter(e -> "error".equals(e.getString("kind"))).findFirst().orElseThrow();
+        assertThat(error.getString("error")).isEqualTo("IllegalStateException:boom");
+
+        assertThat(events.stream().filter(e -> "heatmap".equals(e.getString("kind")))
+                .map(e -> e.getString("heatMap")))
+                .anySatisfy(heatMap -> assertThat(heatMap).contains("\"method\":\"sample.SampleService#work(I)I\""));
+    }
+
+    @Test
+    public void recordsThreadMetricsAndSkipsHeatMapFormattingWhenDisabled() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-log-jfr-metrics");
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Files.createDirectories(srcDir.resolve("sample"));
+        Files.createDirectories(classesDir);
+
+        writeSources(srcDir);
+        compileSources(srcDir, classesDir);
+
+        Path classFile = classesDir.resolve("sample/SampleService.class");
+        new KolobokTransformer().transformClassFile(classFile);
+
+        // the heat map string is only built once an enabled event was begun
+        ClassNode classNode = new ClassNode();
+        new ClassReader(Files.readAllBytes(classFile)).accept(classNode, 0);
+        MethodNode work = classNode.methods.stream().filter(m -> "work".equals(m.name)).findFirst().orElseThrow();
+        List<String> calls = new ArrayList<>();
+        for (AbstractInsnNode insn : work.instructions) {
+            if (insn instanceof MethodInsnNode && "org/kolobok/runtime/LogContextTrace".equals(((MethodInsnNode) insn).owner)) {
+                calls.add(((MethodInsnNode) insn).name);
+            }
+        }
+        assertThat(calls).containsSubsequence("unwind", "exitFormatted");
+
+        Path recordingFile = tempDir.resolve("trace.jfr");
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classesDir.toUri().toURL()},
+                Thread.currentThread().getContextClassLoader());
+             Recording recording = new Recording()) {
+            Class<?> clazz = loader.loadClass("sample.SampleService");
+            Object instance = clazz.getDeclaredConstructor().newInstance();
+            Method workMethod = clazz.getMethod("work", int.class);
+            Method measured = clazz.getMethod("measured", int.class);
+
+            // unwound without a recording, so the next trace starts from an empty stack
+            assertThat(workMethod.invoke(instance, 1)).isEqualTo(2);
+
+            recording.enable("org.kolobok.Trace");
+            recording.start();
+            assertThat(workMethod.invoke(instance, 2)).isEqualTo(4);
+            assertThat(measured.invoke(instance, 1000)).isEqualTo(1000);
+            recording.stop();
+            recording.dump(recordingFile);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile).stream()
+                .filter(event -> "org.kolobok.Trace".equals(event.getEventType().getName()))
+                .collect(Collectors.toList());
+        assertThat(events.stream().filter(e -> "heatmap".equals(e.getString("kind")))
+                .map(e -> e.getString("heatMap")))
+                .singleElement()
+                .satisfies(heatMap -> assertThat(heatMap)
+                        .contains("\"method\":\"sample.SampleService#work(I)I\",\"tag\":\"jfr\",\"count\":1,")
+                        .contains("\"children\":[]"));
+
+        RecordedEvent exit = events.stream().filter(e -> "exit".equals(e.getString("kind"))
+                && e.getString("method").contains("measured")).findFirst().orElseThrow();
+        assertThat(exit.getLong("allocatedBytes")).isGreaterThan(0L);
+        assertThat(exit.getDuration("cpuTimeNs").toNanos()).isGreaterThanOrEqualTo(0L);
+        assertThat(exit.getLong("blockedCount")).isGreaterThanOrEqualTo(0L);
+        assertThat(exit.getLong("waitedCount")).isGreaterThanOrEqualTo(0L);
+
+        RecordedEvent plainExit = events.stream().filter(e -> "exit".equals(e.getString("kind"))
+                && e.getString("method").contains("work")).findFirst().orElseThrow();
+        assertThat(plainExit.getLong("allocatedBytes")).isEqualTo(-1L);
+    }
+
+    private void writeSources(Path srcDir) throws IOException {
+        String service = String.join("\n",
+                "package sample;",
+                "",
+                "import org.kolobok.annotation.DebugLog;",
+                "",
+                "public class SampleService {",
+                "",
+                "    @DebugLog(logFormat = DebugLog.LogFormat.JFR, lineHeatMap = true, logDuration = true, tag = \"jfr\")",
+                "    public int work(int value) {",
+                "        int result = 0;",
+                "        for (int i = 0; i < value; i++) {",
+                "            result += 2;",
+                "        }",
+                "        return result;",
+                "    }",
+                "",
+                "    @DebugLog(logFormat = DebugLog.LogFormat.JFR, lineHeatMap = true)",
+                "    public void fail() {",
+                "        throw new IllegalStateException(\"boom\");",
+                "    }",
+                "",
+                "    @DebugLog(logFormat = DebugLog.LogFormat.JFR, logAllocatedBytes = true, logCpuTime = true,",
+                "            logContention = true)",
+                "    public int measured(int size) {",
+                "        return new StringBuilder(size).append(new int[size].length).capacity();",
+                "    }",
+                "}",
+                ""
+        );
+        Files.writeString(srcDir.resolve("sample/SampleService.java"), service);
+    }
+
+    private void compileSources(Path srcDir, Path classesDir) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(
+                Arrays.asList(srcDir.resolve("sample/SampleService.java").toFile())
+        );
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.kolobok.transformer;
+
+import org.junit.Test;
+import org.kolobok.runtime.LogContextTrace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogContextJsonWriterTest {
+
+    @Test
+    public void appendsArgsAndLocalsIntoCallerBuffer() {
+        Object[] args = {7, "a\"b\\c", null, true, 2.5d};
+        StringBuilder sb = new StringBuilder("{\"args\":");
+        assertThat(LogContextTrace.appendArgsJson(sb, args, "", 200)).isSameAs(sb);
+        assertThat(sb.append('}').toString()).isEqualTo("{\"args\":[7,\"a\\\"b\\\\c\",null,true,2.5]}");
+        assertThat(LogContextTrace.formatArgsJson(args, "", 200)).isEqualTo("[7,\"a\\\"b\\\\c\",null,true,2.5]");
+        assertThat(LogContextTrace.formatArgs(args, "1", 200)).isEqualTo("[7, ***, null, true, 2.5]");
+
+        Object[] locals = {"x\"y", 3};
+        String[] names = {"name", "count"};
+        assertThat(LogContextTrace.appendLocalsJson(new StringBuilder(), locals, names, null, null, null, false, 200)
+                .toString()).isEqualTo("{\"name\":\"x\\\"y\",\"count\":\"3\"}");
+        assertThat(LogContextTrace.appendLocalsHuman(new StringBuilder(), locals, names, null, null, null, false, 200)
+                .toString()).isEqualTo("name=x\"y, count=3");
+    }
+
+    @Test
+    public void escapesOnlyWhenNeeded() {
+        String plain = "sample.Service#work(I)I";
+        assertThat(LogContextTrace.escapeJson(plain)).isSameAs(plain);
+        assertThat(LogContextTrace.escapeJson("say \"hi\" \\o/")).isEqualTo("say \\\"hi\\\" \\\\o/");
+        assertThat(LogContextTrace.appendJsonEscaped(new StringBuilder(">"), null).toString()).isEqualTo(">null");
+    }
+
+    @Test
+    public void reusesPerThreadBuffersAndIsolatesNestedLogs() {
+        StringBuilder outer = LogContextTrace.acquireBuffer();
+        outer.append("outer");
+        // e.g. an argument's toString logging through another @DebugLog method
+        StringBuilder nested = LogContextTrace.acquireBuffer();
+        assertThat(nested).isNotSameAs(outer);
+        assertThat(LogContextTrace.releaseBuffer(nested.append("nested"))).isEqualTo("nested");
+        assertThat(LogContextTrace.releaseBuffer(outer.append('!'))).isEqualTo("outer!");
+
+        StringBuilder reused = LogContextTrace.acquireBuffer();
+        assertThat(reused).isSameAs(outer);
+        assertThat(reused.length()).isZero();
+        LogContextTrace.releaseBuffer(reused.append("x".repeat(100_000)));
+        assertThat(LogContextTrace.acquireBuffer()).isNotSameAs(reused);
+    }
+}
@@ -46,7 +46,7 @@ public class LogContextLocalsHumanIntegrationTest {
                 .filter(node -> node instanceof MethodInsnNode)
                 .map(node -> (MethodInsnNode) node)
                 .anyMatch(node -> "org/kolobok/runtime/LogContextTrace".equals(node.owner)
-                        && "formatLocalsHuman".equals(node.name));
+                        && "appendLocalsHuman".equals(node.name));
         assertThat(hasLocalsHuman).isTrue();
     }
 
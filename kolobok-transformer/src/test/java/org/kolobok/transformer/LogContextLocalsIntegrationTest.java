@@ -46,7 +46,7 @@ public class LogContextLocalsIntegrationTest {
                 .filter(node -> node instanceof MethodInsnNode)
                 .map(node -> (MethodInsnNode) node)
                 .anyMatch(node -> "org/kolobok/runtime/LogContextTrace".equals(node.owner)
-                        && "formatLocalsJson".equals(node.name));
+                        && "appendLocalsJson".equals(node.name));
         assertThat(hasLocalsJson).isTrue();
     }
 
@@ -0,0 +1,151 @@
+package org.kolobok.transformer;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kolobok.runtime.LogContextTrace;
+import org.kolobok.runtime.PprofExporter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogContextPprofExportTest {
+
+    @After
+    public void stopExporter() {
+        PprofExporter.stop();
+        PprofExporter.reset();
+    }
+
+    @Test
+    public void writesGzippedProfileWithCallsSelfTimeAndLineHits() throws Exception {
+        PprofExporter.reset();
+        PprofExporter.enable();
+
+        for (int i = 0; i < 3; i++) {
+            Object root = LogContextTrace.enter("sample.Service#handle()V", "", false, false, false, "", 200, null);
+            Object child = LogContextTrace.enter("sample.Repo#load()V", "", false, false, false, "", 200, null);
+            LogContextTrace.exitFormatted(child, new int[]{20, 21}, new int[]{1, 4}, 300L, false, false,
+                    false, false, false);
+            LogContextTrace.exitFormatted(root, new int[]{10}, new int[]{1}, 1000L, false, false,
+                    false, false, false);
+        }
+
+        Path dir = Files.createTempDirectory("kolobok-pprof");
+        Path file = PprofExporter.writeTo(dir);
+        assertThat(file.getFileName().toString()).endsWith(".pb.gz");
+
+        byte[] profile = gunzip(Files.readAllBytes(file));
+        List<String> strings = new ArrayList<>();
+        List<byte[]> samples = new ArrayList<>();
+        int locations = 0;
+        int functions = 0;
+        ProtoReader reader = new ProtoReader(profile);
+        while (reader.hasMore()) {
+            long tag = reader.varint();
+            int field = (int) (tag >>> 3);
+            int wireType = (int) (tag & 7);
+            if (wireType == 0) {
+                reader.varint();
+                continue;
+            }
+            byte[] bytes = reader.bytes();
+            if (field == 2) {
+                samples.add(bytes);
+            } else if (field == 4) {
+                locations++;
+            } else if (field == 5) {
+                functions++;
+            } else if (field == 6) {
+                strings.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+
+        assertThat(strings.get(0)).isEmpty();
+        assertThat(strings).contains("calls", "self", "nanoseconds", "line_hits",
+                "sample.Service#handle()V", "sample.Repo#load()V");
+        assertThat(functions).isEqualTo(2);
+        // handle:0, handle:10, load:0, load:20, load:21
+        assertThat(locations).isEqualTo(5);
+        assertThat(samples).hasSize(5);
+
+        List<long[]> values = new ArrayList<>();
+        for (byte[] sample : samples) {
+            ProtoReader sampleReader = new ProtoReader(sample);
+            long[] locationIds = null;
+            long[] sampleValues = null;
+            while (sampleReader.hasMore()) {
+                int field = (int) (sampleReader.varint() >>> 3);
+                long[] packed = new ProtoReader(sampleReader.bytes()).packed();
+                if (field == 1) {
+                    locationIds = packed;
+                } else {
+                    sampleValues = packed;
+                }
+            }
+            assertThat(locationIds).isNotEmpty();
+            values.add(sampleValues);
+        }
+        assertThat(values).anySatisfy(v -> assertThat(v).containsExactly(3L, 2100L, 0L));
+        assertThat(values).anySatisfy(v -> assertThat(v).containsExactly(3L, 900L, 0L));
+        assertThat(values).anySatisfy(v -> assertThat(v).containsExactly(0L, 0L, 12L));
+    }
+
+    private byte[] gunzip(byte[] bytes) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            in.transferTo(out);
+            return out.toByteArray();
+        }
+    }
+
+    private static final class ProtoReader {
+        private final byte[] data;
+        private int pos;
+
+        private ProtoReader(byte[] data) {
+            this.data = data;
+        }
+
+        private boolean hasMore() {
+            return pos < data.length;
+        }
+
+        private long varint() {
+            long result = 0;
+            int shift = 0;
+            while (true) {
+                byte b = data[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+                shift += 7;
+            }
+        }
+
+        private byte[] bytes() {
+            int length = (int) varint();
+            byte[] result = new byte[length];
+            System.arraycopy(data, pos, result, 0, length);
+            pos += length;
+            return result;
+        }
+
+        private long[] packed() {
+            List<Long> values = new ArrayList<>();
+            while (hasMore()) {
+                values.add(varint());
+            }
+            return values.stream().mapToLong(Long::longValue).toArray();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.kolobok.transformer;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kolobok.runtime.LogContextTrace;
+import org.kolobok.runtime.TraceRingBuffer;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class LogContextRingBufferTest {
+
+    @After
+    public void stopRing() {
+        TraceRingBuffer.stop();
+    }
+
+    @Test
+    public void decodesRecentTracesFromLiveAndOfflineRing() throws Exception {
+        Path file = Files.createTempDirectory("kolobok-ring").resolve("trace.ring");
+        TraceRingBuffer.start(file, 2, 64);
+
+        Object root = LogContextTrace.enter("Service#handle()V", "", false, false, false, "", 200, null);
+        Object child = LogContextTrace.enter("Repo#load()V", "", false, false, false, "", 200, null);
+        int[] lines = {20, 21, 22, 23, 24, 25, 26, 27};
+        int[] counts = {1, 1, 1, 1, 1, 1, 1, 5};
+        LogContextTrace.exitFormatted(child, lines, counts, 300L, false, false, false, false, false);
+        LogContextTrace.exitFormatted(root, new int[]{10, 11}, new int[]{1, 0}, 1000L, false, false,
+                false, false, false);
+
+        String live = TraceRingBuffer.dump(60);
+        assertThat(live).startsWith("[{\"threadId\":" + Thread.currentThread().getId())
+                .contains("\"exception\":false")
+                .contains("\"method\":\"Service#handle()V\",\"count\":1,\"lineHeatMap\":{\"10\":1},"
+                        + "\"durationNs\":1000,\"selfNs\":700,\"criticalPath\":true")
+                .contains("\"method\":\"Repo#load()V\",\"count\":1,\"lineHeatMap\":{\"20-26\":1, \"27\":5},"
+                        + "\"durationNs\":300");
+
+        TraceRingBuffer.stop();
+        assertThat(TraceRingBuffer.decode(file, 60)).isEqualTo(live);
+    }
+
+    @Test
+    public void overwritesOldestRecords() throws Exception {
+        Path file = Files.createTempDirectory("kolobok-ring").resolve("trace.ring");
+        TraceRingBuffer.start(file, 1, 4);
+
+        for (int i = 0; i < 10; i++) {
+            Object root = LogContextTrace.enter("Service#call" + i + "()V", "", false, false, false, "", 200, null);
+            LogContextTrace.exitFormatted(root, new int[0], new int[0], -1L, false, false, false, false, false);
+        }
+
+        String json = TraceRingBuffer.dump(60);
+        assertThat(json).contains("Service#call8()V", "Service#call9()V").doesNotContain("Service#call7()V");
+        // duration falls back to the enter/exit timestamps
+        assertThat(json).contains("\"durationNs\":");
+    }
+
+    @Test
+    public void dumpsHistoryWhenRootEndsWithException() throws Exception {
+        Path dir = Files.createTempDirectory("kolobok-ring");
+        Path file = dir.resolve("trace.ring");
+        TraceRingBuffer.start(file, 1, 16);
+        TraceRingBuffer.dumpOnException(true, 10);
+
+        Object root = LogContextTrace.enter("Service#fail()V", "", false, false, false, "", 200, null);
+        LogContextTrace.exitFormatted(root, new int[0], new int[0], 50L, false, true, false, false, false);
+        // rate limited: a second failure within the interval does not dump again
+        root = LogContextTrace.enter("Service#fail()V", "", false, false, false, "", 200, null);
+        LogContextTrace.exitFormatted(root, new int[0], new int[0], 50L, false, true, false, false, false);
+
+        // written by a background thread
+        List<Path> dumps = List.of();
+        for (int i = 0; i < 500 && dumps.isEmpty(); i++) {
+            Thread.sleep(10);
+            try (Stream<Path> files = Files.list(dir)) {
+                dumps = files.filter(path -> path.getFileName().toString().endsWith(".json"))
+                        .filter(path -> path.toFile().length() > 0)
+                        .collect(Collectors.toList());
+            }
+        }
+        assertThat(dumps).hasSize(1);
+        assertThat(Files.readString(dumps.get(0))).contains("\"exception\":true", "Service#fail()V");
+    }
+
+    @Test
+    public void givesRegionOfDeadThreadToNextThreadAndDropsRecordsWhenNoneIsFree() throws Exception {
+        Path file = Files.createTempDirectory("kolobok-ring").resolve("trace.ring");
+        TraceRingBuffer.start(file, 1, 64);
+
+        Thread first = new Thread(() -> record("First#run()V"), "ring-first");
+        first.start();
+        first.join();
+
+        CountDownLatch recorded = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread second = new Thread(() -> {
+            record("Second#run()V");
+            recorded.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "ring-second");
+        second.start();
+        recorded.await();
+        // the only region belongs to a live thread
+        record("Main#run()V");
+        release.countDown();
+        second.join();
+
+        String json = TraceRingBuffer.dump(60);
+        assertThat(json).contains("\"thread\":\"ring-second\"", "Second#run()V")
+                .doesNotContain("First#run()V", "Main#run()V");
+        assertThat(TraceRingBuffer.droppedRecords()).isEqualTo(2);
+    }
+
+    @Test
+    public void ringSinkRecordsWithoutTraceTreeOrLogger() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-ring-sink");
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Files.createDirectories(srcDir.resolve("sample"));
+        Files.createDirectories(classesDir);
+        writeSources(srcDir);
+        compileSources(srcDir, classesDir);
+        new KolobokTransformer().transformClassFile(classesDir.resolve("sample/RingService.class"));
+
+        TraceRingBuffer.start(tempDir.resolve("trace.ring"), 2, 64);
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classesDir.toUri().toURL()},
+                Thread.currentThread().getContextClassLoader())) {
+            Class<?> clazz = loader.loadClass("sample.RingService");
+            Object instance = clazz.getDeclaredConstructor().newInstance();
+            Method work = clazz.getMethod("work", int.class);
+            Method fail = clazz.getMethod("fail");
+            assertThat(work.invoke(instance, 3)).isEqualTo(6);
+            assertThatThrownBy(() -> fail.invoke(instance))
+                    .isInstanceOf(InvocationTargetException.class)
+                    .hasCauseInstanceOf(IllegalStateException.class);
+        }
+
+        String json = TraceRingBuffer.dump(60);
+        assertThat(json).contains("\"exception\":false", "\"exception\":true",
+                "\"method\":\"sample.RingService#work(int):int\",\"count\":1,"
+                        + "\"lineHeatMap\":{\"9\":1, \"10\":4, \"11\":3, \"13\":1}",
+                "{\"method\":\"sample.RingService#twice(int):int\",\"count\":1,\"lineHeatMap\":{}",
+                "\"method\":\"sample.RingService#fail():void\"");
+    }
+
+    private static void record(String method) {
+        TraceRingBuffer.enter(method);
+        TraceRingBuffer.exit(method, -1L, null, null, false);
+    }
+
+    private void writeSources(Path srcDir) throws IOException {
+        String service = String.join("\n",
+                "package sample;",
+                "",
+                "import org.kolobok.annotation.DebugLog;",
+                "",
+                "public class RingService {",
+                "",
+                "    @DebugLog(traceSink = DebugLog.TraceSink.RING, lineHeatMap = true)",
+                "    public int work(int value) {",
+                "        int result = 0;",
+                "        for (int i = 0; i < value; i++) {",
+                "            result += twice(1);",
+                "        }",
+                "        return result;",
+                "    }",
+                "",
+                "    @DebugLog(traceSink = DebugLog.TraceSink.RING)",
+                "    public int twice(int value) {",
+                "        return value * 2;",
+                "    }",
+                "",
+                "    @DebugLog(traceSink = DebugLog.TraceSink.RING)",
+                "    public void fail() {",
+                "        throw new IllegalStateException(\"boom\");",
+                "    }",
+                "}",
+                ""
+        );
+        Files.writeString(srcDir.resolve("sample/RingService.java"), service);
+    }
+
+    private void compileSources(Path srcDir, Path classesDir) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(
+                Arrays.asList(srcDir.resolve("sample/RingService.java").toFile())
+        );
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+}
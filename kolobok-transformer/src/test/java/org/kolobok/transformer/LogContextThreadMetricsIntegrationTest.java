@@ -0,0 +1,259 @@
+package org.kolobok.transformer;
+
+import org.junit.Test;
+import org.kolobok.runtime.LogContextTrace;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogContextThreadMetricsIntegrationTest {
+
+    @Test
+    public void instrumentsAllocatedBytesAndCpuTime() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-log-metrics");
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Files.createDirectories(srcDir.resolve("sample"));
+        Files.createDirectories(classesDir);
+
+        writeSources(srcDir);
+        compileSources(srcDir, classesDir);
+
+        Path classFile = classesDir.resolve("sample/SampleService.class");
+        KolobokTransformer transformer = new KolobokTransformer();
+        transformer.transformClassFile(classFile);
+
+        ClassNode classNode = readClassNode(classFile);
+        MethodNode work = findMethod(classNode, "work", "(I)I");
+        assertThat(work).isNotNull();
+        Set<String> runtimeCalls = Arrays.stream(work.instructions.toArray())
+                .filter(node -> node instanceof MethodInsnNode)
+                .map(node -> (MethodInsnNode) node)
+                .filter(node -> "org/kolobok/runtime/LogContextTrace".equals(node.owner))
+                .map(node -> node.name)
+                .collect(Collectors.toSet());
+        assertThat(runtimeCalls).contains("threadAllocatedBytes", "allocatedBytesSince", "threadCpuTimeNs",
+                "cpuTimeSince", "recordAllocatedBytes", "recordCpuTime", "contentionSnapshot", "contentionSince",
+                "recordContention");
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classesDir.toUri().toURL()},
+                Thread.currentThread().getContextClassLoader())) {
+            Class<?> clazz = loader.loadClass("sample.SampleService");
+            Object instance = clazz.getDeclaredConstructor().newInstance();
+            Method method = clazz.getMethod("work", int.class);
+            assertThat(method.invoke(instance, 10)).isEqualTo(10);
+        }
+    }
+
+    @Test
+    public void deltasDoNotOverwriteStartSnapshots() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-log-metrics-deltas");
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Files.createDirectories(srcDir.resolve("sample"));
+        Files.createDirectories(classesDir);
+
+        writeSources(srcDir);
+        compileSources(srcDir, classesDir);
+
+        Path classFile = classesDir.resolve("sample/SampleService.class");
+        new KolobokTransformer().transformClassFile(classFile);
+
+        // the handler runs the exit measurements again when an exit path throws, so it must still see the snapshots
+        MethodNode work = findMethod(readClassNode(classFile), "work", "(I)I");
+        int measurements = 0;
+        for (AbstractInsnNode insn : work.instructions.toArray()) {
+            if (!(insn instanceof MethodInsnNode)) {
+                continue;
+            }
+            String name = ((MethodInsnNode) insn).name;
+            if (name.equals("allocatedBytesSince") || name.equals("cpuTimeSince") || name.equals("contentionSince")) {
+                int snapshot = ((VarInsnNode) insn.getPrevious()).var;
+                VarInsnNode store = (VarInsnNode) insn.getNext();
+                assertThat(store.var).as(name).isNotEqualTo(snapshot);
+                measurements++;
+            } else if (name.equals("nanoTime") && insn.getNext().getOpcode() == Opcodes.LLOAD) {
+                int startTime = ((VarInsnNode) insn.getNext()).var;
+                VarInsnNode store = (VarInsnNode) insn.getNext().getNext().getNext();
+                assertThat(store.getOpcode()).isEqualTo(Opcodes.LSTORE);
+                assertThat(store.var).as("duration").isNotEqualTo(startTime);
+                measurements++;
+            }
+        }
+        // two exit paths (return and handler), four measurements each
+        assertThat(measurements).isEqualTo(8);
+    }
+
+    @Test
+    public void heatMapIncludesRecordedMetrics() {
+        Object token = LogContextTrace.enter("sample.SampleService#work(I)I", "", false, true, false, "", 200, null);
+        LogContextTrace.recordAllocatedBytes(token, 2048L);
+        LogContextTrace.recordCpuTime(token, 1500L);
+        String json = LogContextTrace.exitFormatted(token, new int[]{10}, new int[]{1}, 3000L, false, false,
+                true, false, false);
+        assertThat(json).contains("\"allocatedBytes\":2048", "\"cpuTimeNs\":1500");
+
+        token = LogContextTrace.enter("sample.SampleService#work(I)I", "", false, true, false, "", 200, null);
+        LogContextTrace.recordAllocatedBytes(token, 2048L);
+        String human = LogContextTrace.exitFormatted(token, new int[]{10}, new int[]{1}, 3000L, false, false,
+                false, false, false);
+        assertThat(human).contains("alloc=2048B").doesNotContain("cpu=");
+    }
+
+    @Test
+    public void heatMapIncludesContentionAndAggregatesChildren() {
+        Object root = LogContextTrace.enter("sample.SampleService#work(I)I", "", false, true, false, "", 200, null);
+        for (int i = 0; i < 2; i++) {
+            Object child = LogContextTrace.enter("sample.SampleService#lock()V", "", false, true, false, "", 200, null);
+            LogContextTrace.recordContention(child, new long[]{1L, 5L, 2L, 10L});
+            LogContextTrace.exitFormatted(child, new int[]{20}, new int[]{1}, 1000L, false, false, true, false, false);
+        }
+        String json = LogContextTrace.exitFormatted(root, new int[]{10}, new int[]{1}, 3000L, false, false,
+                true, false, false);
+        assertThat(json).contains("\"blockedCount\":2,\"blockedMs\":10,\"waitedCount\":4,\"waitedMs\":20");
+
+        root = LogContextTrace.enter("sample.SampleService#work(I)I", "", false, false, false, "", 200, null);
+        LogContextTrace.recordContention(root, new long[]{3L, 7L, 0L, 0L});
+        String human = LogContextTrace.exitFormatted(root, new int[]{10}, new int[]{1}, 3000L, false, false,
+                false, false, false);
+        assertThat(human).contains("blocked=3/7ms waited=0/0ms");
+    }
+
+    @Test
+    public void contentionDeltaIsMeasuredOrUnsupported() {
+        long[] start = LogContextTrace.contentionSnapshot();
+        long[] delta = LogContextTrace.contentionSince(start);
+        if (start == null) {
+            assertThat(delta).isNull();
+            assertThat(LogContextTrace.formatContentionHuman(delta)).isEmpty();
+        } else {
+            assertThat(delta).hasSize(4);
+            assertThat(delta[0]).isGreaterThanOrEqualTo(0L);
+            assertThat(delta[2]).isGreaterThanOrEqualTo(0L);
+        }
+    }
+
+    @Test
+    public void contentionMonitoringIsEnabledOnlyByContentionSnapshots() throws Exception {
+        // a fresh JVM, since other tests in this one may already have turned monitoring on
+        Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), ContentionProbe.class.getName())
+                .redirectErrorStream(true).start();
+        String output;
+        try (InputStream in = process.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+        }
+        assertThat(process.waitFor(30, TimeUnit.SECONDS)).isTrue();
+        assertThat(output).isIn("false true", "unsupported");
+    }
+
+    public static final class ContentionProbe {
+        public static void main(String[] args) {
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (!threads.isThreadContentionMonitoringSupported()) {
+                System.out.println("unsupported");
+                return;
+            }
+            LogContextTrace.allocatedBytesSince(LogContextTrace.threadAllocatedBytes());
+            LogContextTrace.cpuTimeSince(LogContextTrace.threadCpuTimeNs());
+            boolean before = threads.isThreadContentionMonitoringEnabled();
+            LogContextTrace.contentionSnapshot();
+            System.out.println(before + " " + threads.isThreadContentionMonitoringEnabled());
+        }
+    }
+
+    private void writeSources(Path srcDir) throws IOException {
+        String service = String.join("\n",
+                "package sample;",
+                "",
+                "import org.kolobok.annotation.DebugLog;",
+                "import org.slf4j.Logger;",
+                "import org.slf4j.LoggerFactory;",
+                "",
+                "public class SampleService {",
+                "    private static final Logger log = LoggerFactory.getLogger(SampleService.class);",
+                "",
+                "    @DebugLog(lineHeatMap = true, logDuration = true, logAllocatedBytes = true, logCpuTime = true,",
+                "        logContention = true)",
+                "    public int work(int size) {",
+                "        int[] data = new int[size];",
+                "        return data.length;",
+                "    }",
+                "}",
+                ""
+        );
+        Files.writeString(srcDir.resolve("sample/SampleService.java"), service);
+    }
+
+    private void compileSources(Path srcDir, Path classesDir) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(
+                Arrays.asList(srcDir.resolve("sample/SampleService.java").toFile())
+        );
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+
+    private ClassNode readClassNode(Path classFile) throws IOException {
+        byte[] bytes = Files.readAllBytes(classFile);
+        ClassReader reader = new ClassReader(bytes);
+        ClassNode node = new ClassNode();
+        reader.accept(node, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return node;
+    }
+
+    private MethodNode findMethod(ClassNode classNode, String name, String desc) {
+        Optional<MethodNode> method = classNode.methods.stream()
+                .filter(m -> m.name.equals(name) && m.desc.equals(desc))
+                .findFirst();
+        return method.orElse(null);
+    }
+}
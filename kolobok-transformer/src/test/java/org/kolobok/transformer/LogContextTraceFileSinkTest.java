@@ -0,0 +1,243 @@
+package org.kolobok.transformer;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kolobok.runtime.LogContextTrace;
+import org.kolobok.runtime.TraceFileSink;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogContextTraceFileSinkTest {
+    private static final Pattern METHOD = Pattern.compile("\"method\":\"([^\"]*)\"");
+
+    @After
+    public void stopSink() {
+        TraceFileSink.stop();
+    }
+
+    @Test
+    public void rotatesBySizeAndGzipsRotatedFiles() throws Exception {
+        Path dir = Files.createTempDirectory("kolobok-tracefile");
+        Path file = dir.resolve("traces.log");
+        TraceFileSink.start(file, 4096, 0, true, 60_000, 1024, 4);
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            String method = "Service#handle" + i + "()V ünicøde";
+            expected.add(method);
+            assertThat(trace(method)).isNull();
+            if (i % 10 == 9) {
+                TraceFileSink.flush();
+            }
+        }
+        TraceFileSink.stop();
+
+        List<Path> rotated;
+        try (Stream<Path> files = Files.list(dir)) {
+            rotated = files.filter(path -> !path.equals(file)).collect(Collectors.toList());
+        }
+        assertThat(rotated).hasSizeGreaterThan(2).allMatch(path -> path.toString().endsWith(".gz"));
+
+        List<String> lines = new ArrayList<>(Files.readAllLines(file, StandardCharsets.UTF_8));
+        for (Path path : rotated) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(Files.newInputStream(path)), StandardCharsets.UTF_8))) {
+                lines.addAll(reader.lines().collect(Collectors.toList()));
+            }
+        }
+        assertThat(lines).extracting(LogContextTraceFileSinkTest::method).containsExactlyInAnyOrderElementsOf(expected);
+    }
+
+    @Test
+    public void fallsBackToCallerWhenStoppedOrBuffersAreFull() throws Exception {
+        assertThat(trace("not started")).contains("\"method\":\"not started\"");
+
+        Path file = Files.createTempDirectory("kolobok-tracefile").resolve("traces.log");
+        TraceFileSink.start(file, 0, 0, false, 60_000, 1024, 2);
+        String method = "x".repeat(150);
+        List<String> rejected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String result = trace(method);
+            if (result != null) {
+                rejected.add(result);
+            }
+        }
+        assertThat(rejected).isNotEmpty().allMatch(line -> method.equals(method(line)));
+
+        TraceFileSink.stop();
+        assertThat(Files.readAllLines(file)).hasSize(20 - rejected.size());
+    }
+
+    @Test
+    public void keepsEachThreadsLinesInOrderWithoutLosingPartlyFilledBuffers() throws Exception {
+        Path file = Files.createTempDirectory("kolobok-tracefile").resolve("traces.log");
+        TraceFileSink.start(file, 0, 0, false, 60_000, 1024, 32);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 200; i++) {
+                    while (trace("t" + thread + " line " + i + " \uD83D\uDE00 ä") != null) {
+                        Thread.onSpinWait();
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // the threads are gone, their last buffers were never full
+        TraceFileSink.flush();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8).stream()
+                .map(LogContextTraceFileSinkTest::method).collect(Collectors.toList());
+        assertThat(lines).hasSize(800);
+        for (int t = 0; t < 4; t++) {
+            String prefix = "t" + t + " ";
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                expected.add(prefix + "line " + i + " \uD83D\uDE00 ä");
+            }
+            assertThat(lines.stream().filter(line -> line.startsWith(prefix)).collect(Collectors.toList()))
+                    .containsExactlyElementsOf(expected);
+        }
+    }
+
+    @Test
+    public void writesLinesLargerThanOneBuffer() throws Exception {
+        Path file = Files.createTempDirectory("kolobok-tracefile").resolve("traces.log");
+        TraceFileSink.start(file, 0, 0, false, 60_000, 1024, 4);
+        String large = "y".repeat(5000);
+
+        assertThat(trace("first")).isNull();
+        assertThat(trace(large)).isNull();
+        assertThat(trace("last")).isNull();
+        TraceFileSink.flush();
+
+        assertThat(Files.readAllLines(file)).extracting(LogContextTraceFileSinkTest::method)
+                .containsExactly("first", large, "last");
+    }
+
+    @Test
+    public void heatMapGoesToFileSinkInsteadOfLogger() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-tracefile-transform");
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Files.createDirectories(srcDir.resolve("sample"));
+        Files.createDirectories(classesDir);
+
+        writeSources(srcDir);
+        compileSources(srcDir, classesDir);
+
+        Path classFile = classesDir.resolve("sample/SampleService.class");
+        KolobokTransformer transformer = new KolobokTransformer();
+        transformer.transformClassFile(classFile);
+
+        Path file = tempDir.resolve("traces.log");
+        TraceFileSink.start(file, 0, 0, false);
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classesDir.toUri().toURL()},
+                Thread.currentThread().getContextClassLoader())) {
+            Class<?> clazz = loader.loadClass("sample.SampleService");
+            Object instance = clazz.getDeclaredConstructor().newInstance();
+            Method work = clazz.getMethod("work", int.class);
+            assertThat(work.invoke(instance, 3)).isEqualTo(6);
+        }
+        TraceFileSink.flush();
+
+        assertThat(Files.readAllLines(file)).singleElement().satisfies(line -> assertThat(line)
+                .startsWith("{\"traceId\":")
+                .contains("\"method\":\"sample.SampleService#work(I)I\"", "\"lineHeatMap\":{"));
+    }
+
+    // one-node JSON heat map through the same runtime call the FILE sink instrumentation makes
+    private static String trace(String method) {
+        Object token = LogContextTrace.enter(method, false, false, false, "", 0, null);
+        return LogContextTrace.exitToFile(token, new int[0], new int[0], -1, false, false, true, false, false);
+    }
+
+    private static String method(String line) {
+        Matcher matcher = METHOD.matcher(line);
+        assertThat(matcher.find()).as(line).isTrue();
+        return matcher.group(1);
+    }
+
+    private void writeSources(Path srcDir) throws IOException {
+        String service = String.join("\n",
+                "package sample;",
+                "",
+                "import org.kolobok.annotation.DebugLog;",
+                "import org.slf4j.Logger;",
+                "import org.slf4j.LoggerFactory;",
+                "",
+                "public class SampleService {",
+                "    private static final Logger log = LoggerFactory.getLogger(SampleService.class);",
+                "",
+                "    @DebugLog(logFormat = DebugLog.LogFormat.JSON, lineHeatMap = true,",
+                "            traceSink = DebugLog.TraceSink.FILE)",
+                "    public int work(int value) {",
+                "        int result = 0;",
+                "        for (int i = 0; i < value; i++) {",
+                "            result += 2;",
+                "        }",
+                "        return result;",
+                "    }",
+                "}",
+                ""
+        );
+        Files.writeString(srcDir.resolve("sample/SampleService.java"), service);
+    }
+
+    private void compileSources(Path srcDir, Path classesDir) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(
+                Arrays.asList(srcDir.resolve("sample/SampleService.java").toFile())
+        );
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.kolobok.transformer;
+
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class ParallelTransformTest {
+    private static final int SERVICES = 40;
+
+    @Test
+    public void parallelOutputMatchesSequentialOutput() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-parallel");
+        Path srcDir = tempDir.resolve("src");
+        Path sequentialDir = tempDir.resolve("sequential");
+        Path parallelDir = tempDir.resolve("parallel");
+        Files.createDirectories(srcDir.resolve("sample"));
+
+        List<Path> sources = writeServices(srcDir, true);
+        compileSources(sources, sequentialDir);
+        compileSources(sources, parallelDir);
+
+        new KolobokTransformer().transformDirectory(sequentialDir);
+        KolobokTransformer parallel = new KolobokTransformer();
+        parallel.setParallelism(4);
+        parallel.transformDirectory(parallelDir);
+
+        List<Path> classFiles = listClassFiles(sequentialDir);
+        assertThat(classFiles).hasSize(SERVICES);
+        for (Path classFile : classFiles) {
+            byte[] expected = Files.readAllBytes(sequentialDir.resolve(classFile));
+            assertThat(Files.readAllBytes(parallelDir.resolve(classFile))).as(classFile.toString()).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void aggregatesFailuresAndTransformsRemainingClasses() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-parallel-errors");
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Files.createDirectories(srcDir.resolve("sample"));
+
+        List<Path> sources = writeServices(srcDir, true);
+        sources.add(writeService(srcDir, "BrokenA", false));
+        sources.add(writeService(srcDir, "BrokenB", false));
+        compileSources(sources, classesDir);
+        byte[] original = Files.readAllBytes(classesDir.resolve("sample/Service0.class"));
+
+        KolobokTransformer transformer = new KolobokTransformer();
+        transformer.setParallelism(0);
+        Throwable failure = catchThrowable(() -> transformer.transformDirectory(classesDir));
+
+        assertThat(failure).isInstanceOf(IllegalStateException.class)
+                .hasMessageStartingWith("Failed to transform 2 class files:");
+        assertThat(failure.getMessage().indexOf("BrokenA.class"))
+                .isPositive()
+                .isLessThan(failure.getMessage().indexOf("BrokenB.class"));
+        assertThat(failure.getSuppressed()).hasSize(2)
+                .allSatisfy(suppressed -> assertThat(suppressed).hasMessageContaining("no static logger field"));
+        assertThat(Files.readAllBytes(classesDir.resolve("sample/Service0.class"))).isNotEqualTo(original);
+    }
+
+    private List<Path> writeServices(Path srcDir, boolean withLogger) throws IOException {
+        List<Path> sources = new ArrayList<>();
+        for (int i = 0; i < SERVICES; i++) {
+            sources.add(writeService(srcDir, "Service" + i, withLogger));
+        }
+        return sources;
+    }
+
+    private Path writeService(Path srcDir, String name, boolean withLogger) throws IOException {
+        String source = String.join("\n",
+                "package sample;",
+                "",
+                "import org.kolobok.annotation.DebugLog;",
+                "import org.slf4j.Logger;",
+                "import org.slf4j.LoggerFactory;",
+                "",
+                "public class " + name + " {",
+                withLogger ? "    private static final Logger log = LoggerFactory.getLogger(" + name + ".class);" : "",
+                "",
+                "    @DebugLog(lineHeatMap = true, logDuration = true)",
+                "    public int work(String value, int count) {",
+                "        int total = 0;",
+                "        for (int i = 0; i < count; i++) {",
+                "            total += value.length();",
+                "        }",
+                "        return total;",
+                "    }",
+                "}",
+                ""
+        );
+        Path file = srcDir.resolve("sample/" + name + ".java");
+        Files.writeString(file, source);
+        return file;
+    }
+
+    private List<Path> listClassFiles(Path classesDir) throws IOException {
+        try (Stream<Path> paths = Files.walk(classesDir)) {
+            return paths.filter(path -> path.toString().endsWith(".class"))
+                    .map(classesDir::relativize)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private void compileSources(List<Path> sources, Path classesDir) throws IOException {
+        Files.createDirectories(classesDir);
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        List<File> files = sources.stream().map(Path::toFile).collect(Collectors.toList());
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(files);
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.kolobok.transformer;
+
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RepeatedTransformTest {
+
+    /**
+     * Every sink and format, each with and without a heat map; binary traces reuse the heat map path.
+     */
+    private static final Map<String, String> OPTIONS = new LinkedHashMap<>();
+
+    static {
+        OPTIONS.put("human", "");
+        OPTIONS.put("json", "logFormat = DebugLog.LogFormat.JSON");
+        OPTIONS.put("slow", "slowThresholdMs = 10");
+        OPTIONS.put("file", "traceSink = DebugLog.TraceSink.FILE");
+        OPTIONS.put("ring", "traceSink = DebugLog.TraceSink.RING");
+        OPTIONS.put("jfr", "logFormat = DebugLog.LogFormat.JFR");
+    }
+
+    @Test
+    public void secondTransformLeavesEveryVariantUnchanged() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-repeated");
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Files.createDirectories(srcDir.resolve("sample"));
+        Files.createDirectories(classesDir);
+        writeSources(srcDir);
+        compileSources(srcDir, classesDir);
+
+        byte[] original = Files.readAllBytes(classesDir.resolve("sample/Variants.class"));
+        byte[] once = new KolobokTransformer().transform("sample/Variants", original);
+        assertThat(once).isNotNull().isNotEqualTo(original);
+
+        // e.g. process-classes running again on classes that were not recompiled
+        byte[] twice = new KolobokTransformer().transform("sample/Variants", once);
+        assertThat(twice == null ? once : twice).isEqualTo(once);
+    }
+
+    private void writeSources(Path srcDir) throws IOException {
+        StringBuilder source = new StringBuilder(String.join("\n",
+                "package sample;",
+                "",
+                "import org.kolobok.annotation.DebugLog;",
+                "",
+                "public class Variants {",
+                "    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Variants.class);",
+                ""));
+        for (Map.Entry<String, String> entry : OPTIONS.entrySet()) {
+            for (boolean heatMap : new boolean[]{false, true}) {
+                String options = entry.getValue();
+                if (heatMap) {
+                    options = options.isEmpty() ? "lineHeatMap = true" : options + ", lineHeatMap = true";
+                }
+                source.append(String.join("\n",
+                        "    @DebugLog(" + options + ")",
+                        "    public int " + entry.getKey() + (heatMap ? "HeatMap" : "") + "(int value) {",
+                        "        if (value < 0) {",
+                        "            throw new IllegalArgumentException(\"negative\");",
+                        "        }",
+                        "        return value * 2;",
+                        "    }",
+                        ""));
+            }
+        }
+        source.append("}\n");
+        Files.writeString(srcDir.resolve("sample/Variants.java"), source.toString());
+    }
+
+    private void compileSources(Path srcDir, Path classesDir) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(
+                Arrays.asList(srcDir.resolve("sample/Variants.java").toFile())
+        );
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+}
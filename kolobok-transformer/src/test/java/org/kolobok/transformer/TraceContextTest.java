@@ -0,0 +1,117 @@
+package org.kolobok.transformer;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kolobok.runtime.LogContextTrace;
+import org.kolobok.runtime.TraceContext;
+import org.slf4j.MDC;
+
+import java.net.URI;
+import java.net.URL;
+import java.net.HttpURLConnection;
+import java.net.http.HttpRequest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceContextTest {
+    private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+    private static final String PARENT_ID = "00f067aa0ba902b7";
+
+    @After
+    public void clearMdc() {
+        MDC.clear();
+    }
+
+    @Test
+    public void parsesValidTraceparentAndRejectsInvalidOnes() {
+        TraceContext context = TraceContext.parse("00-" + TRACE_ID + "-" + PARENT_ID + "-01", " congo=t61rcWkgMzE ");
+        assertThat(context).isNotNull();
+        assertThat(context.getTraceId()).isEqualTo(TRACE_ID);
+        assertThat(context.getSpanId()).isEqualTo(PARENT_ID);
+        assertThat(context.isSampled()).isTrue();
+        assertThat(context.getTraceState()).isEqualTo("congo=t61rcWkgMzE");
+        assertThat(context.toTraceparent()).isEqualTo("00-" + TRACE_ID + "-" + PARENT_ID + "-01");
+
+        // future versions may append fields
+        assertThat(TraceContext.parse("01-" + TRACE_ID + "-" + PARENT_ID + "-00-extra", null)).isNotNull();
+
+        assertThat(TraceContext.parse(null, null)).isNull();
+        assertThat(TraceContext.parse("00-" + TRACE_ID + "-" + PARENT_ID + "-01-extra", null)).isNull();
+        assertThat(TraceContext.parse("ff-" + TRACE_ID + "-" + PARENT_ID + "-01", null)).isNull();
+        assertThat(TraceContext.parse("00-00000000000000000000000000000000-" + PARENT_ID + "-01", null)).isNull();
+        assertThat(TraceContext.parse("00-" + TRACE_ID + "-0000000000000000-01", null)).isNull();
+        assertThat(TraceContext.parse("00-" + TRACE_ID.toUpperCase() + "-" + PARENT_ID + "-01", null)).isNull();
+        assertThat(TraceContext.parse("00-" + TRACE_ID + "-" + PARENT_ID, null)).isNull();
+    }
+
+    @Test
+    public void adoptsIncomingTraceparentAndRecordsParentSpan() {
+        MDC.put("traceparent", "00-" + TRACE_ID + "-" + PARENT_ID + "-01");
+        MDC.put("tracestate", "congo=t61rcWkgMzE");
+        MDC.put("traceId", "ignored-when-traceparent-is-valid");
+
+        Object root = LogContextTrace.enter("Service#handle()V", "", false, false, false, "", 200, null);
+        assertThat(LogContextTrace.currentTraceId()).isEqualTo(TRACE_ID);
+        String outgoing = TraceContext.currentTraceparent();
+        assertThat(outgoing).matches("00-" + TRACE_ID + "-[0-9a-f]{16}-01");
+        String spanId = outgoing.substring(36, 52);
+        assertThat(spanId).isNotEqualTo(PARENT_ID);
+        assertThat(TraceContext.currentTracestate()).isEqualTo("congo=t61rcWkgMzE");
+
+        Object child = LogContextTrace.enter("Repo#load()V", "", false, false, false, "", 200, null);
+        assertThat(TraceContext.currentTraceparent()).isEqualTo(outgoing);
+        LogContextTrace.exitFormatted(child, new int[]{20}, new int[]{1}, 100L, false, false, true, false, false);
+
+        String json = LogContextTrace.exitFormatted(root, new int[]{10}, new int[]{1}, 1000L, false, false,
+                true, false, false);
+        assertThat(json).startsWith("{\"traceId\":\"" + TRACE_ID + "\",\"spanId\":\"" + spanId
+                + "\",\"parentSpanId\":\"" + PARENT_ID + "\",\"method\":\"Service#handle()V\"");
+        assertThat(json.indexOf("parentSpanId")).isEqualTo(json.lastIndexOf("parentSpanId"));
+        assertThat(TraceContext.currentTraceparent()).isNull();
+    }
+
+    @Test
+    public void startsNewTraceWhenNothingIsPropagated() {
+        Object root = LogContextTrace.enter("Service#handle()V", "", false, false, false, "", 200, null);
+        String traceparent = TraceContext.currentTraceparent();
+        // default UUID trace ids are propagated without dashes
+        assertThat(traceparent).isEqualTo("00-" + LogContextTrace.currentTraceId().replace("-", "")
+                + traceparent.substring(35));
+        assertThat(TraceContext.currentTracestate()).isNull();
+        String human = LogContextTrace.exitFormatted(root, new int[]{10}, new int[]{1}, 1000L, false, false,
+                false, false, false);
+        assertThat(human).contains(" span=" + traceparent.substring(36, 52)).doesNotContain(" parent=");
+
+        MDC.put("traceId", "order-42");
+        root = LogContextTrace.enter("Service#handle()V", "", false, false, false, "", 200, null);
+        assertThat(LogContextTrace.currentTraceId()).isEqualTo("order-42");
+        assertThat(TraceContext.currentTraceparent()).isNull();
+        LogContextTrace.exitFormatted(root, new int[]{10}, new int[]{1}, 1000L, false, false, true, false, false);
+    }
+
+    @Test
+    public void injectsIntoOutgoingRequests() throws Exception {
+        Map<String, String> headers = new LinkedHashMap<>();
+        assertThat(TraceContext.inject(headers::put)).isFalse();
+
+        MDC.put("traceparent", "00-" + TRACE_ID + "-" + PARENT_ID + "-01");
+        MDC.put("tracestate", "congo=t61rcWkgMzE");
+        Object root = LogContextTrace.enter("Service#handle()V", "", false, false, false, "", 200, null);
+        try {
+            assertThat(TraceContext.inject(headers::put)).isTrue();
+            assertThat(headers).containsEntry("traceparent", TraceContext.currentTraceparent())
+                    .containsEntry("tracestate", "congo=t61rcWkgMzE");
+
+            HttpRequest request = TraceContext.inject(HttpRequest.newBuilder(URI.create("http://localhost/"))).build();
+            assertThat(request.headers().firstValue("traceparent")).contains(TraceContext.currentTraceparent());
+
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost/").openConnection();
+            assertThat(TraceContext.inject(connection).getRequestProperty("traceparent"))
+                    .isEqualTo(TraceContext.currentTraceparent());
+        } finally {
+            LogContextTrace.exitFormatted(root, new int[]{10}, new int[]{1}, 1000L, false, false, true, false, false);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.kolobok.transformer;
+
+import org.junit.Test;
+import org.kolobok.annotation.DebugLog;
+import org.kolobok.runtime.TraceIdGenerator;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class TraceIdGeneratorTest {
+
+    @Test
+    public void generatesIdsInEachFormat() {
+        String uuid = TraceIdGenerator.next(DebugLog.TraceIdFormat.UUID);
+        assertThat(UUID.fromString(uuid).version()).isEqualTo(4);
+        assertThat(UUID.fromString(uuid).variant()).isEqualTo(2);
+        assertThat(uuid).isEqualTo(UUID.fromString(uuid).toString());
+
+        assertThat(TraceIdGenerator.next(DebugLog.TraceIdFormat.RANDOM)).matches("[0-9a-f]{32}")
+                .isNotEqualTo("00000000000000000000000000000000");
+        String time = TraceIdGenerator.next(DebugLog.TraceIdFormat.TIME);
+        assertThat(time).matches("[0-9a-f]{32}");
+        long millis = Long.parseUnsignedLong(time.substring(0, 16), 16) >>> 16;
+        assertThat(millis).isCloseTo(System.currentTimeMillis(), within(5_000L));
+    }
+
+    @Test
+    public void idsAreUniqueAcrossThreads() throws Exception {
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < 5_000; i++) {
+                        ids.add(TraceIdGenerator.random());
+                        ids.add(TraceIdGenerator.time());
+                        ids.add(TraceIdGenerator.uuid());
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertThat(ids).hasSize(8 * 5_000 * 3);
+    }
+
+    @Test
+    public void timeIdsIncreaseWithinAThread() {
+        String previous = TraceIdGenerator.time();
+        for (int i = 0; i < 1_000; i++) {
+            String next = TraceIdGenerator.time();
+            assertThat(next.substring(0, 16)).isGreaterThanOrEqualTo(previous.substring(0, 16));
+            previous = next;
+        }
+    }
+
+    @Test
+    public void transformedMethodsStartTracesWithConfiguredFormat() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-trace-id");
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Files.createDirectories(srcDir.resolve("sample"));
+        Files.createDirectories(classesDir);
+
+        writeSources(srcDir);
+        compileSources(srcDir, classesDir);
+        new KolobokTransformer().transformClassFile(classesDir.resolve("sample/SampleService.class"));
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classesDir.toUri().toURL()},
+                Thread.currentThread().getContextClassLoader())) {
+            Class<?> clazz = loader.loadClass("sample.SampleService");
+            Object instance = clazz.getDeclaredConstructor().newInstance();
+            Method random = clazz.getMethod("random");
+            Method time = clazz.getMethod("time");
+            Method plain = clazz.getMethod("plain");
+            assertThat((String) random.invoke(instance)).matches("[0-9a-f]{32}");
+            assertThat((String) time.invoke(instance)).matches("[0-9a-f]{32}");
+            assertThat(UUID.fromString((String) plain.invoke(instance)).version()).isEqualTo(4);
+        }
+    }
+
+    private void writeSources(Path srcDir) throws IOException {
+        String service = String.join("\n",
+                "package sample;",
+                "",
+                "import org.kolobok.annotation.DebugLog;",
+                "import org.kolobok.runtime.LogContextTrace;",
+                "import org.slf4j.Logger;",
+                "import org.slf4j.LoggerFactory;",
+                "",
+                "public class SampleService {",
+                "    private static final Logger log = LoggerFactory.getLogger(SampleService.class);",
+                "",
+                "    @DebugLog(lineHeatMap = true, traceIdFormat = DebugLog.TraceIdFormat.RANDOM)",
+                "    public String random() {",
+                "        return LogContextTrace.currentTraceId();",
+                "    }",
+                "",
+                "    @DebugLog(lineHeatMap = true, traceIdFormat = DebugLog.TraceIdFormat.TIME)",
+                "    public String time() {",
+                "        return LogContextTrace.currentTraceId();",
+                "    }",
+                "",
+                "    @DebugLog(lineHeatMap = true)",
+                "    public String plain() {",
+                "        return LogContextTrace.currentTraceId();",
+                "    }",
+                "}",
+                ""
+        );
+        Files.writeString(srcDir.resolve("sample/SampleService.java"), service);
+    }
+
+    private void compileSources(Path srcDir, Path classesDir) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(
+                Arrays.asList(srcDir.resolve("sample/SampleService.java").toFile())
+        );
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+}
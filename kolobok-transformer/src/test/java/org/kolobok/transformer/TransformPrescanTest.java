@@ -0,0 +1,136 @@
+package org.kolobok.transformer;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransformPrescanTest {
+
+    @Test
+    public void skipsClassesWithoutKolobokAnnotationsBeforeParsing() throws Exception {
+        Path tempDir = Files.createTempDirectory("kolobok-prescan");
+        Path srcDir = tempDir.resolve("src");
+        Path classesDir = tempDir.resolve("classes");
+        Files.createDirectories(srcDir.resolve("sample"));
+
+        List<Path> sources = writeSources(srcDir);
+        compileSources(sources, classesDir);
+
+        byte[] plain = Files.readAllBytes(classesDir.resolve("sample/Plain.class"));
+        assertThat(KolobokTransformer.referencesKolobokAnnotation(new ClassReader(plain), plain)).isFalse();
+        byte[] safe = Files.readAllBytes(classesDir.resolve("sample/SafeLocal.class"));
+        assertThat(KolobokTransformer.referencesKolobokAnnotation(new ClassReader(safe), safe)).isTrue();
+
+        TransformStats stats = new KolobokTransformer().transformDirectory(classesDir);
+
+        assertThat(stats.getClassCount()).isEqualTo(5);
+        assertThat(stats.getSkippedCount()).isEqualTo(2);
+        assertThat(stats.getUnchangedCount()).isEqualTo(1);
+        assertThat(stats.getTransformedCount()).isEqualTo(2);
+        assertThat(stats.getFailedCount()).isZero();
+        assertThat(stats.toString())
+                .isEqualTo("5 classes: 2 transformed, 2 skipped by constant pool scan (40%), 1 unchanged");
+        assertThat(Files.readAllBytes(classesDir.resolve("sample/Plain.class"))).isEqualTo(plain);
+        assertThat(Files.readAllBytes(classesDir.resolve("sample/SafeLocal.class"))).isNotEqualTo(safe);
+    }
+
+    private List<Path> writeSources(Path srcDir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        files.add(write(srcDir, "Plain",
+                "public class Plain {",
+                "    // long and double constants occupy two constant pool slots",
+                "    public static final long BIG = 1234567890123L;",
+                "    public double scale(double value) {",
+                "        return value * 3.25d + BIG;",
+                "    }",
+                "    public String name() {",
+                "        return \"Lorg/kolobok/annotation/DebugLogIgnore;\";",
+                "    }",
+                "}"));
+        files.add(write(srcDir, "Other",
+                "public interface Other {",
+                "    String findByName(String name);",
+                "}"));
+        files.add(write(srcDir, "Traced",
+                "import org.kolobok.annotation.DebugLog;",
+                "import org.slf4j.Logger;",
+                "import org.slf4j.LoggerFactory;",
+                "",
+                "public class Traced {",
+                "    private static final Logger log = LoggerFactory.getLogger(Traced.class);",
+                "    @DebugLog",
+                "    public int work(int value) {",
+                "        return value + 1;",
+                "    }",
+                "}"));
+        files.add(write(srcDir, "AbstractTraced",
+                "import org.kolobok.annotation.DebugLog;",
+                "",
+                "public abstract class AbstractTraced {",
+                "    @DebugLog",
+                "    public abstract int work(int value);",
+                "}"));
+        files.add(write(srcDir, "SafeLocal",
+                "import java.util.List;",
+                "import org.kolobok.annotation.SafeCall;",
+                "",
+                "public class SafeLocal {",
+                "    public int safeLocal() {",
+                "        @SafeCall List<String> names = null;",
+                "        @SafeCall int count = names.size();",
+                "        return count;",
+                "    }",
+                "}"));
+        return files;
+    }
+
+    private Path write(Path srcDir, String name, String... lines) throws IOException {
+        Path file = srcDir.resolve("sample/" + name + ".java");
+        Files.writeString(file, "package sample;\n\n" + String.join("\n", lines) + "\n");
+        return file;
+    }
+
+    private void compileSources(List<Path> sources, Path classesDir) throws IOException {
+        Files.createDirectories(classesDir);
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertThat(compiler).as("System Java compiler is available").isNotNull();
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        List<File> files = sources.stream().map(Path::toFile).collect(Collectors.toList());
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(files);
+
+        List<String> options = Arrays.asList(
+                "-d", classesDir.toString(),
+                "-classpath", System.getProperty("java.class.path")
+        );
+
+        Boolean result = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        fileManager.close();
+
+        if (result == null || !result) {
+            StringBuilder sb = new StringBuilder("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic.getKind()).append(": ")
+                        .append(diagnostic.getMessage(null)).append("\n");
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+}